@@ -867,4 +867,17 @@ public class NativeImplementation {
   arrayFindGeneric(Object theArray, short off, byte[] valArray, short valOff)
       throws ArrayIndexOutOfBoundsException, NullPointerException,
              UtilException;
+
+  /**
+   * Native function giving the image of the GlobalPlatform registry saved by
+   * the platform, to be restored when the JCRE starts.
+   *
+   * @return the image written by
+   *         <code>org.globalplatform.PlateformeGlobale.writeRegistryImage</code>,
+   *         or <code>null</code> if there is none. The array must not be
+   *         modified afterwards.
+   *
+   * @see fr.gouv.ssi.starter.Starter#run()
+   */
+  public static native byte[] getRegistryImage();
 }
@@ -26,6 +26,7 @@ package fr.gouv.ssi.starter;
  * #L%
  */
 
+import fr.gouv.ssi.nativeimpl.NativeImplementation;
 import org.globalplatform.*;
 
 /**
@@ -40,8 +41,12 @@ public class Starter {
    *
    * <p>This method is call by the Java Card Runtime Environment to run the
    * VM</p>
+   *
+   * <p>The GP registry is restored from the image provided by the platform,
+   * if any.</p>
    */
   public static void run() {
-    PlateformeGlobale gp = PlateformeGlobale.getInstance();
+    PlateformeGlobale gp =
+        PlateformeGlobale.getInstance(NativeImplementation.getRegistryImage());
   }
 }
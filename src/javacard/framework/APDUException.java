@@ -27,6 +27,9 @@ package javacard.framework;
 
 public class APDUException extends CardRuntimeException {
 
+  private static final APDUException systemInstance =
+      new APDUException((short)0);
+
   /**
    * This <code>APDUException</code> reason code indicates that the method
    * should not be invoked based on the current state of the APDU.
@@ -113,7 +116,7 @@ public class APDUException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    APDUException exception = new APDUException(reason);
-    throw exception;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
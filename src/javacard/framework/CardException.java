@@ -25,7 +25,13 @@ package javacard.framework;
 
 public class CardException extends Exception {
 
-  private short reason;
+  private static final CardException systemInstance =
+      new CardException((short)0);
+
+  // transient, so that its update does not participate in a transaction
+  // and that it is reset to 0 on a tear or reset
+  private final short[] reason =
+      JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_RESET);
 
   /**
    * Construct a <code>CardException</code> instance with the specified reason.
@@ -35,14 +41,14 @@ public class CardException extends Exception {
    * @param reason
    *            the reason for the exception
    */
-  public CardException(short reason) { this.reason = reason; }
+  public CardException(short reason) { this.reason[0] = reason; }
 
   /**
    * Get reason code
    *
    * @return the reason for the exception
    */
-  public short getReason() { return this.reason; }
+  public short getReason() { return this.reason[0]; }
 
   /**
    * Set reason code
@@ -50,7 +56,7 @@ public class CardException extends Exception {
    * @param reason
    *            the reason for the exception
    */
-  public void setReason(short reason) { this.reason = reason; }
+  public void setReason(short reason) { this.reason[0] = reason; }
 
   /**
    * Throw the Java Card runtime environment-owned instance of
@@ -70,7 +76,7 @@ public class CardException extends Exception {
    *                always
    */
   public static void throwIt(short reason) throws CardException {
-    CardException exception = new CardException(reason);
-    throw exception;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
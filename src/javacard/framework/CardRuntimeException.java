@@ -28,7 +28,13 @@ import java.lang.RuntimeException;
 
 public class CardRuntimeException extends RuntimeException {
 
-  private short reason;
+  private static final CardRuntimeException systemInstance =
+      new CardRuntimeException((short)0);
+
+  // transient, so that its update does not participate in a transaction
+  // and that it is reset to 0 on a tear or reset
+  private final short[] reason =
+      JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_RESET);
 
   /**
    * Constructs a CardRuntimeException instance with the specified reason. To
@@ -38,14 +44,14 @@ public class CardRuntimeException extends RuntimeException {
    * @param reason
    *            the reason for the exception
    */
-  public CardRuntimeException(short reason) { this.reason = reason; }
+  public CardRuntimeException(short reason) { this.reason[0] = reason; }
 
   /**
    * Gets the reason code
    *
    * @return the reason for the exception
    */
-  public short getReason() { return this.reason; }
+  public short getReason() { return this.reason[0]; }
 
   /**
    * Sets the reason code. Even if a transaction is in progress, the update of
@@ -55,7 +61,7 @@ public class CardRuntimeException extends RuntimeException {
    * @param reason
    *            the reason for the exception
    */
-  public void setReason(short reason) { this.reason = reason; }
+  public void setReason(short reason) { this.reason[0] = reason; }
 
   /**
    * Throws the Java Card runtime environment-owned instance of the
@@ -75,7 +81,7 @@ public class CardRuntimeException extends RuntimeException {
    *                always
    */
   public static void throwIt(short reason) throws CardRuntimeException {
-    CardRuntimeException exception = new CardRuntimeException(reason);
-    throw exception;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
@@ -25,6 +25,8 @@ package javacard.framework;
 
 public class ISOException extends CardRuntimeException {
 
+  private static final ISOException systemInstance = new ISOException((short)0);
+
   /**
    * Constructs an ISOException instance with the specified status word. To
    * conserve on resources use <code>throwIt()</code> to employ the Java
@@ -53,7 +55,7 @@ public class ISOException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short sw) {
-    ISOException exception = new ISOException(sw);
-    throw exception;
+    systemInstance.setReason(sw);
+    throw systemInstance;
   }
 }
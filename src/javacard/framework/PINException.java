@@ -28,6 +28,8 @@ package javacard.framework;
 
 public class PINException extends CardRuntimeException {
 
+  private static final PINException systemInstance = new PINException((short)0);
+
   // PINException reason codes
   /**
    * This reason code is used to indicate that one or more input parameters is
@@ -68,7 +70,7 @@ public class PINException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    PINException instance = new PINException(reason);
-    throw instance;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
@@ -31,6 +31,9 @@ package javacard.framework;
 
 public class SystemException extends CardRuntimeException {
 
+  private static final SystemException systemInstance =
+      new SystemException((short)0);
+
   /**
    * This reason code is used to indicate that one or more input parameters is
    * out of allowed bounds.
@@ -106,7 +109,7 @@ public class SystemException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) throws SystemException {
-    SystemException se = new SystemException(reason);
-    throw se;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
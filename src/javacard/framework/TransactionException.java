@@ -25,6 +25,9 @@ package javacard.framework;
  */
 public class TransactionException extends CardRuntimeException {
 
+  private static final TransactionException systemInstance =
+      new TransactionException((short)0);
+
   /**
    * This reason code is used by the <code>beginTransaction</code> method to
    * indicate a transaction is already in progress.
@@ -83,7 +86,7 @@ public class TransactionException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    TransactionException te = new TransactionException(reason);
-    throw te;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
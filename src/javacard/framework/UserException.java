@@ -22,6 +22,9 @@ package javacard.framework;
  */
 public class UserException extends CardException {
 
+  private static final UserException systemInstance =
+      new UserException((short)0);
+
   /**
    * Constructs a <code>UserException</code> with reason = 0. To conserve on
    * resources use <code>throwIt()</code> to use the Java Card runtime
@@ -57,7 +60,7 @@ public class UserException extends CardException {
    *                always
    */
   public static void throwIt(short reason) throws UserException {
-    UserException ue = new UserException(reason);
-    throw ue;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
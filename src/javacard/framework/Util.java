@@ -403,7 +403,7 @@ public class Util {
         return -1;
       } else if (src[(short)(srcOff + idx)] == dest[(short)(destOff + idx)]) {
         continue;
-      } else if (src[(short)(srcOff + idx)] < dest[(short)(destOff + idx)]) {
+      } else if (src[(short)(srcOff + idx)] > dest[(short)(destOff + idx)]) {
         return 1;
       }
     }
@@ -29,6 +29,9 @@ import javacard.framework.JCSystem;
  */
 public class ServiceException extends CardRuntimeException {
 
+  private static final ServiceException systemInstance =
+      new ServiceException((short)0);
+
   /**
    * This reason code is used to indicate that an input parameter is not
    * allowed.
@@ -98,7 +101,7 @@ public class ServiceException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) throws ServiceException {
-    ServiceException se = new ServiceException(reason);
-    throw se;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
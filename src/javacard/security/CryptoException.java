@@ -29,6 +29,9 @@ import javacard.framework.CardRuntimeException;
  */
 public class CryptoException extends CardRuntimeException {
 
+  private static final CryptoException systemInstance =
+      new CryptoException((short)0);
+
   /**
    * This reason code is used to indicate that one or more input parameters is
    * out of allowed bounds.
@@ -89,7 +92,7 @@ public class CryptoException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    CryptoException ce = new CryptoException(reason);
-    throw ce;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
@@ -7,6 +7,7 @@
 
 package javacard.security;
 
+import javacard.framework.AID;
 import javacard.framework.JCSystem;
 import javacard.framework.SystemException;
 
@@ -150,6 +151,34 @@ public abstract class InitializedMessageDigest extends MessageDigest {
    */
   public static final class OneShot extends InitializedMessageDigest {
 
+    // one instance for each supported algorithm, allocated by the
+    // initialization of the class in the runtime environment context
+    private static final OneShot[] instances = allocate();
+
+    private final InitializedMessageDigest engine;
+    private boolean opened;
+    private AID owner;             // context which has opened the instance
+
+    private OneShot(InitializedMessageDigest engine) { this.engine = engine; }
+
+    /**
+     * @return An array with one closed instance of each supported algorithm
+     *     and <code>null</code> for the other algorithms.
+     */
+    private static OneShot[] allocate() {
+      OneShot[] instances = new OneShot[(short)(ALG_SHA3_512 - ALG_SHA + 1)];
+      for (byte algorithm = ALG_SHA; algorithm <= ALG_SHA3_512; algorithm++) {
+        try {
+          instances[(short)(algorithm - ALG_SHA)] =
+              new OneShot(
+                  getInitializedMessageDigestInstance(algorithm, false));
+        } catch (CryptoException e) {
+          // algorithm not supported
+        }
+      }
+      return instances;
+    }
+
     /**
      * Closes and acquires a JCRE owned temporary Entry Point Object instance of
      * {@code OneShot} with the selected algorithm.
@@ -171,7 +200,19 @@ public abstract class InitializedMessageDigest extends MessageDigest {
      * </ul>
      */
     public static final OneShot open(byte algorithm) throws CryptoException {
-      // TODO: Not yet implemented!!!
+      for (short i = 0; i < (short)instances.length; i++) {
+        OneShot instance = instances[i];
+        if (instance != null &&
+            instance.engine.getAlgorithm() == algorithm) {
+          if (instance.opened) {
+            SystemException.throwIt(SystemException.NO_RESOURCE);
+          }
+          instance.owner = JCSystem.getAID();
+          instance.opened = true;
+          return instance;
+        }
+      }
+      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
       return null;
     }
 
@@ -185,7 +226,32 @@ public abstract class InitializedMessageDigest extends MessageDigest {
      * caller.
      */
     public void close() {
-      // TODO: Not yet implemented!!!
+      if (!opened) {
+        return;
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      engine.reset();
+      opened = false;
+      owner = null;
+    }
+
+    /**
+     * @return The engine of this instance.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private InitializedMessageDigest engine() throws CryptoException {
+      if (!opened) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      return engine;
     }
 
     /**
@@ -200,7 +266,9 @@ public abstract class InitializedMessageDigest extends MessageDigest {
                      short initialDigestLength, byte[] digestedMsgLenBuf,
                      short digestedMsgLenOffset, short digestedMsgLenLength)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
+      engine().setInitialDigest(initialDigestBuf, initialDigestOffset,
+                                initialDigestLength, digestedMsgLenBuf,
+                                digestedMsgLenOffset, digestedMsgLenLength);
     }
 
     /**
@@ -211,8 +279,7 @@ public abstract class InitializedMessageDigest extends MessageDigest {
      */
     @Override
     public byte getAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getAlgorithm();
     }
 
     /**
@@ -223,8 +290,7 @@ public abstract class InitializedMessageDigest extends MessageDigest {
      */
     @Override
     public byte getLength() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getLength();
     }
 
     /**
@@ -237,8 +303,7 @@ public abstract class InitializedMessageDigest extends MessageDigest {
     public short doFinal(byte[] inBuff, short inOffset, short inLength,
                          byte[] outBuff, short outOffset)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
     }
 
     /**
@@ -249,7 +314,7 @@ public abstract class InitializedMessageDigest extends MessageDigest {
      */
     @Override
     public void reset() {
-      // TODO: Not yet implemented!!!
+      engine().reset();
     }
 
     /**
@@ -271,7 +336,6 @@ public abstract class InitializedMessageDigest extends MessageDigest {
     @Override
     public void update(byte[] inBuff, short inOffset, short inLength)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
       CryptoException.throwIt(CryptoException.ILLEGAL_USE);
     }
   }
@@ -7,6 +7,7 @@
 
 package javacard.security;
 
+import javacard.framework.AID;
 import javacard.framework.JCSystem;
 import javacard.framework.SystemException;
 import javacard.security.InitializedMessageDigest;
@@ -205,6 +206,23 @@ public abstract class MessageDigest {
     }
 
     switch (algorithm) {
+    case ALG_SHA:
+      return new sha1_engine();
+    case ALG_MD5:
+      return new md5_engine();
+    case ALG_RIPEMD160:
+      return new ripemd160_engine();
+    case ALG_SHA_224:
+    case ALG_SHA_256:
+      return new sha256_engine(algorithm);
+    case ALG_SHA_384:
+    case ALG_SHA_512:
+      return new sha512_engine(algorithm);
+    case ALG_SHA3_224:
+    case ALG_SHA3_256:
+    case ALG_SHA3_384:
+    case ALG_SHA3_512:
+      return new sha3_engine(algorithm);
     default:
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
       break;
@@ -250,6 +268,18 @@ public abstract class MessageDigest {
     }
 
     switch (algorithm) {
+    case ALG_SHA:
+      return new sha1_engine();
+    case ALG_MD5:
+      return new md5_engine();
+    case ALG_RIPEMD160:
+      return new ripemd160_engine();
+    case ALG_SHA_224:
+    case ALG_SHA_256:
+      return new sha256_engine(algorithm);
+    case ALG_SHA_384:
+    case ALG_SHA_512:
+      return new sha512_engine(algorithm);
     default:
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
       break;
@@ -418,6 +448,33 @@ public abstract class MessageDigest {
    */
   public static final class OneShot extends MessageDigest {
 
+    // one instance for each supported algorithm, allocated by the
+    // initialization of the class in the runtime environment context
+    private static final OneShot[] instances = allocate();
+
+    private final MessageDigest engine;
+    private boolean opened;
+    private AID owner;             // context which has opened the instance
+
+    private OneShot(MessageDigest engine) { this.engine = engine; }
+
+    /**
+     * @return An array with one closed instance of each supported algorithm
+     *     and <code>null</code> for the other algorithms.
+     */
+    private static OneShot[] allocate() {
+      OneShot[] instances = new OneShot[(short)(ALG_SHA3_512 - ALG_SHA + 1)];
+      for (byte algorithm = ALG_SHA; algorithm <= ALG_SHA3_512; algorithm++) {
+        try {
+          instances[(short)(algorithm - ALG_SHA)] =
+              new OneShot(getInstance(algorithm, false));
+        } catch (CryptoException e) {
+          // algorithm not supported
+        }
+      }
+      return instances;
+    }
+
     /**
      * Opens/acquires a JCRE owned temporary Entry Point Object instance of
      * {@code OneShot} with the selected algorithm.
@@ -439,7 +496,18 @@ public abstract class MessageDigest {
      * </ul>
      */
     public static final OneShot open(byte algorithm) throws CryptoException {
-      // TODO: Not yet implemented!!!
+      for (short i = 0; i < (short)instances.length; i++) {
+        OneShot instance = instances[i];
+        if (instance != null &&
+            instance.engine.getAlgorithm() == algorithm) {
+          if (instance.opened) {
+            SystemException.throwIt(SystemException.NO_RESOURCE);
+          }
+          instance.owner = JCSystem.getAID();
+          instance.opened = true;
+          return instance;
+        }
+      }
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
       return null;
     }
@@ -453,7 +521,34 @@ public abstract class MessageDigest {
      * {@code OneShot} object was opened in a context different from that of the
      * caller.
      */
-    public void close() { return; }
+    public void close() {
+      if (!opened) {
+        return;
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      engine.reset();
+      opened = false;
+      owner = null;
+    }
+
+    /**
+     * @return The engine of this instance.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private MessageDigest engine() throws CryptoException {
+      if (!opened) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      return engine;
+    }
 
     /**
      * {@inheritDoc}
@@ -463,8 +558,7 @@ public abstract class MessageDigest {
      */
     @Override
     public byte getAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getAlgorithm();
     }
 
     /**
@@ -475,8 +569,7 @@ public abstract class MessageDigest {
      */
     @Override
     public byte getLength() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getLength();
     }
 
     /**
@@ -489,9 +582,7 @@ public abstract class MessageDigest {
     public short doFinal(byte[] inBuff, short inOffset, short inLength,
                          byte[] outBuff, short outOffset)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.ILLEGAL_USE);
-      return -1;
+      return engine().doFinal(inBuff, inOffset, inLength, outBuff, outOffset);
     }
 
     /**
@@ -524,7 +615,7 @@ public abstract class MessageDigest {
      */
     @Override
     public void reset() {
-      // TODO: Not yet implemented!!!
+      engine().reset();
     }
   }
 }
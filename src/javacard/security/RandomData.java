@@ -7,6 +7,7 @@
 
 package javacard.security;
 
+import javacard.framework.AID;
 import javacard.framework.JCSystem;
 import javacard.framework.SystemException;
 
@@ -90,6 +91,10 @@ public abstract class RandomData {
    * Creates a <code>RandomData</code> instance of the selected algorithm.
    * The pseudo random <code>RandomData</code> instance's seed is
    * initialized to a internal default value.
+   * <p>
+   * No algorithm is supported yet: the platform gives no entropy source to
+   * this implementation, so this method always throws
+   * <code>CryptoException.NO_SUCH_ALGORITHM</code>.
    *
    * @param algorithm
    *            the desired random number algorithm. Valid codes listed in
@@ -251,11 +256,43 @@ public abstract class RandomData {
    */
   public static final class OneShot extends RandomData {
 
+    // one instance for each supported algorithm, allocated by the
+    // initialization of the class in the runtime environment context
+    private static final OneShot[] instances = allocate();
+
+    private final RandomData engine;
+    private boolean opened;
+    private AID owner;             // context which has opened the instance
+
+    private OneShot(RandomData engine) { this.engine = engine; }
+
+    /**
+     * @return An array with one closed instance of each supported algorithm
+     *     and <code>null</code> for the other algorithms.
+     */
+    private static OneShot[] allocate() {
+      OneShot[] instances =
+          new OneShot[(short)(ALG_KEYGENERATION - ALG_PSEUDO_RANDOM + 1)];
+      for (byte algorithm = ALG_PSEUDO_RANDOM; algorithm <= ALG_KEYGENERATION;
+           algorithm++) {
+        try {
+          instances[(short)(algorithm - ALG_PSEUDO_RANDOM)] =
+              new OneShot(getInstance(algorithm));
+        } catch (CryptoException e) {
+          // algorithm not supported
+        }
+      }
+      return instances;
+    }
+
     /**
      * Opens/acquires a JCRE owned temporary Entry Point Object instance of
      * {@code OneShot} with the selected algorithm. The pseudo random
      * {@code RandomData.OneShot} instance's seed is initialized to a internal
      * default value.
+     * <p>
+     * No algorithm is supported yet (see {@link RandomData#getInstance(byte)}),
+     * so this method always throws {@code CryptoException.NO_SUCH_ALGORITHM}.
      *
      * @param algorithm the desired random number algorithm. Valid codes listed
      * in {@code ALG_*} constants above, for example
@@ -276,8 +313,19 @@ public abstract class RandomData {
      * </ul>
      */
     public static final OneShot open(byte algorithm) throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+      for (short i = 0; i < (short)instances.length; i++) {
+        OneShot instance = instances[i];
+        if (instance != null &&
+            instance.engine.getAlgorithm() == algorithm) {
+          if (instance.opened) {
+            SystemException.throwIt(SystemException.NO_RESOURCE);
+          }
+          instance.owner = JCSystem.getAID();
+          instance.opened = true;
+          return instance;
+        }
+      }
+      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
       return null;
     }
 
@@ -291,7 +339,31 @@ public abstract class RandomData {
      * caller.
      */
     public void close() {
-      // TODO: Not yet implemented!!!
+      if (!opened) {
+        return;
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      opened = false;
+      owner = null;
+    }
+
+    /**
+     * @return The engine of this instance.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private RandomData engine() throws CryptoException {
+      if (!opened) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      return engine;
     }
 
     /**
@@ -303,8 +375,7 @@ public abstract class RandomData {
      */
     @Override
     public byte getAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getAlgorithm();
     }
 
     /**
@@ -318,7 +389,7 @@ public abstract class RandomData {
      */
     @Override
     public void generateData(byte[] buffer, short offset, short length) {
-      // TODO: Not yet implemented!!!
+      engine().generateData(buffer, offset, length);
     }
 
     /**
@@ -331,8 +402,7 @@ public abstract class RandomData {
     @Override
     public short nextBytes(byte[] buffer, short offset, short length)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().nextBytes(buffer, offset, length);
     }
 
     /**
@@ -344,7 +414,7 @@ public abstract class RandomData {
      */
     @Override
     public void setSeed(byte[] buffer, short offset, short length) {
-      // TODO: Not yet implemented!!!
+      engine().setSeed(buffer, offset, length);
     }
   }
 }
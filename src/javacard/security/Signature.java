@@ -7,6 +7,7 @@
 
 package javacard.security;
 
+import javacard.framework.AID;
 import javacard.framework.JCSystem;
 import javacard.framework.SystemException;
 import javacardx.crypto.Cipher;
@@ -1716,6 +1717,36 @@ public abstract class Signature {
    */
   public static final class OneShot extends Signature {
 
+    // one instance for each supported algorithm, allocated by the
+    // initialization of the class in the runtime environment context
+    private static final OneShot[] instances = allocate();
+
+    private final Signature engine;
+    private boolean initialized;   // init has been called since open
+    private boolean opened;
+    private AID owner;             // context which has opened the instance
+
+    private OneShot(Signature engine) { this.engine = engine; }
+
+    /**
+     * @return An array with one closed instance of each supported algorithm
+     *     and <code>null</code> for the other algorithms.
+     */
+    private static OneShot[] allocate() {
+      OneShot[] instances =
+          new OneShot[(short)(ALG_AES_CMAC_128 - ALG_DES_MAC4_NOPAD + 1)];
+      for (byte algorithm = ALG_DES_MAC4_NOPAD; algorithm <= ALG_AES_CMAC_128;
+           algorithm++) {
+        try {
+          instances[(short)(algorithm - ALG_DES_MAC4_NOPAD)] =
+              new OneShot(getInstance(algorithm, false));
+        } catch (CryptoException e) {
+          // algorithm not supported
+        }
+      }
+      return instances;
+    }
+
     /**
      * Opens/acquires a JCRE owned temporary Entry Point Object instance of
      * {@code OneShot} with the selected message digest algorithm, cipher
@@ -1761,9 +1792,23 @@ public abstract class Signature {
                                      byte cipherAlgorithm,
                                      byte paddingAlgorithm)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
+      for (short i = 0; i < (short)instances.length; i++) {
+        OneShot instance = instances[i];
+        if (instance != null &&
+            instance.engine.getMessageDigestAlgorithm() ==
+                messageDigestAlgorithm &&
+            instance.engine.getCipherAlgorithm() == cipherAlgorithm &&
+            instance.engine.getPaddingAlgorithm() == paddingAlgorithm) {
+          if (instance.opened) {
+            SystemException.throwIt(SystemException.NO_RESOURCE);
+          }
+          instance.owner = JCSystem.getAID();
+          instance.opened = true;
+          instance.initialized = false;
+          return instance;
+        }
+      }
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-
       return null;
     }
 
@@ -1777,7 +1822,47 @@ public abstract class Signature {
      * caller.
      */
     public void close() {
-      // TODO: Not yet implemented!!!
+      if (!opened) {
+        return;
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      opened = false;
+      owner = null;
+    }
+
+    /**
+     * @return The engine of this instance.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private Signature engine() throws CryptoException {
+      if (!opened) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      return engine;
+    }
+
+    /**
+     * @return The engine of this instance, once initialized with a key.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed, or <code>INVALID_INIT</code> if
+     *     <code>init</code> has not been called since it has been opened.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private Signature initialized_engine() throws CryptoException {
+      Signature signature = engine();
+      if (!initialized) {
+        CryptoException.throwIt(CryptoException.INVALID_INIT);
+      }
+      return signature;
     }
 
     /**
@@ -1795,7 +1880,6 @@ public abstract class Signature {
     @Override
     public final void update(byte[] inBuff, short inOffset, short inLength)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
       CryptoException.throwIt(CryptoException.ILLEGAL_USE);
     }
 
@@ -1807,8 +1891,8 @@ public abstract class Signature {
      */
     @Override
     public void init(Key theKey, byte theMode) throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+      engine().init(theKey, theMode);
+      initialized = true;
     }
 
     /**
@@ -1820,8 +1904,8 @@ public abstract class Signature {
     @Override
     public void init(Key theKey, byte theMode, byte[] bArray, short bOff,
                      short bLen) throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+      engine().init(theKey, theMode, bArray, bOff, bLen);
+      initialized = true;
     }
 
     /**
@@ -1836,8 +1920,12 @@ public abstract class Signature {
                      short initialDigestLength, byte[] digestedMsgLenBuf,
                      short digestedMsgLenOffset, short digestedMsgLenLength)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+      initialized_engine().setInitialDigest(initialDigestBuf,
+                                            initialDigestOffset,
+                                            initialDigestLength,
+                                            digestedMsgLenBuf,
+                                            digestedMsgLenOffset,
+                                            digestedMsgLenLength);
     }
 
     /**
@@ -1848,8 +1936,7 @@ public abstract class Signature {
      */
     @Override
     public byte getAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getAlgorithm();
     }
 
     /**
@@ -1860,8 +1947,7 @@ public abstract class Signature {
      */
     @Override
     public byte getMessageDigestAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getMessageDigestAlgorithm();
     }
 
     /**
@@ -1872,8 +1958,7 @@ public abstract class Signature {
      */
     @Override
     public byte getCipherAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getCipherAlgorithm();
     }
 
     /**
@@ -1884,8 +1969,7 @@ public abstract class Signature {
      */
     @Override
     public byte getPaddingAlgorithm() {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getPaddingAlgorithm();
     }
 
     /**
@@ -1896,8 +1980,7 @@ public abstract class Signature {
      */
     @Override
     public short getLength() throws CryptoException {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return engine().getLength();
     }
 
     /**
@@ -1909,8 +1992,8 @@ public abstract class Signature {
     @Override
     public short sign(byte[] inBuff, short inOffset, short inLength,
                       byte[] sigBuff, short sigOffset) throws CryptoException {
-      // TODO: Not yet implemented!!!
-      return 0;
+      return initialized_engine().sign(inBuff, inOffset, inLength, sigBuff,
+                                       sigOffset);
     }
 
     /**
@@ -1923,9 +2006,9 @@ public abstract class Signature {
     public short signPreComputedHash(byte[] hashBuff, short hashOff,
                                      short hashLength, byte[] sigBuff,
                                      short sigOffset) throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-      return -1;
+      return initialized_engine().signPreComputedHash(hashBuff, hashOff,
+                                                      hashLength, sigBuff,
+                                                      sigOffset);
     }
 
     /**
@@ -1938,9 +2021,8 @@ public abstract class Signature {
     public boolean verify(byte[] inBuff, short inOffset, short inLength,
                           byte[] sigBuff, short sigOffset, short sigLength)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-      return false;
+      return initialized_engine().verify(inBuff, inOffset, inLength, sigBuff,
+                                         sigOffset, sigLength);
     }
 
     /**
@@ -1954,9 +2036,9 @@ public abstract class Signature {
                                          short hashLength, byte[] sigBuff,
                                          short sigOffset, short sigLength)
         throws CryptoException {
-      // TODO: Not yet implemented!!!
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-      return false;
+      return initialized_engine().verifyPreComputedHash(hashBuff, hashOff,
+                                                        hashLength, sigBuff,
+                                                        sigOffset, sigLength);
     }
   }
 }
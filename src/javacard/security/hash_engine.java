@@ -0,0 +1,272 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.Util;
+
+/**
+ * <p>Message digests built on a compression function (MD5, RIPEMD-160, SHA-1
+ * and SHA-2).</p>
+ *
+ * <p>The input is compressed a block at a time: whole blocks are read where
+ * they are, in the array of the caller, and only the bytes of an incomplete
+ * block are copied into the pending block. The chaining value and the message
+ * schedule of a subclass, like the pending block, are allocated by its
+ * constructor; hashing does not allocate anything.</p>
+ *
+ * <p>The midstate of a digest, taken at a block boundary, is its chaining
+ * value and the number of bytes hashed. It is imported by
+ * <code>setInitialDigest</code>, and exported by
+ * <code>get_initial_digest</code>, both with the chaining value in the byte
+ * order of the algorithm.</p>
+ */
+abstract class hash_engine extends InitializedMessageDigest {
+
+  private final byte algorithm;
+  private final byte length;
+  private final short block_size;
+  private final short counter_size; // length of the message length field
+  private final boolean little_endian;
+  final int[] state;                // chaining value
+  private final byte[] block;       // pending block
+  private short pending;            // number of bytes in the pending block
+  private int count_high;           // number of bytes hashed
+  private int count_low;
+
+  /**
+   * Class constructor
+   *
+   * @param bAlgorithm The algorithm, one of the <code>ALG_*</code> constants
+   *     of <code>MessageDigest</code>.
+   * @param bLength The length of the digest.
+   * @param sBlockSize The length of the blocks of the compression function.
+   * @param sStateLength The number of 32-bit words of the chaining value.
+   * @param bLittleEndian <code>true</code> if the words are little endian
+   *     (MD5, RIPEMD-160).
+   */
+  hash_engine(byte bAlgorithm, byte bLength, short sBlockSize,
+              short sStateLength, boolean bLittleEndian) {
+    algorithm = bAlgorithm;
+    length = bLength;
+    block_size = sBlockSize;
+    counter_size = (short)(sBlockSize / 8);
+    little_endian = bLittleEndian;
+    block = new byte[sBlockSize];
+    state = new int[sStateLength];
+  }
+
+  /**
+   * Set the initial chaining value.
+   */
+  abstract void initialize();
+
+  /**
+   * Compress a block into the chaining value.
+   */
+  abstract void compress(byte[] baBlock, short sOffset);
+
+
+  public byte getAlgorithm() { return algorithm; }
+
+  public byte getLength() { return length; }
+
+  public void update(byte[] inBuff, short inOffset, short inLength)
+      throws CryptoException {
+    if (inLength < 0) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    count_low += inLength;
+    if ((count_low ^ 0x80000000) < (inLength ^ 0x80000000)) // carry
+    {
+      count_high++;
+    }
+    if (pending != 0) {
+      short count = (short)(block_size - pending);
+      if (count > inLength) {
+        count = inLength;
+      }
+      Util.arrayCopyNonAtomic(inBuff, inOffset, block, pending, count);
+      pending += count;
+      inOffset += count;
+      inLength -= count;
+      if (pending < block_size) {
+        return;
+      }
+      compress(block, (short)0);
+      pending = 0;
+    }
+    while (inLength >= block_size) {
+      compress(inBuff, inOffset);
+      inOffset += block_size;
+      inLength -= block_size;
+    }
+    if (inLength != 0) {
+      Util.arrayCopyNonAtomic(inBuff, inOffset, block, (short)0, inLength);
+      pending = inLength;
+    }
+  }
+
+  public short doFinal(byte[] inBuff, short inOffset, short inLength,
+                       byte[] outBuff, short outOffset)
+      throws CryptoException {
+    update(inBuff, inOffset, inLength);
+
+    // padding: '80', zeros, then the length of the message in bits
+    block[pending++] = (byte)0x80;
+    if (pending > (short)(block_size - counter_size)) {
+      Util.arrayFillNonAtomic(block, pending, (short)(block_size - pending),
+                              (byte)0x00);
+      compress(block, (short)0);
+      pending = 0;
+    }
+    Util.arrayFillNonAtomic(block, pending, (short)(block_size - pending),
+                            (byte)0x00);
+    int high = (count_high << 3) | (count_low >>> 29);
+    int low = count_low << 3;
+    if (little_endian) {
+      set_int(block, (short)(block_size - 8), low, true);
+      set_int(block, (short)(block_size - 4), high, true);
+    } else {
+      set_int(block, (short)(block_size - 8), high, false);
+      set_int(block, (short)(block_size - 4), low, false);
+    }
+    compress(block, (short)0);
+    set_ints(state, outBuff, outOffset, length, little_endian);
+    reset();
+    return length;
+  }
+
+  public void setInitialDigest(byte[] initialDigestBuf,
+                               short initialDigestOffset,
+                               short initialDigestLength,
+                               byte[] digestedMsgLenBuf,
+                               short digestedMsgLenOffset,
+                               short digestedMsgLenLength)
+      throws CryptoException {
+    if (initialDigestLength != (short)(state.length * 4) ||
+        digestedMsgLenLength < 0) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    // the number of bytes hashed, big endian, on up to 64 bits
+    int high = 0;
+    int low = 0;
+    for (short i = 0; i < digestedMsgLenLength; i++) {
+      if ((high >>> 24) != 0) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+      }
+      high = (high << 8) | (low >>> 24);
+      low = (low << 8) |
+            (digestedMsgLenBuf[(short)(digestedMsgLenOffset + i)] & 0xFF);
+    }
+    // the bit length of the message must fit in the length field, which
+    // here is at most 64 bits
+    if ((high == 0 && low == 0) || (high >>> 29) != 0 ||
+        (low & (block_size - 1)) != 0) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    for (short i = 0; i < (short)state.length; i++) {
+      state[i] = get_int(initialDigestBuf,
+                         (short)(initialDigestOffset + i * 4), little_endian);
+    }
+    count_high = high;
+    count_low = low;
+    pending = 0;
+  }
+
+  /**
+   * Export the midstate of the digest, so that the hashing can be resumed
+   * with <code>setInitialDigest</code>.
+   *
+   * @param baDigest The array where the chaining value is written.
+   * @param sDigestOffset The offset of the chaining value.
+   * @param baLength The array where the number of bytes hashed is written,
+   *     big endian, on 8 bytes.
+   * @param sLengthOffset The offset of the number of bytes hashed.
+   * @return The length of the chaining value.
+   * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if the
+   *     number of bytes hashed is not a multiple of the block size.
+   */
+  short get_initial_digest(byte[] baDigest, short sDigestOffset,
+                           byte[] baLength, short sLengthOffset)
+      throws CryptoException {
+    if (pending != 0) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+    }
+    short length = (short)(state.length * 4);
+    set_ints(state, baDigest, sDigestOffset, length, little_endian);
+    set_int(baLength, sLengthOffset, count_high, false);
+    set_int(baLength, (short)(sLengthOffset + 4), count_low, false);
+    return length;
+  }
+
+  public void reset() {
+    pending = 0;
+    count_high = 0;
+    count_low = 0;
+    initialize();
+  }
+
+  /**
+   * @return The 32-bit word at an offset of an array.
+   */
+  static int get_int(byte[] baBuffer, short sOffset, boolean bLittleEndian) {
+    if (bLittleEndian) {
+      return (baBuffer[sOffset] & 0xFF) |
+             ((baBuffer[(short)(sOffset + 1)] & 0xFF) << 8) |
+             ((baBuffer[(short)(sOffset + 2)] & 0xFF) << 16) |
+             (baBuffer[(short)(sOffset + 3)] << 24);
+    }
+    return (baBuffer[sOffset] << 24) |
+           ((baBuffer[(short)(sOffset + 1)] & 0xFF) << 16) |
+           ((baBuffer[(short)(sOffset + 2)] & 0xFF) << 8) |
+           (baBuffer[(short)(sOffset + 3)] & 0xFF);
+  }
+
+  /**
+   * Write a 32-bit word at an offset of an array.
+   */
+  static void set_int(byte[] baBuffer, short sOffset, int value,
+                      boolean bLittleEndian) {
+    for (short i = 0; i < 4; i++) {
+      short shift = (short)(bLittleEndian ? i * 8 : 24 - i * 8);
+      baBuffer[(short)(sOffset + i)] = (byte)(value >>> shift);
+    }
+  }
+
+  /**
+   * Write a sequence of 32-bit words.
+   *
+   * @param sLength The number of bytes to write, a multiple of 4.
+   */
+  static void set_ints(int[] words, byte[] baBuffer, short sOffset,
+                       short sLength, boolean bLittleEndian) {
+    for (short i = 0; i < sLength; i += 4) {
+      set_int(baBuffer, (short)(sOffset + i), words[(short)(i / 4)],
+              bLittleEndian);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>MD5 message digest, see RFC 1321.</p>
+ */
+final class md5_engine extends hash_engine {
+
+  private static final int[] T = {
+      0xD76AA478, 0xE8C7B756, 0x242070DB, 0xC1BDCEEE, 0xF57C0FAF, 0x4787C62A,
+      0xA8304613, 0xFD469501, 0x698098D8, 0x8B44F7AF, 0xFFFF5BB1, 0x895CD7BE,
+      0x6B901122, 0xFD987193, 0xA679438E, 0x49B40821, 0xF61E2562, 0xC040B340,
+      0x265E5A51, 0xE9B6C7AA, 0xD62F105D, 0x02441453, 0xD8A1E681, 0xE7D3FBC8,
+      0x21E1CDE6, 0xC33707D6, 0xF4D50D87, 0x455A14ED, 0xA9E3E905, 0xFCEFA3F8,
+      0x676F02D9, 0x8D2A4C8A, 0xFFFA3942, 0x8771F681, 0x6D9D6122, 0xFDE5380C,
+      0xA4BEEA44, 0x4BDECFA9, 0xF6BB4B60, 0xBEBFBC70, 0x289B7EC6, 0xEAA127FA,
+      0xD4EF3085, 0x04881D05, 0xD9D4D039, 0xE6DB99E5, 0x1FA27CF8, 0xC4AC5665,
+      0xF4292244, 0x432AFF97, 0xAB9423A7, 0xFC93A039, 0x655B59C3, 0x8F0CCC92,
+      0xFFEFF47D, 0x85845DD1, 0x6FA87E4F, 0xFE2CE6E0, 0xA3014314, 0x4E0811A1,
+      0xF7537E82, 0xBD3AF235, 0x2AD7D2BB, 0xEB86D391};
+
+  // rotation amounts, four per round
+  private static final byte[] S = {7, 12, 17, 22, 5, 9,  14, 20,
+                                   4, 11, 16, 23, 6, 10, 15, 21};
+
+  private final int[] words;
+
+  md5_engine() {
+    super(MessageDigest.ALG_MD5, MessageDigest.LENGTH_MD5, (short)64, (short)4,
+          true);
+    words = new int[16];
+    initialize();
+  }
+
+  void initialize() {
+    state[0] = 0x67452301;
+    state[1] = 0xEFCDAB89;
+    state[2] = 0x98BADCFE;
+    state[3] = 0x10325476;
+  }
+
+  void compress(byte[] baBlock, short sOffset) {
+    int[] x = words;
+    for (short i = 0; i < 16; i++) {
+      x[i] = get_int(baBlock, (short)(sOffset + i * 4), true);
+    }
+    int a = state[0];
+    int b = state[1];
+    int c = state[2];
+    int d = state[3];
+    for (short i = 0; i < 64; i++) {
+      int f;
+      short k;
+      if (i < 16) {
+        f = (b & c) | (~b & d);
+        k = i;
+      } else if (i < 32) {
+        f = (b & d) | (c & ~d);
+        k = (short)((5 * i + 1) & 15);
+      } else if (i < 48) {
+        f = b ^ c ^ d;
+        k = (short)((3 * i + 5) & 15);
+      } else {
+        f = c ^ (b | ~d);
+        k = (short)((7 * i) & 15);
+      }
+      int s = S[(short)(((i >> 4) << 2) | (i & 3))];
+      int sum = a + f + T[i] + x[k];
+      a = d;
+      d = c;
+      c = b;
+      b += (sum << s) | (sum >>> (32 - s));
+    }
+    state[0] += a;
+    state[1] += b;
+    state[2] += c;
+    state[3] += d;
+  }
+}
@@ -0,0 +1,140 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>RIPEMD-160 message digest, see ISO/IEC 10118-3.</p>
+ */
+final class ripemd160_engine extends hash_engine {
+
+  // words selected by the left and the right lines
+  private static final byte[] R = {
+      0, 1,  2,  3,  4,  5,  6,  7,  8,  9,  10, 11, 12, 13, 14, 15,
+      7, 4,  13, 1,  10, 6,  15, 3,  12, 0,  9,  5,  2,  14, 11, 8,
+      3, 10, 14, 4,  9,  15, 8,  1,  2,  7,  0,  6,  13, 11, 5,  12,
+      1, 9,  11, 10, 0,  8,  12, 4,  13, 3,  7,  15, 14, 5,  6,  2,
+      4, 0,  5,  9,  7,  12, 2,  10, 14, 1,  3,  8,  11, 6,  15, 13};
+  private static final byte[] R_PRIME = {
+      5,  14, 7,  0,  9, 2,  11, 4,  13, 6,  15, 8,  1,  10, 3,  12,
+      6,  11, 3,  7,  0, 13, 5,  10, 14, 15, 8,  12, 4,  9,  1,  2,
+      15, 5,  1,  3,  7, 14, 6,  9,  11, 8,  12, 2,  10, 0,  4,  13,
+      8,  6,  4,  1,  3, 11, 15, 0,  5,  12, 2,  13, 9,  7,  10, 14,
+      12, 15, 10, 4,  1, 5,  8,  7,  6,  2,  13, 14, 0,  3,  9,  11};
+
+  // rotation amounts of the left and the right lines
+  private static final byte[] S = {
+      11, 14, 15, 12, 5,  8,  7,  9,  11, 13, 14, 15, 6,  7,  9,  8,
+      7,  6,  8,  13, 11, 9,  7,  15, 7,  12, 15, 9,  11, 7,  13, 12,
+      11, 13, 6,  7,  14, 9,  13, 15, 14, 8,  13, 6,  5,  12, 7,  5,
+      11, 12, 14, 15, 14, 15, 9,  8,  9,  14, 5,  6,  8,  6,  5,  12,
+      9,  15, 5,  11, 6,  8,  13, 12, 5,  12, 13, 14, 11, 8,  5,  6};
+  private static final byte[] S_PRIME = {
+      8,  9,  9,  11, 13, 15, 15, 5,  7,  7,  8,  11, 14, 14, 12, 6,
+      9,  13, 15, 7,  12, 8,  9,  11, 7,  7,  12, 7,  6,  15, 13, 11,
+      9,  7,  15, 11, 8,  6,  6,  14, 12, 13, 5,  14, 13, 13, 7,  5,
+      15, 5,  8,  11, 14, 14, 6,  14, 6,  9,  12, 9,  12, 5,  15, 8,
+      8,  5,  12, 9,  12, 5,  14, 6,  8,  13, 6,  5,  15, 13, 11, 11};
+
+  private static final int[] K = {0x00000000, 0x5A827999, 0x6ED9EBA1,
+                                  0x8F1BBCDC, 0xA953FD4E};
+  private static final int[] K_PRIME = {0x50A28BE6, 0x5C4DD124, 0x6D703EF3,
+                                        0x7A6D76E9, 0x00000000};
+
+  private final int[] words;
+
+  ripemd160_engine() {
+    super(MessageDigest.ALG_RIPEMD160, MessageDigest.LENGTH_RIPEMD160,
+          (short)64, (short)5, true);
+    words = new int[16];
+    initialize();
+  }
+
+  void initialize() {
+    state[0] = 0x67452301;
+    state[1] = 0xEFCDAB89;
+    state[2] = 0x98BADCFE;
+    state[3] = 0x10325476;
+    state[4] = 0xC3D2E1F0;
+  }
+
+  void compress(byte[] baBlock, short sOffset) {
+    int[] x = words;
+    for (short i = 0; i < 16; i++) {
+      x[i] = get_int(baBlock, (short)(sOffset + i * 4), true);
+    }
+    int al = state[0];
+    int bl = state[1];
+    int cl = state[2];
+    int dl = state[3];
+    int el = state[4];
+    int ar = al;
+    int br = bl;
+    int cr = cl;
+    int dr = dl;
+    int er = el;
+    for (short j = 0; j < 80; j++) {
+      short round = (short)(j >> 4);
+      int t = al + f(round, bl, cl, dl) + x[R[j]] + K[round];
+      t = ((t << S[j]) | (t >>> (32 - S[j]))) + el;
+      al = el;
+      el = dl;
+      dl = (cl << 10) | (cl >>> 22);
+      cl = bl;
+      bl = t;
+
+      t = ar + f((short)(4 - round), br, cr, dr) + x[R_PRIME[j]] +
+          K_PRIME[round];
+      t = ((t << S_PRIME[j]) | (t >>> (32 - S_PRIME[j]))) + er;
+      ar = er;
+      er = dr;
+      dr = (cr << 10) | (cr >>> 22);
+      cr = br;
+      br = t;
+    }
+    int t = state[1] + cl + dr;
+    state[1] = state[2] + dl + er;
+    state[2] = state[3] + el + ar;
+    state[3] = state[4] + al + br;
+    state[4] = state[0] + bl + cr;
+    state[0] = t;
+  }
+
+  private static int f(short sRound, int x, int y, int z) {
+    switch (sRound) {
+    case 0:
+      return x ^ y ^ z;
+    case 1:
+      return (x & y) | (~x & z);
+    case 2:
+      return (x | ~y) ^ z;
+    case 3:
+      return (x & z) | (y & ~z);
+    default:
+      return x ^ (y | ~z);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>SHA-1 message digest, see FIPS 180-4.</p>
+ */
+final class sha1_engine extends hash_engine {
+
+  private final int[] schedule;
+
+  sha1_engine() {
+    super(MessageDigest.ALG_SHA, MessageDigest.LENGTH_SHA, (short)64, (short)5,
+          false);
+    schedule = new int[80];
+    initialize();
+  }
+
+  void initialize() {
+    state[0] = 0x67452301;
+    state[1] = 0xEFCDAB89;
+    state[2] = 0x98BADCFE;
+    state[3] = 0x10325476;
+    state[4] = 0xC3D2E1F0;
+  }
+
+  void compress(byte[] baBlock, short sOffset) {
+    int[] w = schedule;
+    for (short t = 0; t < 16; t++) {
+      w[t] = get_int(baBlock, (short)(sOffset + t * 4), false);
+    }
+    for (short t = 16; t < 80; t++) {
+      int x = w[(short)(t - 3)] ^ w[(short)(t - 8)] ^ w[(short)(t - 14)] ^
+              w[(short)(t - 16)];
+      w[t] = (x << 1) | (x >>> 31);
+    }
+    int a = state[0];
+    int b = state[1];
+    int c = state[2];
+    int d = state[3];
+    int e = state[4];
+    for (short t = 0; t < 80; t++) {
+      int f;
+      if (t < 20) {
+        f = ((b & c) | (~b & d)) + 0x5A827999;
+      } else if (t < 40) {
+        f = (b ^ c ^ d) + 0x6ED9EBA1;
+      } else if (t < 60) {
+        f = ((b & c) | (b & d) | (c & d)) + 0x8F1BBCDC;
+      } else {
+        f = (b ^ c ^ d) + 0xCA62C1D6;
+      }
+      int temp = ((a << 5) | (a >>> 27)) + f + e + w[t];
+      e = d;
+      d = c;
+      c = (b << 30) | (b >>> 2);
+      b = a;
+      a = temp;
+    }
+    state[0] += a;
+    state[1] += b;
+    state[2] += c;
+    state[3] += d;
+    state[4] += e;
+  }
+}
@@ -0,0 +1,125 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>SHA-224 and SHA-256 message digests, see FIPS 180-4.</p>
+ */
+final class sha256_engine extends hash_engine {
+
+  private static final int[] K = {
+      0x428A2F98, 0x71374491, 0xB5C0FBCF, 0xE9B5DBA5, 0x3956C25B, 0x59F111F1,
+      0x923F82A4, 0xAB1C5ED5, 0xD807AA98, 0x12835B01, 0x243185BE, 0x550C7DC3,
+      0x72BE5D74, 0x80DEB1FE, 0x9BDC06A7, 0xC19BF174, 0xE49B69C1, 0xEFBE4786,
+      0x0FC19DC6, 0x240CA1CC, 0x2DE92C6F, 0x4A7484AA, 0x5CB0A9DC, 0x76F988DA,
+      0x983E5152, 0xA831C66D, 0xB00327C8, 0xBF597FC7, 0xC6E00BF3, 0xD5A79147,
+      0x06CA6351, 0x14292967, 0x27B70A85, 0x2E1B2138, 0x4D2C6DFC, 0x53380D13,
+      0x650A7354, 0x766A0ABB, 0x81C2C92E, 0x92722C85, 0xA2BFE8A1, 0xA81A664B,
+      0xC24B8B70, 0xC76C51A3, 0xD192E819, 0xD6990624, 0xF40E3585, 0x106AA070,
+      0x19A4C116, 0x1E376C08, 0x2748774C, 0x34B0BCB5, 0x391C0CB3, 0x4ED8AA4A,
+      0x5B9CCA4F, 0x682E6FF3, 0x748F82EE, 0x78A5636F, 0x84C87814, 0x8CC70208,
+      0x90BEFFFA, 0xA4506CEB, 0xBEF9A3F7, 0xC67178F2};
+
+  private static final int[] H_224 = {0xC1059ED8, 0x367CD507, 0x3070DD17,
+                                      0xF70E5939, 0xFFC00B31, 0x68581511,
+                                      0x64F98FA7, 0xBEFA4FA4};
+
+  private static final int[] H_256 = {0x6A09E667, 0xBB67AE85, 0x3C6EF372,
+                                      0xA54FF53A, 0x510E527F, 0x9B05688C,
+                                      0x1F83D9AB, 0x5BE0CD19};
+
+  private final int[] schedule;
+
+  /**
+   * Class constructor
+   *
+   * @param bAlgorithm <code>ALG_SHA_224</code> or <code>ALG_SHA_256</code>.
+   */
+  sha256_engine(byte bAlgorithm) {
+    super(bAlgorithm,
+          bAlgorithm == MessageDigest.ALG_SHA_224
+              ? MessageDigest.LENGTH_SHA_224
+              : MessageDigest.LENGTH_SHA_256,
+          (short)64, (short)8, false);
+    schedule = new int[64];
+    initialize();
+  }
+
+  void initialize() {
+    int[] h = getAlgorithm() == MessageDigest.ALG_SHA_224 ? H_224 : H_256;
+    for (short i = 0; i < 8; i++) {
+      state[i] = h[i];
+    }
+  }
+
+  void compress(byte[] baBlock, short sOffset) {
+    int[] w = schedule;
+    for (short t = 0; t < 16; t++) {
+      w[t] = get_int(baBlock, (short)(sOffset + t * 4), false);
+    }
+    for (short t = 16; t < 64; t++) {
+      int x = w[(short)(t - 15)];
+      int y = w[(short)(t - 2)];
+      int s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+      int s1 =
+          ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13)) ^ (y >>> 10);
+      w[t] = w[(short)(t - 16)] + s0 + w[(short)(t - 7)] + s1;
+    }
+    int a = state[0];
+    int b = state[1];
+    int c = state[2];
+    int d = state[3];
+    int e = state[4];
+    int f = state[5];
+    int g = state[6];
+    int h = state[7];
+    for (short t = 0; t < 64; t++) {
+      int s1 = ((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^
+               ((e >>> 25) | (e << 7));
+      int t1 = h + s1 + ((e & f) ^ (~e & g)) + K[t] + w[t];
+      int s0 = ((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^
+               ((a >>> 22) | (a << 10));
+      int t2 = s0 + ((a & b) ^ (a & c) ^ (b & c));
+      h = g;
+      g = f;
+      f = e;
+      e = d + t1;
+      d = c;
+      c = b;
+      b = a;
+      a = t1 + t2;
+    }
+    state[0] += a;
+    state[1] += b;
+    state[2] += c;
+    state[3] += d;
+    state[4] += e;
+    state[5] += f;
+    state[6] += g;
+    state[7] += h;
+  }
+}
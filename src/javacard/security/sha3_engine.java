@@ -0,0 +1,224 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>SHA3-224, SHA3-256, SHA3-384 and SHA3-512 message digests, see FIPS
+ * 202.</p>
+ *
+ * <p>The input is absorbed straight from the array of the caller into the
+ * state, without being copied into a block first. The 64-bit lanes of the
+ * state are handled as pairs of 32-bit words, the low word first.</p>
+ */
+final class sha3_engine extends MessageDigest {
+
+  private static final short LANES = 25;
+
+  // round constants, low word first
+  private static final int[] RC = {
+      0x00000001, 0x00000000, 0x00008082, 0x00000000, 0x0000808A, 0x80000000,
+      0x80008000, 0x80000000, 0x0000808B, 0x00000000, 0x80000001, 0x00000000,
+      0x80008081, 0x80000000, 0x00008009, 0x80000000, 0x0000008A, 0x00000000,
+      0x00000088, 0x00000000, 0x80008009, 0x00000000, 0x8000000A, 0x00000000,
+      0x8000808B, 0x00000000, 0x0000008B, 0x80000000, 0x00008089, 0x80000000,
+      0x00008003, 0x80000000, 0x00008002, 0x80000000, 0x00000080, 0x80000000,
+      0x0000800A, 0x00000000, 0x8000000A, 0x80000000, 0x80008081, 0x80000000,
+      0x00008080, 0x80000000, 0x80000001, 0x00000000, 0x80008008, 0x80000000};
+
+  // rotation of each lane, and its position after the pi step
+  private static final byte[] ROTATION = {
+      0, 1, 62, 28, 27, 36, 44, 6, 55, 20, 3, 10, 43, 25, 39, 41, 45, 15, 21, 8,
+      18, 2, 61, 56, 14};
+  private static final byte[] PI = {
+      0, 10, 20, 5, 15, 16, 1, 11, 21, 6, 7, 17, 2, 12, 22, 23, 8, 18, 3, 13,
+      14, 24, 9, 19, 4};
+
+  private final byte algorithm;
+  private final byte length;
+  private final short rate;   // number of bytes absorbed per permutation
+  private final int[] state;  // 25 lanes
+  private final int[] work;   // lanes after the rho and pi steps, then the
+                              // parities of the columns
+  private short position;     // number of bytes absorbed since the last
+                              // permutation
+
+  /**
+   * Class constructor
+   *
+   * @param bAlgorithm One of the <code>ALG_SHA3_*</code> constants.
+   */
+  sha3_engine(byte bAlgorithm) {
+    algorithm = bAlgorithm;
+    switch (bAlgorithm) {
+    case ALG_SHA3_224:
+      length = LENGTH_SHA3_224;
+      break;
+    case ALG_SHA3_256:
+      length = LENGTH_SHA3_256;
+      break;
+    case ALG_SHA3_384:
+      length = LENGTH_SHA3_384;
+      break;
+    default:
+      length = LENGTH_SHA3_512;
+    }
+    rate = (short)(200 - 2 * length);
+    state = new int[LANES * 2];
+    work = new int[LANES * 2];
+  }
+
+  public byte getAlgorithm() { return algorithm; }
+
+  public byte getLength() { return length; }
+
+  public void update(byte[] inBuff, short inOffset, short inLength)
+      throws CryptoException {
+    if (inLength < 0) {
+      CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+    }
+    while (inLength > 0) {
+      if ((position & 3) == 0 && inLength >= 4) // a whole word
+      {
+        state[(short)(position >> 2)] ^=
+            hash_engine.get_int(inBuff, inOffset, true);
+        position += 4;
+        inOffset += 4;
+        inLength -= 4;
+      } else {
+        absorb(inBuff[inOffset]);
+        inOffset++;
+        inLength--;
+      }
+      if (position == rate) {
+        permute();
+        position = 0;
+      }
+    }
+  }
+
+  public short doFinal(byte[] inBuff, short inOffset, short inLength,
+                       byte[] outBuff, short outOffset)
+      throws CryptoException {
+    update(inBuff, inOffset, inLength);
+
+    // padding: the SHA-3 domain bits '01', then '1', zeros and '1'
+    absorb((byte)0x06);
+    position = (short)(rate - 1);
+    absorb((byte)0x80);
+    permute();
+    for (short i = 0; i < length; i += 4) {
+      hash_engine.set_int(outBuff, (short)(outOffset + i),
+                          state[(short)(i >> 2)], true);
+    }
+    reset();
+    return length;
+  }
+
+  public void reset() {
+    for (short i = 0; i < (short)(LANES * 2); i++) {
+      state[i] = 0;
+    }
+    position = 0;
+  }
+
+  /**
+   * XOR a byte into the state, at the current position, and move past it.
+   */
+  private void absorb(byte b) {
+    state[(short)(position >> 2)] ^= (b & 0xFF) << ((position & 3) << 3);
+    position++;
+  }
+
+  /**
+   * Keccak-f[1600] permutation of the state.
+   */
+  private void permute() {
+    int[] a = state;
+    int[] b = work;
+    for (short round = 0; round < 24; round++) {
+      // theta: parities of the columns, kept at the end of the work area
+      for (short x = 0; x < 5; x++) {
+        short i = (short)(x * 2);
+        b[(short)(40 + i)] = a[i] ^ a[(short)(i + 10)] ^ a[(short)(i + 20)] ^
+                             a[(short)(i + 30)] ^ a[(short)(i + 40)];
+        b[(short)(41 + i)] = a[(short)(i + 1)] ^ a[(short)(i + 11)] ^
+                             a[(short)(i + 21)] ^ a[(short)(i + 31)] ^
+                             a[(short)(i + 41)];
+      }
+      for (short x = 0; x < 5; x++) {
+        short previous = (short)(40 + ((x + 4) % 5) * 2);
+        short next = (short)(40 + ((x + 1) % 5) * 2);
+        int low =
+            b[previous] ^ ((b[next] << 1) | (b[(short)(next + 1)] >>> 31));
+        int high = b[(short)(previous + 1)] ^
+                   ((b[(short)(next + 1)] << 1) | (b[next] >>> 31));
+        for (short y = 0; y < 25; y += 5) {
+          short i = (short)((x + y) * 2);
+          a[i] ^= low;
+          a[(short)(i + 1)] ^= high;
+        }
+      }
+
+      // rho and pi
+      for (short i = 0; i < LANES; i++) {
+        int low = a[(short)(i * 2)];
+        int high = a[(short)(i * 2 + 1)];
+        short n = ROTATION[i];
+        if (n >= 32) {
+          int swap = low;
+          low = high;
+          high = swap;
+          n -= 32;
+        }
+        short j = (short)(PI[i] * 2);
+        if (n == 0) {
+          b[j] = low;
+          b[(short)(j + 1)] = high;
+        } else {
+          b[j] = (low << n) | (high >>> (32 - n));
+          b[(short)(j + 1)] = (high << n) | (low >>> (32 - n));
+        }
+      }
+
+      // chi
+      for (short y = 0; y < 25; y += 5) {
+        for (short x = 0; x < 5; x++) {
+          short i = (short)((y + x) * 2);
+          short i1 = (short)((y + (x + 1) % 5) * 2);
+          short i2 = (short)((y + (x + 2) % 5) * 2);
+          a[i] = b[i] ^ (~b[i1] & b[i2]);
+          a[(short)(i + 1)] = b[(short)(i + 1)] ^
+                              (~b[(short)(i1 + 1)] & b[(short)(i2 + 1)]);
+        }
+      }
+
+      // iota
+      a[0] ^= RC[(short)(round * 2)];
+      a[1] ^= RC[(short)(round * 2 + 1)];
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package javacard.security;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>SHA-384 and SHA-512 message digests, see FIPS 180-4.</p>
+ *
+ * <p>The 64-bit words are handled as pairs of 32-bit words, the high word
+ * first.</p>
+ */
+final class sha512_engine extends hash_engine {
+
+  private static final int[] K = {
+      0x428A2F98, 0xD728AE22, 0x71374491, 0x23EF65CD, 0xB5C0FBCF, 0xEC4D3B2F,
+      0xE9B5DBA5, 0x8189DBBC, 0x3956C25B, 0xF348B538, 0x59F111F1, 0xB605D019,
+      0x923F82A4, 0xAF194F9B, 0xAB1C5ED5, 0xDA6D8118, 0xD807AA98, 0xA3030242,
+      0x12835B01, 0x45706FBE, 0x243185BE, 0x4EE4B28C, 0x550C7DC3, 0xD5FFB4E2,
+      0x72BE5D74, 0xF27B896F, 0x80DEB1FE, 0x3B1696B1, 0x9BDC06A7, 0x25C71235,
+      0xC19BF174, 0xCF692694, 0xE49B69C1, 0x9EF14AD2, 0xEFBE4786, 0x384F25E3,
+      0x0FC19DC6, 0x8B8CD5B5, 0x240CA1CC, 0x77AC9C65, 0x2DE92C6F, 0x592B0275,
+      0x4A7484AA, 0x6EA6E483, 0x5CB0A9DC, 0xBD41FBD4, 0x76F988DA, 0x831153B5,
+      0x983E5152, 0xEE66DFAB, 0xA831C66D, 0x2DB43210, 0xB00327C8, 0x98FB213F,
+      0xBF597FC7, 0xBEEF0EE4, 0xC6E00BF3, 0x3DA88FC2, 0xD5A79147, 0x930AA725,
+      0x06CA6351, 0xE003826F, 0x14292967, 0x0A0E6E70, 0x27B70A85, 0x46D22FFC,
+      0x2E1B2138, 0x5C26C926, 0x4D2C6DFC, 0x5AC42AED, 0x53380D13, 0x9D95B3DF,
+      0x650A7354, 0x8BAF63DE, 0x766A0ABB, 0x3C77B2A8, 0x81C2C92E, 0x47EDAEE6,
+      0x92722C85, 0x1482353B, 0xA2BFE8A1, 0x4CF10364, 0xA81A664B, 0xBC423001,
+      0xC24B8B70, 0xD0F89791, 0xC76C51A3, 0x0654BE30, 0xD192E819, 0xD6EF5218,
+      0xD6990624, 0x5565A910, 0xF40E3585, 0x5771202A, 0x106AA070, 0x32BBD1B8,
+      0x19A4C116, 0xB8D2D0C8, 0x1E376C08, 0x5141AB53, 0x2748774C, 0xDF8EEB99,
+      0x34B0BCB5, 0xE19B48A8, 0x391C0CB3, 0xC5C95A63, 0x4ED8AA4A, 0xE3418ACB,
+      0x5B9CCA4F, 0x7763E373, 0x682E6FF3, 0xD6B2B8A3, 0x748F82EE, 0x5DEFB2FC,
+      0x78A5636F, 0x43172F60, 0x84C87814, 0xA1F0AB72, 0x8CC70208, 0x1A6439EC,
+      0x90BEFFFA, 0x23631E28, 0xA4506CEB, 0xDE82BDE9, 0xBEF9A3F7, 0xB2C67915,
+      0xC67178F2, 0xE372532B, 0xCA273ECE, 0xEA26619C, 0xD186B8C7, 0x21C0C207,
+      0xEADA7DD6, 0xCDE0EB1E, 0xF57D4F7F, 0xEE6ED178, 0x06F067AA, 0x72176FBA,
+      0x0A637DC5, 0xA2C898A6, 0x113F9804, 0xBEF90DAE, 0x1B710B35, 0x131C471B,
+      0x28DB77F5, 0x23047D84, 0x32CAAB7B, 0x40C72493, 0x3C9EBE0A, 0x15C9BEBC,
+      0x431D67C4, 0x9C100D4C, 0x4CC5D4BE, 0xCB3E42B6, 0x597F299C, 0xFC657E2A,
+      0x5FCB6FAB, 0x3AD6FAEC, 0x6C44198C, 0x4A475817};
+
+  private static final int[] H_384 = {
+      0xCBBB9D5D, 0xC1059ED8, 0x629A292A, 0x367CD507, 0x9159015A, 0x3070DD17,
+      0x152FECD8, 0xF70E5939, 0x67332667, 0xFFC00B31, 0x8EB44A87, 0x68581511,
+      0xDB0C2E0D, 0x64F98FA7, 0x47B5481D, 0xBEFA4FA4};
+
+  private static final int[] H_512 = {
+      0x6A09E667, 0xF3BCC908, 0xBB67AE85, 0x84CAA73B, 0x3C6EF372, 0xFE94F82B,
+      0xA54FF53A, 0x5F1D36F1, 0x510E527F, 0xADE682D1, 0x9B05688C, 0x2B3E6C1F,
+      0x1F83D9AB, 0xFB41BD6B, 0x5BE0CD19, 0x137E2179};
+
+  private final int[] schedule;
+
+  /**
+   * Class constructor
+   *
+   * @param bAlgorithm <code>ALG_SHA_384</code> or <code>ALG_SHA_512</code>.
+   */
+  sha512_engine(byte bAlgorithm) {
+    super(bAlgorithm,
+          bAlgorithm == MessageDigest.ALG_SHA_384
+              ? MessageDigest.LENGTH_SHA_384
+              : MessageDigest.LENGTH_SHA_512,
+          (short)128, (short)16, false);
+    schedule = new int[160];
+    initialize();
+  }
+
+  void initialize() {
+    int[] h = getAlgorithm() == MessageDigest.ALG_SHA_384 ? H_384 : H_512;
+    for (short i = 0; i < 16; i++) {
+      state[i] = h[i];
+    }
+  }
+
+  void compress(byte[] baBlock, short sOffset) {
+    int[] w = schedule;
+    for (short i = 0; i < 32; i++) {
+      w[i] = get_int(baBlock, (short)(sOffset + i * 4), false);
+    }
+    for (short i = 32; i < 160; i += 2) {
+      // sigma0 of w[t - 15]: rotations by 1 and 8, shift by 7
+      int xh = w[(short)(i - 30)];
+      int xl = w[(short)(i - 29)];
+      int sh = ((xh >>> 1) | (xl << 31)) ^ ((xh >>> 8) | (xl << 24)) ^
+               (xh >>> 7);
+      int sl = ((xl >>> 1) | (xh << 31)) ^ ((xl >>> 8) | (xh << 24)) ^
+               ((xl >>> 7) | (xh << 25));
+      // sigma1 of w[t - 2]: rotations by 19 and 61, shift by 6
+      int yh = w[(short)(i - 4)];
+      int yl = w[(short)(i - 3)];
+      int th = ((yh >>> 19) | (yl << 13)) ^ ((yl >>> 29) | (yh << 3)) ^
+               (yh >>> 6);
+      int tl = ((yl >>> 19) | (yh << 13)) ^ ((yh >>> 29) | (yl << 3)) ^
+               ((yl >>> 6) | (yh << 26));
+      int lo = sl + tl;
+      int hi = sh + th + carry(lo, sl);
+      int sum = lo + w[(short)(i - 13)];
+      hi += w[(short)(i - 14)] + carry(sum, lo);
+      lo = sum + w[(short)(i - 31)];
+      hi += w[(short)(i - 32)] + carry(lo, sum);
+      w[i] = hi;
+      w[(short)(i + 1)] = lo;
+    }
+
+    int ah = state[0];
+    int al = state[1];
+    int bh = state[2];
+    int bl = state[3];
+    int ch = state[4];
+    int cl = state[5];
+    int dh = state[6];
+    int dl = state[7];
+    int eh = state[8];
+    int el = state[9];
+    int fh = state[10];
+    int fl = state[11];
+    int gh = state[12];
+    int gl = state[13];
+    int hh = state[14];
+    int hl = state[15];
+    for (short i = 0; i < 160; i += 2) {
+      // t1 = h + Sigma1(e) + Ch(e, f, g) + K[t] + w[t], with Sigma1 made of
+      // rotations by 14, 18 and 41
+      int sh = ((eh >>> 14) | (el << 18)) ^ ((eh >>> 18) | (el << 14)) ^
+               ((el >>> 9) | (eh << 23));
+      int sl = ((el >>> 14) | (eh << 18)) ^ ((el >>> 18) | (eh << 14)) ^
+               ((eh >>> 9) | (el << 23));
+      int lo = hl + sl;
+      int hi = hh + sh + carry(lo, sl);
+      int sum = lo + ((el & fl) ^ (~el & gl));
+      hi += ((eh & fh) ^ (~eh & gh)) + carry(sum, lo);
+      lo = sum + K[(short)(i + 1)];
+      hi += K[i] + carry(lo, sum);
+      int t1l = lo + w[(short)(i + 1)];
+      int t1h = hi + w[i] + carry(t1l, lo);
+
+      // t2 = Sigma0(a) + Maj(a, b, c), with Sigma0 made of rotations by 28,
+      // 34 and 39
+      sh = ((ah >>> 28) | (al << 4)) ^ ((al >>> 2) | (ah << 30)) ^
+           ((al >>> 7) | (ah << 25));
+      sl = ((al >>> 28) | (ah << 4)) ^ ((ah >>> 2) | (al << 30)) ^
+           ((ah >>> 7) | (al << 25));
+      int ml = (al & bl) ^ (al & cl) ^ (bl & cl);
+      int t2l = sl + ml;
+      int t2h = sh + ((ah & bh) ^ (ah & ch) ^ (bh & ch)) + carry(t2l, ml);
+
+      hh = gh;
+      hl = gl;
+      gh = fh;
+      gl = fl;
+      fh = eh;
+      fl = el;
+      el = dl + t1l;
+      eh = dh + t1h + carry(el, t1l);
+      dh = ch;
+      dl = cl;
+      ch = bh;
+      cl = bl;
+      bh = ah;
+      bl = al;
+      al = t1l + t2l;
+      ah = t1h + t2h + carry(al, t2l);
+    }
+    add((short)0, ah, al);
+    add((short)2, bh, bl);
+    add((short)4, ch, cl);
+    add((short)6, dh, dl);
+    add((short)8, eh, el);
+    add((short)10, fh, fl);
+    add((short)12, gh, gl);
+    add((short)14, hh, hl);
+  }
+
+  /**
+   * @return 1 if the low words of an addition have carried, that is if
+   *     <code>sum</code> is lower than the operand <code>term</code>,
+   *     unsigned; 0 otherwise.
+   */
+  private static int carry(int sum, int term) {
+    return (sum ^ 0x80000000) < (term ^ 0x80000000) ? 1 : 0;
+  }
+
+  private void add(short sIndex, int high, int low) {
+    int sum = state[(short)(sIndex + 1)] + low;
+    state[sIndex] += high + carry(sum, low);
+    state[(short)(sIndex + 1)] = sum;
+  }
+}
@@ -42,8 +42,13 @@ public class APDUUtil {
    * @see javacard.framework.APDU#getCLAChannel()
    */
   public static byte getCLAChannel(byte CLAbyte) {
-    // TODO: Not yet implemented
-    return 0;
+    if (CLAbyte == (byte)0xFF || (CLAbyte & (byte)0xE0) == (byte)0x20) {
+      return 0;
+    }
+    if ((CLAbyte & (byte)0x40) == 0) { // first interindustry values
+      return (byte)(CLAbyte & 0x03);
+    }
+    return (byte)((CLAbyte & 0x0F) + 4); // further interindustry values
   }
 
   /**
@@ -18,6 +18,8 @@ import javacard.framework.JCSystem;
  */
 public class BioException extends javacard.framework.CardRuntimeException {
 
+  private static final BioException systemInstance = new BioException((short)0);
+
   /**
    * This reason code is used to indicate that one or more input parameters is
    * out of allowed bounds.
@@ -68,7 +70,7 @@ public class BioException extends javacard.framework.CardRuntimeException {
    *             always.
    */
   public static void throwIt(short reason) throws BioException {
-    BioException be = new BioException(reason);
-    throw be;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
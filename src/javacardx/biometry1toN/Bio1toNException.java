@@ -16,6 +16,9 @@ package javacardx.biometry1toN;
  */
 public class Bio1toNException extends javacard.framework.CardRuntimeException {
 
+  private static final Bio1toNException systemInstance =
+      new Bio1toNException((short)0);
+
   /**
    * This reason code is used to indicate that one or more input parameters is
    * out of allowed bounds.
@@ -78,7 +81,7 @@ public class Bio1toNException extends javacard.framework.CardRuntimeException {
    *             always.
    */
   public static void throwIt(short reason) throws Bio1toNException {
-    Bio1toNException bne = new Bio1toNException(reason);
-    throw bne;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
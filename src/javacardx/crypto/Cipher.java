@@ -10,6 +10,7 @@ package javacardx.crypto;
 import static javacardx.crypto.AEADCipher.ALG_AES_CCM;
 import static javacardx.crypto.AEADCipher.ALG_AES_GCM;
 
+import javacard.framework.AID;
 import javacard.framework.JCSystem;
 import javacard.framework.SystemException;
 import javacard.security.CryptoException;
@@ -1162,6 +1163,36 @@ public abstract class Cipher {
    */
   public static final class OneShot extends Cipher {
 
+    // one instance for each supported algorithm, allocated by the
+    // initialization of the class in the runtime environment context
+    private static final OneShot[] instances = allocate();
+
+    private final Cipher engine;
+    private boolean initialized;   // init has been called since open
+    private boolean opened;
+    private AID owner;             // context which has opened the instance
+
+    private OneShot(Cipher engine) { this.engine = engine; }
+
+    /**
+     * @return An array with one closed instance of each supported algorithm
+     *     and <code>null</code> for the other algorithms.
+     */
+    private static OneShot[] allocate() {
+      OneShot[] instances =
+          new OneShot[(short)(ALG_AES_ECB_PKCS5 - ALG_DES_CBC_NOPAD + 1)];
+      for (byte algorithm = ALG_DES_CBC_NOPAD; algorithm <= ALG_AES_ECB_PKCS5;
+           algorithm++) {
+        try {
+          instances[(short)(algorithm - ALG_DES_CBC_NOPAD)] =
+              new OneShot(getInstance(algorithm, false));
+        } catch (CryptoException e) {
+          // algorithm not supported
+        }
+      }
+      return instances;
+    }
+
     /**
      * Opens/acquires a JCRE owned temporary Entry Point Object instance of
      * {@code OneShot} with the selected cipher algorithm and padding
@@ -1197,9 +1228,21 @@ public abstract class Cipher {
     public static final OneShot open(byte cipherAlgorithm,
                                      byte paddingAlgorithm)
         throws CryptoException {
-      // TODO: Not yet implemented
+      for (short i = 0; i < (short)instances.length; i++) {
+        OneShot instance = instances[i];
+        if (instance != null &&
+            instance.engine.getCipherAlgorithm() == cipherAlgorithm &&
+            instance.engine.getPaddingAlgorithm() == paddingAlgorithm) {
+          if (instance.opened) {
+            SystemException.throwIt(SystemException.NO_RESOURCE);
+          }
+          instance.owner = JCSystem.getAID();
+          instance.opened = true;
+          instance.initialized = false;
+          return instance;
+        }
+      }
       CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-
       return null;
     }
 
@@ -1213,7 +1256,47 @@ public abstract class Cipher {
      * caller.
      */
     public void close() {
-      // TODO: Not yet implemented
+      if (!opened) {
+        return;
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      opened = false;
+      owner = null;
+    }
+
+    /**
+     * @return The engine of this instance.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private Cipher engine() throws CryptoException {
+      if (!opened) {
+        CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+      }
+      if (owner != JCSystem.getAID()) {
+        throw new SecurityException();
+      }
+      return engine;
+    }
+
+    /**
+     * @return The engine of this instance, once initialized with a key.
+     * @throws CryptoException with reason code <code>ILLEGAL_USE</code> if
+     *     this instance is closed, or <code>INVALID_INIT</code> if
+     *     <code>init</code> has not been called since it has been opened.
+     * @throws SecurityException if this instance has been opened in another
+     *     context.
+     */
+    private Cipher initialized_engine() throws CryptoException {
+      Cipher cipher = engine();
+      if (!initialized) {
+        CryptoException.throwIt(CryptoException.INVALID_INIT);
+      }
+      return cipher;
     }
 
     /**
@@ -1237,7 +1320,6 @@ public abstract class Cipher {
     public short update(byte[] inBuff, short inOffset, short inLength,
                         byte[] outBuff, short outOffset)
         throws CryptoException {
-      // TODO: Not yet implemented
       CryptoException.throwIt(CryptoException.ILLEGAL_USE);
       return 0;
     }
@@ -1250,7 +1332,8 @@ public abstract class Cipher {
      */
     @Override
     public void init(Key theKey, byte theMode) throws CryptoException {
-      // TODO: Not yet implemented
+      engine().init(theKey, theMode);
+      initialized = true;
     }
 
     /**
@@ -1262,7 +1345,8 @@ public abstract class Cipher {
     @Override
     public void init(Key theKey, byte theMode, byte[] bArray, short bOff,
                      short bLen) throws CryptoException {
-      // TODO: Not yet implemented
+      engine().init(theKey, theMode, bArray, bOff, bLen);
+      initialized = true;
     }
 
     /**
@@ -1273,8 +1357,7 @@ public abstract class Cipher {
      */
     @Override
     public byte getAlgorithm() {
-      // TODO: Not yet implemented
-      return 0;
+      return engine().getAlgorithm();
     }
 
     /**
@@ -1285,8 +1368,7 @@ public abstract class Cipher {
      */
     @Override
     public byte getCipherAlgorithm() {
-      // TODO: Not yet implemented
-      return 0;
+      return engine().getCipherAlgorithm();
     }
 
     /**
@@ -1297,8 +1379,7 @@ public abstract class Cipher {
      */
     @Override
     public byte getPaddingAlgorithm() {
-      // TODO: Not yet implemented
-      return 0;
+      return engine().getPaddingAlgorithm();
     }
 
     /**
@@ -1311,10 +1392,8 @@ public abstract class Cipher {
     public short doFinal(byte[] inBuff, short inOffset, short inLength,
                          byte[] outBuff, short outOffset)
         throws CryptoException {
-      // TODO: Not yet implemented
-      CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
-
-      return 0;
+      return initialized_engine().doFinal(inBuff, inOffset, inLength, outBuff,
+                                          outOffset);
     }
   }
 }
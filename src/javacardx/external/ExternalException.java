@@ -26,6 +26,9 @@ import javacard.framework.CardRuntimeException;
  */
 public class ExternalException extends CardRuntimeException {
 
+  private static final ExternalException systemInstance =
+      new ExternalException((short)0);
+
   /**
    * This reason code is used to indicate that specified external subsystem is
    * not available.
@@ -71,7 +74,7 @@ public class ExternalException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    ExternalException ee = new ExternalException(reason);
-    throw ee;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
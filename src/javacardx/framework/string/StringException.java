@@ -22,6 +22,9 @@ import javacard.framework.CardRuntimeException;
  */
 public class StringException extends CardRuntimeException {
 
+  private static final StringException systemInstance =
+      new StringException((short)0);
+
   /**
    * This reason code is used to indicate that the requested character encoding
    * is not supported.
@@ -68,6 +71,7 @@ public class StringException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    throw new StringException(reason);
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
@@ -25,6 +25,8 @@ import javacard.framework.JCSystem;
  */
 public class TLVException extends CardRuntimeException {
 
+  private static final TLVException systemInstance = new TLVException((short)0);
+
   /**
    * This reason code is used to indicate that one or more input parameters is
    * invalid.
@@ -118,7 +120,7 @@ public class TLVException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    TLVException tlve = new TLVException(reason);
-    throw tlve;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
@@ -24,6 +24,9 @@ import javacard.framework.CardRuntimeException;
  */
 public class UtilException extends CardRuntimeException {
 
+  private static final UtilException systemInstance =
+      new UtilException((short)0);
+
   /**
    * This reason code is used to indicate that one or more input parameters is
    * not the correct type or is out of allowed bounds.
@@ -64,7 +67,7 @@ public class UtilException extends CardRuntimeException {
    *                always
    */
   public static void throwIt(short reason) {
-    UtilException ue = new UtilException(reason);
-    throw ue;
+    systemInstance.setReason(reason);
+    throw systemInstance;
   }
 }
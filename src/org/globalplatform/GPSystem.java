@@ -273,7 +273,23 @@ public class GPSystem
 	 */
 	public static CVM getCVM(byte bCVMIdentifier)
 	{
-	  return (null);
+	    short name = (short) ((FAMILY_CVM << 8) | (bCVMIdentifier & 0xFF));
+	    GlobalService service = getService(null, name);
+	    if(service == null && bCVMIdentifier == CVM_GLOBAL_PIN)
+	    {
+		service = getService(null, (short) (FAMILY_CVM << 8)); // uniquely registered for the whole family
+	    }
+	    if(service == null)
+	    {
+		if(bCVMIdentifier == CVM_GLOBAL_PIN) {return PlateformeGlobale.getInstance().get_global_pin();} // provided by the OPEN itself
+		return (null);
+	    }
+	    try
+	    {
+		return (CVM) service.getServiceInterface(getRegistryEntry(null), name, null, (short) 0, (short) 0);
+	    }
+	    catch(ISOException e) {return (null);}
+	    catch(ClassCastException e) {return (null);}
 	}
 
 	/**
@@ -294,8 +310,8 @@ public class GPSystem
 	 * @see #getCVM the GPSystem.getCVM() method for an example of how to access a Global Service.
 	 */
 	public static SecureChannel getSecureChannel()
-	{      
-	  return (null);
+	{
+	  return PlateformeGlobale.getInstance().get_secure_channel(); // only the issuer security domain provides a secure channel so far
 	}
 
 	/**
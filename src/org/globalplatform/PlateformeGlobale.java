@@ -27,6 +27,7 @@ package org.globalplatform;
  */
 
 import javacard.framework.*;
+import javacardx.apdu.util.APDUUtil;
 
 /**
  * <p>OPEN's bastion.</p>
@@ -42,17 +43,29 @@ public class PlateformeGlobale {
 
   /**
    * Maximum number of Executable Load File on the card
+   *
+   * @deprecated The GP registry grows on demand and is no longer bounded by
+   *     this constant.
    */
+  @Deprecated
   public static final byte MAX_ELF = 6;
 
   /**
    * Maximum number of Executable Module in each Executable Load File
+   *
+   * @deprecated The GP registry grows on demand and is no longer bounded by
+   *     this constant.
    */
+  @Deprecated
   public static final byte MAX_EM_PER_ELF = 4;
 
   /**
    * Maximum number of instances per Executable Module
+   *
+   * @deprecated The GP registry grows on demand and is no longer bounded by
+   *     this constant.
    */
+  @Deprecated
   public static final byte MAX_INSTANCES_PER_EM = 3;
 
   /**
@@ -65,9 +78,18 @@ public class PlateformeGlobale {
    */
   public static final byte MAX_CHILD_PER_INSTANCE = 8;
 
+  /**
+   * Maximum number of security domains on the card. Must be a multiple of 8.
+   */
+  public static final short MAX_SECURITY_DOMAINS = 128;
+
   /**
    * Maximum number of uniquely registered global services, for the whole card
+   *
+   * @deprecated Global services are indexed by name and by family, and the
+   *     index is no longer bounded by this constant.
    */
+  @Deprecated
   public static final byte MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES = 32;
 
   /**
@@ -76,47 +98,217 @@ public class PlateformeGlobale {
   public static final byte[] bGP_AID = {(byte)0xA0, (byte)0x00, (byte)0x00,
                                         (byte)0xA5, (byte)0x51, (byte)0x01}; //
 
+  /**
+   * Secure Channel Protocol of the issuer security domain: '03', or '02' for
+   * the cards whose off-card entities only support triple DES
+   */
+  static final byte ISD_SECURE_CHANNEL_PROTOCOL = (byte)0x03;
+
+  /**
+   * Key version number of the initial key set of the issuer security domain
+   */
+  static final byte INITIAL_KEY_VERSION = (byte)0xFF;
+
+  /**
+   * Initial key set of the issuer security domain: the ENC, MAC and DEK keys
+   * are the GlobalPlatform test key '40'..'4F'
+   */
+  private static final byte[] INITIAL_KEYS = {
+      (byte)0x40, (byte)0x41, (byte)0x42, (byte)0x43, (byte)0x44, (byte)0x45,
+      (byte)0x46, (byte)0x47, (byte)0x48, (byte)0x49, (byte)0x4A, (byte)0x4B,
+      (byte)0x4C, (byte)0x4D, (byte)0x4E, (byte)0x4F};
+
   // TODO: Optional GP features still not implemented :
   //        - Memory resource management parameters
-  //        - Counters associated with logs
 
-  private entity_file[] entity_registry;
-  private UniquelyRegistered[] uniquesServiceNames;
+  /**
+   * Index of the issuer security domain in the GP registry
+   */
+  static final short ISD_INDEX = 0;
+
+  /**
+   * Life cycle state of a loaded Executable Load File, as defined by the GP
+   * specification
+   */
+  static final byte ELF_LOADED = (byte)0x01;
+
+  /**
+   * Journal event: an entity has been added to the GP registry. The first
+   * argument is the kind of the entity.
+   */
+  public static final byte JOURNAL_EVENT_INSTALL = (byte)0x01;
+
+  /**
+   * Journal event: an entity has been removed from the GP registry. The
+   * arguments are the kind and the last life cycle state of the entity.
+   */
+  public static final byte JOURNAL_EVENT_DELETE = (byte)0x02;
+
+  /**
+   * Journal event: the life cycle state of an entity has changed. The
+   * arguments are the previous and the new life cycle states.
+   */
+  public static final byte JOURNAL_EVENT_LIFE_CYCLE = (byte)0x03;
+
+  /**
+   * Journal event: the privileges of an entity have changed. The first
+   * argument holds the first privilege byte, the second argument the two
+   * others.
+   */
+  public static final byte JOURNAL_EVENT_PRIVILEGES = (byte)0x04;
+
+  /**
+   * Journal event: a global service name has been registered uniquely. The
+   * first argument is the service name.
+   */
+  public static final byte JOURNAL_EVENT_SERVICE_REGISTERED = (byte)0x05;
+
+  /**
+   * Journal event: a global service name is no longer registered uniquely.
+   * The first argument is the service name.
+   */
+  public static final byte JOURNAL_EVENT_SERVICE_DEREGISTERED = (byte)0x06;
+
+  /**
+   * Journal event: a global service name has been recorded for an
+   * application, as part of the System Install Parameters of its INSTALL
+   * command. The first argument is the service name. The records of an
+   * application are removed with it, see <code>JOURNAL_EVENT_DELETE</code>.
+   */
+  public static final byte JOURNAL_EVENT_SERVICE_RECORDED = (byte)0x07;
+
+  /**
+   * Length of a journal record, see <code>readJournal</code>
+   */
+  public static final short JOURNAL_RECORD_LENGTH =
+      registry_journal.RECORD_LENGTH;
+
+  /**
+   * INS byte of the GET STATUS command
+   */
+  static final byte INS_GET_STATUS = (byte)0xF2;
+
+  /**
+   * INS byte of the INSTALL command
+   */
+  static final byte INS_INSTALL = (byte)0xE6;
+
+  /**
+   * INS byte of the LOAD command
+   */
+  static final byte INS_LOAD = (byte)0xE8;
+
+  /**
+   * INS byte of the DELETE command
+   */
+  static final byte INS_DELETE = (byte)0xE4;
+
+  /**
+   * INS byte of the STORE DATA command
+   */
+  static final byte INS_STORE_DATA = (byte)0xE2;
+
+  /**
+   * INS byte of the PUT KEY command
+   */
+  static final byte INS_PUT_KEY = (byte)0xD8;
+
+  // fields of the command APDU being processed
+  private static final byte APDU_LC = 0;
+  private static final byte APDU_DATA = 1; // offset of the command data
+  private static final byte APDU_LE = 2;
+  private static final byte APDU_SW = 3;   // status word of the response
+
+  registry_table registry;
+  sd_hierarchy hierarchy;
+  lifecycle_rules rules;
+  service_index services;
+  registry_journal journal;
+  load_file_store load_files;
+  key_store keys;
+  private get_status status_command;
+  private load_command loader;
+  private store_data personalization;
+  private global_pin pin;
+  private http_administration administration;
+  private delete_command deleter;
+  private delegated_management delegation;
+  private put_key key_loader;
+  private secure_channel channel;
+  private short[] apdu;
   private static PlateformeGlobale singleton = null;
 
   /**
    * Class constructor
+   *
+   * @param baImage An image of the registry to restore, see
+   *     <code>writeRegistryImage</code>. If it is <code>null</code> or if its
+   *     header is not valid, a registry holding only the issuer security domain
+   *     is built.
    */
-  private PlateformeGlobale() {
+  private PlateformeGlobale(byte[] baImage) {
     entity_file.OPEN = this;
-    entity_registry =
-        new entity_file[MAX_ELF * MAX_EM_PER_ELF * MAX_INSTANCES_PER_EM];
-    uniquesServiceNames =
-        new UniquelyRegistered[MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES];
+    registry = new registry_table();
+    hierarchy = new sd_hierarchy(registry);
+    rules = new lifecycle_rules();
+    services = new service_index();
+    journal = new registry_journal(registry);
+    load_files = new load_file_store();
+    status_command = new get_status(registry);
+    loader = new load_command(this, load_files);
+    deleter = new delete_command(this);
+    personalization = new store_data(this);
+    pin = new global_pin(this);
+    administration = new http_administration(this);
+    keys = new key_store();
+    delegation = new delegated_management(this);
+    key_loader = new put_key(this, keys);
+    byte type = key_store.TYPE_AES;
+    if (ISD_SECURE_CHANNEL_PROTOCOL == (byte)0x02) {
+      channel = new scp02(bGP_AID, (short)0, (byte)bGP_AID.length, keys);
+      type = key_store.TYPE_DES;
+    } else {
+      channel = new scp03(bGP_AID, (short)0, (byte)bGP_AID.length, keys);
+    }
+    short set = keys.allocate(type);
+    for (byte key = key_store.KID_ENC; key <= key_store.KID_DEK; key++) {
+      keys.set_key(set, key, INITIAL_KEYS, (short)0,
+                   (byte)INITIAL_KEYS.length);
+    }
+    keys.commit(set, INITIAL_KEY_VERSION, key_store.NO_SET);
+    apdu = JCSystem.makeTransientShortArray((short)4, JCSystem.CLEAR_ON_RESET);
+    if (registry_image.check(baImage)) {
+      registry_image.restore(this, baImage);
+      provide_services();
+      return;
+    }
 
     // ISSUER SECURITY DOMAIN INITIALIZATION
-    entity_registry[0].AID =
-        new byte[] {(byte)0xA0, (byte)0x00, (byte)0x00, (byte)0xA5,
-                    (byte)0x51, (byte)0x01}; // GP's implementation AID
-    entity_registry[0].LifeCycleState = entity_file.CARD_OP_READY;
-    entity_registry[0].PreviousLifeCycleState = entity_file.CARD_OP_READY;
-    entity_registry[0].parent_security_domain_AID = new byte[] {
-        (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0xA5, (byte)0x51, (byte)0x01};
-    entity_registry[0].privileges =
-        new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF};
-    entity_registry[0].implicit_selection_parameter =
-        0x00; // the issuer security domain is already, by default, the
-              // implicitly selected application on all logical channels
-    // entity_registry[0].global_services;      // leave this as
-    // initialized
-    entity_registry[0].current_nb_of_EM = -1;
-    entity_registry[0].current_nb_of_instances = -1;
-    entity_registry[0].is_ELF = false;
-    entity_registry[0].is_EM = false;
-    entity_registry[0].is_instance = true;
-    // entity_registry[0].contained_EM;         // leave this as
-    // initialized entity_registry[0].associated_instances;     // leave this as
-    // initialized
+    short isd = registry.allocate(registry_table.KIND_INSTANCE, bGP_AID,
+                                  (short)0, (byte)bGP_AID.length);
+    registry.set_life_cycle(isd, entity_file.CARD_OP_READY);
+    registry.change_life_cycle(isd, entity_file.CARD_OP_READY);
+    registry.set_security_domain(isd, isd); // the root is its own parent
+    registry.set_privileges(isd, new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF},
+                            (short)0);
+    registry.set_implicit_selection(
+        isd, (byte)0x00); // the issuer security domain is already, by default,
+                          // the implicitly selected application on all
+                          // logical channels
+    hierarchy.add(isd);
+    record_service(isd, http_administration.SERVICE_NAME);
+    addUniquelyRegisteredServiceName(isd, http_administration.SERVICE_NAME);
+    provide_services();
+  }
+
+  /**
+   * Make the issuer security domain the provider of the global services of
+   * the OPEN. Their names are part of the registry, but providers are not.
+   */
+  private void provide_services() {
+    globalServiceProvider provider = new globalServiceProvider();
+    provider.addService(http_administration.SERVICE_NAME, administration);
+    registry.set_provider(ISD_INDEX, provider);
   }
 
   /**
@@ -125,34 +317,49 @@ public class PlateformeGlobale {
    * <p>As there is only one GlobalPlatform instance, we implement a singleton
    * design pattern to ensure this property</p>
    */
-  public static PlateformeGlobale getInstance() {
+  public static PlateformeGlobale getInstance() { return getInstance(null); }
+
+  /**
+   * <p>PlateformeGlobale getinstance, restoring the GP registry from an image
+   * when the instance is created.</p>
+   *
+   * @param baImage An image of the registry written by
+   *     <code>writeRegistryImage</code>, or <code>null</code>. The array must
+   *     not be modified afterwards, since the registry entries are read from it
+   *     on demand.
+   */
+  public static PlateformeGlobale getInstance(byte[] baImage) {
     if (singleton == null) {
-      singleton = new PlateformeGlobale();
+      singleton = new PlateformeGlobale(baImage);
     }
     return singleton;
   }
 
-  private class UniquelyRegistered {
-    short indexOfEntity = -1;
-    short serviceName = (short)0xFFFF;
-  }
-
-  private class command_APDU {
-    byte CLA;
-    byte INS;
-    byte P1;
-    byte P2;
-    int Lc;
-    byte[] data;
-    int Le;
-    boolean Lc_presence = false;
-    boolean Le_presence = false;
+  /**
+   * @return The length of the image of the GP registry, see
+   *     <code>writeRegistryImage</code>.
+   * @throws ISOException with reason code 0x6A84 («not enough memory space»,
+   *     see ISO7816-4) if the image would be longer than 32767 bytes.
+   */
+  public short getRegistryImageLength() throws ISOException {
+    return registry_image.length(this);
   }
 
-  private class response_APDU {
-    byte[] data;
-    byte SW1;
-    byte SW2;
+  /**
+   * Write a binary image of the GP registry (entities, privileges, life cycle
+   * states, security domain hierarchy and global service names), which can be
+   * given to <code>getInstance(byte[])</code> when the card starts again.
+   * Global service providers and the registry change journal are not part of
+   * the image.
+   *
+   * @param baBuffer The destination array, which must hold
+   *     <code>getRegistryImageLength()</code> bytes from <code>sOffset</code>.
+   * @param sOffset The offset in <code>baBuffer</code>.
+   * @return <code>sOffset</code> + the length of the image.
+   */
+  public short writeRegistryImage(byte[] baBuffer, short sOffset)
+      throws ISOException {
+    return registry_image.write(this, baBuffer, sOffset);
   }
 
   /**
@@ -160,18 +367,11 @@ public class PlateformeGlobale {
    * the whole GP registry.
    *
    * @param AID_requested The AID of the entity that is searched.
-   * @return The index of the first entity corresponding to the given AID. -1
-   *     means the requested entity could not be found.
+   * @return The index of the entity corresponding to the given AID. -1 means
+   *     the requested entity could not be found.
    */
   short find_by_AID(AID AID_requested) {
-    for (short i = 0; i < (MAX_ELF * MAX_EM_PER_ELF * MAX_INSTANCES_PER_EM);
-         i++) {
-      if (AID_requested.equals(entity_registry[i].AID, (short)0,
-                               (byte)entity_registry[i].AID.length)) {
-        return i;
-      }
-    }
-    return -1;
+    return registry.find(AID_requested);
   }
 
   /**
@@ -181,13 +381,135 @@ public class PlateformeGlobale {
    * @return The file corresponding to the index, or null if not possible.
    */
   entity_file get_by_index(short index) {
-    if (index < 0 || index >= MAX_ELF * MAX_EM_PER_ELF * MAX_INSTANCES_PER_EM) {
+    if (!registry.is_used(index)) {
       return null;
     } else {
-      return entity_registry[index];
+      return registry.get_view(index);
     }
   }
 
+  /**
+   * Add a new entity to the GP registry. The new entity has no privilege and
+   * no recorded global service; its life cycle state is the initial one of
+   * its kind (LOADED for an Executable Load File, INSTALLED for an instance).
+   *
+   * @param bKind The kind of the entity: <code>registry_table.KIND_ELF</code>,
+   *     <code>registry_table.KIND_EM</code> or
+   *     <code>registry_table.KIND_INSTANCE</code>.
+   * @param baAID The array containing the AID of the entity.
+   * @param sOffset The offset of the AID in <code>baAID</code>.
+   * @param bLength The length of the AID.
+   * @param sSecurityDomain The index of the associated security domain, which
+   *     must already be a security domain of the hierarchy.
+   * @param sOwner The index of the Executable Load File containing an
+   *     Executable Module, or of the Executable Module an instance is created
+   *     from. -1 if there is none.
+   * @return The index of the new entity, or -1 if it could not be added.
+   */
+  short add_entity(byte bKind, byte[] baAID, short sOffset, byte bLength,
+                   short sSecurityDomain, short sOwner) {
+    if (!registry.is_used(sSecurityDomain) ||
+        registry.get_sd_ordinal(sSecurityDomain) == sd_hierarchy.NO_ORDINAL) {
+      return -1;
+    }
+    if (sOwner != registry_table.NO_ENTRY && !registry.is_used(sOwner)) {
+      return -1;
+    }
+    short index = registry.allocate(bKind, baAID, sOffset, bLength);
+    if (index == registry_table.NO_ENTRY) {
+      return -1;
+    }
+    registry.set_security_domain(index, sSecurityDomain);
+    if (sOwner != registry_table.NO_ENTRY) {
+      registry.set_owner(index, sOwner);
+    }
+    switch (bKind) {
+    case registry_table.KIND_ELF:
+      registry.set_life_cycle(index, ELF_LOADED);
+      break;
+    case registry_table.KIND_INSTANCE:
+      registry.set_life_cycle(index, entity_file.APPLICATION_INSTALLED);
+      break;
+    default:
+      break;
+    }
+    journal.append(JOURNAL_EVENT_INSTALL, index, bKind,
+                   (short)(registry.get_life_cycle(index) & 0xFF));
+    return index;
+  }
+
+  /**
+   * Remove an entity from the GP registry. A security domain leaves the
+   * hierarchy, the global service names recorded by an instance are released,
+   * and so is the content of an Executable Load File. The entity must not own,
+   * or have associated, any other entity.
+   *
+   * @param index The index of the entity.
+   */
+  void remove_entity(short index) {
+    byte kind = registry.get_kind(index);
+    journal.append(JOURNAL_EVENT_DELETE, index, kind,
+                   (short)(registry.get_life_cycle(index) & 0xFF));
+    if (registry.get_sd_ordinal(index) != sd_hierarchy.NO_ORDINAL) {
+      hierarchy.remove(index);
+    }
+    services.remove_all(registry.get_first_service(index));
+    if (kind == registry_table.KIND_ELF) {
+      load_files.release(index);
+    }
+    registry.release(index);
+  }
+
+  /**
+   * Set the privileges of an entity of the GP registry. An instance granted the
+   * Security Domain privilege joins the security domain hierarchy; this
+   * privilege cannot be withdrawn afterwards.
+   *
+   * @param index The index of the entity.
+   * @param baPrivileges The array containing the privileges, coded as
+   *     specified in the GP specification.
+   * @param sOffset The offset of the privileges in <code>baPrivileges</code>.
+   * @return <code>false</code> if the privileges could not be set.
+   */
+  boolean set_entity_privileges(short index, byte[] baPrivileges,
+                                short sOffset) {
+    if (!registry.is_used(index) ||
+        registry.get_kind(index) != registry_table.KIND_INSTANCE) {
+      return false;
+    }
+    boolean was_sd =
+        registry.get_sd_ordinal(index) != sd_hierarchy.NO_ORDINAL;
+    boolean is_sd = (baPrivileges[sOffset] & (byte)0x80) != 0;
+    if (was_sd && !is_sd) {
+      return false;
+    }
+    if (!was_sd && is_sd && !hierarchy.add(index)) {
+      return false;
+    }
+    registry.set_privileges(index, baPrivileges, sOffset);
+    journal.append(JOURNAL_EVENT_PRIVILEGES, index,
+                   (short)(baPrivileges[sOffset] & 0xFF),
+                   Util.getShort(baPrivileges, (short)(sOffset + 1)));
+    return true;
+  }
+
+  /**
+   * Associate an entity of the GP registry with another security domain. When
+   * a security domain is extradited, so are all the entities associated with
+   * it.
+   *
+   * @param index The index of the entity.
+   * @param sSecurityDomain The index of the new associated security domain.
+   * @return <code>false</code> if the extradition could not be done.
+   */
+  boolean extradite_entity(short index, short sSecurityDomain) {
+    if (!registry.is_used(index) || !registry.is_used(sSecurityDomain) ||
+        index == ISD_INDEX) {
+      return false;
+    }
+    return hierarchy.extradite(index, sSecurityDomain);
+  }
+
   /**
    * Find the appropriate entity_file instance and return it to the caller. This
    * will allow the caller to use the OPEN API.
@@ -196,10 +518,10 @@ public class PlateformeGlobale {
    * @param parameter Optional parameter prescribed by the javacard API. Useless
    *     here, and can be set to anything.
    * @return A reference to the shareable object corresponding to the requesting
-   *     entity.
+   *     entity, or <code>null</code> if it is not in the GP registry.
    */
   public Shareable getShareableInterfaceObject(AID clientAID, byte parameter) {
-    return entity_registry[find_by_AID(clientAID)];
+    return get_by_index(find_by_AID(clientAID));
   }
 
   /**
@@ -208,15 +530,179 @@ public class PlateformeGlobale {
    *
    * @return The card's life cycle state.
    */
-  byte get_CardLifeCycleState() { return entity_registry[0].LifeCycleState; }
+  byte get_CardLifeCycleState() { return registry.get_life_cycle(ISD_INDEX); }
+
+  /**
+   * <p>Read a batch of records of the registry change journal.</p>
+   *
+   * <p>Every change of the GP registry (installation and deletion of an entity,
+   * change of life cycle state or of privileges, recording of a global
+   * service name and its unique registration) is given a sequence number and
+   * recorded in a ring of <code>JOURNAL_RECORD_LENGTH</code> bytes long
+   * records. A reader keeps the sequence number of the next record it wants,
+   * starting with <code>getJournalSequence()</code>, and adds the number of
+   * records returned by each call.</p>
+   *
+   * @param iFrom The sequence number of the first record to read.
+   * @param baBuffer The destination array.
+   * @param sOffset The offset in <code>baBuffer</code>.
+   * @param sLength The room available in <code>baBuffer</code>; only whole
+   *     records are copied.
+   * @return The number of records copied.
+   * @throws ISOException with reason code 0x6A88 («referenced data not found»,
+   *     see ISO7816-4) if the record <code>iFrom</code> has already been
+   *     overwritten: the reader has missed changes and must read the whole
+   *     registry again.
+   */
+  public short readJournal(int iFrom, byte[] baBuffer, short sOffset,
+                           short sLength) throws ISOException {
+    return journal.read(iFrom, baBuffer, sOffset, sLength);
+  }
+
+  /**
+   * @return The sequence number the next change of the GP registry will be
+   *     given.
+   */
+  public int getJournalSequence() { return journal.get_next_sequence(); }
+
+  /**
+   * @param bEvent A journal event, see <code>JOURNAL_EVENT_*</code>.
+   * @return The number of changes of the GP registry of this kind since the
+   *     OPEN was created, including those whose records have been
+   *     overwritten since. 0 for an unknown event.
+   */
+  public int getJournalCounter(byte bEvent) {
+    return journal.get_counter(bEvent);
+  }
+
+  /**
+   * <p>Open the next HTTP Administration session requested by an
+   * application. This method, like the other HTTP Administration methods,
+   * is called by the admin agent of the platform, which carries the sessions
+   * to the remote administration server.</p>
+   *
+   * @return The slot of the session, or -1 if no session is waiting.
+   * @throws SecurityException if called by an application.
+   */
+  public byte openHTTPAdministrationSession() {
+    check_platform();
+    return administration.open_session();
+  }
+
+  /**
+   * Copy the triggering parameters of an open HTTP Administration session.
+   *
+   * @param bSlot The slot of the session.
+   * @param baBuffer The destination array.
+   * @param sOffset The offset in <code>baBuffer</code>.
+   * @return <code>sOffset</code> + the length of the parameters.
+   * @throws ISOException with reason code 0x6985 («conditions of use not
+   *     satisfied», see ISO7816-4) if the slot does not hold an open session.
+   * @throws SecurityException if called by an application.
+   */
+  public short getHTTPAdministrationParameters(byte bSlot, byte[] baBuffer,
+                                               short sOffset)
+      throws ISOException {
+    check_platform();
+    return administration.get_parameters(bSlot, baBuffer, sOffset);
+  }
+
+  /**
+   * Process a batch of the script of an open HTTP Administration session: a
+   * sequence of C-APDUs, each of them preceded by its length on two bytes.
+   * The R-APDUs are written the same way.
+   *
+   * @param bSlot The slot of the session.
+   * @param baScript The buffer holding the batch.
+   * @param sOffset The offset of the batch.
+   * @param sLength The length of the batch.
+   * @param baResponse The buffer where the R-APDUs are written. It may be
+   *     <code>baScript</code> if they do not overlap the batch.
+   * @param sResponseOffset The offset of the R-APDUs.
+   * @return <code>sResponseOffset</code> + the length of the R-APDUs.
+   * @throws ISOException with reason code 0x6985 («conditions of use not
+   *     satisfied», see ISO7816-4) if the slot does not hold an open session,
+   *     0x6700 («wrong length», see ISO7816-4) if a command is truncated or
+   *     too long, or 0x6A84 («not enough memory space», see ISO7816-4) if the
+   *     R-APDUs do not fit in <code>baResponse</code>.
+   * @throws SecurityException if called by an application.
+   */
+  public short processHTTPAdministrationScript(byte bSlot, byte[] baScript,
+                                               short sOffset, short sLength,
+                                               byte[] baResponse,
+                                               short sResponseOffset)
+      throws ISOException {
+    check_platform();
+    return administration.process_script(bSlot, baScript, sOffset, sLength,
+                                         baResponse, sResponseOffset);
+  }
+
+  /**
+   * End an open HTTP Administration session. A session which failed is
+   * requested again while its retry policy is not exhausted.
+   *
+   * @param bSlot The slot of the session.
+   * @param bSuccess <code>true</code> if the remote server ended the session,
+   *     <code>false</code> if it could not be carried out.
+   * @throws ISOException with reason code 0x6985 («conditions of use not
+   *     satisfied», see ISO7816-4) if the slot does not hold an open session.
+   * @throws SecurityException if called by an application.
+   */
+  public void closeHTTPAdministrationSession(byte bSlot, boolean bSuccess)
+      throws ISOException {
+    check_platform();
+    administration.close_session(bSlot, bSuccess);
+  }
+
+  /**
+   * @throws SecurityException if the caller is an application, and not the
+   *     platform.
+   */
+  private static void check_platform() {
+    if (JCSystem.getPreviousContextAID() != null) {
+      throw new SecurityException();
+    }
+  }
+
+  /**
+   * Record a global service name for an application, as part of the System
+   * Install Parameters of the INSTALL command. The service name can then be
+   * registered uniquely by the application.
+   *
+   * @param index The index of the application in the GP registry.
+   * @param serviceName The two bytes corresponding to the family and the name
+   *     of the service.
+   * @return <code>true</code> if the service name has been recorded.
+   *     <code>false</code> if index does not point to an instance, if the
+   *     service name is invalid or already recorded for this application, or
+   *     if the application already has
+   *     <code>MAX_GLOBAL_SERVICES_PER_INSTANCE</code> service names.
+   */
+  boolean record_service(short index, short serviceName) {
+    if (!registry.is_used(index) ||
+        registry.get_kind(index) != registry_table.KIND_INSTANCE) {
+      return false;
+    }
+    short first = registry.get_first_service(index);
+    if (services.count(first) >= MAX_GLOBAL_SERVICES_PER_INSTANCE) {
+      return false;
+    }
+    short record = services.record(serviceName, index, first);
+    if (record == service_index.NO_RECORD) {
+      return false;
+    }
+    registry.set_first_service(index, record);
+    journal.append(JOURNAL_EVENT_SERVICE_RECORDED, index, serviceName,
+                   (short)0);
+    return true;
+  }
 
   /**
    * Allows to know if a global service name is already registered with one or
    * any of the instances installed on the card, or not. Useful when registering
-   * a service name uniquely. If the <code>index</code> parameter is between 0
-   * and MAX_ELF*MAX_EM_PER_ELF*MAX_INSTANCES_PER_EM , then the service name is
-   * looked for in the corresponding entity. If it is negative, it is looked for
-   * in all entities and the first occurence is returned.
+   * a service name uniquely. If the <code>index</code> parameter designates an
+   * entity of the GP registry, then the service name is looked for in the
+   * corresponding entity. Otherwise, it is looked for in all entities.
    *
    * @param serviceName The service name looked for.
    * @param index An index pointing to the entity in which the service can be
@@ -227,41 +713,23 @@ public class PlateformeGlobale {
    *     entity.
    */
   boolean isRegistered(short serviceName, short index) {
-    if (index < 0 ||
-        index >= MAX_ELF * MAX_EM_PER_ELF *
-                     MAX_INSTANCES_PER_EM) // index out of bound, search on all
-                                           // entities
-    {
-      for (short i = 0; i < MAX_ELF * MAX_EM_PER_ELF * MAX_INSTANCES_PER_EM;
-           i++) // for each entity
-      {
-        if (entity_registry[i].is_instance) // if it is an instance
-        {
-          for (short j = 0;
-               j < PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE * 2;
-               j = (short)(j + 2)) {
-            if (Util.getShort(entity_registry[i].global_services, j) ==
-                serviceName) {
-              return true;
-            }
-          }
-        }
-      }
-    } else // correct index, search only in the corresponding entity if it
-           // exists
+    if (!registry.is_used(index)) // index out of bound, search on all entities
     {
-      if (get_by_index(index).is_instance) {
-        for (short i = 0;
-             i < PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE * 2;
-             i = (short)(i + 2)) {
-          if (Util.getShort(get_by_index(index).global_services, i) ==
-              serviceName) {
-            return true;
-          }
-        }
-      }
+      return services.is_recorded_by_other(serviceName, (short)-1);
     }
-    return false;
+    return services.find(serviceName, index) != service_index.NO_RECORD;
+  }
+
+  /**
+   * Allows to know if a global service name is registered with any instance
+   * but the one designated by <code>index</code>.
+   *
+   * @param serviceName The service name looked for.
+   * @param index The index of the instance which is not considered.
+   * @return <code>true</code> if another instance has this service name.
+   */
+  boolean isRegisteredByOther(short serviceName, short index) {
+    return services.is_recorded_by_other(serviceName, index);
   }
 
   /**
@@ -278,20 +746,11 @@ public class PlateformeGlobale {
    */
   boolean addUniquelyRegisteredServiceName(short indexOfApplication,
                                            short serviceName) {
-    short i;
-    for (i = 0; (i < MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES) &&
-                (uniquesServiceNames[i].indexOfEntity != -1);
-         i++) {
-    }
-    if (i ==
-        MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES) // table of uniquely registered
-                                                 // services is full
-    {
+    if (!services.set_unique(serviceName, indexOfApplication)) {
       return false;
     }
-
-    uniquesServiceNames[i].indexOfEntity = indexOfApplication;
-    uniquesServiceNames[i].serviceName = serviceName;
+    journal.append(JOURNAL_EVENT_SERVICE_REGISTERED, indexOfApplication,
+                   serviceName, (short)0);
     return true;
   }
 
@@ -309,21 +768,11 @@ public class PlateformeGlobale {
    */
   boolean removeUniquelyRegisteredServiceName(short indexOfApplication,
                                               short serviceName) {
-    short i;
-    for (i = 0; (i < MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES) &&
-                ((uniquesServiceNames[i].serviceName != serviceName) ||
-                 (uniquesServiceNames[i].indexOfEntity != indexOfApplication));
-         i++) {
-    }
-    if (i == MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES) // the service that should
-                                                      // be removed is not
-                                                      // actually in our table
-    {
+    if (!services.clear_unique(serviceName, indexOfApplication)) {
       return false;
     }
-
-    uniquesServiceNames[i].indexOfEntity = -1;
-    uniquesServiceNames[i].serviceName = (short)0xFFFF;
+    journal.append(JOURNAL_EVENT_SERVICE_DEREGISTERED, indexOfApplication,
+                   serviceName, (short)0);
     return true;
   }
 
@@ -335,173 +784,252 @@ public class PlateformeGlobale {
    *     unique. -1 otherwise.
    */
   short isRegisteredUniquely(short serviceName) {
-    for (short i = 0; i < MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES;
-         i++) // for each unique service name slot
-    {
-      if (uniquesServiceNames[i].serviceName == serviceName) {
-        return uniquesServiceNames[i].indexOfEntity;
-      }
-    }
-    return (short)-1;
+    return services.find_unique_owner(serviceName);
   }
 
   /**
    * Allows to get a service name registered as unique in the OPEN, and
-   * belonging to the family passed as parameter. The first corresponding result
-   * is returned, and since the global service register is never organized and
-   * ranked; it can be considered that any family member can be returned
-   * randomly, if there are several family member in the register.
+   * belonging to the family passed as parameter. Since the global service
+   * register is never organized and ranked, it can be considered that any
+   * family member can be returned, if there are several family member in the
+   * register.
    *
-   * @param familyName The function will look for the first occurence of member
-   *     of this family.
-   * @return The first corresponding service name that has been found. 0xFFFF if
-   *     none has been found (it is an invalid value as specified in the
-   *     GlobalPlatform specification).
+   * @param familyName The function will look for a member of this family.
+   * @return A corresponding service name. 0xFFFF if none has been found (it is
+   *     an invalid value as specified in the GlobalPlatform specification).
    */
   short find_uniquely_registered_family_member(byte familyName) {
-    for (short i = 0; i < MAX_UNIQUELY_REGISTERED_GLOBAL_SERVICES;
-         i++) // for each unique service name slot
-    {
-      if ((byte)(uniquesServiceNames[i].serviceName >> 8) == familyName) {
-        return uniquesServiceNames[i].serviceName;
-      }
-    }
-    return (short)0xFFFF;
+    return services.find_unique_in_family(familyName);
   }
 
   /**
-   * The function started when a command APDU has been received. It will process
-   * the incoming APDU and prepare the response one.
-   * TODO : Extended fields support is unfinished : APDUs can contain unsigned
-   * 16 bits numbers, where 0x0000 corresponds to 2^16. As these cannot be
-   * stored and processed with java card's <code>short</code> type,
-   * <code>int</code> must be used, however this prevents the use of
-   * Util.arrayCopy(...).
-   *
-   * @param command_APDU The command APDU that has just been received. The
-   *     array's length should correspond to the APDU's length; there should not
-   *     be any padding.
-   * @return The response APDU, or <code>null</code> if anything went wrong.
-   */
-  byte[] process_command_APDU(byte[] command_APDU) {
-    if (command_APDU == null) {
-      return null;
-    }
-    if (command_APDU.length < 4) {
-      return null;
-    } // Header cannot be complete
-    if (command_APDU.length > 65544) {
-      return null;
-    } // Above maximum length
+   * @return The secure channel of the issuer security domain.
+   */
+  secure_channel get_secure_channel() { return channel; }
 
-    command_APDU received_APDU = new command_APDU();
-    received_APDU.CLA = command_APDU[0];
-    received_APDU.INS = command_APDU[1];
-    received_APDU.P1 = command_APDU[2];
-    received_APDU.P2 = command_APDU[3];
+  /**
+   * @return The global PIN of the card, used when no Global Services
+   *     Application provides one.
+   */
+  CVM get_global_pin() { return pin; }
 
-    if (command_APDU.length > 4) // if there is more than just the header
-    {
-      if (command_APDU[4] != (byte)0x00) // if the first field is a short one
+  /**
+   * @return The HTTP Administration service, through which the admin agent
+   *     takes the sessions requested and hands over their scripts.
+   */
+  http_administration get_http_administration() { return administration; }
+
+  /**
+   * @return The verifier of the tokens and generator of the receipts of
+   *     delegated management.
+   */
+  delegated_management get_delegated_management() { return delegation; }
+
+  /**
+   * The function started when a command APDU has been received. It will process
+   * the incoming APDU and write the response one in the same buffer, the way
+   * the APDU buffer is used by applets.
+   *
+   * @param baApdu The buffer holding the command APDU from offset 0. The
+   *     response APDU (response data followed by the status word) is written
+   *     from offset 0 of the same buffer.
+   * @param sLength The length of the command APDU; there should not be any
+   *     padding.
+   * @return The length of the response APDU.
+   */
+  short process_command_APDU(byte[] baApdu, short sLength) {
+    return process_command_APDU(baApdu, sLength, false);
+  }
+
+  /**
+   * Process a command APDU, which may have been unwrapped ahead by
+   * <code>secure_channel.unwrap_commands</code>; its response is wrapped all
+   * the same.
+   *
+   * @param bUnwrapped <code>true</code> if the command has been unwrapped.
+   * @see #process_command_APDU(byte[], short)
+   */
+  short process_command_APDU(byte[] baApdu, short sLength,
+                             boolean bUnwrapped) {
+    short length = 0;
+    apdu[APDU_SW] = (short)0x9000;
+    try {
+      parse_APDU(baApdu, sLength);
+      if ((baApdu[ISO7816.OFFSET_CLA] & (byte)0x80) ==
+          0x00) // not a GlobalPlatform class
       {
-        if (command_APDU.length > 5) // if the first field is Lc
-        {
-          received_APDU.Lc = read_APDU_byte_field(command_APDU[4]);
-          received_APDU.Lc_presence = true;
-          if (command_APDU.length ==
-              (received_APDU.Lc + 5)) // if there is not a Le field at the end
-          {
-            Util.arrayCopy(command_APDU, (short)5, received_APDU.data, (short)0,
-                           (short)received_APDU.Lc);
-          } else if (command_APDU.length ==
-                     (received_APDU.Lc +
-                      6)) // if there is a Le field at the end
-          {
-            Util.arrayCopy(command_APDU, (short)5, received_APDU.data, (short)0,
-                           (short)received_APDU.Lc);
-            received_APDU.Le = read_APDU_byte_field(
-                command_APDU[(short)(command_APDU.length - 1)]);
-            received_APDU.Le_presence = true;
-          }
-        } else // if the first field is Le
-        {
-          received_APDU.Le = read_APDU_byte_field(command_APDU[4]);
-          received_APDU.Le_presence = true;
+        ISOException.throwIt((short)0x6E00); // «class not supported», see
+                                             // ISO7816-4
+      }
+      channel.select_channel(
+          APDUUtil.getCLAChannel(baApdu[ISO7816.OFFSET_CLA]));
+      byte ins = baApdu[ISO7816.OFFSET_INS];
+      boolean secured = ins != secure_channel.INS_INITIALIZE_UPDATE &&
+                        ins != secure_channel.INS_EXTERNAL_AUTHENTICATE;
+      if (secured) {
+        if (!bUnwrapped) {
+          unwrap_command(baApdu);
         }
-      } else // if the first field is an extended one
-      {
-        if (command_APDU.length > 7) // if the first field is Lc
-        {
-          received_APDU.Lc =
-              read_APDU_short_field(command_APDU[5], command_APDU[6]);
-          received_APDU.Lc_presence = true;
-          if (command_APDU.length ==
-              (received_APDU.Lc + 7)) // if there is not a Le field at the end
-          {
-            Util.arrayCopy(command_APDU, (short)7, received_APDU.data, (short)0,
-                           (short)received_APDU.Lc);
-          } else if (command_APDU.length ==
-                     (received_APDU.Lc +
-                      9)) // if there is a Le field at the end
-          {
-            Util.arrayCopy(command_APDU, (short)7, received_APDU.data, (short)0,
-                           (short)received_APDU.Lc);
-            received_APDU.Le = read_APDU_short_field(
-                command_APDU[(short)(command_APDU.length - 2)],
-                command_APDU[(short)(command_APDU.length - 1)]);
-            received_APDU.Le_presence = true;
-          }
-        } else // if the first field is Le
-        {
-          received_APDU.Le =
-              read_APDU_short_field(command_APDU[5], command_APDU[6]);
-          received_APDU.Le_presence = true;
+        // room for the padding and the R-MAC of the response
+        short room = (short)(baApdu.length - 2 -
+                             secure_channel.MAX_WRAP_OVERHEAD);
+        if (apdu[APDU_LE] > room) {
+          apdu[APDU_LE] = room;
         }
       }
-    }
-
-    // TODO : actually apply the APDU request here
-    /*
-      switch(received_APDU.CLA)
-      {
-        case ...
+      switch (ins) {
+      case secure_channel.INS_INITIALIZE_UPDATE:
+      case secure_channel.INS_EXTERNAL_AUTHENTICATE:
+        length = channel.processSecurity(
+            baApdu, (short)0, (short)(apdu[APDU_DATA] + apdu[APDU_LC]),
+            (short)0);
+        break;
+      case INS_GET_STATUS:
+        length = status_command.process(
+            baApdu[ISO7816.OFFSET_P1], baApdu[ISO7816.OFFSET_P2], baApdu,
+            apdu[APDU_DATA], apdu[APDU_LC], apdu[APDU_LE]);
+        if (status_command.has_more()) {
+          apdu[APDU_SW] = (short)0x6310; // «more data available», see
+                                         // ISO7816-4
+        }
+        break;
+      case INS_INSTALL:
+        if (baApdu[ISO7816.OFFSET_P1] == load_command.P1_INSTALL_FOR_LOAD) {
+          length = loader.install_for_load(
+              baApdu[ISO7816.OFFSET_P1], baApdu[ISO7816.OFFSET_P2], baApdu,
+              apdu[APDU_DATA], apdu[APDU_LC]);
+        } else if (baApdu[ISO7816.OFFSET_P1] ==
+                   store_data.P1_INSTALL_FOR_PERSONALIZATION) {
+          length = personalization.install_for_personalization(
+              baApdu, apdu[APDU_DATA], apdu[APDU_LC]);
+        } else {
+          ISOException.throwIt((short)0x6A86); // «incorrect P1 P2», see
+                                               // ISO7816-4
+        }
+        break;
+      case INS_LOAD:
+        length = loader.load(baApdu[ISO7816.OFFSET_P1], baApdu[ISO7816.OFFSET_P2],
+                             baApdu, apdu[APDU_DATA], apdu[APDU_LC]);
+        break;
+      case INS_DELETE:
+        length = deleter.process(baApdu[ISO7816.OFFSET_P1],
+                                 baApdu[ISO7816.OFFSET_P2], baApdu,
+                                 apdu[APDU_DATA], apdu[APDU_LC]);
+        break;
+      case INS_STORE_DATA:
+        length =
+            personalization.process(baApdu, apdu[APDU_DATA], apdu[APDU_LC]);
+        break;
+      case INS_PUT_KEY:
+        length = key_loader.process(baApdu[ISO7816.OFFSET_P1],
+                                    baApdu[ISO7816.OFFSET_P2], baApdu,
+                                    apdu[APDU_DATA], apdu[APDU_LC]);
+        break;
+      default:
+        ISOException.throwIt((short)0x6D00); // «instruction code not
+                                             // supported», see ISO7816-4
       }
-    */
-
-    return null; // TODO : return an actual response APDU here ?
+      if (secured) {
+        Util.setShort(baApdu, length, apdu[APDU_SW]);
+        length = channel.wrap(baApdu, (short)0, (short)(length + 2));
+      }
+    } catch (ISOException e) {
+      length = 0;
+      apdu[APDU_SW] = e.getReason();
+    }
+    return Util.setShort(baApdu, length, apdu[APDU_SW]);
   }
 
   /**
-   * This function converts a short field (short in the sense of ISO7816-3, not
-   * as the javacard type) to a number contained in an int (as the javacard
-   * type) variable. This is necessary because of some specificities, for
-   * example in a ISO7816 short field, 0x00 = 256.
+   * Verify and remove the secure messaging of a command APDU, according to the
+   * level of the current secure channel session, and update its fields. A
+   * command without secure messaging is refused outside of an authenticated
+   * session, and during a session requiring a C-MAC.
    *
-   * @param byteField The short field as it is in the APDU.
-   * @return The actual value described by the short field.
+   * @param baApdu The buffer holding the command APDU from offset 0.
    */
-  int read_APDU_byte_field(byte byteField) {
-    if ((byteField + 128) == 0) {
-      return (int)256;
-    } else {
-      return (int)byteField + 128;
+  private void unwrap_command(byte[] baApdu) throws ISOException {
+    byte cla = baApdu[ISO7816.OFFSET_CLA];
+    if ((cla & secure_channel.secure_messaging_bit(cla)) == 0) {
+      if ((channel.getSecurityLevel() &
+           (SecureChannel.AUTHENTICATED | SecureChannel.C_MAC)) !=
+          SecureChannel.AUTHENTICATED) {
+        ISOException.throwIt((short)0x6982); // «security status not
+                                             // satisfied», see ISO7816-4
+      }
+      return;
     }
+    short command = channel.unwrap(baApdu, (short)0,
+                                   (short)(apdu[APDU_DATA] + apdu[APDU_LC]));
+    apdu[APDU_LC] = (short)(command - apdu[APDU_DATA]);
   }
 
   /**
-   * This function converts an extended field (as in ISO7816-3) to a number
-   * contained in an int variable. This is necessary because of some
-   * specificities, for example the absence of negative values. An extended
-   * field is composed of 16 bits, hence the two bytes parameters.
+   * Find the fields of a command APDU, as specified by ISO7816-3, and store
+   * them in <code>apdu</code>. The body of the command is never copied. An
+   * absent Le field is handled as the maximum short Le (256), and Le is
+   * bounded by the room left in the buffer for the response data.
    *
-   * @param MostSignificantByte The most significant byte of the 16 bits
-   *     extended field.
-   * @param LeastSignificantByte The least significant byte of the 16 bits
-   *     extended field.
-   * @return The actual value described by the extended field.
+   * @param baApdu The buffer holding the command APDU from offset 0.
+   * @param sLength The length of the command APDU.
    */
-  int read_APDU_short_field(byte MostSignificantByte,
-                            byte LeastSignificantByte) {
-    return 0x8000 | (MostSignificantByte << 8) | LeastSignificantByte;
+  private void parse_APDU(byte[] baApdu, short sLength) throws ISOException {
+    short lc = 0;
+    short le = (short)256;
+    short data = ISO7816.OFFSET_CDATA;
+    if (sLength < 4) // header cannot be complete
+    {
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+    if (sLength == 5) // Le only, short field
+    {
+      le = (short)(baApdu[ISO7816.OFFSET_LC] & 0xFF);
+      if (le == 0) {
+        le = (short)256;
+      }
+    } else if (sLength > 5 &&
+               baApdu[ISO7816.OFFSET_LC] != 0x00) // Lc, short field
+    {
+      lc = (short)(baApdu[ISO7816.OFFSET_LC] & 0xFF);
+      if (sLength == (short)(ISO7816.OFFSET_CDATA + lc + 1)) {
+        le = (short)(baApdu[(short)(sLength - 1)] & 0xFF);
+        if (le == 0) {
+          le = (short)256;
+        }
+      } else if (sLength != (short)(ISO7816.OFFSET_CDATA + lc)) {
+        ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+      }
+    } else if (sLength == 7) // Le only, extended field
+    {
+      le = Util.getShort(baApdu, (short)(ISO7816.OFFSET_LC + 1));
+      if (le == 0 || le < 0) {
+        le = (short)0x7FFF; // 0x0000 means 65536
+      }
+    } else if (sLength > 7) // Lc, extended field
+    {
+      lc = Util.getShort(baApdu, (short)(ISO7816.OFFSET_LC + 1));
+      data = ISO7816.OFFSET_EXT_CDATA;
+      if (lc <= 0 || sLength < (short)(data + lc)) {
+        ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+      }
+      if (sLength == (short)(data + lc + 2)) {
+        le = Util.getShort(baApdu, (short)(sLength - 2));
+        if (le == 0 || le < 0) {
+          le = (short)0x7FFF; // 0x0000 means 65536
+        }
+      } else if (sLength != (short)(data + lc)) {
+        ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+      }
+    } else if (sLength != 4) {
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+
+    if (le > (short)(baApdu.length - 2)) // room for the status word
+    {
+      le = (short)(baApdu.length - 2);
+    }
+    apdu[APDU_LC] = lc;
+    apdu[APDU_DATA] = data;
+    apdu[APDU_LE] = le;
   }
 }
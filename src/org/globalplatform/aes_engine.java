@@ -0,0 +1,435 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>AES block cipher, with the CBC mode and the CMAC of NIST SP 800-38B, as
+ * needed by the secure channel protocols.</p>
+ *
+ * <p>The key schedule and the CMAC subkeys are computed once, when the key is
+ * set, and kept in transient memory until the key is cleared; encrypting a
+ * block or updating a CMAC then only reads them. All the processing is done
+ * in place, in preallocated transient arrays.</p>
+ *
+ * <p>An engine runs either a CBC operation or a CMAC computation at a time,
+ * since both use the same work area.</p>
+ */
+final class aes_engine {
+
+  /**
+   * Length of an AES block
+   */
+  static final short BLOCK_SIZE = (short)16;
+
+  // schedule: round keys, then the number of rounds
+  private static final short SCHEDULE_LENGTH = (short)240;
+  private static final short SCHEDULE_ROUNDS = SCHEDULE_LENGTH;
+
+  // work area
+  private static final short WORK_STATE = (short)0;    // copy of the state
+  private static final short WORK_CHAIN = (short)16;   // CMAC or CBC chaining
+  private static final short WORK_PENDING = (short)32; // CMAC pending block,
+                                                       // or saved CBC block
+  private static final short WORK_PENDING_LENGTH = (short)48;
+  private static final short WORK_LENGTH = (short)49;
+
+  private static final byte[] SBOX = {
+      (byte)0x63, (byte)0x7C, (byte)0x77, (byte)0x7B, (byte)0xF2, (byte)0x6B,
+      (byte)0x6F, (byte)0xC5, (byte)0x30, (byte)0x01, (byte)0x67, (byte)0x2B,
+      (byte)0xFE, (byte)0xD7, (byte)0xAB, (byte)0x76, (byte)0xCA, (byte)0x82,
+      (byte)0xC9, (byte)0x7D, (byte)0xFA, (byte)0x59, (byte)0x47, (byte)0xF0,
+      (byte)0xAD, (byte)0xD4, (byte)0xA2, (byte)0xAF, (byte)0x9C, (byte)0xA4,
+      (byte)0x72, (byte)0xC0, (byte)0xB7, (byte)0xFD, (byte)0x93, (byte)0x26,
+      (byte)0x36, (byte)0x3F, (byte)0xF7, (byte)0xCC, (byte)0x34, (byte)0xA5,
+      (byte)0xE5, (byte)0xF1, (byte)0x71, (byte)0xD8, (byte)0x31, (byte)0x15,
+      (byte)0x04, (byte)0xC7, (byte)0x23, (byte)0xC3, (byte)0x18, (byte)0x96,
+      (byte)0x05, (byte)0x9A, (byte)0x07, (byte)0x12, (byte)0x80, (byte)0xE2,
+      (byte)0xEB, (byte)0x27, (byte)0xB2, (byte)0x75, (byte)0x09, (byte)0x83,
+      (byte)0x2C, (byte)0x1A, (byte)0x1B, (byte)0x6E, (byte)0x5A, (byte)0xA0,
+      (byte)0x52, (byte)0x3B, (byte)0xD6, (byte)0xB3, (byte)0x29, (byte)0xE3,
+      (byte)0x2F, (byte)0x84, (byte)0x53, (byte)0xD1, (byte)0x00, (byte)0xED,
+      (byte)0x20, (byte)0xFC, (byte)0xB1, (byte)0x5B, (byte)0x6A, (byte)0xCB,
+      (byte)0xBE, (byte)0x39, (byte)0x4A, (byte)0x4C, (byte)0x58, (byte)0xCF,
+      (byte)0xD0, (byte)0xEF, (byte)0xAA, (byte)0xFB, (byte)0x43, (byte)0x4D,
+      (byte)0x33, (byte)0x85, (byte)0x45, (byte)0xF9, (byte)0x02, (byte)0x7F,
+      (byte)0x50, (byte)0x3C, (byte)0x9F, (byte)0xA8, (byte)0x51, (byte)0xA3,
+      (byte)0x40, (byte)0x8F, (byte)0x92, (byte)0x9D, (byte)0x38, (byte)0xF5,
+      (byte)0xBC, (byte)0xB6, (byte)0xDA, (byte)0x21, (byte)0x10, (byte)0xFF,
+      (byte)0xF3, (byte)0xD2, (byte)0xCD, (byte)0x0C, (byte)0x13, (byte)0xEC,
+      (byte)0x5F, (byte)0x97, (byte)0x44, (byte)0x17, (byte)0xC4, (byte)0xA7,
+      (byte)0x7E, (byte)0x3D, (byte)0x64, (byte)0x5D, (byte)0x19, (byte)0x73,
+      (byte)0x60, (byte)0x81, (byte)0x4F, (byte)0xDC, (byte)0x22, (byte)0x2A,
+      (byte)0x90, (byte)0x88, (byte)0x46, (byte)0xEE, (byte)0xB8, (byte)0x14,
+      (byte)0xDE, (byte)0x5E, (byte)0x0B, (byte)0xDB, (byte)0xE0, (byte)0x32,
+      (byte)0x3A, (byte)0x0A, (byte)0x49, (byte)0x06, (byte)0x24, (byte)0x5C,
+      (byte)0xC2, (byte)0xD3, (byte)0xAC, (byte)0x62, (byte)0x91, (byte)0x95,
+      (byte)0xE4, (byte)0x79, (byte)0xE7, (byte)0xC8, (byte)0x37, (byte)0x6D,
+      (byte)0x8D, (byte)0xD5, (byte)0x4E, (byte)0xA9, (byte)0x6C, (byte)0x56,
+      (byte)0xF4, (byte)0xEA, (byte)0x65, (byte)0x7A, (byte)0xAE, (byte)0x08,
+      (byte)0xBA, (byte)0x78, (byte)0x25, (byte)0x2E, (byte)0x1C, (byte)0xA6,
+      (byte)0xB4, (byte)0xC6, (byte)0xE8, (byte)0xDD, (byte)0x74, (byte)0x1F,
+      (byte)0x4B, (byte)0xBD, (byte)0x8B, (byte)0x8A, (byte)0x70, (byte)0x3E,
+      (byte)0xB5, (byte)0x66, (byte)0x48, (byte)0x03, (byte)0xF6, (byte)0x0E,
+      (byte)0x61, (byte)0x35, (byte)0x57, (byte)0xB9, (byte)0x86, (byte)0xC1,
+      (byte)0x1D, (byte)0x9E, (byte)0xE1, (byte)0xF8, (byte)0x98, (byte)0x11,
+      (byte)0x69, (byte)0xD9, (byte)0x8E, (byte)0x94, (byte)0x9B, (byte)0x1E,
+      (byte)0x87, (byte)0xE9, (byte)0xCE, (byte)0x55, (byte)0x28, (byte)0xDF,
+      (byte)0x8C, (byte)0xA1, (byte)0x89, (byte)0x0D, (byte)0xBF, (byte)0xE6,
+      (byte)0x42, (byte)0x68, (byte)0x41, (byte)0x99, (byte)0x2D, (byte)0x0F,
+      (byte)0xB0, (byte)0x54, (byte)0xBB, (byte)0x16};
+
+  private static final byte[] INV_SBOX = {
+      (byte)0x52, (byte)0x09, (byte)0x6A, (byte)0xD5, (byte)0x30, (byte)0x36,
+      (byte)0xA5, (byte)0x38, (byte)0xBF, (byte)0x40, (byte)0xA3, (byte)0x9E,
+      (byte)0x81, (byte)0xF3, (byte)0xD7, (byte)0xFB, (byte)0x7C, (byte)0xE3,
+      (byte)0x39, (byte)0x82, (byte)0x9B, (byte)0x2F, (byte)0xFF, (byte)0x87,
+      (byte)0x34, (byte)0x8E, (byte)0x43, (byte)0x44, (byte)0xC4, (byte)0xDE,
+      (byte)0xE9, (byte)0xCB, (byte)0x54, (byte)0x7B, (byte)0x94, (byte)0x32,
+      (byte)0xA6, (byte)0xC2, (byte)0x23, (byte)0x3D, (byte)0xEE, (byte)0x4C,
+      (byte)0x95, (byte)0x0B, (byte)0x42, (byte)0xFA, (byte)0xC3, (byte)0x4E,
+      (byte)0x08, (byte)0x2E, (byte)0xA1, (byte)0x66, (byte)0x28, (byte)0xD9,
+      (byte)0x24, (byte)0xB2, (byte)0x76, (byte)0x5B, (byte)0xA2, (byte)0x49,
+      (byte)0x6D, (byte)0x8B, (byte)0xD1, (byte)0x25, (byte)0x72, (byte)0xF8,
+      (byte)0xF6, (byte)0x64, (byte)0x86, (byte)0x68, (byte)0x98, (byte)0x16,
+      (byte)0xD4, (byte)0xA4, (byte)0x5C, (byte)0xCC, (byte)0x5D, (byte)0x65,
+      (byte)0xB6, (byte)0x92, (byte)0x6C, (byte)0x70, (byte)0x48, (byte)0x50,
+      (byte)0xFD, (byte)0xED, (byte)0xB9, (byte)0xDA, (byte)0x5E, (byte)0x15,
+      (byte)0x46, (byte)0x57, (byte)0xA7, (byte)0x8D, (byte)0x9D, (byte)0x84,
+      (byte)0x90, (byte)0xD8, (byte)0xAB, (byte)0x00, (byte)0x8C, (byte)0xBC,
+      (byte)0xD3, (byte)0x0A, (byte)0xF7, (byte)0xE4, (byte)0x58, (byte)0x05,
+      (byte)0xB8, (byte)0xB3, (byte)0x45, (byte)0x06, (byte)0xD0, (byte)0x2C,
+      (byte)0x1E, (byte)0x8F, (byte)0xCA, (byte)0x3F, (byte)0x0F, (byte)0x02,
+      (byte)0xC1, (byte)0xAF, (byte)0xBD, (byte)0x03, (byte)0x01, (byte)0x13,
+      (byte)0x8A, (byte)0x6B, (byte)0x3A, (byte)0x91, (byte)0x11, (byte)0x41,
+      (byte)0x4F, (byte)0x67, (byte)0xDC, (byte)0xEA, (byte)0x97, (byte)0xF2,
+      (byte)0xCF, (byte)0xCE, (byte)0xF0, (byte)0xB4, (byte)0xE6, (byte)0x73,
+      (byte)0x96, (byte)0xAC, (byte)0x74, (byte)0x22, (byte)0xE7, (byte)0xAD,
+      (byte)0x35, (byte)0x85, (byte)0xE2, (byte)0xF9, (byte)0x37, (byte)0xE8,
+      (byte)0x1C, (byte)0x75, (byte)0xDF, (byte)0x6E, (byte)0x47, (byte)0xF1,
+      (byte)0x1A, (byte)0x71, (byte)0x1D, (byte)0x29, (byte)0xC5, (byte)0x89,
+      (byte)0x6F, (byte)0xB7, (byte)0x62, (byte)0x0E, (byte)0xAA, (byte)0x18,
+      (byte)0xBE, (byte)0x1B, (byte)0xFC, (byte)0x56, (byte)0x3E, (byte)0x4B,
+      (byte)0xC6, (byte)0xD2, (byte)0x79, (byte)0x20, (byte)0x9A, (byte)0xDB,
+      (byte)0xC0, (byte)0xFE, (byte)0x78, (byte)0xCD, (byte)0x5A, (byte)0xF4,
+      (byte)0x1F, (byte)0xDD, (byte)0xA8, (byte)0x33, (byte)0x88, (byte)0x07,
+      (byte)0xC7, (byte)0x31, (byte)0xB1, (byte)0x12, (byte)0x10, (byte)0x59,
+      (byte)0x27, (byte)0x80, (byte)0xEC, (byte)0x5F, (byte)0x60, (byte)0x51,
+      (byte)0x7F, (byte)0xA9, (byte)0x19, (byte)0xB5, (byte)0x4A, (byte)0x0D,
+      (byte)0x2D, (byte)0xE5, (byte)0x7A, (byte)0x9F, (byte)0x93, (byte)0xC9,
+      (byte)0x9C, (byte)0xEF, (byte)0xA0, (byte)0xE0, (byte)0x3B, (byte)0x4D,
+      (byte)0xAE, (byte)0x2A, (byte)0xF5, (byte)0xB0, (byte)0xC8, (byte)0xEB,
+      (byte)0xBB, (byte)0x3C, (byte)0x83, (byte)0x53, (byte)0x99, (byte)0x61,
+      (byte)0x17, (byte)0x2B, (byte)0x04, (byte)0x7E, (byte)0xBA, (byte)0x77,
+      (byte)0xD6, (byte)0x26, (byte)0xE1, (byte)0x69, (byte)0x14, (byte)0x63,
+      (byte)0x55, (byte)0x21, (byte)0x0C, (byte)0x7D};
+
+  private final byte[] schedule;
+  private final byte[] subkeys; // CMAC subkeys K1 and K2
+  private final byte[] work;
+
+  /**
+   * Class constructor
+   *
+   * @param bEvent The event clearing the key, see
+   *     <code>JCSystem.makeTransientByteArray</code>.
+   */
+  aes_engine(byte bEvent) {
+    schedule = JCSystem.makeTransientByteArray((short)(SCHEDULE_LENGTH + 1),
+                                               bEvent);
+    subkeys = JCSystem.makeTransientByteArray((short)(BLOCK_SIZE * 2), bEvent);
+    work = JCSystem.makeTransientByteArray(WORK_LENGTH, bEvent);
+  }
+
+  /**
+   * Set the key: expand the key schedule and compute the CMAC subkeys.
+   *
+   * @param baKey The array containing the key.
+   * @param sOffset The offset of the key in <code>baKey</code>.
+   * @param sLength The length of the key: 16, 24 or 32.
+   */
+  void set_key(byte[] baKey, short sOffset, short sLength) {
+    Util.arrayCopyNonAtomic(baKey, sOffset, schedule, (short)0, sLength);
+    short total = (short)(BLOCK_SIZE * (sLength / 4 + 7));
+    byte rcon = (byte)0x01;
+    for (short i = sLength; i < total; i += 4) {
+      byte t0 = schedule[(short)(i - 4)];
+      byte t1 = schedule[(short)(i - 3)];
+      byte t2 = schedule[(short)(i - 2)];
+      byte t3 = schedule[(short)(i - 1)];
+      if ((short)(i % sLength) == 0) // RotWord, SubWord and Rcon
+      {
+        byte t = t0;
+        t0 = (byte)(SBOX[t1 & 0xFF] ^ rcon);
+        t1 = SBOX[t2 & 0xFF];
+        t2 = SBOX[t3 & 0xFF];
+        t3 = SBOX[t & 0xFF];
+        rcon = xtime(rcon);
+      } else if (sLength == 32 && (short)(i % sLength) == 16) // SubWord
+      {
+        t0 = SBOX[t0 & 0xFF];
+        t1 = SBOX[t1 & 0xFF];
+        t2 = SBOX[t2 & 0xFF];
+        t3 = SBOX[t3 & 0xFF];
+      }
+      short previous = (short)(i - sLength);
+      schedule[i] = (byte)(schedule[previous] ^ t0);
+      schedule[(short)(i + 1)] = (byte)(schedule[(short)(previous + 1)] ^ t1);
+      schedule[(short)(i + 2)] = (byte)(schedule[(short)(previous + 2)] ^ t2);
+      schedule[(short)(i + 3)] = (byte)(schedule[(short)(previous + 3)] ^ t3);
+    }
+    schedule[SCHEDULE_ROUNDS] = (byte)(sLength / 4 + 6);
+
+    // CMAC subkeys: L = AES(0), K1 = L.x, K2 = K1.x
+    Util.arrayFillNonAtomic(subkeys, (short)0, BLOCK_SIZE, (byte)0x00);
+    encrypt(subkeys, (short)0);
+    double_block(subkeys, (short)0, subkeys, (short)0);
+    double_block(subkeys, (short)0, subkeys, BLOCK_SIZE);
+  }
+
+  /**
+   * @return <code>true</code> if a key has been set and not cleared since.
+   */
+  boolean is_set() { return schedule[SCHEDULE_ROUNDS] != 0; }
+
+  /**
+   * Clear the key, its schedule and the work area.
+   */
+  void clear() {
+    Util.arrayFillNonAtomic(schedule, (short)0, (short)schedule.length,
+                            (byte)0x00);
+    Util.arrayFillNonAtomic(subkeys, (short)0, (short)subkeys.length,
+                            (byte)0x00);
+    Util.arrayFillNonAtomic(work, (short)0, WORK_LENGTH, (byte)0x00);
+  }
+
+  /**
+   * Encrypt one block in place.
+   */
+  void encrypt(byte[] baBlock, short sOffset) {
+    byte rounds = schedule[SCHEDULE_ROUNDS];
+    add_round_key(baBlock, sOffset, (short)0);
+    for (short round = 1; round < rounds; round++) {
+      sub_shift(baBlock, sOffset);
+      mix_columns(baBlock, sOffset);
+      add_round_key(baBlock, sOffset, (short)(round << 4));
+    }
+    sub_shift(baBlock, sOffset);
+    add_round_key(baBlock, sOffset, (short)(rounds << 4));
+  }
+
+  /**
+   * Decrypt one block in place.
+   */
+  void decrypt(byte[] baBlock, short sOffset) {
+    byte rounds = schedule[SCHEDULE_ROUNDS];
+    add_round_key(baBlock, sOffset, (short)(rounds << 4));
+    for (short round = (short)(rounds - 1); round > 0; round--) {
+      inverse_shift_sub(baBlock, sOffset);
+      add_round_key(baBlock, sOffset, (short)(round << 4));
+      inverse_mix_columns(baBlock, sOffset);
+    }
+    inverse_shift_sub(baBlock, sOffset);
+    add_round_key(baBlock, sOffset, (short)0);
+  }
+
+  /**
+   * Encrypt block aligned data in place, in CBC mode.
+   *
+   * @param baICV The array containing the initial chaining value.
+   * @param sICVOffset The offset of the initial chaining value.
+   */
+  void cbc_encrypt(byte[] baICV, short sICVOffset, byte[] baBuffer,
+                   short sOffset, short sLength) {
+    short end = (short)(sOffset + sLength);
+    xor(baBuffer, sOffset, baICV, sICVOffset, BLOCK_SIZE);
+    encrypt(baBuffer, sOffset);
+    for (short block = (short)(sOffset + BLOCK_SIZE); block < end;
+         block += BLOCK_SIZE) {
+      xor(baBuffer, block, baBuffer, (short)(block - BLOCK_SIZE), BLOCK_SIZE);
+      encrypt(baBuffer, block);
+    }
+  }
+
+  /**
+   * Decrypt block aligned data in place, in CBC mode.
+   *
+   * @param baICV The array containing the initial chaining value.
+   * @param sICVOffset The offset of the initial chaining value.
+   */
+  void cbc_decrypt(byte[] baICV, short sICVOffset, byte[] baBuffer,
+                   short sOffset, short sLength) {
+    short end = (short)(sOffset + sLength);
+    Util.arrayCopyNonAtomic(baICV, sICVOffset, work, WORK_CHAIN, BLOCK_SIZE);
+    for (short block = sOffset; block < end; block += BLOCK_SIZE) {
+      Util.arrayCopyNonAtomic(baBuffer, block, work, WORK_PENDING, BLOCK_SIZE);
+      decrypt(baBuffer, block);
+      xor(baBuffer, block, work, WORK_CHAIN, BLOCK_SIZE);
+      Util.arrayCopyNonAtomic(work, WORK_PENDING, work, WORK_CHAIN,
+                              BLOCK_SIZE);
+    }
+  }
+
+  /**
+   * Start a CMAC computation.
+   */
+  void cmac_begin() {
+    Util.arrayFillNonAtomic(work, WORK_CHAIN, (short)(BLOCK_SIZE * 2 + 1),
+                            (byte)0x00);
+  }
+
+  /**
+   * Add data to the CMAC being computed.
+   */
+  void cmac_update(byte[] baBuffer, short sOffset, short sLength) {
+    short pending = work[WORK_PENDING_LENGTH];
+    while (sLength > 0) {
+      if (pending == BLOCK_SIZE) // not the last block, since data follows
+      {
+        xor(work, WORK_CHAIN, work, WORK_PENDING, BLOCK_SIZE);
+        encrypt(work, WORK_CHAIN);
+        pending = 0;
+      }
+      short count = (short)(BLOCK_SIZE - pending);
+      if (count > sLength) {
+        count = sLength;
+      }
+      Util.arrayCopyNonAtomic(baBuffer, sOffset, work,
+                              (short)(WORK_PENDING + pending), count);
+      pending += count;
+      sOffset += count;
+      sLength -= count;
+    }
+    work[WORK_PENDING_LENGTH] = (byte)pending;
+  }
+
+  /**
+   * Finish a CMAC computation.
+   *
+   * @param baMAC The array where the 16 bytes of the CMAC are written.
+   * @param sOffset The offset of the CMAC in <code>baMAC</code>.
+   */
+  void cmac_final(byte[] baMAC, short sOffset) {
+    short pending = work[WORK_PENDING_LENGTH];
+    if (pending == BLOCK_SIZE) {
+      xor(work, WORK_PENDING, subkeys, (short)0, BLOCK_SIZE);
+    } else {
+      work[(short)(WORK_PENDING + pending)] = (byte)0x80;
+      Util.arrayFillNonAtomic(work, (short)(WORK_PENDING + pending + 1),
+                              (short)(BLOCK_SIZE - pending - 1), (byte)0x00);
+      xor(work, WORK_PENDING, subkeys, BLOCK_SIZE, BLOCK_SIZE);
+    }
+    xor(work, WORK_CHAIN, work, WORK_PENDING, BLOCK_SIZE);
+    encrypt(work, WORK_CHAIN);
+    Util.arrayCopyNonAtomic(work, WORK_CHAIN, baMAC, sOffset, BLOCK_SIZE);
+  }
+
+  /**
+   * XOR <code>sLength</code> bytes of <code>baSource</code> into
+   * <code>baTarget</code>.
+   */
+  static void xor(byte[] baTarget, short sTargetOffset, byte[] baSource,
+                  short sSourceOffset, short sLength) {
+    for (short i = 0; i < sLength; i++) {
+      baTarget[(short)(sTargetOffset + i)] ^=
+          baSource[(short)(sSourceOffset + i)];
+    }
+  }
+
+  private void add_round_key(byte[] baBlock, short sOffset, short sRoundKey) {
+    xor(baBlock, sOffset, schedule, sRoundKey, BLOCK_SIZE);
+  }
+
+  // SubBytes and ShiftRows; the state is stored column by column
+  private void sub_shift(byte[] baBlock, short sOffset) {
+    Util.arrayCopyNonAtomic(baBlock, sOffset, work, WORK_STATE, BLOCK_SIZE);
+    for (short column = 0; column < 4; column++) {
+      for (short row = 0; row < 4; row++) {
+        baBlock[(short)(sOffset + (column << 2) + row)] =
+            SBOX[work[(short)((((column + row) & 3) << 2) + row)] & 0xFF];
+      }
+    }
+  }
+
+  private void inverse_shift_sub(byte[] baBlock, short sOffset) {
+    Util.arrayCopyNonAtomic(baBlock, sOffset, work, WORK_STATE, BLOCK_SIZE);
+    for (short column = 0; column < 4; column++) {
+      for (short row = 0; row < 4; row++) {
+        baBlock[(short)(sOffset + (((column + row) & 3) << 2) + row)] =
+            INV_SBOX[work[(short)((column << 2) + row)] & 0xFF];
+      }
+    }
+  }
+
+  private static void mix_columns(byte[] baBlock, short sOffset) {
+    for (short i = sOffset; i < (short)(sOffset + BLOCK_SIZE); i += 4) {
+      byte a0 = baBlock[i];
+      byte a1 = baBlock[(short)(i + 1)];
+      byte a2 = baBlock[(short)(i + 2)];
+      byte a3 = baBlock[(short)(i + 3)];
+      byte all = (byte)(a0 ^ a1 ^ a2 ^ a3);
+      baBlock[i] = (byte)(a0 ^ all ^ xtime((byte)(a0 ^ a1)));
+      baBlock[(short)(i + 1)] = (byte)(a1 ^ all ^ xtime((byte)(a1 ^ a2)));
+      baBlock[(short)(i + 2)] = (byte)(a2 ^ all ^ xtime((byte)(a2 ^ a3)));
+      baBlock[(short)(i + 3)] = (byte)(a3 ^ all ^ xtime((byte)(a3 ^ a0)));
+    }
+  }
+
+  // InvMixColumns, as a preprocessing of MixColumns
+  private static void inverse_mix_columns(byte[] baBlock, short sOffset) {
+    for (short i = sOffset; i < (short)(sOffset + BLOCK_SIZE); i += 4) {
+      byte u = xtime(xtime((byte)(baBlock[i] ^ baBlock[(short)(i + 2)])));
+      byte v = xtime(
+          xtime((byte)(baBlock[(short)(i + 1)] ^ baBlock[(short)(i + 3)])));
+      baBlock[i] ^= u;
+      baBlock[(short)(i + 1)] ^= v;
+      baBlock[(short)(i + 2)] ^= u;
+      baBlock[(short)(i + 3)] ^= v;
+    }
+    mix_columns(baBlock, sOffset);
+  }
+
+  private static byte xtime(byte b) {
+    return (byte)((b << 1) ^ ((b >> 7) & 0x1B));
+  }
+
+  // multiplication by x in GF(2^128), as used for the CMAC subkeys
+  private static void double_block(byte[] baSource, short sSourceOffset,
+                                   byte[] baTarget, short sTargetOffset) {
+    byte msb = baSource[sSourceOffset];
+    for (short i = 0; i < (short)(BLOCK_SIZE - 1); i++) {
+      baTarget[(short)(sTargetOffset + i)] =
+          (byte)((baSource[(short)(sSourceOffset + i)] << 1) |
+                 ((baSource[(short)(sSourceOffset + i + 1)] >> 7) & 0x01));
+    }
+    baTarget[(short)(sTargetOffset + BLOCK_SIZE - 1)] =
+        (byte)((baSource[(short)(sSourceOffset + BLOCK_SIZE - 1)] << 1) ^
+               ((msb >> 7) & (byte)0x87));
+  }
+}
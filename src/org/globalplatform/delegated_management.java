@@ -0,0 +1,278 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.CryptoException;
+import javacard.security.KeyBuilder;
+import javacard.security.MessageDigest;
+import javacard.security.RSAPublicKey;
+import javacard.security.Signature;
+
+/**
+ * <p>Tokens and receipts of delegated management.</p>
+ *
+ * <p>A token is an RSA signature (PKCS#1, SHA-1) of the card content
+ * management command it comes with: its P1 and P2, the length of its data
+ * without the token, and this data. It is verified with the token
+ * verification key, <code>TOKEN_KEY_VERSION</code>. The tokens verified are
+ * remembered by the SHA-256 hash of the command and the token, so that a
+ * command retried or repeated in a script is not verified again; the hashes
+ * are kept in transient memory, and forgotten when the token verification key
+ * is replaced.</p>
+ *
+ * <p>A receipt is the MAC of the confirmation data of a command, with the
+ * receipt generation key, <code>RECEIPT_KEY_VERSION</code>: a CMAC with an AES
+ * key, a retail MAC with a DES key. The key schedule is the one cached by the
+ * key store. The confirmation data are the confirmation counter, the card
+ * unique data (the AID of the issuer security domain, since the card has no
+ * IIN nor CIN) and the data specific to the command.</p>
+ */
+final class delegated_management {
+
+  /**
+   * Key version number of the token verification key
+   */
+  static final byte TOKEN_KEY_VERSION = (byte)0x70;
+
+  /**
+   * Key version number of the receipt generation key
+   */
+  static final byte RECEIPT_KEY_VERSION = (byte)0x71;
+
+  private static final byte CACHE_SIZE = 4;
+  private static final short HASH_LENGTH = MessageDigest.LENGTH_SHA_256;
+  private static final short NO_ENTRY = (short)-1;
+
+  // scratch: the receipt, then the confirmation data
+  private static final short SCRATCH_RECEIPT = 0;
+  private static final short SCRATCH_CONFIRMATION = 16;
+  private static final short SCRATCH_LENGTH =
+      (short)(SCRATCH_CONFIRMATION + 3 + 1 + registry_table.AID_SLOT_LENGTH);
+
+  private final PlateformeGlobale gp;
+  private final byte[] scratch;
+  private final byte[] cache; // hashes of the tokens verified
+  private final short[] cache_state; // entries used, next entry to replace
+  private RSAPublicKey token_key = null;
+  private Signature verifier = null;
+  private MessageDigest digest = null;
+  private boolean no_digest = false;
+  private short counter = 0; // confirmation counter
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN, whose key store holds the receipt generation key.
+   */
+  delegated_management(PlateformeGlobale gp) {
+    this.gp = gp;
+    scratch = JCSystem.makeTransientByteArray(SCRATCH_LENGTH,
+                                              JCSystem.CLEAR_ON_RESET);
+    cache = JCSystem.makeTransientByteArray((short)(CACHE_SIZE * HASH_LENGTH),
+                                            JCSystem.CLEAR_ON_RESET);
+    cache_state =
+        JCSystem.makeTransientShortArray((short)2, JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * @return <code>true</code> if the token verification key has been put.
+   */
+  boolean has_token_key() { return token_key != null; }
+
+  /**
+   * Put the token verification key.
+   *
+   * @throws ISOException with reason code 0x6A80 («incorrect parameters in
+   *     the data field», see ISO7816-4) if the platform does not provide RSA
+   *     keys of this length.
+   */
+  void set_token_key(byte[] baBuffer, short sModulusOffset,
+                     short sModulusLength, short sExponentOffset,
+                     short sExponentLength) throws ISOException {
+    try {
+      short size = (short)(sModulusLength * 8);
+      if (token_key == null || token_key.getSize() != size) {
+        token_key = (RSAPublicKey)KeyBuilder.buildKey(
+            KeyBuilder.TYPE_RSA_PUBLIC, size, false);
+      }
+      token_key.setModulus(baBuffer, sModulusOffset, sModulusLength);
+      token_key.setExponent(baBuffer, sExponentOffset, sExponentLength);
+    } catch (CryptoException e) {
+      token_key = null;
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    cache_state[0] = 0;
+    cache_state[1] = 0;
+  }
+
+  /**
+   * Verify the token of a command.
+   *
+   * @param bP1 The P1 parameter of the command.
+   * @param bP2 The P2 parameter of the command.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data, without the token.
+   * @param sTokenOffset The offset of the token.
+   * @param sTokenLength The length of the token.
+   * @throws ISOException with reason code 0x6982 («security status not
+   *     satisfied», see ISO7816-4) if the token is not valid, or cannot be
+   *     verified.
+   */
+  void verify_token(byte bP1, byte bP2, byte[] baBuffer, short sOffset,
+                    short sLength, short sTokenOffset, short sTokenLength)
+      throws ISOException {
+    if (token_key == null || sLength > 0xFF) {
+      ISOException.throwIt((short)0x6982); // «security status not satisfied»,
+                                           // see ISO7816-4
+    }
+    scratch[0] = bP1;
+    scratch[1] = bP2;
+    scratch[2] = (byte)sLength;
+
+    short entry = NO_ENTRY;
+    MessageDigest hash = get_digest();
+    if (hash != null) {
+      hash.reset();
+      hash.update(scratch, (short)0, (short)3);
+      hash.update(baBuffer, sOffset, sLength);
+      hash.doFinal(baBuffer, sTokenOffset, sTokenLength, scratch, (short)3);
+      for (short i = 0; i < cache_state[0]; i++) {
+        if (Util.arrayCompare(cache, (short)(i * HASH_LENGTH), scratch,
+                              (short)3, HASH_LENGTH) == 0) {
+          return; // already verified
+        }
+      }
+      entry = cache_state[1];
+    }
+
+    boolean valid = false;
+    try {
+      if (verifier == null) {
+        verifier = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+      }
+      verifier.init(token_key, Signature.MODE_VERIFY);
+      verifier.update(scratch, (short)0, (short)3);
+      valid = verifier.verify(baBuffer, sOffset, sLength, baBuffer,
+                              sTokenOffset, sTokenLength);
+    } catch (CryptoException e) {
+      // the algorithm is not available, the token cannot be verified
+    }
+    if (!valid) {
+      ISOException.throwIt((short)0x6982); // «security status not satisfied»,
+                                           // see ISO7816-4
+    }
+
+    if (entry != NO_ENTRY) {
+      Util.arrayCopyNonAtomic(scratch, (short)3, cache,
+                              (short)(entry * HASH_LENGTH), HASH_LENGTH);
+      cache_state[1] = (short)((entry + 1) % CACHE_SIZE);
+      if (cache_state[0] < CACHE_SIZE) {
+        cache_state[0]++;
+      }
+    }
+  }
+
+  /**
+   * Write the receipt of a command, and its confirmation data.
+   *
+   * @param baData The array holding the confirmation data specific to the
+   *     command; they may be overwritten by the response data.
+   * @param sOffset The offset of these data.
+   * @param sLength The length of these data.
+   * @param baOut The array where the response data is written.
+   * @param sOutOffset The offset of the response data.
+   * @return The length of the response data: the length of the receipt and
+   *     the receipt, then the confirmation counter and the card unique data,
+   *     both as LV. The response data is only the byte '00' if there is no
+   *     receipt generation key.
+   */
+  short write_receipt(byte[] baData, short sOffset, short sLength,
+                      byte[] baOut, short sOutOffset) {
+    key_store keys = gp.keys;
+    short set = keys.find(RECEIPT_KEY_VERSION);
+    if (set == key_store.NO_SET) {
+      baOut[sOutOffset] = (byte)0x00; // no receipt
+      return 1;
+    }
+
+    counter++;
+    short offset = SCRATCH_CONFIRMATION;
+    scratch[offset++] = (byte)2;
+    offset = Util.setShort(scratch, offset, counter);
+    scratch[offset++] = (byte)PlateformeGlobale.bGP_AID.length;
+    offset = Util.arrayCopyNonAtomic(PlateformeGlobale.bGP_AID, (short)0,
+                                     scratch, offset,
+                                     (short)PlateformeGlobale.bGP_AID.length);
+    short confirmation = (short)(offset - SCRATCH_CONFIRMATION);
+
+    byte length;
+    Object engine = keys.get_engine(set, key_store.KID_ENC);
+    if (keys.get_type(set) == key_store.TYPE_AES) {
+      aes_engine aes = (aes_engine)engine;
+      aes.cmac_begin();
+      aes.cmac_update(scratch, SCRATCH_CONFIRMATION, confirmation);
+      aes.cmac_update(baData, sOffset, sLength);
+      aes.cmac_final(scratch, SCRATCH_RECEIPT);
+      length = 16;
+    } else {
+      des_engine des = (des_engine)engine;
+      Util.arrayFillNonAtomic(scratch, SCRATCH_RECEIPT, (short)8, (byte)0x00);
+      des.mac_begin(scratch, SCRATCH_RECEIPT);
+      des.mac_update(scratch, SCRATCH_CONFIRMATION, confirmation, true);
+      des.mac_update(baData, sOffset, sLength, true);
+      des.mac_final(scratch, SCRATCH_RECEIPT, true);
+      length = 8;
+    }
+
+    baOut[sOutOffset] = length;
+    offset = Util.arrayCopyNonAtomic(scratch, SCRATCH_RECEIPT, baOut,
+                                     (short)(sOutOffset + 1), length);
+    offset = Util.arrayCopyNonAtomic(scratch, SCRATCH_CONFIRMATION, baOut,
+                                     offset, confirmation);
+    return (short)(offset - sOutOffset);
+  }
+
+  /**
+   * @return The SHA-256 engine hashing the tokens verified, or
+   *     <code>null</code> if the platform does not provide it, in which case
+   *     every token is verified.
+   */
+  private MessageDigest get_digest() {
+    if (digest == null && !no_digest) {
+      try {
+        digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+      } catch (CryptoException e) {
+        no_digest = true;
+      }
+    }
+    return digest;
+  }
+}
@@ -0,0 +1,202 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+
+/**
+ * <p>DELETE command of the card manager.</p>
+ *
+ * <p>The entities to delete are found through the links kept by the GP
+ * registry: the Executable Modules of an Executable Load File are the entries
+ * it owns, their instances are the entries they own, and the entities
+ * associated with a security domain are listed from it. Deleting an Executable
+ * Load File together with its related objects checks them all first, then
+ * removes them in a single walk, so that the registry slots and the load file
+ * storage are reclaimed at once and a refused command leaves the registry
+ * unchanged.</p>
+ *
+ * <p>A Delete Token ('9E') following the AID is verified, and the response
+ * is then a Delete Receipt, see <code>delegated_management</code>. A Control
+ * Reference Template for Digital Signature ('B6') may precede the token; it
+ * is ignored.</p>
+ */
+final class delete_command {
+
+  // tags of the command data
+  private static final byte TAG_AID = (byte)0x4F;
+  private static final byte TAG_CRT = (byte)0xB6;
+  private static final byte TAG_TOKEN = (byte)0x9E;
+
+  // P2
+  private static final byte P2_OBJECT = (byte)0x00;
+  private static final byte P2_OBJECT_AND_RELATED = (byte)0x80;
+
+  private final PlateformeGlobale gp;
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN.
+   */
+  delete_command(PlateformeGlobale gp) { this.gp = gp; }
+
+  /**
+   * Process a DELETE command.
+   *
+   * @param bP1 The P1 parameter of the command.
+   * @param bP2 The P2 parameter of the command.
+   * @param baBuffer The buffer holding the command data, where the response
+   *     data is written from offset 0.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data.
+   * @return The length of the response data.
+   */
+  short process(byte bP1, byte bP2, byte[] baBuffer, short sOffset,
+                short sLength) throws ISOException {
+    if (bP2 != P2_OBJECT && bP2 != P2_OBJECT_AND_RELATED) {
+      ISOException.throwIt((short)0x6A86); // «incorrect P1 P2», see ISO7816-4
+    }
+
+    // '4F' followed by the AID of the object, possibly followed by a token
+    byte aid_length = 0;
+    if (sLength >= 2) {
+      aid_length = baBuffer[(short)(sOffset + 1)];
+    }
+    if (sLength < 2 || baBuffer[sOffset] != TAG_AID || aid_length < 5 ||
+        aid_length > registry_table.AID_SLOT_LENGTH ||
+        (short)(aid_length + 2) > sLength) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    short end = (short)(sOffset + sLength);
+    short offset = (short)(sOffset + 2 + aid_length);
+    if (offset < end && baBuffer[offset] == TAG_CRT) {
+      offset = skip_tlv(baBuffer, offset, end);
+    }
+    short token = offset;
+    if (offset < end) {
+      offset = skip_tlv(baBuffer, offset, end);
+      if (baBuffer[token] != TAG_TOKEN || offset != end) {
+        ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                             // data field», see ISO7816-4
+      }
+    }
+    registry_table registry = gp.registry;
+    short index =
+        registry.find(baBuffer, (short)(sOffset + 2), aid_length);
+    if (index == registry_table.NO_ENTRY) {
+      ISOException.throwIt((short)0x6A88); // «referenced data not found», see
+                                           // ISO7816-4
+    }
+    if (token != end) {
+      short value = (short)(token + 2);
+      if (baBuffer[(short)(token + 1)] == (byte)0x81) {
+        value++;
+      }
+      gp.get_delegated_management().verify_token(
+          bP1, bP2, baBuffer, sOffset, (short)(token - sOffset), value,
+          (short)(end - value));
+    }
+
+    switch (registry.get_kind(index)) {
+    case registry_table.KIND_INSTANCE:
+      check_instance(index);
+      gp.remove_entity(index);
+      break;
+    case registry_table.KIND_ELF:
+      for (short module = registry.get_first_child(index);
+           module != registry_table.NO_ENTRY;
+           module = registry.get_next_sibling(module)) {
+        for (short instance = registry.get_first_child(module);
+             instance != registry_table.NO_ENTRY;
+             instance = registry.get_next_sibling(instance)) {
+          if (bP2 == P2_OBJECT) // the load file is still in use
+          {
+            ISOException.throwIt((short)0x6985); // «conditions of use not
+                                                 // satisfied», see ISO7816-4
+          }
+          check_instance(instance);
+        }
+      }
+      short module = registry.get_first_child(index);
+      while (module != registry_table.NO_ENTRY) {
+        short instance = registry.get_first_child(module);
+        while (instance != registry_table.NO_ENTRY) {
+          gp.remove_entity(instance);
+          instance = registry.get_first_child(module);
+        }
+        gp.remove_entity(module);
+        module = registry.get_first_child(index);
+      }
+      gp.remove_entity(index);
+      break;
+    default: // an Executable Module is only deleted with its load file
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+
+    if (token != end) // confirmation data: the AID of the object
+    {
+      return gp.get_delegated_management().write_receipt(
+          baBuffer, (short)(sOffset + 1), (short)(aid_length + 1), baBuffer,
+          (short)0);
+    }
+    baBuffer[0] = (byte)0x00; // no additional deletion data
+    return 1;
+  }
+
+  /**
+   * @return The offset following a TLV whose length is coded on one byte, or
+   *     on two bytes starting with '81'.
+   */
+  private static short skip_tlv(byte[] baBuffer, short sOffset, short sEnd)
+      throws ISOException {
+    short offset = (short)(sOffset + 1);
+    if (offset < sEnd && baBuffer[offset] == (byte)0x81) {
+      offset++;
+    }
+    if (offset >= sEnd ||
+        (baBuffer[offset] < 0 && offset == (short)(sOffset + 1))) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    return load_command.skip_lv(baBuffer, offset, sEnd);
+  }
+
+  /**
+   * Check that an instance may be deleted: it is not the issuer security
+   * domain, and no other entity is associated with it.
+   */
+  private void check_instance(short index) throws ISOException {
+    if (index == PlateformeGlobale.ISD_INDEX ||
+        gp.registry.get_first_associate(index) != registry_table.NO_ENTRY) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+  }
+}
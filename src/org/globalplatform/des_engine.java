@@ -0,0 +1,476 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>DES and triple DES block ciphers, with the CBC and ECB modes and the
+ * MACs of ISO9797-1 used by the secure channel protocols.</p>
+ *
+ * <p>The 16 round keys of each DES key are computed once, when the key is
+ * set, and kept in transient memory until the key is cleared, so that
+ * processing a block does not redo the key setup.</p>
+ *
+ * <p>An engine runs either a CBC operation or a MAC computation at a time,
+ * since both use the same work area.</p>
+ */
+final class des_engine {
+
+  /**
+   * Length of a DES block
+   */
+  static final short BLOCK_SIZE = (short)8;
+
+  // schedule: the round keys of K1, K2 and K3, each as 16 rounds of 8
+  // six-bit subkeys
+  private static final short KEY_SCHEDULE = (short)128;
+  private static final short K1 = (short)0;
+  private static final short K2 = KEY_SCHEDULE;
+  private static final short K3 = (short)(KEY_SCHEDULE * 2);
+  private static final short SCHEDULE_SET = (short)(KEY_SCHEDULE * 3);
+
+  // work area
+  private static final short WORK_CHAIN = (short)0;   // MAC or CBC chaining
+  private static final short WORK_PENDING = (short)8; // MAC pending block, or
+                                                      // saved CBC block
+  private static final short WORK_PENDING_LENGTH = (short)16;
+  private static final short WORK_LENGTH = (short)17;
+
+  // permuted choices and rotations of the key schedule, bits numbered from 1
+  private static final byte[] PC1 = {
+      57, 49, 41, 33, 25, 17, 9,  1,  58, 50, 42, 34, 26, 18,
+      10, 2,  59, 51, 43, 35, 27, 19, 11, 3,  60, 52, 44, 36,
+      63, 55, 47, 39, 31, 23, 15, 7,  62, 54, 46, 38, 30, 22,
+      14, 6,  61, 53, 45, 37, 29, 21, 13, 5,  28, 20, 12, 4};
+  private static final byte[] PC2 = {
+      14, 17, 11, 24, 1,  5,  3,  28, 15, 6,  21, 10, 23, 19, 12, 4,
+      26, 8,  16, 7,  27, 20, 13, 2,  41, 52, 31, 37, 47, 55, 30, 40,
+      51, 45, 33, 48, 44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32};
+  private static final byte[] SHIFTS = {1, 1, 2, 2, 2, 2, 2, 2,
+                                        1, 2, 2, 2, 2, 2, 2, 1};
+
+  // S-boxes followed by the permutation P, for each S-box and 6-bit input
+  private static final int[] SP = {
+      0x00808200, 0x00000000, 0x00008000, 0x00808202, 0x00808002, 0x00008202,
+      0x00000002, 0x00008000, 0x00000200, 0x00808200, 0x00808202, 0x00000200,
+      0x00800202, 0x00808002, 0x00800000, 0x00000002, 0x00000202, 0x00800200,
+      0x00800200, 0x00008200, 0x00008200, 0x00808000, 0x00808000, 0x00800202,
+      0x00008002, 0x00800002, 0x00800002, 0x00008002, 0x00000000, 0x00000202,
+      0x00008202, 0x00800000, 0x00008000, 0x00808202, 0x00000002, 0x00808000,
+      0x00808200, 0x00800000, 0x00800000, 0x00000200, 0x00808002, 0x00008000,
+      0x00008200, 0x00800002, 0x00000200, 0x00000002, 0x00800202, 0x00008202,
+      0x00808202, 0x00008002, 0x00808000, 0x00800202, 0x00800002, 0x00000202,
+      0x00008202, 0x00808200, 0x00000202, 0x00800200, 0x00800200, 0x00000000,
+      0x00008002, 0x00008200, 0x00000000, 0x00808002, 0x40084010, 0x40004000,
+      0x00004000, 0x00084010, 0x00080000, 0x00000010, 0x40080010, 0x40004010,
+      0x40000010, 0x40084010, 0x40084000, 0x40000000, 0x40004000, 0x00080000,
+      0x00000010, 0x40080010, 0x00084000, 0x00080010, 0x40004010, 0x00000000,
+      0x40000000, 0x00004000, 0x00084010, 0x40080000, 0x00080010, 0x40000010,
+      0x00000000, 0x00084000, 0x00004010, 0x40084000, 0x40080000, 0x00004010,
+      0x00000000, 0x00084010, 0x40080010, 0x00080000, 0x40004010, 0x40080000,
+      0x40084000, 0x00004000, 0x40080000, 0x40004000, 0x00000010, 0x40084010,
+      0x00084010, 0x00000010, 0x00004000, 0x40000000, 0x00004010, 0x40084000,
+      0x00080000, 0x40000010, 0x00080010, 0x40004010, 0x40000010, 0x00080010,
+      0x00084000, 0x00000000, 0x40004000, 0x00004010, 0x40000000, 0x40080010,
+      0x40084010, 0x00084000, 0x00000104, 0x04010100, 0x00000000, 0x04010004,
+      0x04000100, 0x00000000, 0x00010104, 0x04000100, 0x00010004, 0x04000004,
+      0x04000004, 0x00010000, 0x04010104, 0x00010004, 0x04010000, 0x00000104,
+      0x04000000, 0x00000004, 0x04010100, 0x00000100, 0x00010100, 0x04010000,
+      0x04010004, 0x00010104, 0x04000104, 0x00010100, 0x00010000, 0x04000104,
+      0x00000004, 0x04010104, 0x00000100, 0x04000000, 0x04010100, 0x04000000,
+      0x00010004, 0x00000104, 0x00010000, 0x04010100, 0x04000100, 0x00000000,
+      0x00000100, 0x00010004, 0x04010104, 0x04000100, 0x04000004, 0x00000100,
+      0x00000000, 0x04010004, 0x04000104, 0x00010000, 0x04000000, 0x04010104,
+      0x00000004, 0x00010104, 0x00010100, 0x04000004, 0x04010000, 0x04000104,
+      0x00000104, 0x04010000, 0x00010104, 0x00000004, 0x04010004, 0x00010100,
+      0x80401000, 0x80001040, 0x80001040, 0x00000040, 0x00401040, 0x80400040,
+      0x80400000, 0x80001000, 0x00000000, 0x00401000, 0x00401000, 0x80401040,
+      0x80000040, 0x00000000, 0x00400040, 0x80400000, 0x80000000, 0x00001000,
+      0x00400000, 0x80401000, 0x00000040, 0x00400000, 0x80001000, 0x00001040,
+      0x80400040, 0x80000000, 0x00001040, 0x00400040, 0x00001000, 0x00401040,
+      0x80401040, 0x80000040, 0x00400040, 0x80400000, 0x00401000, 0x80401040,
+      0x80000040, 0x00000000, 0x00000000, 0x00401000, 0x00001040, 0x00400040,
+      0x80400040, 0x80000000, 0x80401000, 0x80001040, 0x80001040, 0x00000040,
+      0x80401040, 0x80000040, 0x80000000, 0x00001000, 0x80400000, 0x80001000,
+      0x00401040, 0x80400040, 0x80001000, 0x00001040, 0x00400000, 0x80401000,
+      0x00000040, 0x00400000, 0x00001000, 0x00401040, 0x00000080, 0x01040080,
+      0x01040000, 0x21000080, 0x00040000, 0x00000080, 0x20000000, 0x01040000,
+      0x20040080, 0x00040000, 0x01000080, 0x20040080, 0x21000080, 0x21040000,
+      0x00040080, 0x20000000, 0x01000000, 0x20040000, 0x20040000, 0x00000000,
+      0x20000080, 0x21040080, 0x21040080, 0x01000080, 0x21040000, 0x20000080,
+      0x00000000, 0x21000000, 0x01040080, 0x01000000, 0x21000000, 0x00040080,
+      0x00040000, 0x21000080, 0x00000080, 0x01000000, 0x20000000, 0x01040000,
+      0x21000080, 0x20040080, 0x01000080, 0x20000000, 0x21040000, 0x01040080,
+      0x20040080, 0x00000080, 0x01000000, 0x21040000, 0x21040080, 0x00040080,
+      0x21000000, 0x21040080, 0x01040000, 0x00000000, 0x20040000, 0x21000000,
+      0x00040080, 0x01000080, 0x20000080, 0x00040000, 0x00000000, 0x20040000,
+      0x01040080, 0x20000080, 0x10000008, 0x10200000, 0x00002000, 0x10202008,
+      0x10200000, 0x00000008, 0x10202008, 0x00200000, 0x10002000, 0x00202008,
+      0x00200000, 0x10000008, 0x00200008, 0x10002000, 0x10000000, 0x00002008,
+      0x00000000, 0x00200008, 0x10002008, 0x00002000, 0x00202000, 0x10002008,
+      0x00000008, 0x10200008, 0x10200008, 0x00000000, 0x00202008, 0x10202000,
+      0x00002008, 0x00202000, 0x10202000, 0x10000000, 0x10002000, 0x00000008,
+      0x10200008, 0x00202000, 0x10202008, 0x00200000, 0x00002008, 0x10000008,
+      0x00200000, 0x10002000, 0x10000000, 0x00002008, 0x10000008, 0x10202008,
+      0x00202000, 0x10200000, 0x00202008, 0x10202000, 0x00000000, 0x10200008,
+      0x00000008, 0x00002000, 0x10200000, 0x00202008, 0x00002000, 0x00200008,
+      0x10002008, 0x00000000, 0x10202000, 0x10000000, 0x00200008, 0x10002008,
+      0x00100000, 0x02100001, 0x02000401, 0x00000000, 0x00000400, 0x02000401,
+      0x00100401, 0x02100400, 0x02100401, 0x00100000, 0x00000000, 0x02000001,
+      0x00000001, 0x02000000, 0x02100001, 0x00000401, 0x02000400, 0x00100401,
+      0x00100001, 0x02000400, 0x02000001, 0x02100000, 0x02100400, 0x00100001,
+      0x02100000, 0x00000400, 0x00000401, 0x02100401, 0x00100400, 0x00000001,
+      0x02000000, 0x00100400, 0x02000000, 0x00100400, 0x00100000, 0x02000401,
+      0x02000401, 0x02100001, 0x02100001, 0x00000001, 0x00100001, 0x02000000,
+      0x02000400, 0x00100000, 0x02100400, 0x00000401, 0x00100401, 0x02100400,
+      0x00000401, 0x02000001, 0x02100401, 0x02100000, 0x00100400, 0x00000000,
+      0x00000001, 0x02100401, 0x00000000, 0x00100401, 0x02100000, 0x00000400,
+      0x02000001, 0x02000400, 0x00000400, 0x00100001, 0x08000820, 0x00000800,
+      0x00020000, 0x08020820, 0x08000000, 0x08000820, 0x00000020, 0x08000000,
+      0x00020020, 0x08020000, 0x08020820, 0x00020800, 0x08020800, 0x00020820,
+      0x00000800, 0x00000020, 0x08020000, 0x08000020, 0x08000800, 0x00000820,
+      0x00020800, 0x00020020, 0x08020020, 0x08020800, 0x00000820, 0x00000000,
+      0x00000000, 0x08020020, 0x08000020, 0x08000800, 0x00020820, 0x00020000,
+      0x00020820, 0x00020000, 0x08020800, 0x00000800, 0x00000020, 0x08020020,
+      0x00000800, 0x00020820, 0x08000800, 0x00000020, 0x08000020, 0x08020000,
+      0x08020020, 0x08000000, 0x00020000, 0x08000820, 0x00000000, 0x08020820,
+      0x00020020, 0x08000020, 0x08020000, 0x08000800, 0x08000820, 0x00000000,
+      0x08020820, 0x00020800, 0x00020800, 0x00000820, 0x00000820, 0x00020020,
+      0x08000000, 0x08020800};
+
+  private final byte[] schedule;
+  private final byte[] work;
+
+  /**
+   * Class constructor
+   *
+   * @param bEvent The event clearing the key, see
+   *     <code>JCSystem.makeTransientByteArray</code>.
+   */
+  des_engine(byte bEvent) {
+    schedule = JCSystem.makeTransientByteArray((short)(SCHEDULE_SET + 1),
+                                               bEvent);
+    work = JCSystem.makeTransientByteArray(WORK_LENGTH, bEvent);
+  }
+
+  /**
+   * Set the key and compute its round keys.
+   *
+   * @param baKey The array containing the key.
+   * @param sOffset The offset of the key in <code>baKey</code>.
+   * @param sLength The length of the key: 8 for DES, 16 for two-key triple DES
+   *     (K3 = K1), or 24 for three-key triple DES.
+   */
+  void set_key(byte[] baKey, short sOffset, short sLength) {
+    expand(baKey, sOffset, K1);
+    if (sLength == 8) {
+      Util.arrayCopyNonAtomic(schedule, K1, schedule, K2, KEY_SCHEDULE);
+    } else {
+      expand(baKey, (short)(sOffset + 8), K2);
+    }
+    if (sLength == 24) {
+      expand(baKey, (short)(sOffset + 16), K3);
+    } else {
+      Util.arrayCopyNonAtomic(schedule, K1, schedule, K3, KEY_SCHEDULE);
+    }
+    schedule[SCHEDULE_SET] = (byte)1;
+  }
+
+  /**
+   * @return <code>true</code> if a key has been set and not cleared since.
+   */
+  boolean is_set() { return schedule[SCHEDULE_SET] != 0; }
+
+  /**
+   * Clear the key, its round keys and the work area.
+   */
+  void clear() {
+    Util.arrayFillNonAtomic(schedule, (short)0, (short)schedule.length,
+                            (byte)0x00);
+    Util.arrayFillNonAtomic(work, (short)0, WORK_LENGTH, (byte)0x00);
+  }
+
+  /**
+   * Encrypt one block in place, with triple DES (EDE).
+   */
+  void encrypt(byte[] baBlock, short sOffset) {
+    crypt(baBlock, sOffset, K1, false);
+    crypt(baBlock, sOffset, K2, true);
+    crypt(baBlock, sOffset, K3, false);
+  }
+
+  /**
+   * Decrypt one block in place, with triple DES (EDE).
+   */
+  void decrypt(byte[] baBlock, short sOffset) {
+    crypt(baBlock, sOffset, K3, true);
+    crypt(baBlock, sOffset, K2, false);
+    crypt(baBlock, sOffset, K1, true);
+  }
+
+  /**
+   * Encrypt one block in place, with single DES and the first key only.
+   */
+  void encrypt_single(byte[] baBlock, short sOffset) {
+    crypt(baBlock, sOffset, K1, false);
+  }
+
+  /**
+   * Encrypt block aligned data in place, in ECB mode.
+   */
+  void ecb_encrypt(byte[] baBuffer, short sOffset, short sLength) {
+    for (short block = sOffset; block < (short)(sOffset + sLength);
+         block += BLOCK_SIZE) {
+      encrypt(baBuffer, block);
+    }
+  }
+
+  /**
+   * Decrypt block aligned data in place, in ECB mode.
+   */
+  void ecb_decrypt(byte[] baBuffer, short sOffset, short sLength) {
+    for (short block = sOffset; block < (short)(sOffset + sLength);
+         block += BLOCK_SIZE) {
+      decrypt(baBuffer, block);
+    }
+  }
+
+  /**
+   * Encrypt block aligned data in place, in CBC mode with a zero initial
+   * chaining value.
+   */
+  void cbc_encrypt(byte[] baBuffer, short sOffset, short sLength) {
+    short end = (short)(sOffset + sLength);
+    encrypt(baBuffer, sOffset);
+    for (short block = (short)(sOffset + BLOCK_SIZE); block < end;
+         block += BLOCK_SIZE) {
+      aes_engine.xor(baBuffer, block, baBuffer, (short)(block - BLOCK_SIZE),
+                     BLOCK_SIZE);
+      encrypt(baBuffer, block);
+    }
+  }
+
+  /**
+   * Decrypt block aligned data in place, in CBC mode with a zero initial
+   * chaining value.
+   */
+  void cbc_decrypt(byte[] baBuffer, short sOffset, short sLength) {
+    short end = (short)(sOffset + sLength);
+    Util.arrayFillNonAtomic(work, WORK_CHAIN, BLOCK_SIZE, (byte)0x00);
+    for (short block = sOffset; block < end; block += BLOCK_SIZE) {
+      Util.arrayCopyNonAtomic(baBuffer, block, work, WORK_PENDING, BLOCK_SIZE);
+      decrypt(baBuffer, block);
+      aes_engine.xor(baBuffer, block, work, WORK_CHAIN, BLOCK_SIZE);
+      Util.arrayCopyNonAtomic(work, WORK_PENDING, work, WORK_CHAIN,
+                              BLOCK_SIZE);
+    }
+  }
+
+  /**
+   * Start a MAC computation, padded with '80' followed by '00' up to a block
+   * boundary.
+   *
+   * @param baICV The array containing the initial chaining value.
+   * @param sICVOffset The offset of the initial chaining value.
+   */
+  void mac_begin(byte[] baICV, short sICVOffset) {
+    Util.arrayCopyNonAtomic(baICV, sICVOffset, work, WORK_CHAIN, BLOCK_SIZE);
+    work[WORK_PENDING_LENGTH] = 0;
+  }
+
+  /**
+   * Add data to the MAC being computed. All the blocks but the last are
+   * chained with single DES if <code>bRetail</code> is <code>true</code>
+   * (ISO9797-1 MAC algorithm 3), with triple DES otherwise (MAC algorithm 1).
+   */
+  void mac_update(byte[] baBuffer, short sOffset, short sLength,
+                  boolean bRetail) {
+    short pending = work[WORK_PENDING_LENGTH];
+    while (sLength > 0) {
+      short count = (short)(BLOCK_SIZE - pending);
+      if (count > sLength) {
+        count = sLength;
+      }
+      Util.arrayCopyNonAtomic(baBuffer, sOffset, work,
+                              (short)(WORK_PENDING + pending), count);
+      pending += count;
+      sOffset += count;
+      sLength -= count;
+      if (pending == BLOCK_SIZE) // with the padding, there is always a next
+                                 // block
+      {
+        chain_block(bRetail);
+        pending = 0;
+      }
+    }
+    work[WORK_PENDING_LENGTH] = (byte)pending;
+  }
+
+  /**
+   * Finish a MAC computation.
+   *
+   * @param baMAC The array where the 8 bytes of the MAC are written.
+   * @param sOffset The offset of the MAC in <code>baMAC</code>.
+   */
+  void mac_final(byte[] baMAC, short sOffset, boolean bRetail) {
+    short pending = work[WORK_PENDING_LENGTH];
+    work[(short)(WORK_PENDING + pending)] = (byte)0x80;
+    Util.arrayFillNonAtomic(work, (short)(WORK_PENDING + pending + 1),
+                            (short)(BLOCK_SIZE - pending - 1), (byte)0x00);
+    chain_block(bRetail);
+    if (bRetail) // output transformation with K2 and K1
+    {
+      crypt(work, WORK_CHAIN, K2, true);
+      crypt(work, WORK_CHAIN, K1, false);
+    }
+    Util.arrayCopyNonAtomic(work, WORK_CHAIN, baMAC, sOffset, BLOCK_SIZE);
+  }
+
+  private void chain_block(boolean bRetail) {
+    aes_engine.xor(work, WORK_CHAIN, work, WORK_PENDING, BLOCK_SIZE);
+    if (bRetail) {
+      crypt(work, WORK_CHAIN, K1, false);
+    } else {
+      encrypt(work, WORK_CHAIN);
+    }
+  }
+
+  /**
+   * Compute the round keys of a DES key.
+   */
+  private void expand(byte[] baKey, short sOffset, short sSchedule) {
+    int c = 0;
+    int d = 0;
+    for (short j = 0; j < 28; j++) {
+      c = (c << 1) | key_bit(baKey, sOffset, PC1[j]);
+      d = (d << 1) | key_bit(baKey, sOffset, PC1[(short)(j + 28)]);
+    }
+    short subkey = sSchedule;
+    for (short round = 0; round < 16; round++) {
+      short shift = SHIFTS[round];
+      c = ((c << shift) | (c >>> (28 - shift))) & 0x0FFFFFFF;
+      d = ((d << shift) | (d >>> (28 - shift))) & 0x0FFFFFFF;
+      for (short bit = 0; bit < 48; bit++) {
+        short position = (short)(PC2[bit] - 1);
+        int value = position < 28 ? c >>> (27 - position)
+                                  : d >>> (55 - position);
+        schedule[subkey] = (byte)((schedule[subkey] << 1) | (value & 1));
+        if ((short)(bit % 6) == 5) {
+          subkey++;
+        }
+      }
+    }
+  }
+
+  private static int key_bit(byte[] baKey, short sOffset, byte bPosition) {
+    short bit = (short)(bPosition - 1);
+    return (baKey[(short)(sOffset + (bit >> 3))] >> (7 - (bit & 7))) & 1;
+  }
+
+  /**
+   * Encrypt or decrypt one block in place, with single DES.
+   */
+  private void crypt(byte[] baBlock, short sOffset, short sSchedule,
+                     boolean bDecrypt) {
+    int left = get_int(baBlock, sOffset);
+    int right = get_int(baBlock, (short)(sOffset + 4));
+    int work;
+
+    // initial permutation
+    work = ((left >>> 4) ^ right) & 0x0F0F0F0F;
+    right ^= work;
+    left ^= work << 4;
+    work = ((left >>> 16) ^ right) & 0x0000FFFF;
+    right ^= work;
+    left ^= work << 16;
+    work = ((right >>> 2) ^ left) & 0x33333333;
+    left ^= work;
+    right ^= work << 2;
+    work = ((right >>> 8) ^ left) & 0x00FF00FF;
+    left ^= work;
+    right ^= work << 8;
+    right = (right << 1) | (right >>> 31);
+    work = (left ^ right) & 0xAAAAAAAA;
+    left ^= work;
+    right ^= work;
+    right = (right >>> 1) | (right << 31);
+
+    for (short round = 0; round < 16; round++) {
+      short k = (short)(sSchedule + ((bDecrypt ? 15 - round : round) << 3));
+      int x = (right >>> 1) | (right << 31); // expansion E, 6 bits at a time
+      int f = SP[((x >>> 26) ^ schedule[k]) & 0x3F] |
+              SP[64 + (((x >>> 22) ^ schedule[(short)(k + 1)]) & 0x3F)] |
+              SP[128 + (((x >>> 18) ^ schedule[(short)(k + 2)]) & 0x3F)] |
+              SP[192 + (((x >>> 14) ^ schedule[(short)(k + 3)]) & 0x3F)] |
+              SP[256 + (((x >>> 10) ^ schedule[(short)(k + 4)]) & 0x3F)] |
+              SP[320 + (((x >>> 6) ^ schedule[(short)(k + 5)]) & 0x3F)] |
+              SP[384 + (((x >>> 2) ^ schedule[(short)(k + 6)]) & 0x3F)] |
+              SP[448 + ((((x << 2) | (x >>> 30)) ^ schedule[(short)(k + 7)]) &
+                        0x3F)];
+      work = left ^ f;
+      left = right;
+      right = work;
+    }
+
+    // final permutation, of R16 L16
+    work = left;
+    left = right;
+    right = work;
+    right = (right << 1) | (right >>> 31);
+    work = (left ^ right) & 0xAAAAAAAA;
+    left ^= work;
+    right ^= work;
+    right = (right >>> 1) | (right << 31);
+    work = ((right >>> 8) ^ left) & 0x00FF00FF;
+    left ^= work;
+    right ^= work << 8;
+    work = ((right >>> 2) ^ left) & 0x33333333;
+    left ^= work;
+    right ^= work << 2;
+    work = ((left >>> 16) ^ right) & 0x0000FFFF;
+    right ^= work;
+    left ^= work << 16;
+    work = ((left >>> 4) ^ right) & 0x0F0F0F0F;
+    right ^= work;
+    left ^= work << 4;
+
+    put_int(baBlock, sOffset, left);
+    put_int(baBlock, (short)(sOffset + 4), right);
+  }
+
+  private static int get_int(byte[] baBuffer, short sOffset) {
+    return (Util.getShort(baBuffer, sOffset) << 16) |
+           (Util.getShort(baBuffer, (short)(sOffset + 2)) & 0xFFFF);
+  }
+
+  private static void put_int(byte[] baBuffer, short sOffset, int iValue) {
+    Util.setShort(baBuffer, sOffset, (short)(iValue >> 16));
+    Util.setShort(baBuffer, (short)(sOffset + 2), (short)iValue);
+  }
+}
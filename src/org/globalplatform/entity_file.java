@@ -43,40 +43,57 @@ public class entity_file implements GPRegistryEntry
 	public static final byte FAMILY_HTTP_REPORT = (byte) 0x85;
 	public static final byte FAMILY_USSM = (byte) 0xA0;
 	public static final byte GLOBAL_SERVICE_IDENTIFIER = (byte) 0x80;
+
+	// privileges packed in an int, as stored in the GP registry: the bit of privilege p is the bit (23-p), so that the 3 low order bytes are coded as specified in the GP specification
+	static int privilege_bit(byte bPrivilege)
+	{
+		return 0x800000 >>> bPrivilege;
+	}
+	public static final int MASK_SECURITY_DOMAIN = 0x800000;
+	public static final int MASK_CARD_LOCK = 0x100000;
+	public static final int MASK_CARD_TERMINATE = 0x080000;
+	public static final int MASK_GLOBAL_LOCK = 0x000800;
+	public static final int MASK_MANAGEMENT = 0x200000 | 0x004000; // Delegated or Authorized management
     
-	// required by the specification
-	byte[]				AID;
-	byte 				LifeCycleState = 0x00;
-	byte				PreviousLifeCycleState = 0x00;
-	byte[]				parent_security_domain_AID;
-	byte[] 				privileges = {(byte) 0x00, (byte) 0x00, (byte) 0x00}; // Coded as specified in the GP specification
-	byte 				implicit_selection_parameter = 0x00;
-	byte[]				global_services = new byte[PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE*2];
-    	globalServiceProvider		provider_of_global_services;
-
-	// required for implementation
-	short 				current_nb_of_EM = -1;
-	short 				current_nb_of_instances = -1;
-	boolean				is_ELF = false;		// For clarity
-	boolean				is_EM = false;		// For clarity
-	boolean				is_instance = false;	// For clarity
-	short[]				contained_EM = new short[PlateformeGlobale.MAX_EM_PER_ELF];
-	short[]				associated_instances = new short[PlateformeGlobale.MAX_INSTANCES_PER_EM];
+	// the attributes of the entity are kept in the GP registry, see registry_table; NO_ENTRY once the entity is deleted
+	short				index;
 	static PlateformeGlobale	OPEN;
 
    /**
-	* Constructor of the entity_file class. To specify that no global service can be present at initialization, the global_services array needs to be filled with 0xFF. See the GP specification for more info.
+	* Constructor of the entity_file class. An entity_file only gives access, through the OPEN API, to the entity stored at the given index of the GP registry.
 	*
-	* @return The newly created entity_file instance.
+	* @param index The index of the entity in the GP registry.
+	*/
+	entity_file(short index)
+	{
+		this.index = index;
+	}
+
+   /**
+	* Detach this entity_file from the GP registry, when its entity is deleted. The slot of the entity is reused by the next allocation, and an
+	* application still holding this entity_file must not reach the entity that takes it.
+	*/
+	void revoke()
+	{
+		this.index = registry_table.NO_ENTRY;
+	}
+
+   /**
+	* @return The index of the entity in the GP registry.
+	* @exception ISOException with reason 0x6A88 if the entity was deleted.
 	*/
-	private entity_file()
+	short entry()
 	{
-		Util.arrayFill(global_services, (short) 0, (short) (PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE*2), (byte) 0xFF); // No global service can be present at initialization.
+		if(this.index == registry_table.NO_ENTRY)
+		{
+		    ISOException.throwIt((short) 0x6A88); // «referenced data not found», see ISO7816-4
+		}
+		return this.index;
 	}
 
 	public byte getState()
 	{
-		return this.LifeCycleState;
+		return OPEN.registry.get_life_cycle(entry());
 	}
 	
 	public byte getCardState()
@@ -87,9 +104,9 @@ public class entity_file implements GPRegistryEntry
 	
 	public GPRegistryEntry getRegistryEntry(AID aid)
 	{
-		if(OPEN.get_by_index(OPEN.find_by_AID(aid)).is_EM == true) {return null;} // we cannot return an executable module
+		if(OPEN.registry.get_kind(OPEN.find_by_AID(aid)) == registry_table.KIND_EM) {return null;} // we cannot return an executable module
 
-		if(aid.equals(this.AID, (short) 0, (byte) this.AID.length)) {return this;} // return if it is asking for itself
+		if(OPEN.registry.aid_equals(entry(), aid)) {return this;} // return if it is asking for itself
 		
 		if(this.isPrivileged(PRIVILEGE_GLOBAL_REGISTRY)) {return OPEN.get_by_index(OPEN.find_by_AID(aid));} // return if it has enough privileges
 		
@@ -100,376 +117,118 @@ public class entity_file implements GPRegistryEntry
 
     public AID getAID()
 	{
-	    return new AID(this.AID, (short) 0, (byte) this.AID.length);
+	    return OPEN.registry.make_aid(entry());
 	}
 
     public boolean setState(byte bState)
 	{
-	// The conditions tree in this function has been defined to respect the Global Platform specification. More information is thus available in its Life Cycle Models chapter.
-	    if(!this.isPrivileged(PRIVILEGE_SECURITY_DOMAIN)) // «this» is a simple application
+	// The allowed transitions are those of the Life Cycle Models chapter of the Global Platform specification, compiled in lifecycle_rules.
+	    byte kind = lifecycle_rules.KIND_APPLICATION; // «this» is a simple application
+	    if(this.isPrivileged(PRIVILEGE_SECURITY_DOMAIN))
 	    {
-			switch(bState)
-			{
-				case APPLICATION_INSTALLED :
-					if(this.LifeCycleState == APPLICATION_LOCKED)
-					{
-						if(this.PreviousLifeCycleState == APPLICATION_INSTALLED)
-						{
-							if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-							{
-								changeLifeCycleState(bState); return true;
-							}
-						}
-					}
-					break;
-
-				case APPLICATION_SELECTABLE :
-					switch(this.LifeCycleState)
-					{
-						case APPLICATION_INSTALLED :
-							if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_SECURITY_DOMAIN)) // Security Domain
-							{
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_AUTHORIZED_MANAGEMENT)) // Authorized management privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_DELEGATED_MANAGEMENT)) // Delegated management privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-							}
-							break;
-
-						case APPLICATION_LOCKED :
-							if(this.PreviousLifeCycleState == APPLICATION_SELECTABLE)
-							{
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-								{
-									changeLifeCycleState(bState); return true;
-								}
-							}
-							break;
-
-						default :
-							if((this.LifeCycleState & 0x07) == 0x07 && (this.LifeCycleState | 0x7F) == 0x7F && (this.LifeCycleState & 0x78) != 0x00) // if it is in an application specific state
-							{
-								if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-							}
-							break;
-					}
-					break;
-
-				case APPLICATION_LOCKED :
-					switch(this.LifeCycleState)
-					{
-						case APPLICATION_INSTALLED :
-							if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							else if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							break;
-							
-						case APPLICATION_SELECTABLE :
-							if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							else if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-							{
-								changeLifeCycleState(bState); return true;
-							}
-							break;
-							
-						default :
-							if((this.LifeCycleState & 0x07) == 0x07 && (this.LifeCycleState | 0x7F) == 0x7F && (this.LifeCycleState & 0x78) != 0x00) // if it is in an application specific state
-							{
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-							}
-							break;
-					}
-					break;
-
-				default :
-					if((bState & 0x07) == 0x07 && (bState | 0x7F) == 0x7F && (bState & 0x78) != 0x00) // going to an application specific state
-					{
-						switch(this.LifeCycleState)
-						{
-							case APPLICATION_SELECTABLE :
-								if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								break;
-							case APPLICATION_LOCKED :
-								if((this.PreviousLifeCycleState & 0x07) == 0x07 && (this.PreviousLifeCycleState | 0x7F) == 0x7F && (this.PreviousLifeCycleState & 0x78) != 0x00) // if it was in an application specific state
-								{
-									if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-									{
-										changeLifeCycleState(bState); return true;
-									}
-									else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-									{
-										changeLifeCycleState(bState); return true;
-									}
-								}
-								break;
-						}
-					}
-					break;
-			}
-			return false;
+		kind = (entry() == PlateformeGlobale.ISD_INDEX) ? lifecycle_rules.KIND_ISSUER_SECURITY_DOMAIN : lifecycle_rules.KIND_SECURITY_DOMAIN;
 	    }
-	    else // «this» is a security domain
+
+	    byte rules = OPEN.rules.get_rules(kind,
+					      lifecycle_rules.classify_current(kind, OPEN.registry.get_life_cycle(entry()), OPEN.registry.get_previous_life_cycle(entry())),
+					      lifecycle_rules.classify_requested(kind, bState));
+	    if(rules == 0x00) // never allowed, whoever the caller is
 	    {
-			if(this.getAID().equals(PlateformeGlobale.bGP_AID, (short) 0, (byte) PlateformeGlobale.bGP_AID.length)) // «this» is the issuer security domain
-			{
-				switch(bState)
-				{
-					case CARD_OP_READY :
-					return false;
-
-					case CARD_INITIALIZED :
-					return false;
-
-					case CARD_SECURED :
-					switch(this.LifeCycleState)
-					{
-						case CARD_LOCKED :
-							if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(GPRegistryEntry.PRIVILEGE_CARD_LOCK)) // Card lock privilege
-							{
-								this.LifeCycleState = CARD_SECURED;
-								return true;
-							} else {return false;}
-						default:
-							return false;
-					}
-
-					case CARD_LOCKED :
-						switch(this.LifeCycleState)
-						{
-						case CARD_SECURED :
-							if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(GPRegistryEntry.PRIVILEGE_CARD_LOCK)) // Card lock privilege
-							{
-								this.LifeCycleState = CARD_LOCKED;
-								return true;
-							} else {return false;}
-						default:
-							return false;
-						}
-
-					case CARD_TERMINATED :
-						if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(GPRegistryEntry.PRIVILEGE_CARD_TERMINATE)) // Card termination privilege
-						{
-							this.LifeCycleState = CARD_TERMINATED;
-							return true;
-						} else {return false;}
-
-					default:
-						return false;
-				}
-			}
-			else // «this» is not the issuer security domain
-			{
-				switch(bState)
-				{
-					case APPLICATION_INSTALLED :
-						if(this.LifeCycleState == APPLICATION_LOCKED)
-						{
-							if(this.PreviousLifeCycleState == APPLICATION_INSTALLED)
-							{
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-								{
-									changeLifeCycleState(bState); return true;
-								}
-							}
-						}
-						break;
-
-					case APPLICATION_SELECTABLE :
-						switch(this.LifeCycleState)
-						{
-							case APPLICATION_INSTALLED :
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_SECURITY_DOMAIN)) // Security Domain
-								{
-									if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_AUTHORIZED_MANAGEMENT)) // Authorized management privilege
-									{
-										changeLifeCycleState(bState); return true;
-									}
-									else if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_DELEGATED_MANAGEMENT)) // Delegated management privilege
-									{
-										changeLifeCycleState(bState); return true;
-									}
-								}
-								break;
-
-							case APPLICATION_LOCKED :
-								if(this.PreviousLifeCycleState == APPLICATION_SELECTABLE)
-								{
-									if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-									{
-										changeLifeCycleState(bState); return true;
-									}
-									else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-									{
-										changeLifeCycleState(bState); return true;
-									}
-								}
-								break;
-						}
-						break;
-
-					case APPLICATION_LOCKED :
-						switch(this.LifeCycleState)
-						{
-							case APPLICATION_INSTALLED :
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								break;
-
-							case APPLICATION_SELECTABLE :
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								break;
-
-							case SECURITY_DOMAIN_PERSONALIZED :
-								if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								else if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								break;
-						}
-						break;
-
-					case SECURITY_DOMAIN_PERSONALIZED :
-						switch(this.LifeCycleState)
-						{
-							case APPLICATION_SELECTABLE :
-								if(JCSystem.getPreviousContextAID().equals(this.getAID())) // Itself
-								{
-									changeLifeCycleState(bState); return true;
-								}
-								break;
-
-							case APPLICATION_LOCKED :
-								if(this.PreviousLifeCycleState == SECURITY_DOMAIN_PERSONALIZED)
-								{
-									if(OPEN.get_by_index(OPEN.find_by_AID(JCSystem.getPreviousContextAID())).isPrivileged(PRIVILEGE_GLOBAL_LOCK)) // Global lock privilege
-									{
-										changeLifeCycleState(bState); return true;
-									}
-									else if(this.isAssociated(JCSystem.getPreviousContextAID())) // Associated Security Domain
-									{
-										changeLifeCycleState(bState); return true;
-									}
-								}
-								break;
-						}
-						break;
-
-				}
-				return false;
-			}
+		return false;
 	    }
-	}
 
-    public boolean isPrivileged(byte bPrivilege)
-	{
-	    if(bPrivilege < 0 || bPrivilege > PRIVILEGE_CONTACTLESS_SELF_ACTIVATION) // Check for an unknown entry
+	    short caller = OPEN.find_by_AID(JCSystem.getPreviousContextAID()); // the caller is resolved only once
+	    if(!this.isAllowedBy(rules, caller))
 	    {
 		return false;
 	    }
 
-	    if((privileges[(byte) (bPrivilege/8)] & (byte) (0x01<<((byte) (7-((byte) (bPrivilege%8)))))) != 0x00) // If the privilege bit is set
+	    if((rules & lifecycle_rules.NO_HISTORY) != 0x00)
 	    {
-		return true;
+		OPEN.journal.append(PlateformeGlobale.JOURNAL_EVENT_LIFE_CYCLE, entry(), (short) (OPEN.registry.get_life_cycle(entry()) & 0xFF), (short) (bState & 0xFF));
+		OPEN.registry.set_life_cycle(entry(), bState);
 	    }
+	    else
+	    {
+		changeLifeCycleState(bState);
+	    }
+	    return true;
+	}
+
+   /**
+	* Check whether the caller is in one of the relations, with this entity, required by a transition rule.
+	*
+	* @param rules The relations allowing the transition, as defined in lifecycle_rules.
+	* @param caller The index of the caller in the GP registry, -1 if it is not in the registry.
+	* @return <code>true</code> if the caller is in one of the required relations with this entity.
+	*/
+	private boolean isAllowedBy(byte rules, short caller)
+	{
+	    if(caller == (short) -1)
+	    {
+		return false;
+	    }
+	    int privileges = OPEN.registry.get_privilege_mask(caller); // all the privileges of the caller are tested at once
+
+	    if((rules & lifecycle_rules.CALLER_ITSELF) != 0x00 && caller == entry()) {return true;}
+	    if((rules & lifecycle_rules.CALLER_GLOBAL_LOCK) != 0x00 && (privileges & MASK_GLOBAL_LOCK) != 0) {return true;}
+	    if((rules & lifecycle_rules.CALLER_ASSOCIATED) != 0x00 && this.isAssociated(caller)) {return true;}
+	    if((rules & lifecycle_rules.CALLER_MANAGER) != 0x00 && (privileges & MASK_SECURITY_DOMAIN) != 0 && (privileges & MASK_MANAGEMENT) != 0) {return true;}
+	    if((rules & lifecycle_rules.CALLER_CARD_LOCK) != 0x00 && (privileges & MASK_CARD_LOCK) != 0) {return true;}
+	    if((rules & lifecycle_rules.CALLER_CARD_TERMINATE) != 0x00 && (privileges & MASK_CARD_TERMINATE) != 0) {return true;}
 	    return false;
 	}
 
-    public boolean isAssociated(AID sdAID)
+    public boolean isPrivileged(byte bPrivilege)
 	{
-	    entity_file selected = this;
-	    if(sdAID.equals(selected.getAID()))
+	    if(bPrivilege < 0 || bPrivilege > PRIVILEGE_CONTACTLESS_SELF_ACTIVATION) // Check for an unknown entry
 	    {
-		    return true;
+		return false;
 	    }
-	    
-	    while(!selected.getAID().equals(selected.parent_security_domain_AID, (short) 0, (byte) selected.parent_security_domain_AID.length)) // while the root has not been reached
+
+	    return (OPEN.registry.get_privilege_mask(entry()) & privilege_bit(bPrivilege)) != 0; // If the privilege bit is set
+	}
+
+   /**
+	* Check several privileges at once.
+	*
+	* @param iMask The privileges looked for, as a combination of <code>privilege_bit</code>.
+	* @return <code>true</code> if this entity has at least one of the privileges.
+	*/
+    public boolean hasAnyPrivilege(int iMask)
+	{
+	    return (OPEN.registry.get_privilege_mask(entry()) & iMask) != 0;
+	}
+
+   /**
+	* Check several privileges at once.
+	*
+	* @param iMask The privileges looked for, as a combination of <code>privilege_bit</code>.
+	* @return <code>true</code> if this entity has all the privileges.
+	*/
+    public boolean hasAllPrivileges(int iMask)
+	{
+	    return (OPEN.registry.get_privilege_mask(entry()) & iMask) == iMask;
+	}
+
+    public boolean isAssociated(AID sdAID)
+	{
+	    return this.isAssociated(OPEN.find_by_AID(sdAID));
+	}
+
+   /**
+	* Index-based variant of isAssociated, used by the OPEN once the security domain has already been looked up in the GP registry.
+	*
+	* @param sdIndex The index of the security domain in the GP registry.
+	* @return <code>true</code> if the security domain is this entity, or one of the security domains this entity is associated with, directly or not.
+	*/
+	boolean isAssociated(short sdIndex)
+	{
+	    if(sdIndex == entry())
 	    {
-		selected = OPEN.get_by_index(OPEN.find_by_AID(new AID(this.parent_security_domain_AID, (short) 0, (byte) this.parent_security_domain_AID.length)));
-		if(sdAID.equals(selected.getAID()))
-		{
 		    return true;
-		}
 	    }
-	    
-	    return false;
+	    return OPEN.hierarchy.is_ancestor(sdIndex, OPEN.registry.get_security_domain(entry())); // the ancestors of the associated security domain are precomputed
 	}
 
     public short getPrivileges(byte[] baBuffer, short sOffset) throws ArrayIndexOutOfBoundsException
@@ -479,17 +238,12 @@ public class entity_file implements GPRegistryEntry
 	    {
 		throw new NullPointerException();
 	    }
-	    if((short) (sOffset + this.privileges.length) >= baBuffer.length)
+	    if((short) (sOffset + registry_table.PRIVILEGES_LENGTH) > baBuffer.length)
 	    {
 		throw new ArrayIndexOutOfBoundsException();
 	    }
 
-	    for(byte i = 0; i < this.privileges.length; i++)
-	    {
-		baBuffer[(short) (sOffset+i)] = this.privileges[i];
-	    }
-	    
-	    return (short) (sOffset+this.privileges.length);
+	    return OPEN.registry.get_privileges(entry(), baBuffer, sOffset);
 	}
 
     public void registerService(short sServiceName) throws ISOException
@@ -502,21 +256,19 @@ public class entity_file implements GPRegistryEntry
 	    {
 		ISOException.throwIt((short) 0x6982); // «security status not satisfied», see ISO7816-4
 	    }
-	    short i;
-	    for(i = 0; (i < PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE*2) && (Util.getShort(this.global_services, i) != sServiceName); i=(short)(i+2)){} // Is the service name present ?
-	    if(i == PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE*2) // True if no such service name was encountered in this application's list of service name
+	    if(!OPEN.isRegistered(sServiceName, entry())) // True if no such service name was recorded for this application
 	    {
 		ISOException.throwIt((short) 0x6985); // «conditions of use not satisfied», see ISO7816-4
 	    }
 
-	    if(OPEN.isRegistered(sServiceName, (short) -1)) // True if an other application already has this global service name registered
+	    if(OPEN.isRegisteredByOther(sServiceName, entry())) // True if an other application already has this global service name registered
 	    {
 		ISOException.throwIt((short) 0x6985); // «conditions of use not satisfied», see ISO7816-4
 	    }
 
-	    if(!OPEN.addUniquelyRegisteredServiceName(OPEN.find_by_AID(this.getAID()), sServiceName)) // verified if the unique services table is already full
+	    if(!OPEN.addUniquelyRegisteredServiceName(entry(), sServiceName)) // True if the service name is already registered uniquely
 	    {
-		ISOException.throwIt((short) 0x6581); // «memory failure», see ISO7816-4
+		ISOException.throwIt((short) 0x6985); // «conditions of use not satisfied», see ISO7816-4
 	    }
 	}
     
@@ -531,21 +283,26 @@ public class entity_file implements GPRegistryEntry
 		ISOException.throwIt((short) 0x6982); // «security status not satisfied», see ISO7816-4
 	    }
 
-	    if(!OPEN.removeUniquelyRegisteredServiceName(OPEN.find_by_AID(this.getAID()), sServiceName)) // verified if the service is not registered as unique (for this application, or at all)
+	    if(!OPEN.removeUniquelyRegisteredServiceName(entry(), sServiceName)) // verified if the service is not registered as unique (for this application, or at all)
 	    {
 		ISOException.throwIt((short) 0x6985); // «conditions of use not satisfied», see ISO7816-4
 	    }
+	    globalServiceProvider provider = OPEN.registry.get_provider(entry());
+	    if(provider != null) // clients must resolve their services again
+	    {
+		provider.clearCache();
+	    }
 	}
 
     private void changeLifeCycleState(byte futureLifeCycleState)
 	{
-	    this.PreviousLifeCycleState = this.LifeCycleState;
-	    this.LifeCycleState = futureLifeCycleState;
+	    OPEN.journal.append(PlateformeGlobale.JOURNAL_EVENT_LIFE_CYCLE, entry(), (short) (OPEN.registry.get_life_cycle(entry()) & 0xFF), (short) (futureLifeCycleState & 0xFF));
+	    OPEN.registry.change_life_cycle(entry(), futureLifeCycleState);
 	}
 
     public boolean setCardLifeCycleState(byte bState)
 	{
-	    return OPEN.get_by_index((short) 0).setState(bState);
+	    return OPEN.get_by_index(PlateformeGlobale.ISD_INDEX).setState(bState);
 	}
 
     public GlobalService getService(AID serverAID, short sServiceName)
@@ -570,6 +327,6 @@ public class entity_file implements GPRegistryEntry
 		if(!OPEN.isRegistered(sServiceName, indexOfOwner)) {return null;}
 	    }
 
-	    return OPEN.get_by_index(indexOfOwner).provider_of_global_services;
+	    return OPEN.registry.get_provider(indexOfOwner);
 	}
 }
@@ -0,0 +1,301 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>GET STATUS command of the card manager.</p>
+ *
+ * <p>Matching registry entries are written one by one, as 'E3' templates (the
+ * GlobalPlatform TLV response format), straight into the response buffer.
+ * Only the entries of the listed kind are walked, along the chains kept by
+ * the registry (see <code>registry_table.get_first_of_kind</code>); the
+ * issuer security domain is reached directly. When the next entry does not
+ * fit, it is kept in a transient cursor and 0x6310 («more data available»)
+ * is returned; a GET STATUS command with the "next occurrences" bit set
+ * resumes from there. No response is ever built for the whole
+ * registry.</p>
+ */
+final class get_status {
+
+  // P1: subsets of the registry
+  static final byte P1_ISSUER_SECURITY_DOMAIN = (byte)0x80;
+  static final byte P1_APPLICATIONS = (byte)0x40;
+  static final byte P1_LOAD_FILES = (byte)0x20;
+  static final byte P1_LOAD_FILES_AND_MODULES = (byte)0x10;
+
+  // P2
+  private static final byte P2_NEXT_OCCURRENCES = (byte)0x01;
+  private static final byte P2_TLV_FORMAT = (byte)0x02;
+
+  // cursor
+  private static final byte CURSOR_NEXT = 0;   // next entry to look at
+  private static final byte CURSOR_P1 = 1;     // subset being listed
+  private static final byte CURSOR_ACTIVE = 2; // 1 if a listing can resume
+  private static final byte CURSOR_MORE = 3;   // 1 if the last response was
+                                               // not the end of the listing
+  private static final byte CURSOR_LENGTH = 4;
+
+  // room reserved for the tag and the length of an 'E3' template
+  private static final short TEMPLATE_HEADER = (short)4;
+
+  private final registry_table registry;
+  private final short[] cursor;
+  private final byte[] prefix; // length, then the AID prefix searched for
+
+  /**
+   * Class constructor
+   *
+   * @param registry The GP registry listed.
+   */
+  get_status(registry_table registry) {
+    this.registry = registry;
+    cursor = JCSystem.makeTransientShortArray(CURSOR_LENGTH,
+                                              JCSystem.CLEAR_ON_RESET);
+    prefix = JCSystem.makeTransientByteArray(
+        (short)(registry_table.AID_SLOT_LENGTH + 1), JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * Process a GET STATUS command.
+   *
+   * @param bP1 The subset of the registry to list.
+   * @param bP2 The P2 parameter of the command.
+   * @param baBuffer The buffer holding the command data, and where the response
+   *     data is written from offset 0.
+   * @param sDataOffset The offset of the command data in
+   *     <code>baBuffer</code>.
+   * @param sDataLength The length of the command data.
+   * @param sMaxLength The maximum length of the response data.
+   * @return The length of the response data. <code>has_more</code> tells
+   *     whether the listing is complete.
+   */
+  short process(byte bP1, byte bP2, byte[] baBuffer, short sDataOffset,
+                short sDataLength, short sMaxLength) throws ISOException {
+    if ((bP2 & P2_TLV_FORMAT) == 0 || (bP2 & (byte)0xFC) != 0) {
+      ISOException.throwIt((short)0x6A86); // «incorrect P1 P2», see ISO7816-4
+    }
+    if (bP1 != P1_ISSUER_SECURITY_DOMAIN && bP1 != P1_APPLICATIONS &&
+        bP1 != P1_LOAD_FILES && bP1 != P1_LOAD_FILES_AND_MODULES) {
+      ISOException.throwIt((short)0x6A86); // «incorrect P1 P2», see ISO7816-4
+    }
+
+    if ((bP2 & P2_NEXT_OCCURRENCES) != 0) {
+      // the entry to resume from may have been deleted in between
+      if (cursor[CURSOR_ACTIVE] == 0 || cursor[CURSOR_P1] != bP1 ||
+          !registry.is_used(cursor[CURSOR_NEXT]) ||
+          registry.get_kind(cursor[CURSOR_NEXT]) != kind_of(bP1)) {
+        cursor[CURSOR_ACTIVE] = 0;
+        ISOException.throwIt((short)0x6985); // «conditions of use not
+                                             // satisfied», see ISO7816-4
+      }
+    } else {
+      // search criteria: '4F' followed by an AID prefix, possibly empty
+      if (sDataLength < 2 || baBuffer[sDataOffset] != (byte)0x4F ||
+          baBuffer[(short)(sDataOffset + 1)] < 0 ||
+          baBuffer[(short)(sDataOffset + 1)] > registry_table.AID_SLOT_LENGTH ||
+          (short)(baBuffer[(short)(sDataOffset + 1)] + 2) > sDataLength) {
+        ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                             // data field», see ISO7816-4
+      }
+      Util.arrayCopyNonAtomic(baBuffer, (short)(sDataOffset + 1), prefix,
+                              (short)0,
+                              (short)(baBuffer[(short)(sDataOffset + 1)] + 1));
+      cursor[CURSOR_NEXT] = bP1 == P1_ISSUER_SECURITY_DOMAIN
+                                ? PlateformeGlobale.ISD_INDEX
+                                : registry.get_first_of_kind(kind_of(bP1));
+      cursor[CURSOR_P1] = bP1;
+      cursor[CURSOR_ACTIVE] = 1;
+    }
+
+    short offset = 0;
+    short index = cursor[CURSOR_NEXT];
+    cursor[CURSOR_MORE] = 0;
+    for (; index != registry_table.NO_ENTRY; index = next(index, bP1)) {
+      if (!matches(index, bP1)) {
+        continue;
+      }
+      short end = write_entry(index, bP1, baBuffer, offset, sMaxLength);
+      if (end < 0) // the entry does not fit, it will be the first of the next
+                   // response
+      {
+        if (offset == 0) {
+          ISOException.throwIt((short)0x6700); // «wrong length», see
+                                               // ISO7816-4
+        }
+        cursor[CURSOR_MORE] = 1;
+        break;
+      }
+      offset = end;
+    }
+    cursor[CURSOR_NEXT] = index;
+    if (cursor[CURSOR_MORE] == 0) {
+      cursor[CURSOR_ACTIVE] = 0;
+      if (offset == 0 && (bP2 & P2_NEXT_OCCURRENCES) == 0) {
+        ISOException.throwIt((short)0x6A88); // «referenced data not found»,
+                                             // see ISO7816-4
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * @return <code>true</code> if the last response was not the end of the
+   *     listing, i.e. if it should be sent with 0x6310.
+   */
+  boolean has_more() { return cursor[CURSOR_MORE] != 0; }
+
+  /**
+   * @return The kind of the entries listed for a P1 value.
+   */
+  private static byte kind_of(byte bP1) {
+    if (bP1 == P1_ISSUER_SECURITY_DOMAIN || bP1 == P1_APPLICATIONS) {
+      return registry_table.KIND_INSTANCE;
+    }
+    return registry_table.KIND_ELF;
+  }
+
+  /**
+   * @return The entry listed after <code>index</code>, or
+   *     <code>registry_table.NO_ENTRY</code>.
+   */
+  private short next(short index, byte bP1) {
+    if (bP1 == P1_ISSUER_SECURITY_DOMAIN) {
+      return registry_table.NO_ENTRY;
+    }
+    return registry.get_next_of_kind(index);
+  }
+
+  private boolean matches(short index, byte bP1) {
+    if (bP1 == P1_APPLICATIONS && index == PlateformeGlobale.ISD_INDEX) {
+      return false;
+    }
+    return registry.aid_starts_with(index, prefix, (short)1, prefix[0]);
+  }
+
+  /**
+   * Write the 'E3' template of an entry.
+   *
+   * @return The offset following the template, or -1 if it does not fit
+   *     before <code>sLimit</code>.
+   */
+  private short write_entry(short index, byte bP1, byte[] baBuffer,
+                            short sOffset, short sLimit) {
+    short start = (short)(sOffset + TEMPLATE_HEADER);
+    short offset = put_aid((byte)0x4F, index, baBuffer, start, sLimit);
+    if (offset < 0 || (short)(offset + 4) > sLimit) {
+      return -1;
+    }
+    baBuffer[offset++] = (byte)0x9F;
+    baBuffer[offset++] = (byte)0x70;
+    baBuffer[offset++] = (byte)0x01;
+    baBuffer[offset++] = registry.get_life_cycle(index);
+
+    if (registry.get_kind(index) == registry_table.KIND_INSTANCE) {
+      if ((short)(offset + 5) > sLimit) {
+        return -1;
+      }
+      baBuffer[offset++] = (byte)0xC5;
+      baBuffer[offset++] = registry_table.PRIVILEGES_LENGTH;
+      offset = registry.get_privileges(index, baBuffer, offset);
+
+      // Executable Load File of the application
+      short module = registry.get_owner(index);
+      if (module != registry_table.NO_ENTRY &&
+          registry.get_owner(module) != registry_table.NO_ENTRY) {
+        offset = put_aid((byte)0xC4, registry.get_owner(module), baBuffer,
+                         offset, sLimit);
+        if (offset < 0) {
+          return -1;
+        }
+      }
+    }
+
+    if (index != PlateformeGlobale.ISD_INDEX) {
+      offset = put_aid((byte)0xCC, registry.get_security_domain(index),
+                       baBuffer, offset, sLimit);
+      if (offset < 0) {
+        return -1;
+      }
+    }
+
+    if (bP1 == P1_LOAD_FILES_AND_MODULES) {
+      for (short module = registry.get_first_child(index);
+           module != registry_table.NO_ENTRY;
+           module = registry.get_next_sibling(module)) {
+        offset = put_aid((byte)0x84, module, baBuffer, offset, sLimit);
+        if (offset < 0) {
+          return -1;
+        }
+      }
+    }
+
+    // tag and length of the template, then move its content right behind
+    short length = (short)(offset - start);
+    short header;
+    if (length < 0x80) {
+      header = 2;
+    } else if (length < 0x100) {
+      header = 3;
+    } else {
+      header = 4;
+    }
+    baBuffer[sOffset] = (byte)0xE3;
+    if (header == 2) {
+      baBuffer[(short)(sOffset + 1)] = (byte)length;
+    } else if (header == 3) {
+      baBuffer[(short)(sOffset + 1)] = (byte)0x81;
+      baBuffer[(short)(sOffset + 2)] = (byte)length;
+    } else {
+      baBuffer[(short)(sOffset + 1)] = (byte)0x82;
+      Util.setShort(baBuffer, (short)(sOffset + 2), length);
+    }
+    return Util.arrayCopyNonAtomic(baBuffer, start, baBuffer,
+                                   (short)(sOffset + header), length);
+  }
+
+  /**
+   * Write a TLV holding the AID of an entry.
+   *
+   * @return The offset following the TLV, or -1 if it does not fit before
+   *     <code>sLimit</code>.
+   */
+  private short put_aid(byte bTag, short index, byte[] baBuffer, short sOffset,
+                        short sLimit) {
+    byte length = registry.get_aid_length(index);
+    if ((short)(sOffset + 2 + length) > sLimit) {
+      return -1;
+    }
+    baBuffer[sOffset] = bTag;
+    baBuffer[(short)(sOffset + 1)] = length;
+    registry.get_aid(index, baBuffer, (short)(sOffset + 2));
+    return (short)(sOffset + 2 + length);
+  }
+}
@@ -12,20 +12,139 @@ import javacard.framework.*;
 
 /**
  * Implementation of the interface defining the global services server provided to security domains and applications.
+ *
+ * <p>The services of a provider are kept sorted by service name, so that they are found by a binary search on a table
+ * of at most <code>MAX_GLOBAL_SERVICES_PER_INSTANCE</code> entries. A provider can also remember, for each client, the
+ * last service it resolved; this cache lives in transient memory and is cleared whenever the table changes.</p>
  */
 public class globalServiceProvider implements GlobalService
 {
-    private services[] registered_services;
-    
-    private class services
+    /**
+     * Number of clients whose last resolved service is remembered. Must be a power of two.
+     */
+    public static final byte CLIENT_CACHE_SIZE = 4;
+
+    private final short[] service_names; // sorted, 0xFFFF beyond service_count
+    private final Object[] shareables; // Shareable of each service, in the same order
+    private byte service_count = 0;
+
+    private final Object[] cached_client; // null if the cache is disabled
+    private final short[] cached_name;
+    private final Object[] cached_shareable;
+
+    /**
+     * Class constructor, without client cache.
+     */
+    public globalServiceProvider()
 	{
-	    Shareable shareable_of_service;
-	    short service_name = (short) 0xFFFF;
+	    this(false);
 	}
 
-    public globalServiceProvider()
+    /**
+     * Class constructor.
+     *
+     * @param bClientCache <code>true</code> to remember the last service resolved by each client.
+     */
+    public globalServiceProvider(boolean bClientCache)
+	{
+	    service_names = new short[PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE];
+	    for(short i = 0; i < PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE; i++)
+	    {
+		service_names[i] = (short) 0xFFFF;
+	    }
+	    shareables = new Object[PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE];
+	    if(bClientCache)
+	    {
+		cached_client = JCSystem.makeTransientObjectArray(CLIENT_CACHE_SIZE, JCSystem.CLEAR_ON_RESET);
+		cached_name = JCSystem.makeTransientShortArray(CLIENT_CACHE_SIZE, JCSystem.CLEAR_ON_RESET);
+		cached_shareable = JCSystem.makeTransientObjectArray(CLIENT_CACHE_SIZE, JCSystem.CLEAR_ON_RESET);
+	    }
+	    else
+	    {
+		cached_client = null;
+		cached_name = null;
+		cached_shareable = null;
+	    }
+	}
+
+    /**
+     * Add a service to the provider, or replace the <code>Shareable</code> of a service already provided.
+     *
+     * @param sServiceName The two bytes corresponding to the family and the name of the service.
+     * @param shareable The <code>Shareable</code> object returned to the clients of the service.
+     * @throws ISOException with reason code 0x6A84 («not enough memory space», see ISO7816-4) if the provider already
+     *     provides <code>MAX_GLOBAL_SERVICES_PER_INSTANCE</code> services, and 0x6A80 («incorrect parameters in the
+     *     data field», see ISO7816-4) if the service name is 0xFFFF or the shareable is <code>null</code>.
+     */
+    public void addService(short sServiceName, Shareable shareable) throws ISOException
+	{
+	    if(sServiceName == (short) 0xFFFF || shareable == null)
+	    {
+		ISOException.throwIt((short) 0x6A80); // «incorrect parameters in the data field», see ISO7816-4
+	    }
+	    short position = search(sServiceName);
+	    if(position >= 0) // already provided, only the shareable changes
+	    {
+		shareables[position] = shareable;
+		clearCache();
+		return;
+	    }
+	    if(service_count == PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE)
+	    {
+		ISOException.throwIt((short) 0x6A84); // «not enough memory space», see ISO7816-4
+	    }
+	    position = (short) ~position; // insertion point
+	    for(short i = service_count; i > position; i--) // shift the greater names up by one
+	    {
+		service_names[i] = service_names[(short) (i - 1)];
+		shareables[i] = shareables[(short) (i - 1)];
+	    }
+	    service_names[position] = sServiceName;
+	    shareables[position] = shareable;
+	    service_count++;
+	    clearCache();
+	}
+
+    /**
+     * Remove a service from the provider.
+     *
+     * @param sServiceName The two bytes corresponding to the family and the name of the service.
+     * @return <code>false</code> if the service was not provided.
+     */
+    public boolean removeService(short sServiceName)
+	{
+	    short position = search(sServiceName);
+	    if(position < 0)
+	    {
+		return false;
+	    }
+	    service_count--;
+	    for(short i = position; i < service_count; i++) // shift the greater names down by one
+	    {
+		service_names[i] = service_names[(short) (i + 1)];
+		shareables[i] = shareables[(short) (i + 1)];
+	    }
+	    service_names[service_count] = (short) 0xFFFF;
+	    shareables[service_count] = null;
+	    clearCache();
+	    return true;
+	}
+
+    /**
+     * Forget every service resolved by the clients of this provider. Called by the OPEN when one of its service names
+     * is deregistered.
+     */
+    public void clearCache()
 	{
-	    registered_services = new services[PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE];
+	    if(cached_client == null)
+	    {
+		return;
+	    }
+	    for(short i = 0; i < CLIENT_CACHE_SIZE; i++)
+	    {
+		cached_client[i] = null;
+		cached_shareable[i] = null;
+	    }
 	}
 
     public Shareable getServiceInterface(GPRegistryEntry clientRegistryEntry,
@@ -38,16 +157,59 @@ public class globalServiceProvider implements GlobalService
 	    // TODO : verify that baBuffer is a global array, throw java.lang.SecurityException if it is not the case
 	    // TODO : if we have enough privileges, we should check that the requesting application is not usurping another one, and throw 0x6982 if it is the case
 	    // Additional security restrictions can be defined here, especially when involving authentification, via baBuffer. 0x6982 should be thrown in case of a security issue
-	    short indexOfRequestedService = -1;
-	    for(short i = 0; i < PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE && (registered_services[i].service_name != (short) 0xFFFF); i++)
+	    short slot = 0;
+	    if(cached_client != null && clientRegistryEntry != null)
 	    {
-		if(sServiceName == registered_services[i].service_name)
+		if(clientRegistryEntry instanceof entity_file)
+		{
+		    slot = (short) (((entity_file) clientRegistryEntry).entry() & (CLIENT_CACHE_SIZE - 1));
+		}
+		if(cached_client[slot] == clientRegistryEntry && cached_name[slot] == sServiceName) // this client resolved this service last time
+		{
+		    return (Shareable) cached_shareable[slot];
+		}
+	    }
+
+	    short indexOfRequestedService = search(sServiceName);
+	    if(indexOfRequestedService < 0){ISOException.throwIt((short) 0x6A88);} // In case the service is not registered
+	    Shareable shareable = (Shareable) shareables[indexOfRequestedService];
+
+	    if(cached_client != null && clientRegistryEntry != null)
+	    {
+		cached_client[slot] = clientRegistryEntry;
+		cached_name[slot] = sServiceName;
+		cached_shareable[slot] = shareable;
+	    }
+	    return shareable;
+	}
+
+    /**
+     * Binary search of a service name.
+     *
+     * @return The position of the service name in the table if it is provided, or <code>~position</code> where
+     *     <code>position</code> is the place where it would be inserted otherwise.
+     */
+    private short search(short sServiceName)
+	{
+	    short low = 0;
+	    short high = (short) (service_count - 1);
+	    while(low <= high)
+	    {
+		short middle = (short) ((short) (low + high) >> 1);
+		short name = service_names[middle];
+		if(name == sServiceName)
+		{
+		    return middle;
+		}
+		if((short) (name ^ (short) 0x8000) < (short) (sServiceName ^ (short) 0x8000)) // unsigned comparison
+		{
+		    low = (short) (middle + 1);
+		}
+		else
 		{
-		    indexOfRequestedService = i;
-		    i = PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE; // To get out of the for loop
+		    high = (short) (middle - 1);
 		}
 	    }
-	    if(indexOfRequestedService == (short) -1){ISOException.throwIt((short) 0x6A88);} // In case the service is not registered
-	    return registered_services[indexOfRequestedService].shareable_of_service;
+	    return (short) ~low;
 	}
 }
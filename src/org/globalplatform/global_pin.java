@@ -0,0 +1,312 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.AID;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>Global PIN of the card, the CVM the OPEN provides when no Global Services
+ * Application provides it.</p>
+ *
+ * <p>The PIN is stored as a block of fixed length whatever the format it has
+ * been set in: numeric PINs (BCD, or ASCII made of digits only) as packed
+ * digits padded with 'F', the other ones as they are, padded with '00'. A
+ * submitted PIN is converted into the same kind of block in a transient
+ * buffer, and the two blocks are compared in full, in a time that does not
+ * depend on where they differ.</p>
+ *
+ * <p>A try is spent before the comparison and given back if it succeeds, so
+ * that tearing the card during a comparison cannot give a free try. The try
+ * counter and the CVM state are written without being part of a transaction
+ * in progress, as required by the <code>CVM</code> interface: each update is
+ * a single atomic byte write.</p>
+ */
+final class global_pin implements CVM {
+
+  /**
+   * Maximum length of a PIN, in bytes; a numeric PIN may have twice as many
+   * digits
+   */
+  static final byte MAX_LENGTH = 14;
+
+  // block
+  private static final short BLOCK_KIND = 0;
+  private static final short BLOCK_LENGTH = 1; // digits, or bytes
+  private static final short BLOCK_VALUE = 2;
+  private static final short BLOCK_SIZE = (short)(BLOCK_VALUE + MAX_LENGTH);
+
+  // kinds of PIN
+  private static final byte KIND_NONE = 0;
+  private static final byte KIND_DIGITS = 1;
+  private static final byte KIND_ASCII = 2;
+  private static final byte KIND_HEX = 3;
+
+  // status
+  private static final short STATUS_STATE = 0;
+  private static final short STATUS_TRIES = 1;
+  private static final short STATUS_LIMIT = 2; // 0 if not set yet
+  private static final short STATUS_LENGTH = 3;
+
+  // CVM states
+  private static final byte STATE_NOT_READY = 0;
+  private static final byte STATE_ACTIVE = 1;
+  private static final byte STATE_INVALID_SUBMISSION = 2;
+  private static final byte STATE_VALIDATED = 3;
+  private static final byte STATE_BLOCKED = 4;
+
+  private final PlateformeGlobale gp;
+  private final byte[] value = new byte[BLOCK_SIZE];
+  private final byte[] status = new byte[STATUS_LENGTH];
+  private final byte[] candidate;
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN, which knows the privileges of the callers.
+   */
+  global_pin(PlateformeGlobale gp) {
+    this.gp = gp;
+    candidate = JCSystem.makeTransientByteArray(BLOCK_SIZE,
+                                                JCSystem.CLEAR_ON_RESET);
+  }
+
+  public boolean isActive() { return status[STATUS_STATE] != STATE_NOT_READY; }
+
+  public boolean isSubmitted() {
+    return status[STATUS_STATE] == STATE_INVALID_SUBMISSION ||
+           status[STATUS_STATE] == STATE_VALIDATED;
+  }
+
+  public boolean isVerified() {
+    return status[STATUS_STATE] == STATE_VALIDATED;
+  }
+
+  public boolean isBlocked() { return status[STATUS_STATE] == STATE_BLOCKED; }
+
+  public byte getTriesRemaining() { return status[STATUS_TRIES]; }
+
+  public boolean update(byte[] baBuffer, short sOffset, byte bLength,
+                        byte bFormat) {
+    if (!is_manager()) {
+      return false;
+    }
+    byte kind;
+    switch (bFormat) {
+    case FORMAT_ASCII:
+      kind = KIND_DIGITS;
+      for (short i = 0; i < bLength; i++) {
+        byte c = baBuffer[(short)(sOffset + i)];
+        if (c < (byte)'0' || c > (byte)'9') {
+          kind = KIND_ASCII;
+        }
+      }
+      break;
+    case FORMAT_BCD:
+      kind = KIND_DIGITS;
+      break;
+    case FORMAT_HEX:
+      kind = KIND_HEX;
+      break;
+    default:
+      return false;
+    }
+    boolean converted = convert(baBuffer, sOffset, bLength, bFormat, kind);
+    if (converted) {
+      Util.arrayCopy(candidate, (short)0, value, (short)0, BLOCK_SIZE);
+      if (status[STATUS_LIMIT] != 0) {
+        set(STATUS_TRIES, status[STATUS_LIMIT]);
+        set(STATUS_STATE, STATE_ACTIVE);
+      }
+    }
+    Util.arrayFillNonAtomic(candidate, (short)0, BLOCK_SIZE, (byte)0x00);
+    return converted;
+  }
+
+  public boolean resetState() {
+    byte state = status[STATUS_STATE];
+    if (state == STATE_NOT_READY || state == STATE_BLOCKED) {
+      return false;
+    }
+    set(STATUS_STATE, STATE_ACTIVE);
+    return true;
+  }
+
+  public boolean blockState() {
+    if (!is_manager() || status[STATUS_STATE] == STATE_NOT_READY) {
+      return false;
+    }
+    set(STATUS_STATE, STATE_BLOCKED);
+    return true;
+  }
+
+  public boolean resetAndUnblockState() {
+    if (!is_manager() || status[STATUS_STATE] == STATE_NOT_READY) {
+      return false;
+    }
+    set(STATUS_TRIES, status[STATUS_LIMIT]);
+    set(STATUS_STATE, STATE_ACTIVE);
+    return true;
+  }
+
+  public boolean setTryLimit(byte bTryLimit) {
+    if (!is_manager() || bTryLimit <= 0) {
+      return false;
+    }
+    set(STATUS_LIMIT, bTryLimit);
+    set(STATUS_TRIES, bTryLimit);
+    if (value[BLOCK_KIND] != KIND_NONE) {
+      set(STATUS_STATE, STATE_ACTIVE);
+    }
+    return true;
+  }
+
+  public short verify(byte[] baBuffer, short sOffset, byte bLength,
+                      byte bFormat) {
+    byte state = status[STATUS_STATE];
+    if (state == STATE_NOT_READY || state == STATE_BLOCKED) {
+      return CVM_FAILURE;
+    }
+    byte tries = (byte)(status[STATUS_TRIES] - 1);
+    set(STATUS_TRIES, tries);
+    set(STATUS_STATE,
+        tries == 0 ? STATE_BLOCKED : STATE_INVALID_SUBMISSION);
+
+    boolean match =
+        convert(baBuffer, sOffset, bLength, bFormat, value[BLOCK_KIND]);
+    byte difference = 0;
+    for (short i = 0; i < BLOCK_SIZE; i++) {
+      difference |= (byte)(candidate[i] ^ value[i]);
+    }
+    Util.arrayFillNonAtomic(candidate, (short)0, BLOCK_SIZE, (byte)0x00);
+    if (!match || difference != 0) {
+      return CVM_FAILURE;
+    }
+    set(STATUS_TRIES, status[STATUS_LIMIT]);
+    set(STATUS_STATE, STATE_VALIDATED);
+    return CVM_SUCCESS;
+  }
+
+  /**
+   * Convert a PIN into a block of the kind the stored PIN has, in
+   * <code>candidate</code>.
+   *
+   * @return <code>false</code> if the PIN cannot be converted, according to
+   *     the conversion rules of <code>CVM.verify</code>.
+   */
+  private boolean convert(byte[] baBuffer, short sOffset, byte bLength,
+                          byte bFormat, byte bKind) {
+    Util.arrayFillNonAtomic(candidate, (short)0, BLOCK_SIZE, (byte)0x00);
+    candidate[BLOCK_KIND] = bKind;
+    if (bLength <= 0) {
+      return false;
+    }
+    if (bKind == KIND_HEX || bKind == KIND_ASCII) {
+      if ((bKind == KIND_HEX) != (bFormat == FORMAT_HEX) ||
+          (bKind == KIND_ASCII && bFormat != FORMAT_ASCII) ||
+          bLength > MAX_LENGTH) {
+        return false;
+      }
+      candidate[BLOCK_LENGTH] = bLength;
+      Util.arrayCopyNonAtomic(baBuffer, sOffset, candidate, BLOCK_VALUE,
+                              bLength);
+      return true;
+    }
+
+    // packed digits
+    Util.arrayFillNonAtomic(candidate, BLOCK_VALUE, MAX_LENGTH, (byte)0xFF);
+    short digits;
+    if (bFormat == FORMAT_ASCII) {
+      digits = bLength;
+      if (digits > (short)(MAX_LENGTH * 2)) {
+        return false;
+      }
+      for (short i = 0; i < digits; i++) {
+        if (!put_digit(i, (byte)(baBuffer[(short)(sOffset + i)] - '0'))) {
+          return false;
+        }
+      }
+    } else if (bFormat == FORMAT_BCD) {
+      if (bLength > MAX_LENGTH) {
+        return false;
+      }
+      digits = (short)(bLength * 2);
+      if ((baBuffer[(short)(sOffset + bLength - 1)] & 0x0F) == 0x0F) {
+        digits--; // odd number of digits
+      }
+      for (short i = 0; i < digits; i++) {
+        byte packed = baBuffer[(short)(sOffset + (i >> 1))];
+        if (!put_digit(i, (byte)((i & 1) == 0 ? (packed >> 4) & 0x0F
+                                              : packed & 0x0F))) {
+          return false;
+        }
+      }
+    } else {
+      return false;
+    }
+    candidate[BLOCK_LENGTH] = (byte)digits;
+    return true;
+  }
+
+  /**
+   * Put the digit of rank <code>sRank</code> of a PIN in
+   * <code>candidate</code>.
+   *
+   * @return <code>false</code> if it is not a digit.
+   */
+  private boolean put_digit(short sRank, byte bDigit) {
+    if (bDigit < 0 || bDigit > 9) {
+      return false;
+    }
+    short offset = (short)(BLOCK_VALUE + (sRank >> 1));
+    if ((sRank & 1) == 0) {
+      candidate[offset] = (byte)((bDigit << 4) | 0x0F);
+    } else {
+      candidate[offset] = (byte)((candidate[offset] & 0xF0) | bDigit);
+    }
+    return true;
+  }
+
+  private void set(short sStatus, byte bValue) {
+    Util.arrayFillNonAtomic(status, sStatus, (short)1, bValue);
+  }
+
+  /**
+   * @return <code>true</code> if the application calling has the CVM
+   *     Management Privilege.
+   */
+  private boolean is_manager() {
+    AID caller = JCSystem.getPreviousContextAID();
+    if (caller == null) {
+      return false;
+    }
+    entity_file entry = gp.get_by_index(gp.find_by_AID(caller));
+    return entry != null &&
+           entry.isPrivileged(GPRegistryEntry.PRIVILEGE_CVM_MANAGEMENT);
+  }
+}
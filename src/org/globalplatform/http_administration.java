@@ -0,0 +1,390 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.AID;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Shareable;
+import javacard.framework.Util;
+
+/**
+ * <p>HTTP Administration service of the issuer security domain.</p>
+ *
+ * <p>The HTTP transport itself (the admin agent, its TLS sessions and the
+ * remote administration server) lives outside the card. Applications request
+ * administration sessions, which are kept in a fixed table of session slots
+ * until the agent takes them. The agent then hands over the scripts received
+ * from the server batch by batch: the commands of a batch are processed one
+ * after the other by the card manager, and their responses are returned all
+ * together, as the content of the next request to the server. The agent
+ * reaches the service through the HTTP Administration methods of
+ * <code>PlateformeGlobale</code>.</p>
+ *
+ * <p>Several sessions may be open at the same time, their batches being
+ * interleaved. The commands of a session are processed on a virtual channel
+ * of its own, <code>secure_channel.FIRST_VIRTUAL_CHANNEL</code> + its slot,
+ * whatever the logical channel of their class byte: each session has its
+ * own secure channel session. There are as many session slots as slots of
+ * the secure channel available to virtual channels, so that the sessions
+ * never take the slots kept for the logical channels.</p>
+ *
+ * <p>A script batch is a sequence of C-APDUs, each of them preceded by its
+ * length on two bytes; the responses are written the same way. The secure
+ * messaging of the commands is removed run by run, by
+ * <code>secure_channel.unwrap_commands</code>, ahead of their processing;
+ * the commands it leaves are unwrapped one by one by the card manager.</p>
+ *
+ * <p>When a session ends, the application which requested it is notified
+ * through its <code>HTTPReportListener</code> interface, if it provides one.
+ * A session which failed is requested again, until the retry policy is
+ * exhausted.</p>
+ */
+final class http_administration implements HTTPAdministration {
+
+  /**
+   * Name under which the issuer security domain provides this service
+   */
+  static final short SERVICE_NAME =
+      (short)(GPSystem.FAMILY_HTTP_ADMINISTRATION << 8);
+
+  /**
+   * Number of session slots: each open session may have a secure channel
+   * session on its virtual channel, within the slots of the secure channel
+   * which are not kept for the logical channels
+   */
+  static final byte MAX_SESSIONS = secure_channel.MAX_VIRTUAL_SESSIONS;
+
+  /**
+   * Longest triggering parameters
+   */
+  static final short MAX_PARAMETERS_LENGTH = (short)128;
+
+  /**
+   * Number of times a session which failed is requested again
+   */
+  static final byte MAX_RETRIES = 3;
+
+  // longest R-APDU of a script: 256 bytes of data, with the padding and the
+  // R-MAC of secure messaging and the status word; longer than any C-APDU
+  // with a short Lc
+  private static final short MAX_APDU_LENGTH =
+      (short)(256 + secure_channel.MAX_WRAP_OVERHEAD + 2);
+
+  // room for the commands of a script unwrapped ahead, with their lengths
+  private static final short MAX_RUN_LENGTH = (short)512;
+
+  // session slot
+  private static final short SESSION_STATE = 0;
+  private static final short SESSION_RETRIES = 1;
+  private static final short SESSION_REQUESTER = 2; // length, then the AID
+  private static final short SESSION_PARAMETERS =
+      (short)(SESSION_REQUESTER + 1 + registry_table.AID_SLOT_LENGTH);
+  private static final short SESSION_LENGTH =
+      (short)(SESSION_PARAMETERS + 2 + MAX_PARAMETERS_LENGTH);
+
+  // session states
+  private static final byte STATE_FREE = 0;
+  private static final byte STATE_PENDING = 1; // waiting for the agent
+  private static final byte STATE_OPEN = 2;
+
+  private final PlateformeGlobale gp;
+  private final byte[] sessions =
+      new byte[(short)(MAX_SESSIONS * SESSION_LENGTH)];
+  private byte next_slot = 0; // where the agent looks for a session first
+  private final byte[] apdu;
+  private final byte[] commands; // unwrapped ahead
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN, whose card manager processes the scripts.
+   */
+  http_administration(PlateformeGlobale gp) {
+    this.gp = gp;
+    apdu = JCSystem.makeTransientByteArray(MAX_APDU_LENGTH,
+                                           JCSystem.CLEAR_ON_RESET);
+    commands = JCSystem.makeTransientByteArray(MAX_RUN_LENGTH,
+                                               JCSystem.CLEAR_ON_RESET);
+  }
+
+  public void requestHTTPAdministrationSession(byte[] triggeringParameters,
+                                               short offset, short length) {
+    if (length < 0 || length > MAX_PARAMETERS_LENGTH ||
+        !well_formed(triggeringParameters, offset, length)) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    short slot = find(STATE_FREE, (byte)0);
+    if (slot < 0) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+
+    short base = (short)(slot * SESSION_LENGTH);
+    AID requester = JCSystem.getPreviousContextAID();
+    sessions[(short)(base + SESSION_REQUESTER)] =
+        requester == null ? 0
+                          : requester.getBytes(sessions, (short)(base +
+                                                   SESSION_REQUESTER + 1));
+    Util.setShort(sessions, (short)(base + SESSION_PARAMETERS), length);
+    Util.arrayCopy(triggeringParameters, offset, sessions,
+                   (short)(base + SESSION_PARAMETERS + 2), length);
+    sessions[(short)(base + SESSION_RETRIES)] = MAX_RETRIES;
+    sessions[(short)(base + SESSION_STATE)] = STATE_PENDING;
+  }
+
+  /**
+   * Open the next session waiting for the agent. The sessions are taken in
+   * turn, so that a slot freed and requested again waits for the others.
+   *
+   * @return The slot of the session, or -1 if no session is waiting.
+   */
+  byte open_session() {
+    short slot = find(STATE_PENDING, next_slot);
+    if (slot < 0) {
+      return -1;
+    }
+    next_slot = (byte)((slot + 1) % MAX_SESSIONS);
+    sessions[(short)(slot * SESSION_LENGTH + SESSION_STATE)] = STATE_OPEN;
+    return (byte)slot;
+  }
+
+  /**
+   * Copy the triggering parameters of an open session.
+   *
+   * @return <code>sOffset</code> + the length of the parameters.
+   */
+  short get_parameters(byte bSlot, byte[] baBuffer, short sOffset)
+      throws ISOException {
+    short base = (short)(check_open(bSlot) + SESSION_PARAMETERS);
+    return Util.arrayCopyNonAtomic(sessions, (short)(base + 2), baBuffer,
+                                   sOffset, Util.getShort(sessions, base));
+  }
+
+  /**
+   * Process a batch of the script of an open session.
+   *
+   * @param baScript The buffer holding the batch.
+   * @param sOffset The offset of the batch.
+   * @param sLength The length of the batch.
+   * @param baResponse The buffer where the responses are written. It may be
+   *     <code>baScript</code> if they do not overlap the batch.
+   * @param sResponseOffset The offset of the responses.
+   * @return <code>sResponseOffset</code> + the length of the responses.
+   * @throws ISOException with reason code 0x6700 («wrong length», see
+   *     ISO7816-4) if a command is truncated or too long, or 0x6A84 («not
+   *     enough memory space», see ISO7816-4) if the responses do not fit in
+   *     <code>baResponse</code>. The commands before are processed all the
+   *     same.
+   */
+  short process_script(byte bSlot, byte[] baScript, short sOffset,
+                       short sLength, byte[] baResponse, short sResponseOffset)
+      throws ISOException {
+    check_open(bSlot);
+    secure_channel channel = gp.get_secure_channel();
+    channel.override_channel(
+        (byte)(secure_channel.FIRST_VIRTUAL_CHANNEL + bSlot));
+    try {
+      return process_commands(baScript, sOffset, sLength, baResponse,
+                              sResponseOffset);
+    } finally {
+      channel.override_channel((byte)-1);
+    }
+  }
+
+  /**
+   * Process the commands of a batch, on the channel of its session: the runs
+   * of commands unwrapped ahead, and the commands left between them.
+   *
+   * @see #process_script
+   */
+  private short process_commands(byte[] baScript, short sOffset,
+                                 short sLength, byte[] baResponse,
+                                 short sResponseOffset) throws ISOException {
+    secure_channel channel = gp.get_secure_channel();
+    short end = (short)(sOffset + sLength);
+    while (sOffset < end) {
+      short run = channel.unwrap_commands(baScript, sOffset,
+                                          (short)(end - sOffset), commands,
+                                          (short)0, MAX_RUN_LENGTH);
+      if (run == sOffset) // the next command is unwrapped when processed
+      {
+        if ((short)(end - sOffset) < 2) {
+          ISOException.throwIt((short)0x6700); // «wrong length», see
+                                               // ISO7816-4
+        }
+        short length = Util.getShort(baScript, sOffset);
+        sOffset += 2;
+        if (length < 4 || length > MAX_APDU_LENGTH ||
+            length > (short)(end - sOffset)) {
+          ISOException.throwIt((short)0x6700); // «wrong length», see
+                                               // ISO7816-4
+        }
+        Util.arrayCopyNonAtomic(baScript, sOffset, apdu, (short)0, length);
+        sOffset += length;
+        sResponseOffset =
+            respond(gp.process_command_APDU(apdu, length, false), baResponse,
+                    sResponseOffset);
+        continue;
+      }
+      short unwrapped = 0;
+      while (sOffset < run) {
+        sOffset += (short)(2 + Util.getShort(baScript, sOffset));
+        short length = Util.getShort(commands, unwrapped);
+        Util.arrayCopyNonAtomic(commands, (short)(unwrapped + 2), apdu,
+                                (short)0, length);
+        unwrapped += (short)(2 + length);
+        sResponseOffset =
+            respond(gp.process_command_APDU(apdu, length, true), baResponse,
+                    sResponseOffset);
+      }
+    }
+    return sResponseOffset;
+  }
+
+  /**
+   * Write the response of a command, which is in <code>apdu</code>, preceded
+   * by its length.
+   *
+   * @return <code>sOffset</code> + the length written.
+   * @throws ISOException with reason code 0x6A84 («not enough memory space»,
+   *     see ISO7816-4) if it does not fit in <code>baResponse</code>.
+   */
+  private short respond(short sLength, byte[] baResponse, short sOffset)
+      throws ISOException {
+    if ((short)(sOffset + 2 + sLength) > (short)baResponse.length) {
+      ISOException.throwIt((short)0x6A84); // «not enough memory space», see
+                                           // ISO7816-4
+    }
+    sOffset = Util.setShort(baResponse, sOffset, sLength);
+    return Util.arrayCopyNonAtomic(apdu, (short)0, baResponse, sOffset,
+                                   sLength);
+  }
+
+  /**
+   * End an open session. A session which failed is requested again while its
+   * retry policy is not exhausted; otherwise the requesting application is
+   * notified and the slot freed. The secure channel session of the session,
+   * if any, is closed in both cases.
+   *
+   * @param bSlot The slot of the session.
+   * @param bSuccess <code>true</code> if the remote server ended the session,
+   *     <code>false</code> if it could not be carried out.
+   */
+  void close_session(byte bSlot, boolean bSuccess) throws ISOException {
+    short base = check_open(bSlot);
+    secure_channel channel = gp.get_secure_channel();
+    channel.override_channel(
+        (byte)(secure_channel.FIRST_VIRTUAL_CHANNEL + bSlot));
+    channel.resetSecurity();
+    channel.override_channel((byte)-1);
+    if (!bSuccess && sessions[(short)(base + SESSION_RETRIES)] > 0) {
+      sessions[(short)(base + SESSION_RETRIES)]--;
+      sessions[(short)(base + SESSION_STATE)] = STATE_PENDING;
+      return;
+    }
+    sessions[(short)(base + SESSION_STATE)] = STATE_FREE;
+
+    byte length = sessions[(short)(base + SESSION_REQUESTER)];
+    if (length == 0) {
+      return;
+    }
+    AID requester = JCSystem.lookupAID(
+        sessions, (short)(base + SESSION_REQUESTER + 1), length);
+    if (requester == null) // deleted meanwhile
+    {
+      return;
+    }
+    Shareable listener = JCSystem.getAppletShareableInterfaceObject(
+        requester, GPSystem.FAMILY_HTTP_REPORT);
+    if (listener instanceof HTTPReportListener) {
+      ((HTTPReportListener)listener)
+          .httpAdministationSessionReport(
+              bSuccess ? HTTPReportListener.HTTP_SESSION_NO_ERROR
+                       : HTTPReportListener.HTTP_SESSION_ERROR);
+    }
+  }
+
+  /**
+   * @return The offset of an open session in <code>sessions</code>.
+   * @throws ISOException with reason code 0x6985 («conditions of use not
+   *     satisfied», see ISO7816-4) if the slot does not hold an open session.
+   */
+  private short check_open(byte bSlot) throws ISOException {
+    if (bSlot < 0 || bSlot >= MAX_SESSIONS ||
+        sessions[(short)(bSlot * SESSION_LENGTH + SESSION_STATE)] !=
+            STATE_OPEN) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    return (short)(bSlot * SESSION_LENGTH);
+  }
+
+  /**
+   * @return The first slot in a state, starting from <code>bFirst</code> and
+   *     wrapping around, or -1 if there is none.
+   */
+  private short find(byte bState, byte bFirst) {
+    for (short i = 0; i < MAX_SESSIONS; i++) {
+      short slot = (short)((bFirst + i) % MAX_SESSIONS);
+      if (sessions[(short)(slot * SESSION_LENGTH + SESSION_STATE)] == bState) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return <code>true</code> if the triggering parameters are a sequence of
+   *     BER-TLVs with one or two byte tags and lengths of up to two bytes.
+   */
+  private static boolean well_formed(byte[] baBuffer, short sOffset,
+                                     short sLength) {
+    short end = (short)(sOffset + sLength);
+    while (sOffset < end) {
+      if ((baBuffer[sOffset++] & 0x1F) == 0x1F) // two byte tag
+      {
+        sOffset++;
+      }
+      if (sOffset >= end) {
+        return false;
+      }
+      short length = (short)(baBuffer[sOffset++] & 0xFF);
+      if (length == 0x81 && sOffset < end) {
+        length = (short)(baBuffer[sOffset++] & 0xFF);
+      } else if (length > 0x7F) {
+        return false;
+      }
+      if (length > (short)(end - sOffset)) {
+        return false;
+      }
+      sOffset += length;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,316 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>Key sets of a security domain, indexed by key version number.</p>
+ *
+ * <p>The keys of all the key sets are kept in a single array, each key set
+ * having a fixed size slot in it, and a directory holds the slot of each of
+ * the 255 key version numbers: opening a secure channel finds its key set at
+ * once, however many key sets there are. The arrays grow on demand.</p>
+ *
+ * <p>Setting a key into an engine expands its schedule, which is the costly
+ * part. The engines of the static keys are therefore cached: they are created
+ * the first time a key set is used and keep their schedule until the key set
+ * is replaced, the cache entry is taken by another key set, or the card is
+ * reset.</p>
+ *
+ * <p>A key set is written into a free slot, then made visible by updating
+ * the directory in a transaction: a key set is replaced as a whole or not at
+ * all.</p>
+ */
+final class key_store {
+
+  // key identifiers of the static keys of a secure channel
+  static final byte KID_ENC = (byte)0x01;
+  static final byte KID_MAC = (byte)0x02;
+  static final byte KID_DEK = (byte)0x03;
+
+  /**
+   * Number of keys of a key set
+   */
+  static final byte KEYS_PER_SET = 3;
+
+  /**
+   * Maximum length of a key
+   */
+  static final short MAX_KEY_LENGTH = (short)32;
+
+  // key types, as coded by GlobalPlatform
+  static final byte TYPE_DES = (byte)0x80;
+  static final byte TYPE_AES = (byte)0x88;
+
+  /**
+   * Slot meaning "no key set"
+   */
+  static final short NO_SET = (short)-1;
+
+  private static final short INITIAL_SETS = (short)4;
+  private static final short MAX_SETS = (short)255;
+  private static final byte CACHE_SIZE = 2;
+
+  // information on a key set slot
+  private static final short INFO_VERSION = 0; // 0 if the slot is free
+  private static final short INFO_TYPE = 1;
+  private static final short INFO_LENGTHS = 2; // length of each key
+  private static final short INFO_LENGTH = (short)(INFO_LENGTHS + KEYS_PER_SET);
+
+  private static final short SET_LENGTH =
+      (short)(KEYS_PER_SET * MAX_KEY_LENGTH);
+
+  private final byte[] directory = new byte[256]; // slot + 1 of each version
+  private byte[] info;
+  private byte[] material;
+  private short set_count = 0; // slots [0, set_count) have been used once
+  private byte default_version = 0;
+
+  // engines of the static keys, KEYS_PER_SET per cache entry
+  private final Object[] engines = new Object[CACHE_SIZE * KEYS_PER_SET];
+  private final short[] cache; // slot + 1 of each entry, then the next
+                               // entry to take
+
+  /**
+   * Class constructor
+   */
+  key_store() {
+    info = new byte[(short)(INITIAL_SETS * INFO_LENGTH)];
+    material = new byte[(short)(INITIAL_SETS * SET_LENGTH)];
+    cache = JCSystem.makeTransientShortArray((short)(CACHE_SIZE + 1),
+                                             JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * Find a key set.
+   *
+   * @param bVersion The key version number, or 0 for the first key set added.
+   * @return The slot of the key set, or <code>NO_SET</code>.
+   */
+  short find(byte bVersion) {
+    if (bVersion == 0) {
+      bVersion = default_version;
+    }
+    return (short)((directory[bVersion & 0xFF] & 0xFF) - 1);
+  }
+
+  /**
+   * @return The key version number of a key set.
+   */
+  byte get_version(short sSet) {
+    return info[(short)(sSet * INFO_LENGTH + INFO_VERSION)];
+  }
+
+  /**
+   * @return The type of the keys of a key set.
+   */
+  byte get_type(short sSet) {
+    return info[(short)(sSet * INFO_LENGTH + INFO_TYPE)];
+  }
+
+  /**
+   * @return The length of a key.
+   */
+  byte get_length(short sSet, byte bKeyId) {
+    return info[(short)(sSet * INFO_LENGTH + INFO_LENGTHS + bKeyId - 1)];
+  }
+
+  /**
+   * @return The array holding the keys, see <code>get_offset</code>.
+   */
+  byte[] get_material() { return material; }
+
+  /**
+   * @return The offset of a key in <code>get_material()</code>.
+   */
+  short get_offset(short sSet, byte bKeyId) {
+    return (short)(sSet * SET_LENGTH + (bKeyId - 1) * MAX_KEY_LENGTH);
+  }
+
+  /**
+   * Get the engine of a static key, with the key set into it.
+   *
+   * @return An <code>aes_engine</code> or a <code>des_engine</code>,
+   *     according to the type of the key set.
+   */
+  Object get_engine(short sSet, byte bKeyId) {
+    short entry = 0;
+    while (entry < CACHE_SIZE && cache[entry] != (short)(sSet + 1)) {
+      entry++;
+    }
+    if (entry == CACHE_SIZE) // take the entry taken the longest time ago
+    {
+      entry = cache[CACHE_SIZE];
+      cache[CACHE_SIZE] = (short)((entry + 1) % CACHE_SIZE);
+      cache[entry] = (short)(sSet + 1);
+      for (short i = 0; i < KEYS_PER_SET; i++) {
+        clear(engines[(short)(entry * KEYS_PER_SET + i)]);
+      }
+    }
+
+    short index = (short)(entry * KEYS_PER_SET + bKeyId - 1);
+    boolean aes = get_type(sSet) == TYPE_AES;
+    Object engine = engines[index];
+    if (aes ? !(engine instanceof aes_engine)
+            : !(engine instanceof des_engine)) {
+      engine = aes ? (Object) new aes_engine(JCSystem.CLEAR_ON_RESET)
+                   : (Object) new des_engine(JCSystem.CLEAR_ON_RESET);
+      engines[index] = engine;
+    }
+    short offset = get_offset(sSet, bKeyId);
+    byte length = get_length(sSet, bKeyId);
+    if (aes) {
+      if (!((aes_engine)engine).is_set()) {
+        ((aes_engine)engine).set_key(material, offset, length);
+      }
+    } else if (!((des_engine)engine).is_set()) {
+      ((des_engine)engine).set_key(material, offset, length);
+    }
+    return engine;
+  }
+
+  /**
+   * Take a free slot and clear it, for a key set being written.
+   *
+   * @return The slot, or <code>NO_SET</code> if there are already
+   *     <code>MAX_SETS</code> key sets.
+   */
+  short allocate(byte bType) {
+    short set = 0;
+    while (set < set_count && get_version(set) != 0) {
+      set++;
+    }
+    if (set == set_count) {
+      if (set_count == MAX_SETS) {
+        return NO_SET;
+      }
+      if ((short)(set_count * INFO_LENGTH) == (short)info.length) {
+        grow();
+      }
+      set_count++;
+    }
+    forget(set);
+    short base = (short)(set * INFO_LENGTH);
+    Util.arrayFillNonAtomic(info, base, INFO_LENGTH, (byte)0x00);
+    info[(short)(base + INFO_TYPE)] = bType;
+    Util.arrayFillNonAtomic(material, (short)(set * SET_LENGTH), SET_LENGTH,
+                            (byte)0x00);
+    return set;
+  }
+
+  /**
+   * Write a key of a key set being written.
+   */
+  void set_key(short sSet, byte bKeyId, byte[] baKey, short sOffset,
+               byte bLength) {
+    Util.arrayCopyNonAtomic(baKey, sOffset, material,
+                            get_offset(sSet, bKeyId), bLength);
+    info[(short)(sSet * INFO_LENGTH + INFO_LENGTHS + bKeyId - 1)] = bLength;
+  }
+
+  /**
+   * Clear a key set being written, which will not be committed. Its slot is
+   * free again.
+   */
+  void discard(short sSet) {
+    forget(sSet);
+    Util.arrayFillNonAtomic(info, (short)(sSet * INFO_LENGTH), INFO_LENGTH,
+                            (byte)0x00);
+    Util.arrayFillNonAtomic(material, (short)(sSet * SET_LENGTH), SET_LENGTH,
+                            (byte)0x00);
+  }
+
+  /**
+   * Make a key set written into a slot visible under its key version number,
+   * in place of the key set it replaces, if any.
+   *
+   * @param sSet The slot of the key set written.
+   * @param bVersion Its key version number.
+   * @param sReplaced The slot of the key set it replaces, or
+   *     <code>NO_SET</code>.
+   */
+  void commit(short sSet, byte bVersion, short sReplaced) {
+    JCSystem.beginTransaction();
+    if (sReplaced != NO_SET) {
+      byte version = get_version(sReplaced);
+      directory[version & 0xFF] = 0;
+      info[(short)(sReplaced * INFO_LENGTH + INFO_VERSION)] = 0;
+      if (default_version == version) {
+        default_version = bVersion;
+      }
+    }
+    info[(short)(sSet * INFO_LENGTH + INFO_VERSION)] = bVersion;
+    directory[bVersion & 0xFF] = (byte)(sSet + 1);
+    if (default_version == 0) {
+      default_version = bVersion;
+    }
+    JCSystem.commitTransaction();
+    if (sReplaced != NO_SET) {
+      forget(sReplaced);
+      Util.arrayFillNonAtomic(material, (short)(sReplaced * SET_LENGTH),
+                              SET_LENGTH, (byte)0x00);
+    }
+  }
+
+  /**
+   * Drop the cached engines of a slot.
+   */
+  private void forget(short sSet) {
+    for (short entry = 0; entry < CACHE_SIZE; entry++) {
+      if (cache[entry] == (short)(sSet + 1)) {
+        cache[entry] = 0;
+        for (short i = 0; i < KEYS_PER_SET; i++) {
+          clear(engines[(short)(entry * KEYS_PER_SET + i)]);
+        }
+      }
+    }
+  }
+
+  private static void clear(Object engine) {
+    if (engine instanceof aes_engine) {
+      ((aes_engine)engine).clear();
+    } else if (engine instanceof des_engine) {
+      ((des_engine)engine).clear();
+    }
+  }
+
+  private void grow() {
+    short sets = (short)(set_count << 1);
+    if (sets > MAX_SETS) {
+      sets = MAX_SETS;
+    }
+    byte[] new_info = new byte[(short)(sets * INFO_LENGTH)];
+    byte[] new_material = new byte[(short)(sets * SET_LENGTH)];
+    Util.arrayCopy(info, (short)0, new_info, (short)0, (short)info.length);
+    Util.arrayCopy(material, (short)0, new_material, (short)0,
+                   (short)material.length);
+    info = new_info;
+    material = new_material;
+  }
+}
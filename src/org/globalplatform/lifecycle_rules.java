@@ -0,0 +1,238 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+/**
+ * <p>Life cycle transition rules of the GP registry entities.</p>
+ *
+ * <p>The rules defined by the Life Cycle Models chapter of the Global Platform
+ * specification are compiled once into a matrix indexed by the kind of the
+ * entity, the class of its current state and the class of the requested
+ * state. Each cell holds the set of relations, between the caller and the
+ * entity, that allow the transition; an empty cell means the transition is
+ * never allowed.</p>
+ */
+final class lifecycle_rules {
+
+  // kinds of entity
+  static final byte KIND_APPLICATION = 0;
+  static final byte KIND_SECURITY_DOMAIN = 1;
+  static final byte KIND_ISSUER_SECURITY_DOMAIN = 2;
+  private static final byte KIND_COUNT = 3;
+
+  // classes of life cycle states
+  static final byte STATE_OTHER = 0;
+  static final byte STATE_INSTALLED = 1;
+  static final byte STATE_SELECTABLE = 2;
+  static final byte STATE_APPLICATION_SPECIFIC = 3;
+  static final byte STATE_PERSONALIZED = 4;
+  static final byte STATE_LOCKED = 5; // as a requested state only
+  static final byte STATE_LOCKED_FROM_INSTALLED = 6;
+  static final byte STATE_LOCKED_FROM_SELECTABLE = 7;
+  static final byte STATE_LOCKED_FROM_APPLICATION_SPECIFIC = 8;
+  static final byte STATE_LOCKED_FROM_PERSONALIZED = 9;
+  static final byte STATE_CARD_OP_READY = 10;
+  static final byte STATE_CARD_INITIALIZED = 11;
+  static final byte STATE_CARD_SECURED = 12;
+  static final byte STATE_CARD_LOCKED = 13;
+  static final byte STATE_CARD_TERMINATED = 14;
+  private static final byte STATE_COUNT = 15;
+
+  // relations between the caller and the entity; any of them allows a
+  // transition
+  static final byte CALLER_GLOBAL_LOCK = 0x01;       // Global lock privilege
+  static final byte CALLER_ASSOCIATED = 0x02;        // Associated SD
+  static final byte CALLER_ITSELF = 0x04;            // The entity itself
+  static final byte CALLER_MANAGER = 0x08;           // SD with Authorized or
+                                                     // Delegated management
+  static final byte CALLER_CARD_LOCK = 0x10;         // Card lock privilege
+  static final byte CALLER_CARD_TERMINATE = 0x20;    // Card termination
+                                                     // privilege
+
+  /**
+   * Flag of the transitions which do not record the previous life cycle state
+   */
+  static final byte NO_HISTORY = 0x40;
+
+  private final byte[] matrix;
+
+  /**
+   * Class constructor. Compile the transition rules.
+   */
+  lifecycle_rules() {
+    matrix = new byte[KIND_COUNT * STATE_COUNT * STATE_COUNT];
+
+    // Applications
+    allow(KIND_APPLICATION, STATE_LOCKED_FROM_INSTALLED, STATE_INSTALLED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED));
+    allow(KIND_APPLICATION, STATE_INSTALLED, STATE_SELECTABLE, CALLER_MANAGER);
+    allow(KIND_APPLICATION, STATE_LOCKED_FROM_SELECTABLE, STATE_SELECTABLE,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED));
+    allow(KIND_APPLICATION, STATE_APPLICATION_SPECIFIC, STATE_SELECTABLE,
+          CALLER_ITSELF);
+    allow(KIND_APPLICATION, STATE_INSTALLED, STATE_LOCKED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED | CALLER_ITSELF));
+    allow(KIND_APPLICATION, STATE_SELECTABLE, STATE_LOCKED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED | CALLER_ITSELF));
+    allow(KIND_APPLICATION, STATE_APPLICATION_SPECIFIC, STATE_LOCKED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED | CALLER_ITSELF));
+    allow(KIND_APPLICATION, STATE_SELECTABLE, STATE_APPLICATION_SPECIFIC,
+          CALLER_ITSELF);
+    allow(KIND_APPLICATION, STATE_LOCKED_FROM_APPLICATION_SPECIFIC,
+          STATE_APPLICATION_SPECIFIC,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED));
+
+    // Security domains
+    allow(KIND_SECURITY_DOMAIN, STATE_LOCKED_FROM_INSTALLED, STATE_INSTALLED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED));
+    allow(KIND_SECURITY_DOMAIN, STATE_INSTALLED, STATE_SELECTABLE,
+          CALLER_MANAGER);
+    allow(KIND_SECURITY_DOMAIN, STATE_LOCKED_FROM_SELECTABLE, STATE_SELECTABLE,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED));
+    allow(KIND_SECURITY_DOMAIN, STATE_INSTALLED, STATE_LOCKED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED | CALLER_ITSELF));
+    allow(KIND_SECURITY_DOMAIN, STATE_SELECTABLE, STATE_LOCKED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED | CALLER_ITSELF));
+    allow(KIND_SECURITY_DOMAIN, STATE_PERSONALIZED, STATE_LOCKED,
+          (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED | CALLER_ITSELF));
+    allow(KIND_SECURITY_DOMAIN, STATE_SELECTABLE, STATE_PERSONALIZED,
+          CALLER_ITSELF);
+    allow(KIND_SECURITY_DOMAIN, STATE_LOCKED_FROM_PERSONALIZED,
+          STATE_PERSONALIZED, (byte)(CALLER_GLOBAL_LOCK | CALLER_ASSOCIATED));
+
+    // Issuer security domain, i.e. the card
+    allow(KIND_ISSUER_SECURITY_DOMAIN, STATE_CARD_LOCKED, STATE_CARD_SECURED,
+          (byte)(CALLER_CARD_LOCK | NO_HISTORY));
+    allow(KIND_ISSUER_SECURITY_DOMAIN, STATE_CARD_SECURED, STATE_CARD_LOCKED,
+          (byte)(CALLER_CARD_LOCK | NO_HISTORY));
+    for (byte from = 0; from < STATE_COUNT; from++) {
+      allow(KIND_ISSUER_SECURITY_DOMAIN, from, STATE_CARD_TERMINATED,
+            (byte)(CALLER_CARD_TERMINATE | NO_HISTORY));
+    }
+  }
+
+  /**
+   * Return the rules of a transition.
+   *
+   * @param bKind The kind of the entity.
+   * @param bFrom The class of the current state of the entity, see
+   *     <code>classify_current</code>.
+   * @param bTo The class of the requested state, see
+   *     <code>classify_requested</code>.
+   * @return The relations allowing the transition, possibly combined with
+   *     <code>NO_HISTORY</code>. 0 if the transition is never allowed.
+   */
+  byte get_rules(byte bKind, byte bFrom, byte bTo) {
+    return matrix[(short)((short)((short)(bKind * STATE_COUNT) + bFrom) *
+                              STATE_COUNT +
+                          bTo)];
+  }
+
+  /**
+   * Classify the current state of an entity.
+   *
+   * @param bKind The kind of the entity.
+   * @param bState The current life cycle state.
+   * @param bPrevious The previous life cycle state.
+   * @return The class of the state.
+   */
+  static byte classify_current(byte bKind, byte bState, byte bPrevious) {
+    if (bKind != KIND_ISSUER_SECURITY_DOMAIN &&
+        bState == entity_file.APPLICATION_LOCKED) {
+      switch (classify(bKind, bPrevious)) {
+      case STATE_INSTALLED:
+        return STATE_LOCKED_FROM_INSTALLED;
+      case STATE_SELECTABLE:
+        return STATE_LOCKED_FROM_SELECTABLE;
+      case STATE_APPLICATION_SPECIFIC:
+        return STATE_LOCKED_FROM_APPLICATION_SPECIFIC;
+      case STATE_PERSONALIZED:
+        return STATE_LOCKED_FROM_PERSONALIZED;
+      default:
+        return STATE_OTHER;
+      }
+    }
+    return classify(bKind, bState);
+  }
+
+  /**
+   * Classify a requested state.
+   *
+   * @param bKind The kind of the entity.
+   * @param bState The requested life cycle state.
+   * @return The class of the state.
+   */
+  static byte classify_requested(byte bKind, byte bState) {
+    if (bKind != KIND_ISSUER_SECURITY_DOMAIN &&
+        bState == entity_file.APPLICATION_LOCKED) {
+      return STATE_LOCKED;
+    }
+    return classify(bKind, bState);
+  }
+
+  private static byte classify(byte bKind, byte bState) {
+    if (bKind == KIND_ISSUER_SECURITY_DOMAIN) {
+      switch (bState) {
+      case entity_file.CARD_OP_READY:
+        return STATE_CARD_OP_READY;
+      case entity_file.CARD_INITIALIZED:
+        return STATE_CARD_INITIALIZED;
+      case entity_file.CARD_SECURED:
+        return STATE_CARD_SECURED;
+      case entity_file.CARD_LOCKED:
+        return STATE_CARD_LOCKED;
+      case entity_file.CARD_TERMINATED:
+        return STATE_CARD_TERMINATED;
+      default:
+        return STATE_OTHER;
+      }
+    }
+    switch (bState) {
+    case entity_file.APPLICATION_INSTALLED:
+      return STATE_INSTALLED;
+    case entity_file.APPLICATION_SELECTABLE:
+      return STATE_SELECTABLE;
+    case entity_file.SECURITY_DOMAIN_PERSONALIZED:
+      if (bKind == KIND_SECURITY_DOMAIN) {
+        return STATE_PERSONALIZED;
+      }
+      return STATE_APPLICATION_SPECIFIC;
+    default:
+      if ((bState & 0x07) == 0x07 && (bState | 0x7F) == 0x7F &&
+          (bState & 0x78) != 0x00) // application specific state
+      {
+        return STATE_APPLICATION_SPECIFIC;
+      }
+      return STATE_OTHER;
+    }
+  }
+
+  private void allow(byte bKind, byte bFrom, byte bTo, byte bRules) {
+    matrix[(short)((short)((short)(bKind * STATE_COUNT) + bFrom) * STATE_COUNT +
+                   bTo)] = bRules;
+  }
+}
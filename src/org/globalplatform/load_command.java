@@ -0,0 +1,374 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.CryptoException;
+import javacard.security.MessageDigest;
+
+/**
+ * <p>INSTALL [for load] and LOAD commands of the card manager.</p>
+ *
+ * <p>INSTALL [for load] announces an Executable Load File, and optionally the
+ * hash of its Load File Data Block. The blocks of the following LOAD commands
+ * are appended to the load file storage as they arrive, and the hash is
+ * updated with each of them; when the last block has been received, the hash
+ * is checked and the Executable Load File is added to the GP registry. The
+ * Load File is thus read exactly once.</p>
+ *
+ * <p>The DAP blocks ('E2') and the header of the Load File Data Block ('C4')
+ * must be in the first LOAD block. DAP verification is not done yet.</p>
+ *
+ * <p>A Load Token in the INSTALL [for load] command is verified, and the last
+ * LOAD command then returns a Load Receipt, see
+ * <code>delegated_management</code>.</p>
+ */
+final class load_command {
+
+  /**
+   * P1 of the INSTALL [for load] command
+   */
+  static final byte P1_INSTALL_FOR_LOAD = (byte)0x02;
+
+  private static final byte P1_LAST_BLOCK = (byte)0x80;
+
+  // state of the load, kept between commands
+  private static final byte STATE_PHASE = 0;
+  private static final byte STATE_NEXT_BLOCK = 1;
+  private static final byte STATE_SECURITY_DOMAIN = 2;
+  private static final byte STATE_HASH_LENGTH = 3;
+  private static final byte STATE_EXPECTED_HIGH = 4; // length of the Load
+  private static final byte STATE_EXPECTED_LOW = 5;  // File Data Block
+  private static final byte STATE_RECEIPT = 6; // 1 if a token was verified
+  private static final byte STATE_LENGTH = 7;
+
+  private static final short PHASE_IDLE = 0;   // no INSTALL [for load] yet
+  private static final short PHASE_HEADER = 1; // first LOAD block expected
+  private static final short PHASE_BODY = 2;   // next LOAD blocks expected
+
+  private static final short MAX_HASH_LENGTH = MessageDigest.LENGTH_SHA_256;
+
+  private final PlateformeGlobale gp;
+  private final load_file_store store;
+  private final short[] state;
+  private final byte[] aid;  // length, then the AID of the load file
+  private final byte[] hash; // expected, then computed hash
+  private MessageDigest sha1 = null;
+  private MessageDigest sha256 = null;
+  private MessageDigest digest = null;
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN.
+   * @param store The storage the load files are appended to.
+   */
+  load_command(PlateformeGlobale gp, load_file_store store) {
+    this.gp = gp;
+    this.store = store;
+    state = JCSystem.makeTransientShortArray(STATE_LENGTH,
+                                             JCSystem.CLEAR_ON_RESET);
+    aid = JCSystem.makeTransientByteArray(
+        (short)(registry_table.AID_SLOT_LENGTH + 1), JCSystem.CLEAR_ON_RESET);
+    hash = JCSystem.makeTransientByteArray((short)(MAX_HASH_LENGTH * 2),
+                                           JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * Process an INSTALL [for load] command.
+   *
+   * @param bP1 The P1 parameter of the command.
+   * @param bP2 The P2 parameter of the command.
+   * @param baBuffer The buffer holding the command data, where the response
+   *     data is written from offset 0.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data.
+   * @return The length of the response data.
+   */
+  short install_for_load(byte bP1, byte bP2, byte[] baBuffer, short sOffset,
+                         short sLength) throws ISOException {
+    abort();
+    short end = (short)(sOffset + sLength);
+
+    // Load File AID
+    short aid_offset = sOffset;
+    short offset = skip_lv(baBuffer, aid_offset, end);
+    byte aid_length = baBuffer[aid_offset];
+    if (aid_length < 5 || aid_length > registry_table.AID_SLOT_LENGTH) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+
+    // Security Domain AID, the issuer security domain if empty
+    short sd_offset = offset;
+    offset = skip_lv(baBuffer, sd_offset, end);
+
+    // Load File Data Block Hash
+    short hash_offset = offset;
+    offset = skip_lv(baBuffer, hash_offset, end);
+
+    // Load Parameters field and Load Token
+    short token_offset = skip_lv(baBuffer, offset, end);
+    skip_lv(baBuffer, token_offset, end);
+
+    if (gp.registry.find(baBuffer, (short)(aid_offset + 1), aid_length) !=
+        registry_table.NO_ENTRY) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    short sd = PlateformeGlobale.ISD_INDEX;
+    if (baBuffer[sd_offset] != 0) {
+      sd = gp.registry.find(baBuffer, (short)(sd_offset + 1),
+                            baBuffer[sd_offset]);
+      if (sd == registry_table.NO_ENTRY ||
+          gp.registry.get_sd_ordinal(sd) == sd_hierarchy.NO_ORDINAL) {
+        ISOException.throwIt((short)0x6A88); // «referenced data not found»,
+                                             // see ISO7816-4
+      }
+    }
+
+    short receipt = 0;
+    if (baBuffer[token_offset] != 0) {
+      gp.get_delegated_management().verify_token(
+          bP1, bP2, baBuffer, sOffset, (short)(token_offset - sOffset),
+          (short)(token_offset + 1), (short)(baBuffer[token_offset] & 0xFF));
+      receipt = 1;
+    }
+
+    byte hash_length = baBuffer[hash_offset];
+    digest = null;
+    if (hash_length != 0) {
+      digest = get_digest(hash_length);
+      digest.reset();
+      Util.arrayCopyNonAtomic(baBuffer, (short)(hash_offset + 1), hash,
+                              (short)0, hash_length);
+    }
+
+    Util.arrayCopyNonAtomic(baBuffer, aid_offset, aid, (short)0,
+                            (short)(aid_length + 1));
+    state[STATE_SECURITY_DOMAIN] = sd;
+    state[STATE_HASH_LENGTH] = hash_length;
+    state[STATE_RECEIPT] = receipt;
+    state[STATE_NEXT_BLOCK] = 0;
+    state[STATE_PHASE] = PHASE_HEADER;
+
+    baBuffer[0] = (byte)0x00; // no data returned
+    return 1;
+  }
+
+  /**
+   * Process a LOAD command.
+   *
+   * @param bP1 The P1 parameter, telling whether this is the last block.
+   * @param bP2 The block number.
+   * @param baBuffer The buffer holding the command data, where the response
+   *     data is written from offset 0.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data.
+   * @return The length of the response data.
+   */
+  short load(byte bP1, byte bP2, byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    if (state[STATE_PHASE] == PHASE_IDLE) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    if ((short)(bP2 & 0xFF) != state[STATE_NEXT_BLOCK] ||
+        (bP1 & (byte)0x7F) != 0) {
+      fail((short)0x6A86); // «incorrect P1 P2», see ISO7816-4
+    }
+    short end = (short)(sOffset + sLength);
+
+    if (state[STATE_PHASE] == PHASE_HEADER) {
+      // DAP blocks, not verified yet
+      while (sOffset < end && baBuffer[sOffset] == (byte)0xE2) {
+        short value = skip_length(baBuffer, (short)(sOffset + 1), end);
+        int dap = read_length(baBuffer, (short)(sOffset + 1));
+        if (dap > end - value) {
+          fail((short)0x6A80); // «incorrect parameters in the data field»,
+                               // see ISO7816-4
+        }
+        sOffset = (short)(value + dap);
+      }
+      if (sOffset >= end || baBuffer[sOffset] != (byte)0xC4) {
+        fail((short)0x6A80); // «incorrect parameters in the data field», see
+                             // ISO7816-4
+      }
+      int expected = read_length(baBuffer, (short)(sOffset + 1));
+      sOffset = skip_length(baBuffer, (short)(sOffset + 1), end);
+      state[STATE_EXPECTED_HIGH] = (short)(expected >> 16);
+      state[STATE_EXPECTED_LOW] = (short)expected;
+      state[STATE_PHASE] = PHASE_BODY;
+    }
+
+    short length = (short)(end - sOffset);
+    if (store.get_staging_length() + length > expected_length()) {
+      fail((short)0x6A80); // «incorrect parameters in the data field», see
+                           // ISO7816-4
+    }
+    if (!store.append(baBuffer, sOffset, length)) {
+      fail((short)0x6A84); // «not enough memory space», see ISO7816-4
+    }
+    if (digest != null) {
+      digest.update(baBuffer, sOffset, length);
+    }
+    state[STATE_NEXT_BLOCK]++;
+
+    if ((bP1 & P1_LAST_BLOCK) == 0) {
+      return 0;
+    }
+
+    if (store.get_staging_length() != expected_length()) {
+      fail((short)0x6A80); // «incorrect parameters in the data field», see
+                           // ISO7816-4
+    }
+    short hash_length = state[STATE_HASH_LENGTH];
+    if (digest != null) {
+      digest.doFinal(hash, (short)0, (short)0, hash, MAX_HASH_LENGTH);
+      if (Util.arrayCompare(hash, (short)0, hash, MAX_HASH_LENGTH,
+                            hash_length) != 0) {
+        fail((short)0x6985); // «conditions of use not satisfied», see
+                             // ISO7816-4
+      }
+    }
+    short index = gp.add_entity(registry_table.KIND_ELF, aid, (short)1, aid[0],
+                                state[STATE_SECURITY_DOMAIN],
+                                registry_table.NO_ENTRY);
+    if (index == registry_table.NO_ENTRY) {
+      fail((short)0x6A84); // «not enough memory space», see ISO7816-4
+    }
+    store.commit(index);
+    state[STATE_PHASE] = PHASE_IDLE;
+
+    if (state[STATE_RECEIPT] == 0) {
+      baBuffer[0] = (byte)0x00; // no receipt
+      return 1;
+    }
+    // confirmation data: the AIDs of the load file and of its security domain
+    short sd = (short)(aid[0] + 1);
+    baBuffer[sd] = gp.registry.get_aid(state[STATE_SECURITY_DOMAIN], baBuffer,
+                                       (short)(sd + 1));
+    Util.arrayCopyNonAtomic(aid, (short)0, baBuffer, (short)0, sd);
+    return gp.get_delegated_management().write_receipt(
+        baBuffer, (short)0, (short)(sd + 1 + baBuffer[sd]), baBuffer,
+        (short)0);
+  }
+
+  /**
+   * Abandon the load in progress, if any.
+   */
+  void abort() {
+    if (state[STATE_PHASE] != PHASE_IDLE) {
+      store.discard();
+      state[STATE_PHASE] = PHASE_IDLE;
+    }
+  }
+
+  private void fail(short sReason) throws ISOException {
+    abort();
+    ISOException.throwIt(sReason);
+  }
+
+  private int expected_length() {
+    return ((int)state[STATE_EXPECTED_HIGH] << 16) |
+           (state[STATE_EXPECTED_LOW] & 0xFFFF);
+  }
+
+  private MessageDigest get_digest(byte bLength) throws ISOException {
+    try {
+      if (bLength == MessageDigest.LENGTH_SHA) {
+        if (sha1 == null) {
+          sha1 = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+        }
+        return sha1;
+      }
+      if (bLength == MessageDigest.LENGTH_SHA_256) {
+        if (sha256 == null) {
+          sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+        }
+        return sha256;
+      }
+    } catch (CryptoException e) {
+      // the algorithm is not available, the hash cannot be checked
+    }
+    ISOException.throwIt((short)0x6A80); // «incorrect parameters in the data
+                                         // field», see ISO7816-4
+    return null;
+  }
+
+  /**
+   * @return The offset following a field made of one length byte (up to 255)
+   *     and a value.
+   */
+  static short skip_lv(byte[] baBuffer, short sOffset, short sEnd)
+      throws ISOException {
+    if (sOffset >= sEnd ||
+        (short)(sOffset + 1 + (baBuffer[sOffset] & 0xFF)) > sEnd) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    return (short)(sOffset + 1 + (baBuffer[sOffset] & 0xFF));
+  }
+
+  /**
+   * @return The value of a BER-TLV length field.
+   */
+  private static int read_length(byte[] baBuffer, short sOffset) {
+    byte first = baBuffer[sOffset];
+    if (first >= 0) {
+      return first;
+    }
+    int length = 0;
+    for (short i = 1; i <= (short)(first & 0x7F); i++) {
+      length = (length << 8) | (baBuffer[(short)(sOffset + i)] & 0xFF);
+    }
+    return length;
+  }
+
+  /**
+   * @return The offset following a BER-TLV length field.
+   */
+  private static short skip_length(byte[] baBuffer, short sOffset, short sEnd)
+      throws ISOException {
+    if (sOffset >= sEnd) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    byte first = baBuffer[sOffset];
+    short length = 1;
+    if (first < 0) {
+      length = (short)(1 + (first & 0x7F));
+      if (length > 4 || (short)(sOffset + length) > sEnd) {
+        ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                             // data field», see ISO7816-4
+      }
+    }
+    return (short)(sOffset + length);
+  }
+}
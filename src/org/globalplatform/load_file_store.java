@@ -0,0 +1,236 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.Util;
+
+/**
+ * <p>Storage of the Executable Load Files.</p>
+ *
+ * <p>The content of a load file is stored as a chain of fixed size chunks,
+ * allocated from a common pool as the file grows, so that the blocks of a
+ * LOAD command are appended where they will stay. A file being loaded is kept
+ * in a staging chain, which is either committed to the Executable Load File
+ * entry of the GP registry once the last block has been received, or
+ * discarded.</p>
+ */
+final class load_file_store {
+
+  /**
+   * Length of a chunk
+   */
+  static final short CHUNK_SIZE = (short)128;
+
+  /**
+   * Chunk index meaning "no chunk"
+   */
+  static final short NO_CHUNK = (short)-1;
+
+  private static final short INITIAL_CHUNKS = (short)32;
+  private static final short INITIAL_FILES = (short)16;
+
+  // pool of chunks
+  private Object[] chunks;
+  private short[] chunk_next;
+  private short chunk_count = 0; // chunks [0, chunk_count) have been used once
+  private short free_chunk = NO_CHUNK;
+
+  // files, indexed by the index of their entry in the GP registry
+  private short[] file_first;
+  private short[] file_last;
+  private int[] file_length;
+
+  // staging file
+  private short staging_first = NO_CHUNK;
+  private short staging_last = NO_CHUNK;
+  private int staging_length = 0;
+
+  /**
+   * Class constructor
+   */
+  load_file_store() {
+    chunks = new Object[INITIAL_CHUNKS];
+    chunk_next = new short[INITIAL_CHUNKS];
+    allocate_files(INITIAL_FILES);
+  }
+
+  /**
+   * Discard the staging file.
+   */
+  void discard() {
+    free_chain(staging_first, staging_last);
+    staging_first = NO_CHUNK;
+    staging_last = NO_CHUNK;
+    staging_length = 0;
+  }
+
+  /**
+   * Append bytes to the staging file.
+   *
+   * @return <code>false</code> if there is no more room.
+   */
+  boolean append(byte[] baBuffer, short sOffset, short sLength) {
+    while (sLength > 0) {
+      short used = (short)(staging_length % CHUNK_SIZE);
+      if (used == 0) // the last chunk is full, or there is none yet
+      {
+        short chunk = allocate_chunk();
+        if (chunk == NO_CHUNK) {
+          return false;
+        }
+        if (staging_last == NO_CHUNK) {
+          staging_first = chunk;
+        } else {
+          chunk_next[staging_last] = chunk;
+        }
+        staging_last = chunk;
+      }
+      short room = (short)(CHUNK_SIZE - used);
+      short count = sLength < room ? sLength : room;
+      Util.arrayCopyNonAtomic(baBuffer, sOffset, (byte[])chunks[staging_last],
+                              used, count);
+      staging_length += count;
+      sOffset += count;
+      sLength -= count;
+    }
+    return true;
+  }
+
+  /**
+   * @return The number of bytes in the staging file.
+   */
+  int get_staging_length() { return staging_length; }
+
+  /**
+   * Make the staging file the content of an Executable Load File entry of the
+   * GP registry. The staging file is then empty.
+   *
+   * @param index The index of the Executable Load File in the registry.
+   */
+  void commit(short index) {
+    if (index >= (short)file_first.length) {
+      short length = (short)file_first.length;
+      while (length <= index && length < (short)0x4000) {
+        length = (short)(length << 1);
+      }
+      if (length <= index) {
+        length = (short)0x7FFF;
+      }
+      grow_files(length);
+    }
+    release(index);
+    file_first[index] = staging_first;
+    file_last[index] = staging_last;
+    file_length[index] = staging_length;
+    staging_first = NO_CHUNK;
+    staging_last = NO_CHUNK;
+    staging_length = 0;
+  }
+
+  /**
+   * Free the content of an Executable Load File.
+   *
+   * @param index The index of the Executable Load File in the registry.
+   */
+  void release(short index) {
+    if (index < 0 || index >= (short)file_first.length) {
+      return;
+    }
+    free_chain(file_first[index], file_last[index]);
+    file_first[index] = NO_CHUNK;
+    file_last[index] = NO_CHUNK;
+    file_length[index] = 0;
+  }
+
+  /**
+   * @return The length of the content of an Executable Load File, 0 if there
+   *     is none.
+   */
+  int get_length(short index) {
+    if (index < 0 || index >= (short)file_first.length) {
+      return 0;
+    }
+    return file_length[index];
+  }
+
+  private short allocate_chunk() {
+    short chunk = free_chunk;
+    if (chunk != NO_CHUNK) {
+      free_chunk = chunk_next[chunk];
+    } else {
+      if (chunk_count == (short)chunks.length) {
+        short length = (short)(chunk_count << 1);
+        if (length <= 0) {
+          return NO_CHUNK;
+        }
+        Object[] new_chunks = new Object[length];
+        short[] new_next = new short[length];
+        for (short i = 0; i < chunk_count; i++) {
+          new_chunks[i] = chunks[i];
+          new_next[i] = chunk_next[i];
+        }
+        chunks = new_chunks;
+        chunk_next = new_next;
+      }
+      chunk = chunk_count;
+      chunks[chunk] = new byte[CHUNK_SIZE];
+      chunk_count++;
+    }
+    chunk_next[chunk] = NO_CHUNK;
+    return chunk;
+  }
+
+  private void free_chain(short sFirst, short sLast) {
+    if (sFirst == NO_CHUNK) {
+      return;
+    }
+    chunk_next[sLast] = free_chunk;
+    free_chunk = sFirst;
+  }
+
+  private void allocate_files(short sLength) {
+    file_first = new short[sLength];
+    file_last = new short[sLength];
+    file_length = new int[sLength];
+    for (short i = 0; i < sLength; i++) {
+      file_first[i] = NO_CHUNK;
+      file_last[i] = NO_CHUNK;
+    }
+  }
+
+  private void grow_files(short sLength) {
+    short[] old_first = file_first;
+    short[] old_last = file_last;
+    int[] old_length = file_length;
+    allocate_files(sLength);
+    for (short i = 0; i < (short)old_first.length; i++) {
+      file_first[i] = old_first[i];
+      file_last[i] = old_last[i];
+      file_length[i] = old_length[i];
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * <p>PUT KEY command of the card manager.</p>
+ *
+ * <p>A command adds or replaces a whole key set: the ENC, MAC and DEK keys,
+ * in this order, all of the same type and length. The keys are decrypted with
+ * the secure channel, written into a free slot of the key store and checked
+ * against their key check values; the key set is only committed once all of
+ * them are valid. The first key set added replaces the initial key set.</p>
+ *
+ * <p>A command may also put a single key, for the keys of delegated
+ * management: the receipt generation key is a key set holding only its first
+ * key, and the token verification key is an RSA public key, given by its
+ * modulus ('A1') and public exponent ('A0') in plaintext, which is handed
+ * over to <code>delegated_management</code>.</p>
+ */
+final class put_key {
+
+  // P1
+  private static final byte P1_MORE_COMMANDS = (byte)0x80;
+
+  // P2: several keys, from the ENC key, or only the first key
+  private static final byte P2_KEY_SET = (byte)0x81;
+  private static final byte P2_SINGLE_KEY = (byte)0x01;
+
+  // components of an RSA public key
+  private static final byte TYPE_RSA_EXPONENT = (byte)0xA0;
+  private static final byte TYPE_RSA_MODULUS = (byte)0xA1;
+
+  private static final byte KCV_LENGTH = 3;
+
+  private final PlateformeGlobale gp;
+  private final key_store store;
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN, whose secure channel decrypts the keys.
+   * @param store The key sets of the issuer security domain.
+   */
+  put_key(PlateformeGlobale gp, key_store store) {
+    this.gp = gp;
+    this.store = store;
+  }
+
+  /**
+   * Process a PUT KEY command.
+   *
+   * @param bP1 The key version number of the key set to replace, or 0 to add
+   *     a key set.
+   * @param bP2 The P2 parameter of the command.
+   * @param baBuffer The buffer holding the command data, where the response
+   *     data is written from offset 0.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data.
+   * @return The length of the response data: the key version number followed
+   *     by the key check value of each symmetric key.
+   */
+  short process(byte bP1, byte bP2, byte[] baBuffer, short sOffset,
+                short sLength) throws ISOException {
+    if ((bP1 & P1_MORE_COMMANDS) != 0 ||
+        (bP2 != P2_KEY_SET && bP2 != P2_SINGLE_KEY)) {
+      ISOException.throwIt((short)0x6A86); // «incorrect P1 P2», see ISO7816-4
+    }
+    if (sLength < 3) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    byte version = baBuffer[sOffset];
+    byte type = baBuffer[(short)(sOffset + 1)];
+    if (bP2 == P2_SINGLE_KEY && type == TYPE_RSA_MODULUS) {
+      return put_token_key(bP1, version, baBuffer, (short)(sOffset + 1),
+                           (short)(sOffset + sLength));
+    }
+    byte count = bP2 == P2_KEY_SET ? key_store.KEYS_PER_SET : 1;
+    short replaced = key_store.NO_SET;
+    if (count == key_store.KEYS_PER_SET) {
+      replaced = store.find(PlateformeGlobale.INITIAL_KEY_VERSION);
+    }
+    if (bP1 != 0) {
+      replaced = store.find(bP1);
+      if (replaced == key_store.NO_SET) {
+        ISOException.throwIt((short)0x6A88); // «referenced data not found»,
+                                             // see ISO7816-4
+      }
+    }
+    if (version <= 0 || (version != bP1 && store.find(version) !=
+                                               key_store.NO_SET) ||
+        (type != key_store.TYPE_DES && type != key_store.TYPE_AES)) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+
+    short set = store.allocate(type);
+    if (set == key_store.NO_SET) {
+      ISOException.throwIt((short)0x6A84); // «not enough memory space», see
+                                           // ISO7816-4
+    }
+    try {
+      short end = (short)(sOffset + sLength);
+      short offset = (short)(sOffset + 1);
+      byte length = 0;
+      baBuffer[0] = version;
+      for (byte key = key_store.KID_ENC; key <= count; key++) {
+        offset = put(set, key, baBuffer, offset, end,
+                     (short)(1 + (key - 1) * KCV_LENGTH));
+        if (length != 0 && store.get_length(set, key) != length) {
+          ISOException.throwIt((short)0x6A80); // «incorrect parameters in
+                                               // the data field», see
+                                               // ISO7816-4
+        }
+        length = store.get_length(set, key);
+      }
+      if (offset != end) {
+        ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                             // data field», see ISO7816-4
+      }
+    } catch (ISOException e) {
+      store.discard(set);
+      throw e;
+    }
+    store.commit(set, version, replaced);
+    return (short)(1 + count * KCV_LENGTH);
+  }
+
+  /**
+   * Put the token verification key of delegated management. The key is
+   * public and sent in plaintext, so its integrity rests on the C-MAC of the
+   * command.
+   *
+   * @param sOffset The offset of the modulus.
+   * @param sEnd The end of the command data.
+   * @return The length of the response data: the key version number.
+   * @throws ISOException with reason code 0x6982 («security status not
+   *     satisfied», see ISO7816-4) outside of an authenticated session with
+   *     C-MAC.
+   */
+  private short put_token_key(byte bP1, byte bVersion, byte[] baBuffer,
+                              short sOffset, short sEnd) throws ISOException {
+    final byte required = SecureChannel.AUTHENTICATED | SecureChannel.C_MAC;
+    if ((gp.get_secure_channel().getSecurityLevel() & required) != required) {
+      ISOException.throwIt((short)0x6982); // «security status not
+                                           // satisfied», see ISO7816-4
+    }
+    delegated_management delegation = gp.get_delegated_management();
+    if (bVersion != delegated_management.TOKEN_KEY_VERSION ||
+        (bP1 != 0 && bP1 != bVersion) ||
+        (bP1 == 0 && delegation.has_token_key())) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    if (bP1 != 0 && !delegation.has_token_key()) {
+      ISOException.throwIt((short)0x6A88); // «referenced data not found», see
+                                           // ISO7816-4
+    }
+    short modulus = component(baBuffer, sOffset, sEnd, TYPE_RSA_MODULUS);
+    short modulus_length = (short)(baBuffer[(short)(modulus - 1)] & 0xFF);
+    short exponent = component(baBuffer, (short)(modulus + modulus_length + 1),
+                               sEnd, TYPE_RSA_EXPONENT);
+    short exponent_length = (short)(baBuffer[(short)(exponent - 1)] & 0xFF);
+    if ((short)(exponent + exponent_length + 1) != sEnd) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    delegation.set_token_key(baBuffer, modulus, modulus_length, exponent,
+                             exponent_length);
+    baBuffer[0] = bVersion;
+    return 1;
+  }
+
+  /**
+   * Parse a component of a public key: its type, its length (on one byte, or
+   * on two bytes starting with '81'), its value, then an empty key check
+   * value.
+   *
+   * @return The offset of the value.
+   */
+  private static short component(byte[] baBuffer, short sOffset, short sEnd,
+                                 byte bType) throws ISOException {
+    if ((short)(sEnd - sOffset) < 3 || baBuffer[sOffset] != bType) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    sOffset++;
+    if (baBuffer[sOffset] == (byte)0x81) {
+      sOffset++;
+    } else if (baBuffer[sOffset] < 0) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    short value = (short)(sOffset + 1);
+    sOffset = load_command.skip_lv(baBuffer, sOffset, sEnd);
+    if (sOffset >= sEnd || baBuffer[sOffset] != 0 ||
+        sOffset == value) // no key check value for a public key
+    {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    return value;
+  }
+
+  /**
+   * Parse, decrypt and check a key, and write it into a key set.
+   *
+   * @param sOffset The offset of the key type.
+   * @param sEnd The end of the command data.
+   * @param sCheck The offset where its key check value is written.
+   * @return The offset following the key.
+   */
+  private short put(short sSet, byte bKeyId, byte[] baBuffer, short sOffset,
+                    short sEnd, short sCheck) throws ISOException {
+    byte type = store.get_type(sSet);
+    if ((short)(sEnd - sOffset) < 2 || baBuffer[sOffset] != type) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    short block = (short)(baBuffer[(short)(sOffset + 1)] & 0xFF);
+    sOffset += 2;
+    short length = block;
+    if (type == key_store.TYPE_AES) // the key length comes first
+    {
+      block--;
+      length = sOffset < sEnd ? baBuffer[sOffset++] : 0;
+    }
+    if ((type == key_store.TYPE_DES ? length != 16
+                                    : length != 16 && length != 24 &&
+                                          length != 32) ||
+        block < length || block > key_store.MAX_KEY_LENGTH ||
+        (short)(sEnd - sOffset) < (short)(block + 1)) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    short key = sOffset;
+    gp.get_secure_channel().decryptData(baBuffer, key, block);
+    store.set_key(sSet, bKeyId, baBuffer, key, (byte)length);
+    sOffset += block;
+
+    // key check value: the first bytes of a block of '00' (DES) or '01'
+    // (AES) encrypted with the key, computed over the plaintext key
+    byte check = baBuffer[sOffset++];
+    if ((check != 0 && check != KCV_LENGTH) ||
+        (short)(sEnd - sOffset) < check) {
+      Util.arrayFillNonAtomic(baBuffer, key, block, (byte)0x00);
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    Object engine = store.get_engine(sSet, bKeyId);
+    if (type == key_store.TYPE_AES) {
+      Util.arrayFillNonAtomic(baBuffer, key, block, (byte)0x01);
+      ((aes_engine)engine).encrypt(baBuffer, key);
+    } else {
+      Util.arrayFillNonAtomic(baBuffer, key, block, (byte)0x00);
+      ((des_engine)engine).encrypt(baBuffer, key);
+    }
+    if (check != 0 &&
+        Util.arrayCompare(baBuffer, key, baBuffer, sOffset, check) != 0) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+    Util.arrayCopyNonAtomic(baBuffer, key, baBuffer, sCheck, KCV_LENGTH);
+    return (short)(sOffset + check);
+  }
+}
@@ -0,0 +1,227 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/**
+ * <p>Binary image of the GP registry.</p>
+ *
+ * <p>An image holds the whole registry (entries, privileges, life cycle
+ * states, security domain hierarchy and global service names) as the arrays
+ * the OPEN works on, so that restoring it is a sequence of bulk copies
+ * instead of the installation of each entity. The pages of the registry are
+ * only copied out of the image when they are first accessed.</p>
+ *
+ * <p>Layout (all numbers are big endian):</p>
+ * <ul>
+ * <li>4 bytes: magic number, "GPRI"</li>
+ * <li>1 byte: version of the format, <code>VERSION</code></li>
+ * <li>1 byte: <code>registry_table.PAGE_SHIFT</code></li>
+ * <li>2 bytes: <code>PlateformeGlobale.MAX_SECURITY_DOMAINS</code></li>
+ * <li>2 bytes: <code>PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE</code>
+ * </li>
+ * <li>2 bytes: length of the whole image</li>
+ * <li>the registry, see <code>registry_table.save</code></li>
+ * <li>the security domain hierarchy, see <code>sd_hierarchy.save</code></li>
+ * <li>the global service names, see <code>service_index.save</code></li>
+ * </ul>
+ *
+ * <p>The registry change journal and the global service providers are not
+ * part of an image.</p>
+ *
+ * <p>An image is a single array, so it is at most 32767 bytes long. A page
+ * of the registry takes <code>registry_table.PAGE_IMAGE_LENGTH</code> bytes
+ * (3200 bytes for 64 entries), so an image holds about 8 pages, that is
+ * some 510 entries; <code>length</code> refuses to write the image of a
+ * larger registry.</p>
+ */
+final class registry_image {
+
+  /**
+   * Version of the image format
+   */
+  static final byte VERSION = (byte)0x03;
+
+  /**
+   * Length of the header of an image
+   */
+  static final short HEADER_LENGTH = (short)12;
+
+  private static final byte[] MAGIC = {(byte)'G', (byte)'P', (byte)'R',
+                                       (byte)'I'};
+  private static final short OFFSET_VERSION = (short)4;
+  private static final short OFFSET_PAGE_SHIFT = (short)5;
+  private static final short OFFSET_MAX_SECURITY_DOMAINS = (short)6;
+  private static final short OFFSET_MAX_SERVICES = (short)8;
+  private static final short OFFSET_LENGTH = (short)10;
+
+  private registry_image() {}
+
+  /**
+   * @return The length of the image of a GP registry.
+   * @throws ISOException with reason code 0x6A84 («not enough memory space»,
+   *     see ISO7816-4) if the image would be longer than 32767 bytes.
+   */
+  static short length(PlateformeGlobale gp) throws ISOException {
+    int length = HEADER_LENGTH + gp.registry.image_length() +
+                 sd_hierarchy.IMAGE_LENGTH + gp.services.image_length();
+    if (length > 0x7FFF) {
+      ISOException.throwIt((short)0x6A84); // «not enough memory space», see
+                                           // ISO7816-4
+    }
+    return (short)length;
+  }
+
+  /**
+   * Write the image of a GP registry.
+   *
+   * @return <code>sOffset</code> + the length of the image.
+   */
+  static short write(PlateformeGlobale gp, byte[] baImage, short sOffset)
+      throws ISOException {
+    short length = length(gp);
+    short offset = Util.arrayCopyNonAtomic(MAGIC, (short)0, baImage, sOffset,
+                                           (short)MAGIC.length);
+    baImage[offset] = VERSION;
+    baImage[(short)(offset + 1)] = registry_table.PAGE_SHIFT;
+    offset = Util.setShort(baImage, (short)(offset + 2),
+                           PlateformeGlobale.MAX_SECURITY_DOMAINS);
+    offset = Util.setShort(baImage, offset,
+                           PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE);
+    offset = Util.setShort(baImage, offset, length);
+    offset = gp.registry.save(baImage, offset);
+    offset = gp.hierarchy.save(baImage, offset);
+    return gp.services.save(baImage, offset);
+  }
+
+  /**
+   * Check an image: its header, and the consistency of each of its sections,
+   * so that restoring it cannot fail.
+   *
+   * @return <code>true</code> if the image has been written by this version
+   *     of the OPEN, with the same configuration.
+   */
+  static boolean check(byte[] baImage) {
+    if (baImage == null || (short)baImage.length < HEADER_LENGTH ||
+        Util.arrayCompare(baImage, (short)0, MAGIC, (short)0,
+                          (short)MAGIC.length) != 0 ||
+        baImage[OFFSET_VERSION] != VERSION ||
+        baImage[OFFSET_PAGE_SHIFT] != registry_table.PAGE_SHIFT ||
+        Util.getShort(baImage, OFFSET_MAX_SECURITY_DOMAINS) !=
+            PlateformeGlobale.MAX_SECURITY_DOMAINS ||
+        Util.getShort(baImage, OFFSET_MAX_SERVICES) !=
+            PlateformeGlobale.MAX_GLOBAL_SERVICES_PER_INSTANCE ||
+        Util.getShort(baImage, OFFSET_LENGTH) != (short)baImage.length) {
+      return false;
+    }
+    short hierarchy = registry_table.check_image(baImage, HEADER_LENGTH);
+    if (hierarchy < 0) {
+      return false;
+    }
+    short entries = Util.getShort(baImage, HEADER_LENGTH); // high water mark
+    if (!sd_hierarchy.check_image(baImage, hierarchy, entries)) {
+      return false;
+    }
+    short services = (short)(hierarchy + sd_hierarchy.IMAGE_LENGTH);
+    return service_index.check_image(baImage, services, entries) ==
+               (short)baImage.length &&
+           registry_table.check_pages(
+               baImage, HEADER_LENGTH,
+               service_index.image_records(baImage, services));
+  }
+
+  /**
+   * Restore a GP registry from an image checked by <code>check</code>.
+   */
+  static void restore(PlateformeGlobale gp, byte[] baImage) {
+    short offset = gp.registry.load(baImage, HEADER_LENGTH);
+    offset = gp.hierarchy.load(baImage, offset);
+    gp.services.load(baImage, offset);
+  }
+
+  /**
+   * Write the first <code>sCount</code> elements of a <code>short</code>
+   * array, big endian.
+   *
+   * @return <code>sOffset</code> + 2 * <code>sCount</code>.
+   */
+  static short save_shorts(short[] array, short sCount, byte[] baImage,
+                           short sOffset) {
+    for (short i = 0; i < sCount; i++) {
+      sOffset = Util.setShort(baImage, sOffset, array[i]);
+    }
+    return sOffset;
+  }
+
+  /**
+   * Read the first <code>sCount</code> elements of a <code>short</code>
+   * array, big endian.
+   *
+   * @return <code>sOffset</code> + 2 * <code>sCount</code>.
+   */
+  static short load_shorts(byte[] baImage, short sOffset, short[] array,
+                           short sCount) {
+    for (short i = 0; i < sCount; i++) {
+      array[i] = Util.getShort(baImage, sOffset);
+      sOffset = (short)(sOffset + 2);
+    }
+    return sOffset;
+  }
+
+  /**
+   * Read the first <code>sLength</code> elements of a <code>byte</code>
+   * array. Unlike <code>Util.arrayCopyNonAtomic</code>, return the offset in
+   * the image.
+   *
+   * @return <code>sOffset</code> + <code>sLength</code>.
+   */
+  static short load_bytes(byte[] baImage, short sOffset, byte[] array,
+                          short sLength) {
+    Util.arrayCopyNonAtomic(baImage, sOffset, array, (short)0, sLength);
+    return (short)(sOffset + sLength);
+  }
+
+  /**
+   * Check that each of the <code>sCount</code> <code>short</code> values
+   * written at <code>sOffset</code> is -1 (<code>registry_table.NO_ENTRY
+   * </code>, <code>service_index.NO_RECORD</code>) or an index lower than
+   * <code>sBound</code>.
+   */
+  static boolean check_indexes(byte[] baImage, short sOffset, short sCount,
+                               short sBound) {
+    for (short i = 0; i < sCount; i++) {
+      short index = Util.getShort(baImage, sOffset);
+      if (index < -1 || index >= sBound) {
+        return false;
+      }
+      sOffset = (short)(sOffset + 2);
+    }
+    return true;
+  }
+}
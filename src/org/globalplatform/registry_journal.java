@@ -0,0 +1,201 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>Journal of the changes made to the GP registry.</p>
+ *
+ * <p>Events are appended to a ring of fixed length records, each one being
+ * given the next sequence number. The OPEN never waits for the readers: a
+ * record is written first, and only then published by incrementing the
+ * sequence number. The slot the next record is written into is never
+ * readable, so that a record torn by a power loss is never read: the ring
+ * holds <code>CAPACITY</code> - 1 readable records. Each reader keeps its own
+ * cursor, i.e. the sequence number of the next record it wants, and drains
+ * the journal in batches; a reader too slow to keep up with the ring is told
+ * so, and has to resynchronize.</p>
+ *
+ * <p>A record is built in transient memory and written into the ring with a
+ * single copy, over the oldest record: appending never moves the other
+ * records, and each byte of the ring is written once per record. Each event
+ * also has a counter of all the records it has been given, including those
+ * overwritten since; it is updated in the same transaction as the sequence
+ * number.</p>
+ *
+ * <p>Record layout:</p>
+ * <ul>
+ * <li>2 bytes: the 16 least significant bits of the sequence number</li>
+ * <li>1 byte: the event, see <code>PlateformeGlobale.JOURNAL_EVENT_*</code></li>
+ * <li>1 byte: the length of the AID of the entity</li>
+ * <li>16 bytes: the AID of the entity, padded with zeros</li>
+ * <li>2 bytes: first argument of the event</li>
+ * <li>2 bytes: second argument of the event</li>
+ * </ul>
+ */
+final class registry_journal {
+
+  /**
+   * Length of a record
+   */
+  static final short RECORD_LENGTH = (short)24;
+
+  /**
+   * Number of records kept in the ring. Must be a power of two.
+   */
+  static final short CAPACITY = (short)64;
+
+  private static final short OFFSET_SEQUENCE = (short)0;
+  private static final short OFFSET_EVENT = (short)2;
+  private static final short OFFSET_AID_LENGTH = (short)3;
+  private static final short OFFSET_AID = (short)4;
+  private static final short OFFSET_ARGUMENT_1 = (short)20;
+  private static final short OFFSET_ARGUMENT_2 = (short)22;
+
+  // events are numbered from 1
+  private static final byte EVENT_COUNT = (byte)8;
+
+  private final registry_table registry;
+  private final byte[] ring;
+  private int next_sequence = 0;
+  private final int[] counters = new int[EVENT_COUNT];
+  private final byte[] scratch; // the record being built
+
+  /**
+   * Class constructor
+   *
+   * @param registry The GP registry the events are about.
+   */
+  registry_journal(registry_table registry) {
+    this.registry = registry;
+    ring = new byte[(short)(CAPACITY * RECORD_LENGTH)];
+    scratch = JCSystem.makeTransientByteArray(RECORD_LENGTH,
+                                              JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * Append an event to the journal, overwriting the oldest record if the ring
+   * is full.
+   *
+   * @param bEvent The event.
+   * @param index The index of the entity in the GP registry.
+   * @param sArgument1 The first argument of the event.
+   * @param sArgument2 The second argument of the event.
+   */
+  void append(byte bEvent, short index, short sArgument1, short sArgument2) {
+    Util.arrayFillNonAtomic(scratch, (short)0, RECORD_LENGTH, (byte)0x00);
+    Util.setShort(scratch, OFFSET_SEQUENCE, (short)next_sequence);
+    scratch[OFFSET_EVENT] = bEvent;
+    scratch[OFFSET_AID_LENGTH] = registry.get_aid(index, scratch, OFFSET_AID);
+    Util.setShort(scratch, OFFSET_ARGUMENT_1, sArgument1);
+    Util.setShort(scratch, OFFSET_ARGUMENT_2, sArgument2);
+    Util.arrayCopyNonAtomic(
+        scratch, (short)0, ring,
+        (short)((short)(next_sequence & (CAPACITY - 1)) * RECORD_LENGTH),
+        RECORD_LENGTH);
+    // publish the record and count it at once
+    boolean transaction = JCSystem.getTransactionDepth() == 0;
+    if (transaction) {
+      JCSystem.beginTransaction();
+    }
+    if (bEvent > 0 && bEvent < EVENT_COUNT) {
+      counters[bEvent]++;
+    }
+    next_sequence++;
+    if (transaction) {
+      JCSystem.commitTransaction();
+    }
+  }
+
+  /**
+   * @return The number of records an event has been given since the OPEN
+   *     was created.
+   */
+  int get_counter(byte bEvent) {
+    if (bEvent <= 0 || bEvent >= EVENT_COUNT) {
+      return 0;
+    }
+    return counters[bEvent];
+  }
+
+  /**
+   * @return The sequence number the next event will be given.
+   */
+  int get_next_sequence() { return next_sequence; }
+
+  /**
+   * @return The sequence number of the oldest record which can be read. The
+   *     record in the slot the next append overwrites is not readable.
+   */
+  int get_oldest_sequence() {
+    if (next_sequence < (short)(CAPACITY - 1)) {
+      return 0;
+    }
+    return next_sequence - (CAPACITY - 1);
+  }
+
+  /**
+   * Copy a batch of records, starting at a given sequence number.
+   *
+   * @param iFrom The sequence number of the first record to copy.
+   * @param baBuffer The destination array.
+   * @param sOffset The offset in <code>baBuffer</code>.
+   * @param sLength The room available in <code>baBuffer</code>.
+   * @return The number of records copied. 0 if there is no record after
+   *     <code>iFrom</code> yet.
+   * @throws ISOException with reason code 0x6A88 («referenced data not found»,
+   *     see ISO7816-4) if the first record has already been overwritten, or if
+   *     <code>iFrom</code> has not been given yet.
+   */
+  short read(int iFrom, byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    if (iFrom < get_oldest_sequence() || iFrom > next_sequence) {
+      ISOException.throwIt((short)0x6A88); // «referenced data not found», see
+                                           // ISO7816-4
+    }
+    short count = (short)(sLength / RECORD_LENGTH);
+    if ((int)count > next_sequence - iFrom) {
+      count = (short)(next_sequence - iFrom);
+    }
+    // at most two runs of records: up to the end of the ring, then from its
+    // start
+    short first = (short)(iFrom & (CAPACITY - 1));
+    short run = (short)(CAPACITY - first);
+    if (run > count) {
+      run = count;
+    }
+    sOffset = Util.arrayCopyNonAtomic(ring, (short)(first * RECORD_LENGTH),
+                                      baBuffer, sOffset,
+                                      (short)(run * RECORD_LENGTH));
+    Util.arrayCopyNonAtomic(ring, (short)0, baBuffer, sOffset,
+                            (short)((short)(count - run) * RECORD_LENGTH));
+    return count;
+  }
+}
@@ -0,0 +1,982 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.*;
+
+/**
+ * <p>Storage engine of the GlobalPlatform registry.</p>
+ *
+ * <p>Every attribute of the registry (AID bytes, life cycle states,
+ * privileges, associated security domain, ...) is kept in its own array. The
+ * arrays are split into pages of <code>PAGE_SIZE</code> entries, and pages are
+ * only allocated when the registry grows; the registry is thus not bounded by
+ * the <code>MAX_ELF</code>, <code>MAX_EM_PER_ELF</code> and
+ * <code>MAX_INSTANCES_PER_EM</code> constants anymore, but only by the
+ * <code>short</code> indexes used throughout the OPEN.</p>
+ *
+ * <p>An entry is identified by its index, which remains valid until the entry
+ * is released. AIDs are indexed in a chained hash table, so that looking an
+ * entry up by its AID does not depend on the size of the registry. The
+ * entries of each kind are also chained in allocation order, so that the
+ * load files or the instances are listed without walking the other
+ * entries.</p>
+ *
+ * <p>When the registry is restored from an image (see
+ * <code>registry_image</code>), a page is only materialized from the image the
+ * first time one of its entries is accessed.</p>
+ */
+final class registry_table {
+
+  /**
+   * Kind of a slot which does not hold any entry
+   */
+  static final byte KIND_FREE = (byte)0x00;
+
+  /**
+   * Kind of an Executable Load File entry
+   */
+  static final byte KIND_ELF = (byte)0x01;
+
+  /**
+   * Kind of an Executable Module entry
+   */
+  static final byte KIND_EM = (byte)0x02;
+
+  /**
+   * Kind of an application or security domain instance entry
+   */
+  static final byte KIND_INSTANCE = (byte)0x03;
+
+  /**
+   * Index value meaning "no entry"
+   */
+  static final short NO_ENTRY = (short)-1;
+
+  /**
+   * Number of bytes reserved for each AID. An AID is at most 16 bytes long.
+   */
+  static final byte AID_SLOT_LENGTH = (byte)16;
+
+  /**
+   * Number of bytes used to code the privileges of an entry
+   */
+  static final byte PRIVILEGES_LENGTH = (byte)3;
+
+  static final byte PAGE_SHIFT = (byte)6;
+  static final short PAGE_SIZE = (short)(1 << PAGE_SHIFT);
+  static final short PAGE_MASK = (short)(PAGE_SIZE - 1);
+
+  /**
+   * Maximum number of pages, so that every index fits in a positive
+   * <code>short</code>
+   */
+  static final short MAX_PAGES = (short)(0x7FFF >> PAGE_SHIFT);
+
+  /**
+   * Length of a page in a registry image
+   */
+  static final short PAGE_IMAGE_LENGTH =
+      (short)(PAGE_SIZE * (AID_SLOT_LENGTH + 6 + 4 + 12 * 2));
+
+  private static final short INITIAL_PAGES = (short)4;
+  private static final short INITIAL_BUCKETS = (short)64;
+  private static final short MAX_BUCKETS = (short)4096;
+  private static final short KINDS = (short)(KIND_INSTANCE + 1);
+
+  /**
+   * One page of the registry: the same attribute of <code>PAGE_SIZE</code>
+   * consecutive entries is stored contiguously.
+   */
+  private static final class page {
+    final byte[] aid = new byte[PAGE_SIZE * AID_SLOT_LENGTH];
+    final byte[] aid_length = new byte[PAGE_SIZE];
+    final byte[] kind = new byte[PAGE_SIZE];
+    final byte[] life_cycle = new byte[PAGE_SIZE];
+    final byte[] previous_life_cycle = new byte[PAGE_SIZE];
+    final byte[] implicit_selection = new byte[PAGE_SIZE];
+    final byte[] sd_ordinal = new byte[PAGE_SIZE];
+    final int[] privileges = new int[PAGE_SIZE];
+    final short[] security_domain = new short[PAGE_SIZE];
+    final short[] owner = new short[PAGE_SIZE];
+    final short[] first_child = new short[PAGE_SIZE];
+    final short[] next_sibling = new short[PAGE_SIZE];
+    final short[] previous_sibling = new short[PAGE_SIZE];
+    final short[] first_associate = new short[PAGE_SIZE];
+    final short[] next_associate = new short[PAGE_SIZE];
+    final short[] previous_associate = new short[PAGE_SIZE];
+    final short[] hash_next = new short[PAGE_SIZE];
+    final short[] next_of_kind = new short[PAGE_SIZE];
+    final short[] previous_of_kind = new short[PAGE_SIZE];
+    final short[] first_service = new short[PAGE_SIZE];
+    final entity_file[] view = new entity_file[PAGE_SIZE];
+    final globalServiceProvider[] provider =
+        new globalServiceProvider[PAGE_SIZE];
+  }
+
+  private page[] pages;
+  private short page_count = 0;
+  private short high_water = 0; // slots [0, high_water) have been used once
+  private short live_count = 0;
+  private short free_head = NO_ENTRY;
+  private short[] buckets;
+  private final short[] first_of_kind; // entries of each kind, in allocation
+  private final short[] last_of_kind;  // order, indexed by KIND_*
+  private final byte[] scratch_aid;
+  private byte[] image = null; // image the missing pages are restored from
+  private short image_pages;   // offset of the first page in the image
+
+  /**
+   * Class constructor. No page is allocated before the first entry is.
+   */
+  registry_table() {
+    pages = new page[INITIAL_PAGES];
+    buckets = new short[INITIAL_BUCKETS];
+    fill(buckets, NO_ENTRY);
+    first_of_kind = new short[KINDS];
+    fill(first_of_kind, NO_ENTRY);
+    last_of_kind = new short[KINDS];
+    fill(last_of_kind, NO_ENTRY);
+    scratch_aid = JCSystem.makeTransientByteArray((short)AID_SLOT_LENGTH,
+                                                  JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * Create a new entry. The new entry has no privilege, no associated
+   * security domain, no owner and no recorded global service.
+   *
+   * @param bKind The kind of the new entry (<code>KIND_ELF</code>,
+   *     <code>KIND_EM</code> or <code>KIND_INSTANCE</code>).
+   * @param baAID The array containing the AID of the new entry.
+   * @param sOffset The offset of the AID in <code>baAID</code>.
+   * @param bLength The length of the AID.
+   * @return The index of the new entry, or <code>NO_ENTRY</code> if the AID is
+   *     invalid, already used, or if the registry is full.
+   */
+  short allocate(byte bKind, byte[] baAID, short sOffset, byte bLength) {
+    if (bLength < 5 || bLength > AID_SLOT_LENGTH) {
+      return NO_ENTRY;
+    }
+    if (find(baAID, sOffset, bLength) != NO_ENTRY) {
+      return NO_ENTRY;
+    }
+
+    short index = free_head;
+    if (index != NO_ENTRY) {
+      free_head = page_of(index).hash_next[(short)(index & PAGE_MASK)];
+    } else {
+      if (high_water == (short)(page_count << PAGE_SHIFT) && !grow()) {
+        return NO_ENTRY;
+      }
+      index = high_water;
+      high_water++;
+    }
+
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    Util.arrayCopyNonAtomic(baAID, sOffset, p.aid,
+                            (short)(slot * AID_SLOT_LENGTH), bLength);
+    p.aid_length[slot] = bLength;
+    p.kind[slot] = bKind;
+    p.life_cycle[slot] = (byte)0x00;
+    p.previous_life_cycle[slot] = (byte)0x00;
+    p.implicit_selection[slot] = (byte)0x00;
+    p.sd_ordinal[slot] = sd_hierarchy.NO_ORDINAL;
+    p.privileges[slot] = 0;
+    p.security_domain[slot] = NO_ENTRY;
+    p.owner[slot] = NO_ENTRY;
+    p.first_child[slot] = NO_ENTRY;
+    p.next_sibling[slot] = NO_ENTRY;
+    p.previous_sibling[slot] = NO_ENTRY;
+    p.first_associate[slot] = NO_ENTRY;
+    p.next_associate[slot] = NO_ENTRY;
+    p.previous_associate[slot] = NO_ENTRY;
+    p.first_service[slot] = service_index.NO_RECORD;
+    p.view[slot] = null;
+    p.provider[slot] = null;
+
+    short bucket = bucket_of(baAID, sOffset, bLength);
+    p.hash_next[slot] = buckets[bucket];
+    buckets[bucket] = index;
+
+    short last = last_of_kind[bKind];
+    p.previous_of_kind[slot] = last;
+    p.next_of_kind[slot] = NO_ENTRY;
+    if (last == NO_ENTRY) {
+      first_of_kind[bKind] = index;
+    } else {
+      page_of(last).next_of_kind[(short)(last & PAGE_MASK)] = index;
+    }
+    last_of_kind[bKind] = index;
+    live_count++;
+    if (live_count > (short)(buckets.length << 1) &&
+        buckets.length < MAX_BUCKETS) {
+      rehash((short)(buckets.length << 1));
+    }
+    return index;
+  }
+
+  /**
+   * Remove an entry. The entry is unlinked from the AID hash table, from the
+   * list of the entries of its kind, from the list of the entries owned by
+   * its owner and from the list of the entries associated with its security
+   * domain, and its slot is reused by the next
+   * allocation. Its <code>entity_file</code>, if any, is revoked so that it
+   * never reaches the next entry of the slot. The entry must not own, or have
+   * associated, any other entry.
+   *
+   * @param index The index of the entry.
+   */
+  void release(short index) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+
+    short bucket = bucket_of(p.aid, (short)(slot * AID_SLOT_LENGTH),
+                             p.aid_length[slot]);
+    if (buckets[bucket] == index) {
+      buckets[bucket] = p.hash_next[slot];
+    } else {
+      short previous = buckets[bucket];
+      while (get_hash_next(previous) != index) {
+        previous = get_hash_next(previous);
+      }
+      page_of(previous).hash_next[(short)(previous & PAGE_MASK)] =
+          p.hash_next[slot];
+    }
+
+    unlink_kind(index);
+    if (p.owner[slot] != NO_ENTRY) {
+      unlink_child(index);
+    }
+    if (p.security_domain[slot] != NO_ENTRY && p.security_domain[slot] != index) {
+      unlink_associate(index);
+    }
+
+    p.kind[slot] = KIND_FREE;
+    p.aid_length[slot] = 0;
+    if (p.view[slot] != null) {
+      p.view[slot].revoke();
+    }
+    p.view[slot] = null;
+    p.provider[slot] = null;
+    p.hash_next[slot] = free_head;
+    free_head = index;
+    live_count--;
+  }
+
+  /**
+   * Look an entry up by its AID.
+   *
+   * @param baAID The array containing the AID.
+   * @param sOffset The offset of the AID in <code>baAID</code>.
+   * @param bLength The length of the AID.
+   * @return The index of the entry, or <code>NO_ENTRY</code> if there is none.
+   */
+  short find(byte[] baAID, short sOffset, byte bLength) {
+    short index = buckets[bucket_of(baAID, sOffset, bLength)];
+    while (index != NO_ENTRY) {
+      page p = page_of(index);
+      short slot = (short)(index & PAGE_MASK);
+      if (p.aid_length[slot] == bLength &&
+          Util.arrayCompare(p.aid, (short)(slot * AID_SLOT_LENGTH), baAID,
+                            sOffset, bLength) == 0) {
+        return index;
+      }
+      index = p.hash_next[slot];
+    }
+    return NO_ENTRY;
+  }
+
+  /**
+   * Look an entry up by its AID.
+   *
+   * @param aid The AID of the entry.
+   * @return The index of the entry, or <code>NO_ENTRY</code> if there is none
+   *     or if <code>aid</code> is <code>null</code>.
+   */
+  short find(AID aid) {
+    if (aid == null) {
+      return NO_ENTRY;
+    }
+    byte length = aid.getBytes(scratch_aid, (short)0);
+    return find(scratch_aid, (short)0, length);
+  }
+
+  /**
+   * @return The number of slots which may hold an entry. Valid indexes are in
+   *     the range [0, <code>size()</code>), but some of them may be free.
+   */
+  short size() { return high_water; }
+
+  /**
+   * @return The number of entries currently in the registry.
+   */
+  short count() { return live_count; }
+
+  /**
+   * @param index An index.
+   * @return <code>true</code> if <code>index</code> designates an entry.
+   */
+  boolean is_used(short index) {
+    return index >= 0 && index < high_water && get_kind(index) != KIND_FREE;
+  }
+
+  byte get_kind(short index) {
+    return page_of(index).kind[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * @return The first entry of a kind (<code>KIND_ELF</code>,
+   *     <code>KIND_EM</code> or <code>KIND_INSTANCE</code>) in allocation
+   *     order, or <code>NO_ENTRY</code> if there is none.
+   */
+  short get_first_of_kind(byte bKind) { return first_of_kind[bKind]; }
+
+  /**
+   * @return The next entry of the same kind as this one.
+   */
+  short get_next_of_kind(short index) {
+    return page_of(index).next_of_kind[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * Copy the AID of an entry.
+   *
+   * @return The length of the AID.
+   */
+  byte get_aid(short index, byte[] baBuffer, short sOffset) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    Util.arrayCopyNonAtomic(p.aid, (short)(slot * AID_SLOT_LENGTH), baBuffer,
+                            sOffset, p.aid_length[slot]);
+    return p.aid_length[slot];
+  }
+
+  byte get_aid_length(short index) {
+    return page_of(index).aid_length[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * @return <code>true</code> if <code>aid</code> is the AID of the entry.
+   */
+  boolean aid_equals(short index, AID aid) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    return aid.equals(p.aid, (short)(slot * AID_SLOT_LENGTH),
+                      p.aid_length[slot]);
+  }
+
+  /**
+   * @return <code>true</code> if the AID of the entry starts with the
+   *     <code>bLength</code> bytes of <code>baPrefix</code> at
+   *     <code>sOffset</code>.
+   */
+  boolean aid_starts_with(short index, byte[] baPrefix, short sOffset,
+                          byte bLength) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    return p.aid_length[slot] >= bLength &&
+           Util.arrayCompare(p.aid, (short)(slot * AID_SLOT_LENGTH), baPrefix,
+                             sOffset, bLength) == 0;
+  }
+
+  /**
+   * @return A new AID object holding the AID of the entry.
+   */
+  AID make_aid(short index) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    return new AID(p.aid, (short)(slot * AID_SLOT_LENGTH), p.aid_length[slot]);
+  }
+
+  byte get_life_cycle(short index) {
+    return page_of(index).life_cycle[(short)(index & PAGE_MASK)];
+  }
+
+  byte get_previous_life_cycle(short index) {
+    return page_of(index).previous_life_cycle[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * Set the life cycle state of an entry without keeping track of the
+   * previous one.
+   */
+  void set_life_cycle(short index, byte bState) {
+    page_of(index).life_cycle[(short)(index & PAGE_MASK)] =
+        bState;
+  }
+
+  /**
+   * Set the life cycle state of an entry, the current one becoming the
+   * previous life cycle state.
+   */
+  void change_life_cycle(short index, byte bState) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    p.previous_life_cycle[slot] = p.life_cycle[slot];
+    p.life_cycle[slot] = bState;
+  }
+
+  byte get_implicit_selection(short index) {
+    return page_of(index).implicit_selection[(short)(index & PAGE_MASK)];
+  }
+
+  void set_implicit_selection(short index, byte bParameter) {
+    page_of(index).implicit_selection[(short)(index & PAGE_MASK)] = bParameter;
+  }
+
+  /**
+   * @return The privileges of an entry, packed in an <code>int</code>: the 3
+   *     low order bytes are the privileges coded as specified in the GP
+   *     specification. See <code>entity_file.privilege_bit</code>.
+   */
+  int get_privilege_mask(short index) {
+    return page_of(index).privileges[(short)(index & PAGE_MASK)];
+  }
+
+  void set_privilege_mask(short index, int iPrivileges) {
+    page_of(index).privileges[(short)(index & PAGE_MASK)] =
+        iPrivileges;
+  }
+
+  /**
+   * Copy the privileges of an entry, coded as specified in the GP
+   * specification.
+   *
+   * @return <code>sOffset</code> + the length of the privileges.
+   */
+  short get_privileges(short index, byte[] baBuffer, short sOffset) {
+    int mask = get_privilege_mask(index);
+    baBuffer[sOffset] = (byte)(mask >> 16);
+    baBuffer[(short)(sOffset + 1)] = (byte)(mask >> 8);
+    baBuffer[(short)(sOffset + 2)] = (byte)mask;
+    return (short)(sOffset + PRIVILEGES_LENGTH);
+  }
+
+  /**
+   * Set the privileges of an entry, coded as specified in the GP
+   * specification.
+   */
+  void set_privileges(short index, byte[] baBuffer, short sOffset) {
+    set_privilege_mask(index,
+                       ((baBuffer[sOffset] & 0xFF) << 16) |
+                           ((baBuffer[(short)(sOffset + 1)] & 0xFF) << 8) |
+                           (baBuffer[(short)(sOffset + 2)] & 0xFF));
+  }
+
+  /**
+   * @return The index of the security domain associated with the entry. The
+   *     root security domain is associated with itself.
+   */
+  short get_security_domain(short index) {
+    return page_of(index).security_domain[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * Associate an entry with a security domain, and add it to the list of the
+   * entries associated with this security domain.
+   */
+  void set_security_domain(short index, short sSecurityDomain) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    if (p.security_domain[slot] != NO_ENTRY && p.security_domain[slot] != index) {
+      unlink_associate(index);
+    }
+    p.security_domain[slot] = sSecurityDomain;
+    p.previous_associate[slot] = NO_ENTRY;
+    p.next_associate[slot] = NO_ENTRY;
+    if (sSecurityDomain != index) // the root is not associated with itself
+    {
+      page sd = page_of(sSecurityDomain);
+      short sd_slot = (short)(sSecurityDomain & PAGE_MASK);
+      short first = sd.first_associate[sd_slot];
+      p.next_associate[slot] = first;
+      if (first != NO_ENTRY) {
+        page_of(first).previous_associate[(short)(first & PAGE_MASK)] = index;
+      }
+      sd.first_associate[sd_slot] = index;
+    }
+  }
+
+  /**
+   * @return The first entry associated with a security domain, itself
+   *     excepted.
+   */
+  short get_first_associate(short index) {
+    return page_of(index).first_associate[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * @return The next entry associated with the same security domain as this
+   *     one.
+   */
+  short get_next_associate(short index) {
+    return page_of(index).next_associate[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * @return The ordinal of the entry in the security domain hierarchy, or
+   *     <code>sd_hierarchy.NO_ORDINAL</code> if it is not a security domain.
+   */
+  byte get_sd_ordinal(short index) {
+    return page_of(index).sd_ordinal[(short)(index & PAGE_MASK)];
+  }
+
+  void set_sd_ordinal(short index, byte bOrdinal) {
+    page_of(index).sd_ordinal[(short)(index & PAGE_MASK)] =
+        bOrdinal;
+  }
+
+  /**
+   * @return The index of the entry owning this one: the Executable Load File
+   *     of an Executable Module, or the Executable Module of an instance.
+   */
+  short get_owner(short index) {
+    return page_of(index).owner[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * @return The first entry owned by this one (see <code>get_owner</code>).
+   */
+  short get_first_child(short index) {
+    return page_of(index).first_child[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * @return The next entry having the same owner as this one.
+   */
+  short get_next_sibling(short index) {
+    return page_of(index).next_sibling[(short)(index & PAGE_MASK)];
+  }
+
+  /**
+   * Record <code>sOwner</code> as the owner of an entry, and add the entry to
+   * the list of the entries it owns.
+   */
+  void set_owner(short index, short sOwner) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    p.owner[slot] = sOwner;
+    page o = page_of(sOwner);
+    short owner_slot = (short)(sOwner & PAGE_MASK);
+    short first = o.first_child[owner_slot];
+    p.next_sibling[slot] = first;
+    p.previous_sibling[slot] = NO_ENTRY;
+    if (first != NO_ENTRY) {
+      page_of(first).previous_sibling[(short)(first & PAGE_MASK)] = index;
+    }
+    o.first_child[owner_slot] = index;
+  }
+
+  /**
+   * @return The first global service record of the entry in the service
+   *     index, or <code>service_index.NO_RECORD</code> if no service name is
+   *     recorded for it.
+   */
+  short get_first_service(short index) {
+    return page_of(index).first_service[(short)(index & PAGE_MASK)];
+  }
+
+  void set_first_service(short index, short sRecord) {
+    page_of(index).first_service[(short)(index & PAGE_MASK)] = sRecord;
+  }
+
+  globalServiceProvider get_provider(short index) {
+    return page_of(index).provider[(short)(index & PAGE_MASK)];
+  }
+
+  void set_provider(short index, globalServiceProvider provider) {
+    page_of(index).provider[(short)(index & PAGE_MASK)] =
+        provider;
+  }
+
+  /**
+   * Return the <code>entity_file</code> giving access to an entry through the
+   * OPEN API. It is only created the first time it is requested.
+   */
+  entity_file get_view(short index) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    if (p.view[slot] == null) {
+      p.view[slot] = new entity_file(index);
+    }
+    return p.view[slot];
+  }
+
+  /**
+   * @return The length of the registry in an image, which exceeds 32767
+   *     bytes beyond 10 pages.
+   */
+  int image_length() {
+    return 10 + (buckets.length + KINDS * 2) * 2 +
+           page_count * PAGE_IMAGE_LENGTH;
+  }
+
+  /**
+   * Check the counters, the AID hash table and the heads of the lists of the
+   * entries of each kind of the registry written at <code>sOffset</code> of
+   * an image, and that its pages lie within the image. The pages are checked
+   * by <code>check_pages</code>.
+   *
+   * @return The offset following the registry in the image, -1 if it is not
+   *     consistent.
+   */
+  static short check_image(byte[] baImage, short sOffset) {
+    if ((short)(baImage.length - sOffset) < 10) {
+      return (short)-1;
+    }
+    short entries = Util.getShort(baImage, sOffset);
+    short pages = Util.getShort(baImage, (short)(sOffset + 2));
+    short live = Util.getShort(baImage, (short)(sOffset + 4));
+    short free = Util.getShort(baImage, (short)(sOffset + 6));
+    short buckets = Util.getShort(baImage, (short)(sOffset + 8));
+    if (pages < 0 || pages > MAX_PAGES || entries < 0 ||
+        entries > pages * PAGE_SIZE || live < 0 || live > entries ||
+        free < NO_ENTRY || free >= entries || buckets <= 0 ||
+        buckets > MAX_BUCKETS || (buckets & (short)(buckets - 1)) != 0 ||
+        sOffset + 10 + (buckets + KINDS * 2) * 2 +
+                pages * PAGE_IMAGE_LENGTH >
+            baImage.length ||
+        !registry_image.check_indexes(baImage, (short)(sOffset + 10),
+                                      (short)(buckets + KINDS * 2),
+                                      entries)) {
+      return (short)-1;
+    }
+    return (short)(sOffset + 10 + (buckets + KINDS * 2) * 2 +
+                   pages * PAGE_IMAGE_LENGTH);
+  }
+
+  /**
+   * Check the used slots of the pages of the registry written at
+   * <code>sOffset</code> of an image checked by <code>check_image</code>:
+   * AID lengths, security domain ordinals, links between entries and links
+   * to the <code>sRecords</code> records of the global service index.
+   */
+  static boolean check_pages(byte[] baImage, short sOffset, short sRecords) {
+    short entries = Util.getShort(baImage, sOffset);
+    short offset =
+        (short)(sOffset + 10 +
+                (Util.getShort(baImage, (short)(sOffset + 8)) + KINDS * 2) * 2);
+    for (short first = 0; first < entries;
+         first = (short)(first + PAGE_SIZE)) {
+      short used = (short)(entries - first);
+      if (used > PAGE_SIZE) {
+        used = PAGE_SIZE;
+      }
+      short field = (short)(offset + PAGE_SIZE * AID_SLOT_LENGTH);
+      for (short i = 0; i < used; i++) {
+        short ordinal = baImage[(short)(field + 5 * PAGE_SIZE + i)];
+        if ((baImage[(short)(field + i)] & 0xFF) > AID_SLOT_LENGTH ||
+            ordinal < sd_hierarchy.NO_ORDINAL ||
+            ordinal >= PlateformeGlobale.MAX_SECURITY_DOMAINS) {
+          return false;
+        }
+      }
+      // security_domain to previous_of_kind link entries, first_service
+      // records
+      field = (short)(field + PAGE_SIZE * (6 + 4));
+      for (short array = 0; array < 11; array++) {
+        if (!registry_image.check_indexes(baImage, field, used, entries)) {
+          return false;
+        }
+        field = (short)(field + PAGE_SIZE * 2);
+      }
+      if (!registry_image.check_indexes(baImage, field, used, sRecords)) {
+        return false;
+      }
+      offset = (short)(offset + PAGE_IMAGE_LENGTH);
+    }
+    return true;
+  }
+
+  /**
+   * Write the registry into an image. Views and global service providers are
+   * objects of the running card, and are not part of the image.
+   *
+   * @return <code>sOffset</code> + the length of the registry in the image.
+   */
+  short save(byte[] baImage, short sOffset) {
+    sOffset = Util.setShort(baImage, sOffset, high_water);
+    sOffset = Util.setShort(baImage, sOffset, page_count);
+    sOffset = Util.setShort(baImage, sOffset, live_count);
+    sOffset = Util.setShort(baImage, sOffset, free_head);
+    sOffset = Util.setShort(baImage, sOffset, (short)buckets.length);
+    sOffset = registry_image.save_shorts(buckets, (short)buckets.length,
+                                         baImage, sOffset);
+    sOffset = registry_image.save_shorts(first_of_kind, KINDS, baImage,
+                                         sOffset);
+    sOffset =
+        registry_image.save_shorts(last_of_kind, KINDS, baImage, sOffset);
+    for (short number = 0; number < page_count; number++) {
+      page p = page_of((short)(number << PAGE_SHIFT));
+      sOffset = Util.arrayCopyNonAtomic(p.aid, (short)0, baImage, sOffset,
+                                        (short)p.aid.length);
+      sOffset = Util.arrayCopyNonAtomic(p.aid_length, (short)0, baImage,
+                                        sOffset, PAGE_SIZE);
+      sOffset = Util.arrayCopyNonAtomic(p.kind, (short)0, baImage, sOffset,
+                                        PAGE_SIZE);
+      sOffset = Util.arrayCopyNonAtomic(p.life_cycle, (short)0, baImage,
+                                        sOffset, PAGE_SIZE);
+      sOffset = Util.arrayCopyNonAtomic(p.previous_life_cycle, (short)0,
+                                        baImage, sOffset, PAGE_SIZE);
+      sOffset = Util.arrayCopyNonAtomic(p.implicit_selection, (short)0,
+                                        baImage, sOffset, PAGE_SIZE);
+      sOffset = Util.arrayCopyNonAtomic(p.sd_ordinal, (short)0, baImage,
+                                        sOffset, PAGE_SIZE);
+      for (short i = 0; i < PAGE_SIZE; i++) {
+        sOffset = Util.setShort(baImage, sOffset,
+                                (short)(p.privileges[i] >> 16));
+        sOffset = Util.setShort(baImage, sOffset, (short)p.privileges[i]);
+      }
+      sOffset = registry_image.save_shorts(p.security_domain, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset =
+          registry_image.save_shorts(p.owner, PAGE_SIZE, baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.first_child, PAGE_SIZE, baImage,
+                                           sOffset);
+      sOffset = registry_image.save_shorts(p.next_sibling, PAGE_SIZE, baImage,
+                                           sOffset);
+      sOffset = registry_image.save_shorts(p.previous_sibling, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.first_associate, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.next_associate, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.previous_associate, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.hash_next, PAGE_SIZE, baImage,
+                                           sOffset);
+      sOffset = registry_image.save_shorts(p.next_of_kind, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.previous_of_kind, PAGE_SIZE,
+                                           baImage, sOffset);
+      sOffset = registry_image.save_shorts(p.first_service, PAGE_SIZE,
+                                           baImage, sOffset);
+    }
+    return sOffset;
+  }
+
+  /**
+   * Restore the registry from an image checked by <code>check_image</code>
+   * and <code>check_pages</code>.
+   * Only the AID hash table is read; the pages are materialized on demand, so
+   * <code>baImage</code> must not be modified afterwards.
+   *
+   * @return <code>sOffset</code> + the length of the registry in the image.
+   */
+  short load(byte[] baImage, short sOffset) {
+    high_water = Util.getShort(baImage, sOffset);
+    page_count = Util.getShort(baImage, (short)(sOffset + 2));
+    live_count = Util.getShort(baImage, (short)(sOffset + 4));
+    free_head = Util.getShort(baImage, (short)(sOffset + 6));
+    buckets = new short[Util.getShort(baImage, (short)(sOffset + 8))];
+    sOffset = registry_image.load_shorts(baImage, (short)(sOffset + 10),
+                                         buckets, (short)buckets.length);
+    sOffset =
+        registry_image.load_shorts(baImage, sOffset, first_of_kind, KINDS);
+    sOffset = registry_image.load_shorts(baImage, sOffset, last_of_kind, KINDS);
+    short length = INITIAL_PAGES;
+    while (length < page_count && length < MAX_PAGES) {
+      length = (short)(length << 1);
+    }
+    if (length > MAX_PAGES) {
+      length = MAX_PAGES;
+    }
+    pages = new page[length];
+    image = baImage;
+    image_pages = sOffset;
+    return (short)(sOffset + page_count * PAGE_IMAGE_LENGTH);
+  }
+
+  /**
+   * @return The page holding an entry, materialized from the image if it has
+   *     not been accessed yet.
+   */
+  private page page_of(short index) {
+    short number = (short)(index >> PAGE_SHIFT);
+    page p = pages[number];
+    if (p != null) {
+      return p;
+    }
+    p = new page();
+    short offset = (short)(image_pages + number * PAGE_IMAGE_LENGTH);
+    offset = registry_image.load_bytes(image, offset, p.aid,
+                                       (short)p.aid.length);
+    offset =
+        registry_image.load_bytes(image, offset, p.aid_length, PAGE_SIZE);
+    offset = registry_image.load_bytes(image, offset, p.kind, PAGE_SIZE);
+    offset =
+        registry_image.load_bytes(image, offset, p.life_cycle, PAGE_SIZE);
+    offset = registry_image.load_bytes(image, offset, p.previous_life_cycle,
+                                       PAGE_SIZE);
+    offset = registry_image.load_bytes(image, offset, p.implicit_selection,
+                                       PAGE_SIZE);
+    offset =
+        registry_image.load_bytes(image, offset, p.sd_ordinal, PAGE_SIZE);
+    for (short i = 0; i < PAGE_SIZE; i++) {
+      p.privileges[i] = (Util.getShort(image, offset) << 16) |
+                        (Util.getShort(image, (short)(offset + 2)) & 0xFFFF);
+      offset = (short)(offset + 4);
+    }
+    offset = registry_image.load_shorts(image, offset, p.security_domain,
+                                        PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.owner, PAGE_SIZE);
+    offset =
+        registry_image.load_shorts(image, offset, p.first_child, PAGE_SIZE);
+    offset =
+        registry_image.load_shorts(image, offset, p.next_sibling, PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.previous_sibling,
+                                        PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.first_associate,
+                                        PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.next_associate,
+                                        PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.previous_associate,
+                                        PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.hash_next, PAGE_SIZE);
+    offset =
+        registry_image.load_shorts(image, offset, p.next_of_kind, PAGE_SIZE);
+    offset = registry_image.load_shorts(image, offset, p.previous_of_kind,
+                                        PAGE_SIZE);
+    registry_image.load_shorts(image, offset, p.first_service, PAGE_SIZE);
+    pages[number] = p;
+    return p;
+  }
+
+  private short get_hash_next(short index) {
+    return page_of(index).hash_next[(short)(index & PAGE_MASK)];
+  }
+
+  private void unlink_child(short index) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    short previous = p.previous_sibling[slot];
+    short next = p.next_sibling[slot];
+    if (previous == NO_ENTRY) {
+      short owner = p.owner[slot];
+      page_of(owner).first_child[(short)(owner & PAGE_MASK)] = next;
+    } else {
+      page_of(previous).next_sibling[(short)(previous & PAGE_MASK)] = next;
+    }
+    if (next != NO_ENTRY) {
+      page_of(next).previous_sibling[(short)(next & PAGE_MASK)] = previous;
+    }
+  }
+
+  private void unlink_kind(short index) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    byte kind = p.kind[slot];
+    short previous = p.previous_of_kind[slot];
+    short next = p.next_of_kind[slot];
+    if (previous == NO_ENTRY) {
+      first_of_kind[kind] = next;
+    } else {
+      page_of(previous).next_of_kind[(short)(previous & PAGE_MASK)] = next;
+    }
+    if (next == NO_ENTRY) {
+      last_of_kind[kind] = previous;
+    } else {
+      page_of(next).previous_of_kind[(short)(next & PAGE_MASK)] = previous;
+    }
+  }
+
+  private void unlink_associate(short index) {
+    page p = page_of(index);
+    short slot = (short)(index & PAGE_MASK);
+    short previous = p.previous_associate[slot];
+    short next = p.next_associate[slot];
+    if (previous == NO_ENTRY) {
+      short sd = p.security_domain[slot];
+      page_of(sd).first_associate[(short)(sd & PAGE_MASK)] = next;
+    } else {
+      page_of(previous).next_associate[(short)(previous & PAGE_MASK)] = next;
+    }
+    if (next != NO_ENTRY) {
+      page_of(next).previous_associate[(short)(next & PAGE_MASK)] = previous;
+    }
+  }
+
+  /**
+   * Allocate a new page, growing the page directory if needed.
+   *
+   * @return <code>false</code> if the maximum number of pages is reached.
+   */
+  private boolean grow() {
+    if (page_count == MAX_PAGES) {
+      return false;
+    }
+    if (page_count == (short)pages.length) {
+      short length = (short)(pages.length << 1);
+      if (length > MAX_PAGES || length <= 0) {
+        length = MAX_PAGES;
+      }
+      page[] directory = new page[length];
+      for (short i = 0; i < page_count; i++) {
+        directory[i] = pages[i];
+      }
+      pages = directory;
+    }
+    pages[page_count] = new page();
+    page_count++;
+    return true;
+  }
+
+  /**
+   * Rebuild the AID hash table with a new number of buckets.
+   *
+   * @param sBuckets The new number of buckets, a power of 2.
+   */
+  private void rehash(short sBuckets) {
+    buckets = new short[sBuckets];
+    fill(buckets, NO_ENTRY);
+    for (short index = 0; index < high_water; index++) {
+      page p = page_of(index);
+      short slot = (short)(index & PAGE_MASK);
+      if (p.kind[slot] != KIND_FREE) {
+        short bucket = bucket_of(p.aid, (short)(slot * AID_SLOT_LENGTH),
+                                 p.aid_length[slot]);
+        p.hash_next[slot] = buckets[bucket];
+        buckets[bucket] = index;
+      }
+    }
+  }
+
+  private short bucket_of(byte[] baAID, short sOffset, byte bLength) {
+    short hash = bLength;
+    for (short i = 0; i < bLength; i++) {
+      hash = (short)((short)(hash << 5) - hash + baAID[(short)(sOffset + i)]);
+    }
+    return (short)(hash & (short)(buckets.length - 1));
+  }
+
+  private static void fill(short[] array, short value) {
+    for (short i = 0; i < (short)array.length; i++) {
+      array[i] = value;
+    }
+  }
+}
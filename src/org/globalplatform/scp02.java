@@ -0,0 +1,339 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>Secure Channel Protocol '02', as defined by the GlobalPlatform Card
+ * Specification, appendix E, with the "i" parameter '55'.</p>
+ *
+ * <p>The session keys are derived from the sequence counter when INITIALIZE
+ * UPDATE is processed, and set once into their triple DES engines: the round
+ * keys are then reused by every command of the session, including the single
+ * DES encryption of the ICV. The engines and the session data of each session
+ * slot are allocated once, with the protocol. The C-MAC of a command is the
+ * ICV of the next one.</p>
+ *
+ * <p>R-MAC is not supported.</p>
+ */
+final class scp02 extends secure_channel {
+
+  /**
+   * "i" parameter: 3 keys, C-MAC on the modified APDU, explicit initiation,
+   * ICV encryption and pseudo-random card challenge
+   */
+  static final byte I_PARAMETER = (byte)0x55;
+
+  /**
+   * Length of the static keys
+   */
+  static final short KEY_LENGTH = (short)16;
+
+  // derivation constants
+  private static final short DERIVE_C_MAC = (short)0x0101;
+  private static final short DERIVE_S_ENC = (short)0x0182;
+  private static final short DERIVE_DEK = (short)0x0181;
+
+  private static final short HOST_CHALLENGE_LENGTH = (short)8;
+  private static final short CARD_CHALLENGE_LENGTH = (short)6;
+  private static final short SEQUENCE_LENGTH = (short)2;
+  private static final short MAC_LENGTH = (short)8;
+  private static final short BLOCK = des_engine.BLOCK_SIZE;
+
+  // session
+  private static final short SESSION_ICV = (short)0; // C-MAC of the last
+                                                     // command
+  private static final short SESSION_HOST_CHALLENGE = (short)8;
+  private static final short SESSION_SEQUENCE = (short)16; // followed by the
+                                                           // card challenge
+  private static final short SESSION_CARD_CHALLENGE = (short)18;
+  private static final short SESSION_TEMP = (short)24;
+  private static final short SESSION_LENGTH = (short)40;
+
+  /**
+   * Session keys and session data of a slot
+   */
+  private static final class session_keys {
+    final des_engine s_enc = new des_engine(JCSystem.CLEAR_ON_DESELECT);
+    final des_engine c_mac = new des_engine(JCSystem.CLEAR_ON_DESELECT);
+    final des_engine dek = new des_engine(JCSystem.CLEAR_ON_DESELECT);
+    final byte[] session = JCSystem.makeTransientByteArray(
+        SESSION_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+  }
+
+  private final session_keys[] slots = new session_keys[MAX_SESSIONS];
+
+  // those of the slot of the current session
+  private des_engine s_enc;
+  private des_engine c_mac;
+  private des_engine dek;
+  private byte[] session;
+
+  private final byte[] sequence_counter = new byte[SEQUENCE_LENGTH];
+  private final byte[] aid; // AID of the security domain
+
+  /**
+   * Class constructor
+   *
+   * @param baAID The array containing the AID of the security domain the
+   *     secure channel belongs to.
+   * @param sOffset The offset of the AID in <code>baAID</code>.
+   * @param bLength The length of the AID.
+   * @param store The key sets of the security domain.
+   */
+  scp02(byte[] baAID, short sOffset, byte bLength, key_store store) {
+    super((byte)(C_MAC | C_DECRYPTION), store);
+    aid = new byte[bLength];
+    Util.arrayCopy(baAID, sOffset, aid, (short)0, bLength);
+    for (byte i = 0; i < MAX_SESSIONS; i++) {
+      slots[i] = new session_keys();
+    }
+    use_session((byte)0);
+  }
+
+  short initialize_update(byte[] baBuffer, short sInOffset, short sInLength,
+                          short sOutOffset) throws ISOException {
+    byte requested = baBuffer[(short)(sInOffset + ISO7816.OFFSET_P1)];
+    if (sInLength != (short)(ISO7816.OFFSET_CDATA + HOST_CHALLENGE_LENGTH) ||
+        baBuffer[(short)(sInOffset + ISO7816.OFFSET_LC)] !=
+            HOST_CHALLENGE_LENGTH) {
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+    short set = find_key_set(requested, key_store.TYPE_DES, (byte)KEY_LENGTH);
+    if (sequence_counter[0] == (byte)0xFF &&
+        sequence_counter[1] == (byte)0xFF) // the counter cannot wrap around
+    {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    increment(sequence_counter, (short)0, SEQUENCE_LENGTH);
+    Util.arrayCopyNonAtomic(baBuffer,
+                            (short)(sInOffset + ISO7816.OFFSET_CDATA), session,
+                            SESSION_HOST_CHALLENGE, HOST_CHALLENGE_LENGTH);
+    Util.arrayCopyNonAtomic(sequence_counter, (short)0, session,
+                            SESSION_SEQUENCE, SEQUENCE_LENGTH);
+
+    // session keys
+    derive(s_enc, set, key_store.KID_ENC, DERIVE_S_ENC);
+    derive(c_mac, set, key_store.KID_MAC, DERIVE_C_MAC);
+    derive(dek, set, key_store.KID_DEK, DERIVE_DEK);
+
+    // card challenge, from the sequence counter through S-ENC, and the AID
+    s_enc.mac_begin(session, SESSION_ICV); // still zero
+    s_enc.mac_update(aid, (short)0, (short)aid.length, false);
+    s_enc.mac_final(session, SESSION_TEMP, false);
+    Util.arrayCopyNonAtomic(session, SESSION_TEMP, session,
+                            SESSION_CARD_CHALLENGE, CARD_CHALLENGE_LENGTH);
+
+    // response
+    short offset = Util.arrayFillNonAtomic(
+        baBuffer, sOutOffset, (short)10, (byte)0x00); // key diversification
+                                                      // data
+    baBuffer[offset++] = store.get_version(set);
+    baBuffer[offset++] = (byte)0x02;
+    offset = Util.arrayCopyNonAtomic(
+        session, SESSION_SEQUENCE, baBuffer, offset,
+        (short)(SEQUENCE_LENGTH + CARD_CHALLENGE_LENGTH));
+    s_enc.mac_begin(session, SESSION_ICV);
+    s_enc.mac_update(session, SESSION_HOST_CHALLENGE,
+                     (short)(HOST_CHALLENGE_LENGTH + SEQUENCE_LENGTH +
+                             CARD_CHALLENGE_LENGTH),
+                     false);
+    s_enc.mac_final(baBuffer, offset, false);
+    offset += MAC_LENGTH;
+    set_initialized();
+    return (short)(offset - sOutOffset);
+  }
+
+  void external_authenticate(byte[] baBuffer, short sInOffset,
+                             short sInLength) throws ISOException {
+    byte cla = baBuffer[sInOffset];
+    if ((cla & secure_messaging_bit(cla)) == 0) {
+      abort();
+      ISOException.throwIt((short)0x6982); // «security status not
+                                           // satisfied», see ISO7816-4
+    }
+    if (sInLength != (short)(ISO7816.OFFSET_CDATA + MAC_LENGTH * 2) ||
+        baBuffer[(short)(sInOffset + ISO7816.OFFSET_LC)] !=
+            (byte)(MAC_LENGTH * 2)) {
+      abort();
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+    s_enc.mac_begin(session, SESSION_ICV);
+    s_enc.mac_update(session, SESSION_SEQUENCE,
+                     (short)(SEQUENCE_LENGTH + CARD_CHALLENGE_LENGTH), false);
+    s_enc.mac_update(session, SESSION_HOST_CHALLENGE, HOST_CHALLENGE_LENGTH,
+                     false);
+    s_enc.mac_final(session, SESSION_TEMP, false);
+    if (!equal(session, SESSION_TEMP, baBuffer,
+               (short)(sInOffset + ISO7816.OFFSET_CDATA), MAC_LENGTH)) {
+      abort();
+      ISOException.throwIt((short)0x6300); // «authentication failed», see
+                                           // ISO7816-4
+    }
+    // the ICV of the first C-MAC is zero, and is not encrypted
+    if (!verify_mac(baBuffer, sInOffset, (short)(sInLength - MAC_LENGTH),
+                    (short)(sInOffset + sInLength - MAC_LENGTH), false)) {
+      abort();
+      ISOException.throwIt((short)0x6982); // «security status not
+                                           // satisfied», see ISO7816-4
+    }
+  }
+
+  short unwrap_command(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_not_aborted();
+    byte cla = baBuffer[sOffset];
+    byte bit = secure_messaging_bit(cla);
+    byte level = getSecurityLevel();
+    if ((cla & bit) == 0 || (level & C_MAC) == 0) {
+      return sLength;
+    }
+    short lc = (short)(baBuffer[(short)(sOffset + ISO7816.OFFSET_LC)] & 0xFF);
+    if (sLength != (short)(ISO7816.OFFSET_CDATA + lc) || lc < MAC_LENGTH) {
+      return -1;
+    }
+    short data = (short)(sOffset + ISO7816.OFFSET_CDATA);
+    short mac = (short)(sOffset + sLength - MAC_LENGTH);
+    short length = (short)(lc - MAC_LENGTH);
+    if ((level & C_DECRYPTION) != 0 && length > 0) {
+      if ((short)(length % BLOCK) != 0) {
+        return -1;
+      }
+      s_enc.cbc_decrypt(baBuffer, data, length);
+      length = unpad(baBuffer, data, length, BLOCK);
+      if (length < 0) {
+        return -1;
+      }
+      // the C-MAC covers the plaintext, with the length it has before
+      // encryption
+      baBuffer[(short)(sOffset + ISO7816.OFFSET_LC)] =
+          (byte)(length + MAC_LENGTH);
+    }
+    if (!verify_mac(baBuffer, sOffset, (short)(ISO7816.OFFSET_CDATA + length),
+                    mac, true)) {
+      return -1;
+    }
+    baBuffer[sOffset] = (byte)(cla & ~bit);
+    baBuffer[(short)(sOffset + ISO7816.OFFSET_LC)] = (byte)length;
+    return (short)(ISO7816.OFFSET_CDATA + length);
+  }
+
+  public short wrap(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_not_aborted();
+    return (short)(sLength - 2);
+  }
+
+  public short decryptData(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_sensitive_data(sLength);
+    dek.ecb_decrypt(baBuffer, sOffset, sLength);
+    return sLength;
+  }
+
+  public short encryptData(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_sensitive_data(sLength);
+    dek.ecb_encrypt(baBuffer, sOffset, sLength);
+    return sLength;
+  }
+
+  void clear_session() {
+    s_enc.clear();
+    c_mac.clear();
+    dek.clear();
+    Util.arrayFillNonAtomic(session, (short)0, SESSION_LENGTH, (byte)0x00);
+  }
+
+  void use_session(byte bSlot) {
+    session_keys slot = slots[bSlot];
+    s_enc = slot.s_enc;
+    c_mac = slot.c_mac;
+    dek = slot.dek;
+    session = slot.session;
+  }
+
+  /**
+   * Derive a session key, and set it into its engine: the static key, whose
+   * engine is cached by the key store, encrypts, in CBC mode, the derivation
+   * constant followed by the sequence counter.
+   */
+  private void derive(des_engine engine, short sSet, byte bKeyId,
+                      short sConstant) {
+    Util.arrayFillNonAtomic(session, SESSION_TEMP, KEY_LENGTH, (byte)0x00);
+    Util.setShort(session, SESSION_TEMP, sConstant);
+    Util.arrayCopyNonAtomic(sequence_counter, (short)0, session,
+                            (short)(SESSION_TEMP + 2), SEQUENCE_LENGTH);
+    ((des_engine)store.get_engine(sSet, bKeyId))
+        .cbc_encrypt(session, SESSION_TEMP, KEY_LENGTH);
+    engine.set_key(session, SESSION_TEMP, KEY_LENGTH);
+    Util.arrayFillNonAtomic(session, SESSION_TEMP, KEY_LENGTH, (byte)0x00);
+  }
+
+  /**
+   * Check the C-MAC of a command, which becomes the ICV of the next one if it
+   * is right.
+   *
+   * @param sLength The length of the command covered by the C-MAC.
+   * @param sMacOffset The offset of the C-MAC in <code>baBuffer</code>.
+   * @param bEncryptICV <code>true</code> if the ICV is the previous C-MAC
+   *     encrypted with the first half of the C-MAC key.
+   * @return <code>true</code> if the C-MAC is right.
+   */
+  private boolean verify_mac(byte[] baBuffer, short sOffset, short sLength,
+                             short sMacOffset, boolean bEncryptICV) {
+    Util.arrayCopyNonAtomic(session, SESSION_ICV, session, SESSION_TEMP,
+                            MAC_LENGTH);
+    if (bEncryptICV) {
+      c_mac.encrypt_single(session, SESSION_TEMP);
+    }
+    c_mac.mac_begin(session, SESSION_TEMP);
+    c_mac.mac_update(baBuffer, sOffset, sLength, true);
+    c_mac.mac_final(session, SESSION_TEMP, true);
+    if (!equal(session, SESSION_TEMP, baBuffer, sMacOffset, MAC_LENGTH)) {
+      return false;
+    }
+    Util.arrayCopyNonAtomic(session, SESSION_TEMP, session, SESSION_ICV,
+                            MAC_LENGTH);
+    return true;
+  }
+
+  private void check_sensitive_data(short sLength) throws ISOException {
+    if (getSecurityLevel() == NO_SECURITY_LEVEL || !dek.is_set()) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    if ((short)(sLength % BLOCK) != 0) {
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+  }
+}
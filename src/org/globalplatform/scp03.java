@@ -0,0 +1,389 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/**
+ * <p>Secure Channel Protocol '03', as defined by the GlobalPlatform Card
+ * Specification Amendment D.</p>
+ *
+ * <p>The session keys are derived with the AES-CMAC key derivation function
+ * when INITIALIZE UPDATE is processed, and set once into their AES engines:
+ * the key schedules and the CMAC subkeys are then reused by every command
+ * and response of the session. The engines and the session data of each
+ * session slot are allocated once, with the protocol, so opening a session
+ * allocates nothing. Commands are unwrapped and responses wrapped in place.
+ * </p>
+ *
+ * <p>The card challenge is pseudo-random, computed from a sequence counter
+ * incremented by each INITIALIZE UPDATE.</p>
+ */
+final class scp03 extends secure_channel {
+
+  /**
+   * "i" parameter: pseudo-random card challenge, R-MAC and R-ENCRYPTION
+   * supported
+   */
+  static final byte I_PARAMETER = (byte)0x70;
+
+  // derivation constants
+  private static final byte DERIVE_CARD_CRYPTOGRAM = (byte)0x00;
+  private static final byte DERIVE_HOST_CRYPTOGRAM = (byte)0x01;
+  private static final byte DERIVE_CARD_CHALLENGE = (byte)0x02;
+  private static final byte DERIVE_S_ENC = (byte)0x04;
+  private static final byte DERIVE_S_MAC = (byte)0x06;
+  private static final byte DERIVE_S_RMAC = (byte)0x07;
+
+  private static final short CHALLENGE_LENGTH = (short)8;
+  private static final short MAC_LENGTH = (short)8;
+  private static final short SEQUENCE_LENGTH = (short)3;
+  private static final short BLOCK = aes_engine.BLOCK_SIZE;
+
+  // session
+  private static final short SESSION_CHAINING = (short)0; // MAC chaining value
+  private static final short SESSION_COUNTER = (short)16; // encryption counter
+  private static final short SESSION_CONTEXT = (short)32; // host and card
+                                                          // challenges
+  private static final short SESSION_DERIVATION = (short)48;
+  private static final short SESSION_TEMP = (short)64;
+  private static final short SESSION_LENGTH = (short)96;
+
+  /**
+   * Session keys and session data of a slot
+   */
+  private static final class session_keys {
+    final aes_engine s_enc = new aes_engine(JCSystem.CLEAR_ON_DESELECT);
+    final aes_engine s_mac = new aes_engine(JCSystem.CLEAR_ON_DESELECT);
+    final aes_engine s_rmac = new aes_engine(JCSystem.CLEAR_ON_DESELECT);
+    final aes_engine dek = new aes_engine(JCSystem.CLEAR_ON_DESELECT);
+    final byte[] session = JCSystem.makeTransientByteArray(
+        SESSION_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+  }
+
+  private final session_keys[] slots = new session_keys[MAX_SESSIONS];
+
+  // those of the slot of the current session
+  private aes_engine s_enc;
+  private aes_engine s_mac;
+  private aes_engine s_rmac;
+  private aes_engine dek;
+  private byte[] session;
+
+  private final byte[] sequence_counter = new byte[SEQUENCE_LENGTH];
+  private final byte[] aid; // AID of the security domain
+
+  /**
+   * Class constructor
+   *
+   * @param baAID The array containing the AID of the security domain the
+   *     secure channel belongs to.
+   * @param sOffset The offset of the AID in <code>baAID</code>.
+   * @param bLength The length of the AID.
+   * @param store The key sets of the security domain.
+   */
+  scp03(byte[] baAID, short sOffset, byte bLength, key_store store) {
+    super((byte)(C_MAC | C_DECRYPTION | R_MAC | R_ENCRYPTION), store);
+    aid = new byte[bLength];
+    Util.arrayCopy(baAID, sOffset, aid, (short)0, bLength);
+    for (byte i = 0; i < MAX_SESSIONS; i++) {
+      slots[i] = new session_keys();
+    }
+    use_session((byte)0);
+  }
+
+  short initialize_update(byte[] baBuffer, short sInOffset, short sInLength,
+                          short sOutOffset) throws ISOException {
+    byte requested = baBuffer[(short)(sInOffset + ISO7816.OFFSET_P1)];
+    if (sInLength != (short)(ISO7816.OFFSET_CDATA + CHALLENGE_LENGTH) ||
+        baBuffer[(short)(sInOffset + ISO7816.OFFSET_LC)] != CHALLENGE_LENGTH) {
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+    short set = find_key_set(requested, key_store.TYPE_AES, (byte)0);
+    if (sequence_counter[0] == (byte)0xFF &&
+        sequence_counter[1] == (byte)0xFF &&
+        sequence_counter[2] == (byte)0xFF) // the counter cannot wrap around
+    {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    increment(sequence_counter, (short)0, SEQUENCE_LENGTH);
+    Util.arrayCopyNonAtomic(baBuffer,
+                            (short)(sInOffset + ISO7816.OFFSET_CDATA), session,
+                            SESSION_CONTEXT, CHALLENGE_LENGTH);
+
+    // card challenge, from the sequence counter and the AID
+    aes_engine enc = (aes_engine)store.get_engine(set, key_store.KID_ENC);
+    Util.arrayCopyNonAtomic(sequence_counter, (short)0, session, SESSION_TEMP,
+                            SEQUENCE_LENGTH);
+    Util.arrayCopyNonAtomic(aid, (short)0, session,
+                            (short)(SESSION_TEMP + SEQUENCE_LENGTH),
+                            (short)aid.length);
+    derive(enc, DERIVE_CARD_CHALLENGE, (short)(CHALLENGE_LENGTH * 8),
+           session, SESSION_TEMP, (short)(SEQUENCE_LENGTH + aid.length),
+           session, (short)(SESSION_CONTEXT + CHALLENGE_LENGTH));
+
+    // session keys
+    byte key_length = store.get_length(set, key_store.KID_ENC);
+    short bits = (short)(key_length * 8);
+    derive(enc, DERIVE_S_ENC, bits, session, SESSION_CONTEXT,
+           (short)(CHALLENGE_LENGTH * 2), session, SESSION_TEMP);
+    s_enc.set_key(session, SESSION_TEMP, key_length);
+    aes_engine mac = (aes_engine)store.get_engine(set, key_store.KID_MAC);
+    derive(mac, DERIVE_S_RMAC, bits, session, SESSION_CONTEXT,
+           (short)(CHALLENGE_LENGTH * 2), session, SESSION_TEMP);
+    s_rmac.set_key(session, SESSION_TEMP, key_length);
+    derive(mac, DERIVE_S_MAC, bits, session, SESSION_CONTEXT,
+           (short)(CHALLENGE_LENGTH * 2), session, SESSION_TEMP);
+    s_mac.set_key(session, SESSION_TEMP, key_length);
+    dek.set_key(store.get_material(), store.get_offset(set, key_store.KID_DEK),
+                store.get_length(set, key_store.KID_DEK));
+    Util.arrayFillNonAtomic(session, SESSION_TEMP, (short)32, (byte)0x00);
+
+    // response
+    short offset = Util.arrayFillNonAtomic(
+        baBuffer, sOutOffset, (short)10, (byte)0x00); // key diversification
+                                                      // data
+    baBuffer[offset++] = store.get_version(set);
+    baBuffer[offset++] = (byte)0x03;
+    baBuffer[offset++] = I_PARAMETER;
+    offset = Util.arrayCopyNonAtomic(
+        session, (short)(SESSION_CONTEXT + CHALLENGE_LENGTH), baBuffer, offset,
+        CHALLENGE_LENGTH);
+    derive(s_mac, DERIVE_CARD_CRYPTOGRAM, (short)(CHALLENGE_LENGTH * 8),
+           session, SESSION_CONTEXT, (short)(CHALLENGE_LENGTH * 2), baBuffer,
+           offset);
+    offset += CHALLENGE_LENGTH;
+    offset = Util.arrayCopyNonAtomic(sequence_counter, (short)0, baBuffer,
+                                     offset, SEQUENCE_LENGTH);
+    set_initialized();
+    return (short)(offset - sOutOffset);
+  }
+
+  void external_authenticate(byte[] baBuffer, short sInOffset,
+                             short sInLength) throws ISOException {
+    byte cla = baBuffer[sInOffset];
+    if ((cla & secure_messaging_bit(cla)) == 0) {
+      abort();
+      ISOException.throwIt((short)0x6982); // «security status not
+                                           // satisfied», see ISO7816-4
+    }
+    if (sInLength != (short)(ISO7816.OFFSET_CDATA + CHALLENGE_LENGTH +
+                             MAC_LENGTH) ||
+        baBuffer[(short)(sInOffset + ISO7816.OFFSET_LC)] !=
+            (byte)(CHALLENGE_LENGTH + MAC_LENGTH)) {
+      abort();
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+    derive(s_mac, DERIVE_HOST_CRYPTOGRAM, (short)(CHALLENGE_LENGTH * 8),
+           session, SESSION_CONTEXT, (short)(CHALLENGE_LENGTH * 2), session,
+           SESSION_TEMP);
+    if (!equal(session, SESSION_TEMP, baBuffer,
+               (short)(sInOffset + ISO7816.OFFSET_CDATA), CHALLENGE_LENGTH)) {
+      abort();
+      ISOException.throwIt((short)0x6300); // «authentication failed», see
+                                           // ISO7816-4
+    }
+    // the MAC chaining value starts from zero
+    Util.arrayFillNonAtomic(session, SESSION_CHAINING, BLOCK, (byte)0x00);
+    if (!verify_mac(baBuffer, sInOffset, (short)(sInLength - MAC_LENGTH))) {
+      abort();
+      ISOException.throwIt((short)0x6982); // «security status not
+                                           // satisfied», see ISO7816-4
+    }
+    Util.arrayFillNonAtomic(session, SESSION_COUNTER, BLOCK, (byte)0x00);
+  }
+
+  short unwrap_command(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_not_aborted();
+    byte cla = baBuffer[sOffset];
+    byte bit = secure_messaging_bit(cla);
+    byte level = getSecurityLevel();
+    if ((cla & bit) == 0 || (level & C_MAC) == 0) {
+      return sLength;
+    }
+    short lc = (short)(baBuffer[(short)(sOffset + ISO7816.OFFSET_LC)] & 0xFF);
+    if (sLength != (short)(ISO7816.OFFSET_CDATA + lc) || lc < MAC_LENGTH) {
+      return -1;
+    }
+    if (!verify_mac(baBuffer, sOffset, (short)(sLength - MAC_LENGTH))) {
+      return -1;
+    }
+    increment(session, SESSION_COUNTER, BLOCK);
+
+    short data = (short)(sOffset + ISO7816.OFFSET_CDATA);
+    short length = (short)(lc - MAC_LENGTH);
+    if ((level & C_DECRYPTION) != 0 && length > 0) {
+      if ((short)(length % BLOCK) != 0) {
+        return -1;
+      }
+      Util.arrayCopyNonAtomic(session, SESSION_COUNTER, session, SESSION_TEMP,
+                              BLOCK);
+      s_enc.encrypt(session, SESSION_TEMP);
+      s_enc.cbc_decrypt(session, SESSION_TEMP, baBuffer, data, length);
+      length = unpad(baBuffer, data, length, BLOCK);
+      if (length < 0) {
+        return -1;
+      }
+    }
+    baBuffer[sOffset] = (byte)(cla & ~bit);
+    baBuffer[(short)(sOffset + ISO7816.OFFSET_LC)] = (byte)length;
+    return (short)(ISO7816.OFFSET_CDATA + length);
+  }
+
+  public short wrap(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_not_aborted();
+    short length = (short)(sLength - 2);
+    byte level = getSecurityLevel();
+    if ((level & (R_MAC | R_ENCRYPTION)) == 0) {
+      return length;
+    }
+    short sw = Util.getShort(baBuffer, (short)(sOffset + length));
+    if ((level & R_ENCRYPTION) != 0 && length > 0) {
+      length = pad(baBuffer, sOffset, length, BLOCK);
+      Util.arrayCopyNonAtomic(session, SESSION_COUNTER, session, SESSION_TEMP,
+                              BLOCK);
+      session[SESSION_TEMP] = (byte)0x80;
+      s_enc.encrypt(session, SESSION_TEMP);
+      s_enc.cbc_encrypt(session, SESSION_TEMP, baBuffer, sOffset, length);
+    }
+    if ((level & R_MAC) != 0) {
+      s_rmac.cmac_begin();
+      s_rmac.cmac_update(session, SESSION_CHAINING, BLOCK);
+      s_rmac.cmac_update(baBuffer, sOffset, length);
+      Util.setShort(session, SESSION_TEMP, sw);
+      s_rmac.cmac_update(session, SESSION_TEMP, (short)2);
+      s_rmac.cmac_final(session, SESSION_TEMP);
+      length = Util.arrayCopyNonAtomic(session, SESSION_TEMP, baBuffer,
+                                       (short)(sOffset + length), MAC_LENGTH);
+      length -= sOffset;
+    }
+    return length;
+  }
+
+  public short decryptData(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_sensitive_data(sLength);
+    Util.arrayFillNonAtomic(session, SESSION_TEMP, BLOCK, (byte)0x00);
+    dek.cbc_decrypt(session, SESSION_TEMP, baBuffer, sOffset, sLength);
+    return sLength;
+  }
+
+  public short encryptData(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    check_sensitive_data(sLength);
+    Util.arrayFillNonAtomic(session, SESSION_TEMP, BLOCK, (byte)0x00);
+    dek.cbc_encrypt(session, SESSION_TEMP, baBuffer, sOffset, sLength);
+    return sLength;
+  }
+
+  void clear_session() {
+    s_enc.clear();
+    s_mac.clear();
+    s_rmac.clear();
+    dek.clear();
+    Util.arrayFillNonAtomic(session, (short)0, SESSION_LENGTH, (byte)0x00);
+  }
+
+  void use_session(byte bSlot) {
+    session_keys slot = slots[bSlot];
+    s_enc = slot.s_enc;
+    s_mac = slot.s_mac;
+    s_rmac = slot.s_rmac;
+    dek = slot.dek;
+    session = slot.session;
+  }
+
+  /**
+   * Check the C-MAC of a command, and update the MAC chaining value if it is
+   * right.
+   *
+   * @param sLength The length of the command without its C-MAC.
+   * @return <code>true</code> if the C-MAC is right.
+   */
+  private boolean verify_mac(byte[] baBuffer, short sOffset, short sLength) {
+    s_mac.cmac_begin();
+    s_mac.cmac_update(session, SESSION_CHAINING, BLOCK);
+    s_mac.cmac_update(baBuffer, sOffset, sLength);
+    s_mac.cmac_final(session, SESSION_TEMP);
+    if (!equal(session, SESSION_TEMP, baBuffer, (short)(sOffset + sLength),
+               MAC_LENGTH)) {
+      return false;
+    }
+    Util.arrayCopyNonAtomic(session, SESSION_TEMP, session, SESSION_CHAINING,
+                            BLOCK);
+    return true;
+  }
+
+  private void check_sensitive_data(short sLength) throws ISOException {
+    if (getSecurityLevel() == NO_SECURITY_LEVEL || !dek.is_set()) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    if ((short)(sLength % BLOCK) != 0) {
+      ISOException.throwIt((short)0x6700); // «wrong length», see ISO7816-4
+    }
+  }
+
+  /**
+   * Key derivation function of SCP03: the AES-CMAC pseudo-random function in
+   * counter mode, see NIST SP 800-108.
+   *
+   * @param engine The engine holding the base key.
+   * @param bConstant The derivation constant.
+   * @param sBits The length of the derived data, in bits.
+   */
+  private void derive(aes_engine engine, byte bConstant, short sBits,
+                      byte[] baContext, short sContextOffset,
+                      short sContextLength, byte[] baOutput,
+                      short sOutputOffset) {
+    short derivation = SESSION_DERIVATION;
+    short remaining = (short)(sBits / 8);
+    for (byte i = 1; remaining > 0; i++) {
+      // label, separation indicator, length and counter
+      Util.arrayFillNonAtomic(session, derivation, (short)11, (byte)0x00);
+      session[(short)(derivation + 11)] = bConstant;
+      session[(short)(derivation + 12)] = (byte)0x00;
+      Util.setShort(session, (short)(derivation + 13), sBits);
+      session[(short)(derivation + 15)] = i;
+      engine.cmac_begin();
+      engine.cmac_update(session, derivation, BLOCK);
+      engine.cmac_update(baContext, sContextOffset, sContextLength);
+      engine.cmac_final(session, derivation);
+      short count = remaining < BLOCK ? remaining : BLOCK;
+      Util.arrayCopyNonAtomic(session, derivation, baOutput, sOutputOffset,
+                              count);
+      sOutputOffset += count;
+      remaining -= count;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.Util;
+
+/**
+ * <p>Security domain hierarchy of the GP registry.</p>
+ *
+ * <p>Each security domain is given an ordinal, and owns a bitset of the
+ * ordinals of its ancestors (itself included). Knowing whether a security
+ * domain is an ancestor of another one is thus a single bit test, instead of
+ * a walk from one to the other through the registry.</p>
+ *
+ * <p>Bitsets are updated incrementally: when a security domain is added, it
+ * inherits the bitset of its parent; when a security domain is extradited,
+ * the bitsets of its subtree are patched.</p>
+ */
+final class sd_hierarchy {
+
+  /**
+   * Ordinal value meaning "not a security domain"
+   */
+  static final byte NO_ORDINAL = (byte)-1;
+
+  private static final short ROW_LENGTH =
+      (short)(PlateformeGlobale.MAX_SECURITY_DOMAINS >> 3);
+
+  private final registry_table registry;
+  private final short[] entry_of_ordinal;
+  private final byte[] depth;
+  private final byte[] ancestors;
+
+  /**
+   * Class constructor
+   *
+   * @param registry The GP registry the security domains are stored in.
+   */
+  sd_hierarchy(registry_table registry) {
+    this.registry = registry;
+    entry_of_ordinal = new short[PlateformeGlobale.MAX_SECURITY_DOMAINS];
+    for (short i = 0; i < PlateformeGlobale.MAX_SECURITY_DOMAINS; i++) {
+      entry_of_ordinal[i] = registry_table.NO_ENTRY;
+    }
+    depth = new byte[PlateformeGlobale.MAX_SECURITY_DOMAINS];
+    ancestors = new byte[(short)(PlateformeGlobale.MAX_SECURITY_DOMAINS *
+                                 ROW_LENGTH)];
+  }
+
+  /**
+   * Add a security domain to the hierarchy, under the security domain it is
+   * associated with in the registry. The root security domain is associated
+   * with itself.
+   *
+   * @param index The index of the security domain in the registry.
+   * @return <code>false</code> if the maximum number of security domains is
+   *     reached, or if the parent is not a security domain.
+   */
+  boolean add(short index) {
+    short parent = registry.get_security_domain(index);
+    byte parent_ordinal = NO_ORDINAL;
+    if (parent != index) {
+      parent_ordinal = registry.get_sd_ordinal(parent);
+      if (parent_ordinal == NO_ORDINAL) {
+        return false;
+      }
+    }
+
+    short free = 0;
+    while (free < PlateformeGlobale.MAX_SECURITY_DOMAINS &&
+           entry_of_ordinal[free] != registry_table.NO_ENTRY) {
+      free++;
+    }
+    if (free == PlateformeGlobale.MAX_SECURITY_DOMAINS) {
+      return false;
+    }
+
+    byte ordinal = (byte)free;
+    short row = (short)(ordinal * ROW_LENGTH);
+    if (parent_ordinal == NO_ORDINAL) {
+      clear_row(row);
+      depth[ordinal] = 0;
+    } else {
+      copy_row((short)(parent_ordinal * ROW_LENGTH), row);
+      depth[ordinal] = (byte)(depth[parent_ordinal] + 1);
+    }
+    ancestors[(short)(row + (ordinal >> 3))] |= (byte)(0x80 >> (ordinal & 7));
+    entry_of_ordinal[ordinal] = index;
+    registry.set_sd_ordinal(index, ordinal);
+    return true;
+  }
+
+  /**
+   * Remove a security domain from the hierarchy. No other security domain
+   * should be associated with it.
+   *
+   * @param index The index of the security domain in the registry.
+   */
+  void remove(short index) {
+    byte ordinal = registry.get_sd_ordinal(index);
+    if (ordinal == NO_ORDINAL) {
+      return;
+    }
+    clear_row((short)(ordinal * ROW_LENGTH));
+    entry_of_ordinal[ordinal] = registry_table.NO_ENTRY;
+    registry.set_sd_ordinal(index, NO_ORDINAL);
+  }
+
+  /**
+   * Associate an entry with another security domain. If the entry is itself a
+   * security domain, the ancestors of its whole subtree are updated.
+   *
+   * @param index The index of the extradited entry in the registry.
+   * @param sSecurityDomain The index of the new associated security domain.
+   * @return <code>false</code> if <code>sSecurityDomain</code> is not a
+   *     security domain, or if it belongs to the subtree of the extradited
+   *     security domain.
+   */
+  boolean extradite(short index, short sSecurityDomain) {
+    byte target = registry.get_sd_ordinal(sSecurityDomain);
+    if (target == NO_ORDINAL) {
+      return false;
+    }
+    byte ordinal = registry.get_sd_ordinal(index);
+    if (ordinal == NO_ORDINAL) {
+      registry.set_security_domain(index, sSecurityDomain);
+      return true;
+    }
+    if (is_ancestor_ordinal(ordinal, target)) {
+      return false; // the hierarchy would not be a tree anymore
+    }
+
+    short old_parent = registry.get_security_domain(index);
+    byte old_ordinal = NO_ORDINAL;
+    if (old_parent != index) {
+      old_ordinal = registry.get_sd_ordinal(old_parent);
+    }
+    short old_row = (short)(old_ordinal * ROW_LENGTH);
+    short new_row = (short)(target * ROW_LENGTH);
+    byte shift = (byte)(depth[target] + 1 - depth[ordinal]);
+
+    for (short member = 0; member < PlateformeGlobale.MAX_SECURITY_DOMAINS;
+         member++) {
+      if (entry_of_ordinal[member] != registry_table.NO_ENTRY &&
+          is_ancestor_ordinal(ordinal, (byte)member)) {
+        short row = (short)(member * ROW_LENGTH);
+        for (short i = 0; i < ROW_LENGTH; i++) {
+          byte bits = ancestors[(short)(row + i)];
+          if (old_ordinal != NO_ORDINAL) {
+            bits &= (byte)~ancestors[(short)(old_row + i)];
+          }
+          ancestors[(short)(row + i)] =
+              (byte)(bits | ancestors[(short)(new_row + i)]);
+        }
+        depth[member] = (byte)(depth[member] + shift);
+      }
+    }
+    registry.set_security_domain(index, sSecurityDomain);
+    return true;
+  }
+
+  /**
+   * Check whether a security domain is the same as, or an ancestor of,
+   * another security domain.
+   *
+   * @param sAncestor The index of the supposed ancestor in the registry.
+   * @param sSecurityDomain The index of the security domain.
+   * @return <code>true</code> if <code>sAncestor</code> is
+   *     <code>sSecurityDomain</code> or one of its ancestors.
+   */
+  boolean is_ancestor(short sAncestor, short sSecurityDomain) {
+    if (!registry.is_used(sAncestor) || !registry.is_used(sSecurityDomain)) {
+      return false;
+    }
+    byte ancestor = registry.get_sd_ordinal(sAncestor);
+    byte ordinal = registry.get_sd_ordinal(sSecurityDomain);
+    if (ancestor == NO_ORDINAL || ordinal == NO_ORDINAL) {
+      return false;
+    }
+    return is_ancestor_ordinal(ancestor, ordinal);
+  }
+
+  /**
+   * @return The depth of a security domain in the hierarchy, the root being
+   *     at depth 0. -1 if the entry is not a security domain.
+   */
+  byte get_depth(short index) {
+    byte ordinal = registry.get_sd_ordinal(index);
+    if (ordinal == NO_ORDINAL) {
+      return (byte)-1;
+    }
+    return depth[ordinal];
+  }
+
+  /**
+   * Length of the hierarchy in a registry image
+   */
+  static final short IMAGE_LENGTH =
+      (short)(PlateformeGlobale.MAX_SECURITY_DOMAINS * (3 + ROW_LENGTH));
+
+  /**
+   * Write the hierarchy into a registry image.
+   *
+   * @return <code>sOffset</code> + <code>IMAGE_LENGTH</code>.
+   */
+  short save(byte[] baImage, short sOffset) {
+    sOffset = registry_image.save_shorts(entry_of_ordinal,
+                                         PlateformeGlobale.MAX_SECURITY_DOMAINS,
+                                         baImage, sOffset);
+    sOffset = Util.arrayCopyNonAtomic(depth, (short)0, baImage, sOffset,
+                                      PlateformeGlobale.MAX_SECURITY_DOMAINS);
+    return Util.arrayCopyNonAtomic(ancestors, (short)0, baImage, sOffset,
+                                   (short)ancestors.length);
+  }
+
+  /**
+   * Check the hierarchy written at <code>sOffset</code> of a registry image:
+   * it must lie within the image and refer only to the first
+   * <code>sEntries</code> entries of the registry.
+   */
+  static boolean check_image(byte[] baImage, short sOffset, short sEntries) {
+    if (sOffset + IMAGE_LENGTH > baImage.length ||
+        !registry_image.check_indexes(baImage, sOffset,
+                                      PlateformeGlobale.MAX_SECURITY_DOMAINS,
+                                      sEntries)) {
+      return false;
+    }
+    sOffset = (short)(sOffset + PlateformeGlobale.MAX_SECURITY_DOMAINS * 2);
+    for (short i = 0; i < PlateformeGlobale.MAX_SECURITY_DOMAINS; i++) {
+      byte level = baImage[(short)(sOffset + i)];
+      if (level < 0 || level >= PlateformeGlobale.MAX_SECURITY_DOMAINS) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Restore the hierarchy from a registry image checked by
+   * <code>check_image</code>.
+   *
+   * @return <code>sOffset</code> + <code>IMAGE_LENGTH</code>.
+   */
+  short load(byte[] baImage, short sOffset) {
+    sOffset = registry_image.load_shorts(baImage, sOffset, entry_of_ordinal,
+                                         PlateformeGlobale.MAX_SECURITY_DOMAINS);
+    sOffset = registry_image.load_bytes(baImage, sOffset, depth,
+                                        PlateformeGlobale.MAX_SECURITY_DOMAINS);
+    return registry_image.load_bytes(baImage, sOffset, ancestors,
+                                     (short)ancestors.length);
+  }
+
+  private boolean is_ancestor_ordinal(byte ancestor, byte ordinal) {
+    return (ancestors[(short)((short)(ordinal * ROW_LENGTH) + (ancestor >> 3))] &
+            (byte)(0x80 >> (ancestor & 7))) != 0;
+  }
+
+  private void clear_row(short row) {
+    for (short i = 0; i < ROW_LENGTH; i++) {
+      ancestors[(short)(row + i)] = (byte)0x00;
+    }
+  }
+
+  private void copy_row(short from, short to) {
+    for (short i = 0; i < ROW_LENGTH; i++) {
+      ancestors[(short)(to + i)] = ancestors[(short)(from + i)];
+    }
+  }
+}
@@ -0,0 +1,600 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacardx.apdu.util.APDUUtil;
+
+/**
+ * <p>Common part of the secure channel protocols of the OPEN.</p>
+ *
+ * <p>It keeps the compulsory Session Security Level and the Current Security
+ * Level, dispatches the INITIALIZE UPDATE and EXTERNAL AUTHENTICATE commands
+ * to the protocol, and finds in the key store of the security domain the
+ * key set a session is opened with. A protocol implements the two commands, the processing of the
+ * commands and responses of an open session, and the erasure of its session
+ * keys.</p>
+ *
+ * <p>A session exists only on the logical channel it has been opened on. The
+ * sessions are held in <code>MAX_SESSIONS</code> slots, preallocated in
+ * <code>CLEAR_ON_DESELECT</code> memory: INITIALIZE UPDATE binds a free slot
+ * to the logical channel of the command, and <code>resetSecurity</code>
+ * clears it and makes it free again. The protocol preallocates its session
+ * keys for each slot, and <code>use_session</code> tells it which ones the
+ * current command works with. On a logical channel without a session, the
+ * interface behaves as if no session was open.</p>
+ */
+abstract class secure_channel implements SecureChannelx, SecureChannelx2 {
+
+  /**
+   * INS byte of the INITIALIZE UPDATE command
+   */
+  static final byte INS_INITIALIZE_UPDATE = (byte)0x50;
+
+  /**
+   * INS byte of the EXTERNAL AUTHENTICATE command
+   */
+  static final byte INS_EXTERNAL_AUTHENTICATE = (byte)0x82;
+
+  /**
+   * Maximum number of sessions open at the same time, on different logical
+   * or virtual channels
+   */
+  static final byte MAX_SESSIONS = 4;
+
+  /**
+   * Maximum number of bytes <code>wrap</code> adds to response data: a block
+   * of padding for R-ENCRYPTION, and an R-MAC
+   */
+  static final short MAX_WRAP_OVERHEAD = (short)(16 + 8);
+
+  /**
+   * First channel number beyond the logical channels of ISO7816-4, for the
+   * sessions which are not bound to a logical channel
+   */
+  static final byte FIRST_VIRTUAL_CHANNEL = 20;
+
+  /**
+   * Number of slots kept for the sessions of logical channels: at most
+   * <code>MAX_VIRTUAL_SESSIONS</code> slots are bound to virtual channels
+   */
+  static final byte LOGICAL_SESSIONS = 2;
+
+  /**
+   * Maximum number of sessions open at the same time on virtual channels
+   */
+  static final byte MAX_VIRTUAL_SESSIONS =
+      (byte)(MAX_SESSIONS - LOGICAL_SESSIONS);
+
+  // phases of a session
+  static final byte PHASE_NONE = 0;
+  static final byte PHASE_INITIALIZED = 1; // INITIALIZE UPDATE processed
+  static final byte PHASE_OPEN = 2;        // EXTERNAL AUTHENTICATE processed
+
+  // state of a session slot
+  private static final byte STATE_CURRENT_LEVEL = 0;
+  private static final byte STATE_SESSION_LEVEL = 1;
+  private static final byte STATE_PHASE = 2;
+  private static final byte STATE_CHANNEL = 3; // logical channel + 1, 0 if
+                                               // the slot is free
+  private static final byte STATE_LENGTH = 4;
+
+  // current command
+  private static final byte CURRENT_CHANNEL = 0; // its logical channel
+  private static final byte CURRENT_SLOT = 1;    // the slot bound to it + 1,
+                                                 // 0 if none
+  private static final byte CURRENT_OVERRIDE = 2; // the channel used instead
+                                                  // of the logical channel of
+                                                  // the commands + 1, 0 if
+                                                  // none
+  private static final byte CURRENT_LENGTH = 3;
+
+  private static final byte AUTHENTICATION_LEVELS =
+      (byte)(AUTHENTICATED | ANY_AUTHENTICATED);
+
+  private final byte supported_levels;
+  private final byte[] state; // the first row is always empty, for the
+                              // channels without a session, then one row
+                              // per slot
+  private final byte[] current;
+
+  final key_store store; // static key sets of the security domain
+
+  /**
+   * Class constructor
+   *
+   * @param bSupportedLevels The security levels the protocol can apply to
+   *     commands and responses: a combination of <code>C_MAC</code>,
+   *     <code>C_DECRYPTION</code>, <code>R_MAC</code> and
+   *     <code>R_ENCRYPTION</code>.
+   * @param store The key sets of the security domain.
+   */
+  secure_channel(byte bSupportedLevels, key_store store) {
+    supported_levels = bSupportedLevels;
+    this.store = store;
+    state = JCSystem.makeTransientByteArray(
+        (short)((MAX_SESSIONS + 1) * STATE_LENGTH), JCSystem.CLEAR_ON_DESELECT);
+    current = JCSystem.makeTransientByteArray(CURRENT_LENGTH,
+                                              JCSystem.CLEAR_ON_DESELECT);
+  }
+
+  /**
+   * Find the key set an INITIALIZE UPDATE command asks for.
+   *
+   * @param bVersion The key version number, P1 of the command.
+   * @param bType The type of the keys the protocol works with.
+   * @param bLength The length of the keys, or 0 if any length is supported.
+   * @return The slot of the key set in <code>store</code>.
+   * @throws ISOException with reason code 0x6A88 («referenced data not
+   *     found», see ISO7816-4) if there is no such key set for the protocol,
+   *     holding the three keys.
+   */
+  short find_key_set(byte bVersion, byte bType, byte bLength)
+      throws ISOException {
+    short set = store.find(bVersion);
+    if (set == key_store.NO_SET || store.get_type(set) != bType ||
+        store.get_length(set, key_store.KID_DEK) == 0 ||
+        (bLength != 0 &&
+         store.get_length(set, key_store.KID_ENC) != bLength)) {
+      ISOException.throwIt((short)0x6A88); // «referenced data not found», see
+                                           // ISO7816-4
+    }
+    return set;
+  }
+
+  public short processSecurity(APDU apdu) throws ISOException {
+    byte[] buffer = apdu.getBuffer();
+    apdu.setIncomingAndReceive();
+    return processSecurity(
+        buffer, (short)0,
+        (short)(apdu.getOffsetCdata() + apdu.getIncomingLength()),
+        ISO7816.OFFSET_CDATA);
+  }
+
+  public short processSecurity(byte[] baBuffer, short sInOffset,
+                               short sInLength, short sOutOffset)
+      throws ISOException {
+    if ((baBuffer[sInOffset] & (byte)0x80) == 0x00) // not a GlobalPlatform
+                                                    // class
+    {
+      ISOException.throwIt((short)0x6E00); // «class not supported», see
+                                           // ISO7816-4
+    }
+    select_channel(APDUUtil.getCLAChannel(baBuffer[sInOffset]));
+    switch (baBuffer[(short)(sInOffset + ISO7816.OFFSET_INS)]) {
+    case INS_INITIALIZE_UPDATE:
+      resetSecurity(); // a new session replaces the current one
+      bind_slot();
+      return initialize_update(baBuffer, sInOffset, sInLength, sOutOffset);
+    case INS_EXTERNAL_AUTHENTICATE:
+      if (get_phase() != PHASE_INITIALIZED) {
+        ISOException.throwIt((short)0x6985); // «conditions of use not
+                                             // satisfied», see ISO7816-4
+      }
+      byte level = baBuffer[(short)(sInOffset + ISO7816.OFFSET_P1)];
+      if (!is_valid_level(level)) {
+        abort();
+        ISOException.throwIt((short)0x6A86); // «incorrect P1 P2», see
+                                             // ISO7816-4
+      }
+      external_authenticate(baBuffer, sInOffset, sInLength);
+      short row = row();
+      level = (byte)(level | AUTHENTICATED);
+      state[(short)(row + STATE_CURRENT_LEVEL)] = level;
+      state[(short)(row + STATE_SESSION_LEVEL)] = level;
+      state[(short)(row + STATE_PHASE)] = PHASE_OPEN;
+      return 0;
+    default:
+      ISOException.throwIt((short)0x6D00); // «instruction code not
+                                           // supported», see ISO7816-4
+    }
+    return 0;
+  }
+
+  public short unwrap(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    select_channel(APDUUtil.getCLAChannel(baBuffer[sOffset]));
+    short length = unwrap_command(baBuffer, sOffset, sLength);
+    if (length < 0) {
+      abort();
+      ISOException.throwIt((short)0x6982); // «security status not
+                                           // satisfied», see ISO7816-4
+    }
+    return length;
+  }
+
+  /**
+   * Unwrap, ahead of their processing, the commands of a script: a sequence
+   * of C-APDUs, each of them preceded by its length on two bytes. The
+   * unwrapped commands are written the same way to another buffer, with their
+   * Le field, if any. The session of a logical channel is only looked up when
+   * the channel changes from one command to the next, and the MAC chaining
+   * value and the counter of a session are advanced by each of its commands,
+   * as by <code>unwrap</code>.
+   *
+   * <p>The commands are unwrapped as long as they do not depend on the
+   * processing of the previous ones. The run stops before INITIALIZE UPDATE
+   * and EXTERNAL AUTHENTICATE, which open a new session, before a command
+   * without secure messaging, with an extended length, or on a channel
+   * without a session requiring a C-MAC, and before a command whose secure
+   * messaging is wrong: those commands are left to <code>unwrap</code>, when
+   * they are processed, and a wrong one aborts the session then. The run
+   * also stops after a command whose session protects the responses, which
+   * are wrapped with the MAC chaining value and the counter of their own
+   * command.</p>
+   *
+   * @param baInput The buffer holding the commands.
+   * @param sInOffset The offset of the length of the first command.
+   * @param sInLength The length of the sequence of commands.
+   * @param baOutput The buffer where the unwrapped commands are written.
+   * @param sOutOffset The offset where the unwrapped commands are written.
+   * @param sOutLength The room for the unwrapped commands.
+   * @return The offset of the first command not unwrapped in
+   *     <code>baInput</code>, or the end of the sequence.
+   */
+  short unwrap_commands(byte[] baInput, short sInOffset, short sInLength,
+                        byte[] baOutput, short sOutOffset, short sOutLength) {
+    short end = (short)(sInOffset + sInLength);
+    short out_end = (short)(sOutOffset + sOutLength);
+    byte selected = -1;
+    while ((short)(end - sInOffset) > (short)(2 + ISO7816.OFFSET_CDATA)) {
+      short command = (short)(sInOffset + 2);
+      short length = Util.getShort(baInput, sInOffset);
+      short body = (short)(ISO7816.OFFSET_CDATA +
+                           (baInput[(short)(command + ISO7816.OFFSET_LC)] &
+                            0xFF));
+      byte cla = baInput[command];
+      byte ins = baInput[(short)(command + ISO7816.OFFSET_INS)];
+      if (length > (short)(end - command) ||
+          (length != body && length != (short)(body + 1)) ||
+          (short)(sOutOffset + 2 + length) > out_end ||
+          (cla & (byte)0x80) == 0x00 ||
+          (cla & secure_messaging_bit(cla)) == 0 ||
+          ins == INS_INITIALIZE_UPDATE || ins == INS_EXTERNAL_AUTHENTICATE) {
+        break;
+      }
+      byte channel = APDUUtil.getCLAChannel(cla);
+      if (channel != selected) {
+        select_channel(channel);
+        selected = channel;
+      }
+      byte level = getSecurityLevel();
+      if ((level & C_MAC) == 0 || is_aborted()) {
+        break;
+      }
+
+      // unwrapped in the output buffer, so that a wrong command is left as it
+      // is
+      Util.arrayCopyNonAtomic(baInput, command, baOutput,
+                              (short)(sOutOffset + 2), body);
+      short plain = unwrap_command(baOutput, (short)(sOutOffset + 2), body);
+      if (plain < 0) {
+        break;
+      }
+      if (length > body) // the Le field
+      {
+        baOutput[(short)(sOutOffset + 2 + plain)] =
+            baInput[(short)(command + body)];
+        plain++;
+      }
+      sOutOffset = Util.setShort(baOutput, sOutOffset, plain);
+      sOutOffset += plain;
+      sInOffset = (short)(command + length);
+      if ((level & (R_MAC | R_ENCRYPTION)) != 0) {
+        break;
+      }
+    }
+    return sInOffset;
+  }
+
+  public void resetSecurity() {
+    if (current[CURRENT_SLOT] == 0) {
+      return;
+    }
+    clear_session();
+    Util.arrayFillNonAtomic(state, row(), STATE_LENGTH, (byte)0x00);
+    current[CURRENT_SLOT] = 0;
+  }
+
+  public byte getSecurityLevel() {
+    return state[(short)(row() + STATE_CURRENT_LEVEL)];
+  }
+
+  public void setSecurityLevel(byte bSecurityLevel) {
+    byte session = state[(short)(row() + STATE_SESSION_LEVEL)];
+    if (state[(short)(row() + STATE_PHASE)] != PHASE_OPEN ||
+        (bSecurityLevel & session) != session ||
+        (bSecurityLevel & AUTHENTICATION_LEVELS) !=
+            (state[(short)(row() + STATE_CURRENT_LEVEL)] &
+             AUTHENTICATION_LEVELS) ||
+        !is_valid_level((byte)(bSecurityLevel & ~AUTHENTICATION_LEVELS))) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    state[(short)(row() + STATE_CURRENT_LEVEL)] = bSecurityLevel;
+  }
+
+  /**
+   * Set the logical channel of the command being processed, and select the
+   * session open on it, if any. The channel set by
+   * <code>override_channel</code>, if any, is used instead.
+   */
+  void select_channel(byte bChannel) {
+    if (current[CURRENT_OVERRIDE] != 0) {
+      bChannel = (byte)(current[CURRENT_OVERRIDE] - 1);
+    }
+    current[CURRENT_CHANNEL] = bChannel;
+    current[CURRENT_SLOT] = 0;
+    for (byte slot = 1; slot <= MAX_SESSIONS; slot++) {
+      if (state[(short)(slot * STATE_LENGTH + STATE_CHANNEL)] ==
+          (byte)(bChannel + 1)) {
+        select_slot(slot);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Bind a free slot to the logical channel of the current command.
+   *
+   * @throws ISOException with reason code 0x6A84 («not enough memory space»,
+   *     see ISO7816-4) if all the slots are in use, or if the channel is
+   *     virtual and <code>MAX_VIRTUAL_SESSIONS</code> slots are bound to
+   *     virtual channels.
+   */
+  private void bind_slot() throws ISOException {
+    if (current[CURRENT_CHANNEL] >= FIRST_VIRTUAL_CHANNEL) {
+      byte count = 0;
+      for (byte slot = 1; slot <= MAX_SESSIONS; slot++) {
+        if (state[(short)(slot * STATE_LENGTH + STATE_CHANNEL)] >
+            FIRST_VIRTUAL_CHANNEL) {
+          count++;
+        }
+      }
+      if (count >= MAX_VIRTUAL_SESSIONS) {
+        ISOException.throwIt((short)0x6A84); // «not enough memory space»,
+                                             // see ISO7816-4
+      }
+    }
+    for (byte slot = 1; slot <= MAX_SESSIONS; slot++) {
+      if (state[(short)(slot * STATE_LENGTH + STATE_CHANNEL)] == 0) {
+        state[(short)(slot * STATE_LENGTH + STATE_CHANNEL)] =
+            (byte)(current[CURRENT_CHANNEL] + 1);
+        select_slot(slot);
+        return;
+      }
+    }
+    ISOException.throwIt((short)0x6A84); // «not enough memory space», see
+                                         // ISO7816-4
+  }
+
+  /**
+   * Process the next commands on a channel of their own, whatever the
+   * logical channel of their class byte, and select its session.
+   *
+   * @param bChannel The channel, from <code>FIRST_VIRTUAL_CHANNEL</code>, or
+   *     -1 to process the commands on their logical channel again.
+   */
+  void override_channel(byte bChannel) {
+    current[CURRENT_OVERRIDE] = (byte)(bChannel + 1);
+    if (bChannel >= 0) {
+      select_channel(bChannel);
+    }
+  }
+
+  private void select_slot(byte bSlot) {
+    current[CURRENT_SLOT] = bSlot;
+    use_session((byte)(bSlot - 1));
+  }
+
+  /**
+   * @return The offset of the state of the current session in
+   *     <code>state</code>.
+   */
+  private short row() { return (short)(current[CURRENT_SLOT] * STATE_LENGTH); }
+
+  /**
+   * Abort the session: the session keys and the Current Security Level are
+   * reset, but not the compulsory Session Security Level.
+   */
+  void abort() {
+    if (current[CURRENT_SLOT] == 0) {
+      return;
+    }
+    clear_session();
+    state[(short)(row() + STATE_CURRENT_LEVEL)] = NO_SECURITY_LEVEL;
+    state[(short)(row() + STATE_PHASE)] = PHASE_NONE;
+  }
+
+  /**
+   * @return The phase of the session.
+   */
+  byte get_phase() { return state[(short)(row() + STATE_PHASE)]; }
+
+  /**
+   * Mark the session as initialized, once INITIALIZE UPDATE has been
+   * processed.
+   */
+  void set_initialized() {
+    state[(short)(row() + STATE_PHASE)] = PHASE_INITIALIZED;
+  }
+
+  /**
+   * Check that the session has not been aborted without being terminated, as
+   * required before wrapping or unwrapping.
+   */
+  void check_not_aborted() throws ISOException {
+    if (is_aborted()) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the session has been aborted without being
+   *     terminated.
+   */
+  private boolean is_aborted() {
+    return state[(short)(row() + STATE_CURRENT_LEVEL)] == NO_SECURITY_LEVEL &&
+           state[(short)(row() + STATE_SESSION_LEVEL)] != NO_SECURITY_LEVEL;
+  }
+
+  /**
+   * Check a security level requested by EXTERNAL AUTHENTICATE or
+   * <code>setSecurityLevel</code>: command decryption needs a command MAC,
+   * response encryption needs a response MAC and command decryption.
+   */
+  boolean is_valid_level(byte bLevel) {
+    if ((bLevel & ~supported_levels) != 0) {
+      return false;
+    }
+    if ((bLevel & C_DECRYPTION) != 0 && (bLevel & C_MAC) == 0) {
+      return false;
+    }
+    return (bLevel & R_ENCRYPTION) == 0 ||
+           ((bLevel & R_MAC) != 0 && (bLevel & C_DECRYPTION) != 0);
+  }
+
+  /**
+   * @return The bit of a class byte indicating secure messaging, see
+   *     ISO7816-4.
+   */
+  static byte secure_messaging_bit(byte bClass) {
+    return (bClass & (byte)0x40) == 0 ? (byte)0x04 : (byte)0x20;
+  }
+
+  /**
+   * Pad data in place, with '80' followed by '00' up to a block boundary.
+   *
+   * @return The length of the padded data.
+   */
+  static short pad(byte[] baBuffer, short sOffset, short sLength,
+                   short sBlock) {
+    short end = (short)(sOffset + sLength);
+    baBuffer[end++] = (byte)0x80;
+    short padded = (short)((sLength / sBlock + 1) * sBlock);
+    Util.arrayFillNonAtomic(baBuffer, end, (short)(sOffset + padded - end),
+                            (byte)0x00);
+    return padded;
+  }
+
+  /**
+   * Remove the '80' '00'... padding of the last block of data.
+   *
+   * @return The length of the data without padding, or -1 if the padding is
+   *     not valid.
+   */
+  static short unpad(byte[] baBuffer, short sOffset, short sLength,
+                     short sBlock) {
+    if (sLength < sBlock) {
+      return -1;
+    }
+    short i = (short)(sOffset + sLength - 1);
+    short limit = (short)(sOffset + sLength - sBlock);
+    while (i > limit && baBuffer[i] == 0x00) {
+      i--;
+    }
+    if (baBuffer[i] != (byte)0x80) {
+      return -1;
+    }
+    return (short)(i - sOffset);
+  }
+
+  /**
+   * Compare a computed MAC or cryptogram with the one received, in a time
+   * which does not depend on where they differ.
+   *
+   * @return <code>true</code> if both are equal.
+   */
+  static boolean equal(byte[] baExpected, short sExpectedOffset,
+                       byte[] baReceived, short sReceivedOffset,
+                       short sLength) {
+    byte difference = 0;
+    for (short i = 0; i < sLength; i++) {
+      difference |= (byte)(baExpected[(short)(sExpectedOffset + i)] ^
+                           baReceived[(short)(sReceivedOffset + i)]);
+    }
+    return difference == 0;
+  }
+
+  /**
+   * Increment a big endian counter.
+   */
+  static void increment(byte[] baCounter, short sOffset, short sLength) {
+    for (short i = (short)(sOffset + sLength - 1); i >= sOffset; i--) {
+      baCounter[i]++;
+      if (baCounter[i] != 0) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Process INITIALIZE UPDATE: derive the session keys and write the
+   * response. The session is then initialized.
+   *
+   * @return The length of the response data.
+   */
+  abstract short initialize_update(byte[] baBuffer, short sInOffset,
+                                   short sInLength, short sOutOffset)
+      throws ISOException;
+
+  /**
+   * Process EXTERNAL AUTHENTICATE: check the host cryptogram and the MAC of
+   * the command, aborting the session if they are wrong.
+   */
+  abstract void external_authenticate(byte[] baBuffer, short sInOffset,
+                                       short sInLength) throws ISOException;
+
+  /**
+   * Unwrap a command on the logical channel of the current session. A command
+   * whose secure messaging is wrong is not refused here, and the session is
+   * not aborted: the caller does it.
+   *
+   * @return The length of the unwrapped command, or -1 if its secure
+   *     messaging is wrong.
+   * @see SecureChannel#unwrap
+   */
+  abstract short unwrap_command(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException;
+
+  /**
+   * Erase the session keys and the state of the protocol.
+   */
+  abstract void clear_session();
+
+  /**
+   * Make the session keys of a slot those of the current session.
+   *
+   * @param bSlot The slot, from 0 to <code>MAX_SESSIONS</code> - 1.
+   */
+  abstract void use_session(byte bSlot);
+}
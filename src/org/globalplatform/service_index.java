@@ -0,0 +1,443 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.Util;
+
+/**
+ * <p>Index of the global service names of the GP registry.</p>
+ *
+ * <p>A record is kept for each service name recorded for an application (as
+ * part of the System Install Parameters of the INSTALL command). Records are
+ * hashed on the service name, and the uniquely registered ones are also
+ * chained by family, so that registering, deregistering and looking a service
+ * up by name or by family do not depend on the number of services on the
+ * card.</p>
+ */
+final class service_index {
+
+  /**
+   * Record index meaning "no record"
+   */
+  static final short NO_RECORD = (short)-1;
+
+  /**
+   * Invalid service name, as specified in the GlobalPlatform specification
+   */
+  static final short NO_SERVICE = (short)0xFFFF;
+
+  private static final byte FLAG_RECORDED = 0x01;
+  private static final byte FLAG_UNIQUE = 0x02;
+
+  private static final short INITIAL_RECORDS = (short)32;
+  private static final short MAX_RECORDS = (short)0x4000;
+  private static final short FAMILIES = (short)256;
+
+  // records, stored as a struct of arrays
+  private short[] name;
+  private short[] owner;
+  private byte[] flags;
+  private short[] bucket_next; // next record in the same hash bucket
+  private short[] owner_next;  // next record of the same owner
+  private short[] family_prev; // uniquely registered records of a family
+  private short[] family_next;
+
+  private short[] buckets;
+  private final short[] family_head;
+  private short capacity;
+  private short high_water = 0;
+  private short free_head = NO_RECORD;
+
+  /**
+   * Class constructor
+   */
+  service_index() {
+    allocate_records(INITIAL_RECORDS);
+    buckets = new short[INITIAL_RECORDS];
+    fill(buckets, NO_RECORD);
+    family_head = new short[FAMILIES];
+    fill(family_head, NO_RECORD);
+  }
+
+  /**
+   * Record a service name for an application.
+   *
+   * @param sServiceName The service name.
+   * @param sOwner The index of the application in the GP registry.
+   * @param sFirstOfOwner The first record of the application, see
+   *     <code>registry_table.get_first_service</code>.
+   * @return The index of the new record, which becomes the first record of
+   *     the application. <code>NO_RECORD</code> if the service name is
+   *     invalid, already recorded for this application, or if there is no
+   *     more room.
+   */
+  short record(short sServiceName, short sOwner, short sFirstOfOwner) {
+    if (sServiceName == NO_SERVICE || find(sServiceName, sOwner) != NO_RECORD) {
+      return NO_RECORD;
+    }
+    short record = free_head;
+    if (record != NO_RECORD) {
+      free_head = owner_next[record];
+    } else {
+      if (high_water == capacity) {
+        if (capacity == MAX_RECORDS) {
+          return NO_RECORD;
+        }
+        grow();
+      }
+      record = high_water;
+      high_water++;
+    }
+
+    name[record] = sServiceName;
+    owner[record] = sOwner;
+    flags[record] = FLAG_RECORDED;
+    owner_next[record] = sFirstOfOwner;
+    family_prev[record] = NO_RECORD;
+    family_next[record] = NO_RECORD;
+    short bucket = bucket_of(sServiceName);
+    bucket_next[record] = buckets[bucket];
+    buckets[bucket] = record;
+    return record;
+  }
+
+  /**
+   * Remove all the records of an application.
+   *
+   * @param sFirstOfOwner The first record of the application.
+   */
+  void remove_all(short sFirstOfOwner) {
+    short record = sFirstOfOwner;
+    while (record != NO_RECORD) {
+      short next = owner_next[record];
+      if ((flags[record] & FLAG_UNIQUE) != 0) {
+        unlink_family(record);
+      }
+      unlink_bucket(record);
+      flags[record] = 0;
+      name[record] = NO_SERVICE;
+      owner_next[record] = free_head;
+      free_head = record;
+      record = next;
+    }
+  }
+
+  /**
+   * @return The number of records of an application.
+   */
+  short count(short sFirstOfOwner) {
+    short count = 0;
+    for (short record = sFirstOfOwner; record != NO_RECORD;
+         record = owner_next[record]) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return The record of a service name for an application, or
+   *     <code>NO_RECORD</code>.
+   */
+  short find(short sServiceName, short sOwner) {
+    short record = buckets[bucket_of(sServiceName)];
+    while (record != NO_RECORD) {
+      if (name[record] == sServiceName && owner[record] == sOwner) {
+        return record;
+      }
+      record = bucket_next[record];
+    }
+    return NO_RECORD;
+  }
+
+  /**
+   * @return <code>true</code> if the service name is recorded for any
+   *     application but <code>sOwner</code>. Use -1 to consider every
+   *     application.
+   */
+  boolean is_recorded_by_other(short sServiceName, short sOwner) {
+    short record = buckets[bucket_of(sServiceName)];
+    while (record != NO_RECORD) {
+      if (name[record] == sServiceName && owner[record] != sOwner) {
+        return true;
+      }
+      record = bucket_next[record];
+    }
+    return false;
+  }
+
+  /**
+   * Register a recorded service name uniquely.
+   *
+   * @return <code>false</code> if the service name is not recorded for this
+   *     application, or already registered uniquely.
+   */
+  boolean set_unique(short sServiceName, short sOwner) {
+    short record = find(sServiceName, sOwner);
+    if (record == NO_RECORD || (flags[record] & FLAG_UNIQUE) != 0) {
+      return false;
+    }
+    flags[record] |= FLAG_UNIQUE;
+    short family = (short)((sServiceName >> 8) & 0xFF);
+    family_prev[record] = NO_RECORD;
+    family_next[record] = family_head[family];
+    if (family_head[family] != NO_RECORD) {
+      family_prev[family_head[family]] = record;
+    }
+    family_head[family] = record;
+    return true;
+  }
+
+  /**
+   * Remove the uniqueness of a service name registered uniquely.
+   *
+   * @return <code>false</code> if the service name is not registered uniquely
+   *     by this application.
+   */
+  boolean clear_unique(short sServiceName, short sOwner) {
+    short record = find(sServiceName, sOwner);
+    if (record == NO_RECORD || (flags[record] & FLAG_UNIQUE) == 0) {
+      return false;
+    }
+    unlink_family(record);
+    flags[record] &= (byte)~FLAG_UNIQUE;
+    return true;
+  }
+
+  /**
+   * @return The index of the application which registered a service name
+   *     uniquely, or -1 if there is none.
+   */
+  short find_unique_owner(short sServiceName) {
+    short record = buckets[bucket_of(sServiceName)];
+    while (record != NO_RECORD) {
+      if (name[record] == sServiceName && (flags[record] & FLAG_UNIQUE) != 0) {
+        return owner[record];
+      }
+      record = bucket_next[record];
+    }
+    return (short)-1;
+  }
+
+  /**
+   * @return A service name of the family registered uniquely, or
+   *     <code>NO_SERVICE</code> if there is none.
+   */
+  short find_unique_in_family(byte bFamily) {
+    short record = family_head[(short)(bFamily & 0xFF)];
+    if (record == NO_RECORD) {
+      return NO_SERVICE;
+    }
+    return name[record];
+  }
+
+  /**
+   * @return The length of the index in a registry image.
+   */
+  int image_length() {
+    return 6 + high_water * 13 + (buckets.length + FAMILIES) * 2;
+  }
+
+  /**
+   * Write the index into a registry image.
+   *
+   * @return <code>sOffset</code> + the length of the index in the image.
+   */
+  short save(byte[] baImage, short sOffset) {
+    sOffset = Util.setShort(baImage, sOffset, capacity);
+    sOffset = Util.setShort(baImage, sOffset, high_water);
+    sOffset = Util.setShort(baImage, sOffset, free_head);
+    sOffset = registry_image.save_shorts(name, high_water, baImage, sOffset);
+    sOffset = registry_image.save_shorts(owner, high_water, baImage, sOffset);
+    sOffset = Util.arrayCopyNonAtomic(flags, (short)0, baImage, sOffset,
+                                      high_water);
+    sOffset =
+        registry_image.save_shorts(bucket_next, high_water, baImage, sOffset);
+    sOffset =
+        registry_image.save_shorts(owner_next, high_water, baImage, sOffset);
+    sOffset =
+        registry_image.save_shorts(family_prev, high_water, baImage, sOffset);
+    sOffset =
+        registry_image.save_shorts(family_next, high_water, baImage, sOffset);
+    sOffset = registry_image.save_shorts(buckets, (short)buckets.length,
+                                         baImage, sOffset);
+    return registry_image.save_shorts(family_head, FAMILIES, baImage, sOffset);
+  }
+
+  /**
+   * Check the index written at <code>sOffset</code> of a registry image: its
+   * counters and links must be consistent, it must lie within the image and
+   * refer only to the first <code>sEntries</code> entries of the registry.
+   *
+   * @return The offset following the index in the image, -1 if it is not
+   *     consistent.
+   */
+  static short check_image(byte[] baImage, short sOffset, short sEntries) {
+    if ((short)(baImage.length - sOffset) < 6) {
+      return (short)-1;
+    }
+    short capacity = Util.getShort(baImage, sOffset);
+    short records = Util.getShort(baImage, (short)(sOffset + 2));
+    short free = Util.getShort(baImage, (short)(sOffset + 4));
+    int end = sOffset + 6 + records * 13 + (capacity + FAMILIES) * 2;
+    if (capacity < INITIAL_RECORDS || capacity > MAX_RECORDS ||
+        (capacity & (short)(capacity - 1)) != 0 || records < 0 ||
+        records > capacity || free < NO_RECORD || free >= records ||
+        end > baImage.length) {
+      return (short)-1;
+    }
+    sOffset = (short)(sOffset + 6 + records * 2);
+    if (!registry_image.check_indexes(baImage, sOffset, records, sEntries)) {
+      return (short)-1;
+    }
+    // bucket_next, owner_next, family_prev, family_next, then the heads of
+    // the buckets and families
+    sOffset = (short)(sOffset + records * 3);
+    if (!registry_image.check_indexes(baImage, sOffset,
+                                      (short)(records * 4 + capacity +
+                                              FAMILIES),
+                                      records)) {
+      return (short)-1;
+    }
+    return (short)end;
+  }
+
+  /**
+   * @return The number of records used in the index written at
+   *     <code>sOffset</code> of a registry image.
+   */
+  static short image_records(byte[] baImage, short sOffset) {
+    return Util.getShort(baImage, (short)(sOffset + 2));
+  }
+
+  /**
+   * Restore the index from a registry image checked by
+   * <code>check_image</code>.
+   *
+   * @return <code>sOffset</code> + the length of the index in the image.
+   */
+  short load(byte[] baImage, short sOffset) {
+    allocate_records(Util.getShort(baImage, sOffset));
+    high_water = Util.getShort(baImage, (short)(sOffset + 2));
+    free_head = Util.getShort(baImage, (short)(sOffset + 4));
+    sOffset = (short)(sOffset + 6);
+    sOffset = registry_image.load_shorts(baImage, sOffset, name, high_water);
+    sOffset = registry_image.load_shorts(baImage, sOffset, owner, high_water);
+    sOffset = registry_image.load_bytes(baImage, sOffset, flags, high_water);
+    sOffset =
+        registry_image.load_shorts(baImage, sOffset, bucket_next, high_water);
+    sOffset =
+        registry_image.load_shorts(baImage, sOffset, owner_next, high_water);
+    sOffset =
+        registry_image.load_shorts(baImage, sOffset, family_prev, high_water);
+    sOffset =
+        registry_image.load_shorts(baImage, sOffset, family_next, high_water);
+    buckets = new short[capacity];
+    sOffset = registry_image.load_shorts(baImage, sOffset, buckets, capacity);
+    return registry_image.load_shorts(baImage, sOffset, family_head, FAMILIES);
+  }
+
+  private void unlink_family(short record) {
+    short family = (short)((name[record] >> 8) & 0xFF);
+    if (family_prev[record] != NO_RECORD) {
+      family_next[family_prev[record]] = family_next[record];
+    } else {
+      family_head[family] = family_next[record];
+    }
+    if (family_next[record] != NO_RECORD) {
+      family_prev[family_next[record]] = family_prev[record];
+    }
+    family_prev[record] = NO_RECORD;
+    family_next[record] = NO_RECORD;
+  }
+
+  private void unlink_bucket(short record) {
+    short bucket = bucket_of(name[record]);
+    if (buckets[bucket] == record) {
+      buckets[bucket] = bucket_next[record];
+      return;
+    }
+    short previous = buckets[bucket];
+    while (bucket_next[previous] != record) {
+      previous = bucket_next[previous];
+    }
+    bucket_next[previous] = bucket_next[record];
+  }
+
+  /**
+   * Double the number of records and of hash buckets.
+   */
+  private void grow() {
+    short[] old_name = name;
+    short[] old_owner = owner;
+    byte[] old_flags = flags;
+    short[] old_owner_next = owner_next;
+    short[] old_family_prev = family_prev;
+    short[] old_family_next = family_next;
+
+    allocate_records((short)(capacity << 1));
+    for (short i = 0; i < high_water; i++) {
+      name[i] = old_name[i];
+      owner[i] = old_owner[i];
+      flags[i] = old_flags[i];
+      owner_next[i] = old_owner_next[i];
+      family_prev[i] = old_family_prev[i];
+      family_next[i] = old_family_next[i];
+    }
+
+    buckets = new short[capacity];
+    fill(buckets, NO_RECORD);
+    for (short i = 0; i < high_water; i++) {
+      if (flags[i] != 0) {
+        short bucket = bucket_of(name[i]);
+        bucket_next[i] = buckets[bucket];
+        buckets[bucket] = i;
+      }
+    }
+  }
+
+  private void allocate_records(short sCapacity) {
+    capacity = sCapacity;
+    name = new short[sCapacity];
+    owner = new short[sCapacity];
+    flags = new byte[sCapacity];
+    bucket_next = new short[sCapacity];
+    owner_next = new short[sCapacity];
+    family_prev = new short[sCapacity];
+    family_next = new short[sCapacity];
+  }
+
+  private short bucket_of(short sServiceName) {
+    return (short)((sServiceName ^ (sServiceName >> 7)) &
+                   (short)(buckets.length - 1));
+  }
+
+  private static void fill(short[] array, short value) {
+    for (short i = 0; i < (short)array.length; i++) {
+      array[i] = value;
+    }
+  }
+}
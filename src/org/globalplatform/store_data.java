@@ -0,0 +1,361 @@
+package org.globalplatform;
+
+/*-
+ * #%L
+ * Java Card API
+ * %%
+ * Copyright (C) 2020 National Cybersecurity Agency of France (ANSSI)
+ * %%
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * #L%
+ */
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Shareable;
+import javacard.framework.Util;
+
+/**
+ * <p>INSTALL [for personalization] and STORE DATA commands of the card
+ * manager.</p>
+ *
+ * <p>INSTALL [for personalization] designates an application associated with
+ * the issuer security domain, whose <code>Personalization</code> (or else
+ * <code>Application</code>) interface is looked up once. The data of the STORE
+ * DATA commands that follow is handed over to it.</p>
+ *
+ * <p>When the data is made of DGIs, each complete DGI is handed over on its
+ * own, as the data field of a STORE DATA command. A DGI held within a block is
+ * handed over where it is, the header of the command being written over the
+ * bytes already processed in front of it; only a DGI spanning several blocks
+ * is gathered in a transient buffer. When the command tells that the data is
+ * encrypted, the sensitive DGIs ('8000' to '8FFF') are decrypted with the
+ * secure channel beforehand. Other data is handed over command by
+ * command.</p>
+ */
+final class store_data {
+
+  /**
+   * P1 of the INSTALL [for personalization] command
+   */
+  static final byte P1_INSTALL_FOR_PERSONALIZATION = (byte)0x20;
+
+  /**
+   * Longest DGI, with its tag and length, that may span several blocks
+   */
+  static final short MAX_RECORD_LENGTH = (short)1024;
+
+  // P1 of the STORE DATA command
+  private static final byte P1_LAST_BLOCK = (byte)0x80;
+  private static final byte P1_ENCRYPTION = (byte)0x60;
+  private static final byte P1_ENCRYPTED = (byte)0x60;
+  private static final byte P1_STRUCTURE = (byte)0x18;
+  private static final byte P1_DGI = (byte)0x08;
+
+  // parameter of getAppletShareableInterfaceObject asking for the
+  // Application or Personalization interface
+  private static final byte INTERFACE_PARAMETER = (byte)0x00;
+
+  // state of the personalization, kept between commands
+  private static final byte STATE_NEXT_BLOCK = 0;
+  private static final byte STATE_RECORD = 1;  // number of the next DGI
+  private static final byte STATE_PENDING = 2; // bytes of the DGI gathered
+  private static final byte STATE_LENGTH = 3;
+
+  // room for the header of a STORE DATA command with an extended Lc
+  private static final short RECORD_HEADER = (short)7;
+
+  private static final short OUTPUT_LENGTH = (short)256;
+
+  private final PlateformeGlobale gp;
+  private final short[] state;
+  private final Object[] target;
+  private final byte[] pending; // header room, then the DGI being gathered
+  private final byte[] output;
+
+  /**
+   * Class constructor
+   *
+   * @param gp The OPEN.
+   */
+  store_data(PlateformeGlobale gp) {
+    this.gp = gp;
+    state = JCSystem.makeTransientShortArray(STATE_LENGTH,
+                                             JCSystem.CLEAR_ON_RESET);
+    target = JCSystem.makeTransientObjectArray((short)1,
+                                               JCSystem.CLEAR_ON_RESET);
+    pending = JCSystem.makeTransientByteArray(
+        (short)(RECORD_HEADER + MAX_RECORD_LENGTH), JCSystem.CLEAR_ON_RESET);
+    output = JCSystem.makeTransientByteArray(OUTPUT_LENGTH,
+                                             JCSystem.CLEAR_ON_RESET);
+  }
+
+  /**
+   * Process an INSTALL [for personalization] command.
+   *
+   * @param baBuffer The buffer holding the command data, where the response
+   *     data is written from offset 0.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data.
+   * @return The length of the response data.
+   */
+  short install_for_personalization(byte[] baBuffer, short sOffset,
+                                    short sLength) throws ISOException {
+    target[0] = null;
+    short end = (short)(sOffset + sLength);
+
+    // empty Load File and Module AIDs, then the Application AID
+    short offset = load_command.skip_lv(baBuffer, sOffset, end);
+    short aid_offset = load_command.skip_lv(baBuffer, offset, end);
+    offset = load_command.skip_lv(baBuffer, aid_offset, end);
+    byte aid_length = baBuffer[aid_offset];
+    if (offset != (short)(aid_offset + 1 + aid_length) || aid_length == 0) {
+      ISOException.throwIt((short)0x6A80); // «incorrect parameters in the
+                                           // data field», see ISO7816-4
+    }
+
+    short index =
+        gp.registry.find(baBuffer, (short)(aid_offset + 1), aid_length);
+    if (index == registry_table.NO_ENTRY ||
+        gp.registry.get_kind(index) != registry_table.KIND_INSTANCE) {
+      ISOException.throwIt((short)0x6A88); // «referenced data not found», see
+                                           // ISO7816-4
+    }
+    if (index == PlateformeGlobale.ISD_INDEX ||
+        gp.registry.get_security_domain(index) != PlateformeGlobale.ISD_INDEX) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    Shareable sio = JCSystem.getAppletShareableInterfaceObject(
+        JCSystem.lookupAID(baBuffer, (short)(aid_offset + 1), aid_length),
+        INTERFACE_PARAMETER);
+    if (!(sio instanceof Personalization) && !(sio instanceof Application)) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    target[0] = sio;
+    reset();
+
+    baBuffer[0] = (byte)0x00; // no data returned
+    return 1;
+  }
+
+  /**
+   * Process a STORE DATA command.
+   *
+   * @param baBuffer The buffer holding the command APDU from offset 0, where
+   *     the response data is written from offset 0.
+   * @param sOffset The offset of the command data.
+   * @param sLength The length of the command data.
+   * @return The length of the response data: what the application has output.
+   */
+  short process(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    if (target[0] == null) {
+      ISOException.throwIt((short)0x6985); // «conditions of use not
+                                           // satisfied», see ISO7816-4
+    }
+    byte p1 = baBuffer[ISO7816.OFFSET_P1];
+    if ((short)(baBuffer[ISO7816.OFFSET_P2] & 0xFF) !=
+        state[STATE_NEXT_BLOCK]) {
+      fail((short)0x6A86); // «incorrect P1 P2», see ISO7816-4
+    }
+    state[STATE_NEXT_BLOCK]++;
+    boolean last = (p1 & P1_LAST_BLOCK) != 0;
+    short out = 0;
+
+    if ((p1 & P1_STRUCTURE) != P1_DGI) // handed over as is
+    {
+      out = hand_over(baBuffer, (short)0, (short)(sOffset + sLength), out);
+    } else {
+      short end = (short)(sOffset + sLength);
+      while (sOffset < end) {
+        short length = (short)(end - sOffset);
+        if (state[STATE_PENDING] == 0) {
+          short total = dgi_length(baBuffer, sOffset, length);
+          if (total > 0 && total <= length) // the whole DGI is there
+          {
+            out = record(baBuffer, sOffset, total,
+                         last && total == length, p1, out);
+            sOffset += total;
+            continue;
+          }
+        }
+        sOffset = gather(baBuffer, sOffset, length);
+        short total = dgi_length(pending, RECORD_HEADER, state[STATE_PENDING]);
+        if (total > 0 && total == state[STATE_PENDING]) {
+          state[STATE_PENDING] = 0;
+          out = record(pending, RECORD_HEADER, total, last && sOffset == end,
+                       p1, out);
+        }
+      }
+      if (last && state[STATE_PENDING] != 0) // truncated DGI
+      {
+        fail((short)0x6A80); // «incorrect parameters in the data field», see
+                             // ISO7816-4
+      }
+    }
+
+    if (last) {
+      reset();
+    }
+    return Util.arrayCopyNonAtomic(output, (short)0, baBuffer, (short)0, out);
+  }
+
+  /**
+   * Abandon the personalization in progress, if any.
+   */
+  void abort() {
+    target[0] = null;
+    reset();
+  }
+
+  private void reset() {
+    state[STATE_NEXT_BLOCK] = 0;
+    state[STATE_RECORD] = 0;
+    state[STATE_PENDING] = 0;
+  }
+
+  private void fail(short sReason) throws ISOException {
+    abort();
+    ISOException.throwIt(sReason);
+  }
+
+  /**
+   * Append bytes of a block to the DGI being gathered: the bytes of its tag
+   * and length one at a time, then up to the end of its value.
+   *
+   * @return The offset of the first byte not gathered.
+   */
+  private short gather(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    short gathered = state[STATE_PENDING];
+    short total = dgi_length(pending, RECORD_HEADER, gathered);
+    short count = 1;
+    if (total > 0) {
+      if (total > MAX_RECORD_LENGTH) {
+        fail((short)0x6A84); // «not enough memory space», see ISO7816-4
+      }
+      count = (short)(total - gathered);
+      if (count > sLength) {
+        count = sLength;
+      }
+    }
+    Util.arrayCopyNonAtomic(baBuffer, sOffset, pending,
+                            (short)(RECORD_HEADER + gathered), count);
+    state[STATE_PENDING] = (short)(gathered + count);
+    return (short)(sOffset + count);
+  }
+
+  /**
+   * Hand a complete DGI over to the application, decrypting it if needed.
+   * There must be <code>RECORD_HEADER</code> bytes, already processed, in
+   * front of it, where the header of the STORE DATA command is written.
+   *
+   * @return The offset following the output of the application.
+   */
+  private short record(byte[] baBuffer, short sOffset, short sLength,
+                       boolean bLast, byte bP1, short sOut)
+      throws ISOException {
+    short data = (short)(sOffset + 3);
+    if (baBuffer[(short)(sOffset + 2)] == (byte)0xFF) {
+      data += 2;
+    }
+    if ((bP1 & P1_ENCRYPTION) == P1_ENCRYPTED &&
+        (baBuffer[sOffset] & (byte)0xF0) == (byte)0x80) // sensitive DGI
+    {
+      gp.get_secure_channel().decryptData(
+          baBuffer, data, (short)(sOffset + sLength - data));
+    }
+
+    short header = sLength > 0xFF ? RECORD_HEADER : ISO7816.OFFSET_CDATA;
+    short start = (short)(sOffset - header);
+    baBuffer[start] = (byte)0x80;
+    baBuffer[(short)(start + ISO7816.OFFSET_INS)] =
+        PlateformeGlobale.INS_STORE_DATA;
+    baBuffer[(short)(start + ISO7816.OFFSET_P1)] =
+        (byte)((bP1 & P1_STRUCTURE) | (bLast ? P1_LAST_BLOCK : 0));
+    baBuffer[(short)(start + ISO7816.OFFSET_P2)] = (byte)state[STATE_RECORD];
+    state[STATE_RECORD]++;
+    if (header == ISO7816.OFFSET_CDATA) {
+      baBuffer[(short)(start + ISO7816.OFFSET_LC)] = (byte)sLength;
+    } else {
+      baBuffer[(short)(start + ISO7816.OFFSET_LC)] = (byte)0x00;
+      Util.setShort(baBuffer, (short)(start + ISO7816.OFFSET_LC + 1), sLength);
+    }
+    return hand_over(baBuffer, start, (short)(header + sLength), sOut);
+  }
+
+  /**
+   * Hand a STORE DATA command over to the application. The output of a
+   * {@link Personalization} application is appended to the previous ones and
+   * must fit in the output buffer.
+   *
+   * @return The offset following the output of the application.
+   */
+  private short hand_over(byte[] baBuffer, short sOffset, short sLength,
+                          short sOut) throws ISOException {
+    Object application = target[0];
+    try {
+      if (application instanceof Personalization) {
+        // processData() is not told how much room is left: writing past the
+        // end of the output fails, and so does a length it did not write
+        short written = ((Personalization)application).processData(
+            baBuffer, sOffset, sLength, output, sOut);
+        if (written < 0 || written > (short)(OUTPUT_LENGTH - sOut)) {
+          fail((short)0x6F00); // «no precise diagnosis», see ISO7816-4
+        }
+        return (short)(sOut + written);
+      }
+      ((Application)application).processData(baBuffer, sOffset, sLength);
+    } catch (ISOException e) {
+      abort();
+      throw e;
+    } catch (RuntimeException e) {
+      fail((short)0x6F00); // «no precise diagnosis», see ISO7816-4
+    }
+    return sOut;
+  }
+
+  /**
+   * @return The length of a DGI, tag and length included, or -1 if its tag
+   *     and length are not all within the <code>sLength</code> bytes
+   *     available.
+   */
+  private short dgi_length(byte[] baBuffer, short sOffset, short sLength)
+      throws ISOException {
+    if (sLength < 3) {
+      return -1;
+    }
+    byte first = baBuffer[(short)(sOffset + 2)];
+    if (first != (byte)0xFF) {
+      return (short)(3 + (first & 0xFF));
+    }
+    if (sLength < 5) {
+      return -1;
+    }
+    short length = Util.getShort(baBuffer, (short)(sOffset + 3));
+    if (length < 0 || length > (short)(0x7FFF - 5)) {
+      fail((short)0x6A80); // «incorrect parameters in the data field», see
+                           // ISO7816-4
+    }
+    return (short)(5 + length);
+  }
+}